@@ -0,0 +1,30 @@
+package be.isach.filterlib.benchmarks;
+
+import be.isach.filterlib.filters.AdditionFilter;
+import be.isach.filterlib.filters.GainFilter;
+import be.uliege.montefiore.oop.audio.Filter;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * Benchmarks of the stateless filters.
+ */
+public class BasicFilterBenchmark extends FilterBenchmark {
+
+    /**
+     * The filter to measure.
+     */
+    @Param({"gain", "addition"})
+    public String type;
+
+    @Override
+    protected Filter createFilter() {
+        switch (type) {
+            case "gain":
+                return new GainFilter(0.6);
+            case "addition":
+                return new AdditionFilter();
+            default:
+                throw new IllegalArgumentException("Unknown filter: " + type);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package be.isach.filterlib.benchmarks;
+
+import be.isach.filterlib.filters.AllPassFilter;
+import be.isach.filterlib.filters.EchoFilter;
+import be.isach.filterlib.reverberator.LowPassFilter;
+import be.isach.filterlib.reverberator.ReverberatorFilter;
+import be.isach.filterlib.util.CascadingAllPassFiltersBuilder;
+import be.uliege.montefiore.oop.audio.Filter;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * Benchmarks of the composite filters of the library.
+ */
+public class CompositeFilterBenchmark extends GeneratedFilterBenchmark {
+
+    /**
+     * The filter to measure.
+     */
+    @Param({"echo", "allpass", "lowpass", "cascade", "reverb"})
+    public String type;
+
+    @Override
+    protected Filter createFilter() {
+        switch (type) {
+            case "echo":
+                return new EchoFilter(0.6, 10000);
+            case "allpass":
+                return new AllPassFilter(0.7, 1051);
+            case "lowpass":
+                return new LowPassFilter(0.7133, 8);
+            case "cascade":
+                CascadingAllPassFiltersBuilder builder =
+                        new CascadingAllPassFiltersBuilder();
+                builder.add(0.7, 1051);
+                builder.add(0.7, 337);
+                builder.add(0.7, 113);
+                return builder.build();
+            case "reverb":
+                return new ReverberatorFilter();
+            default:
+                throw new IllegalArgumentException("Unknown filter: " + type);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package be.isach.filterlib.benchmarks;
+
+import be.isach.filterlib.convolution.ConvolutionFilter;
+import be.isach.filterlib.convolution.ImpulseResponse;
+import be.isach.filterlib.filters.EchoFilter;
+import be.isach.filterlib.reverberator.ReverberatorFilter;
+import be.uliege.montefiore.oop.audio.Filter;
+import be.uliege.montefiore.oop.audio.FilterException;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * Benchmarks of convolution filters applying the impulse responses captured
+ * from composite filters, to be compared with the composite filters
+ * themselves.
+ */
+public class ConvolutionFilterBenchmark extends FilterBenchmark {
+
+    /**
+     * The filter whose response is applied.
+     */
+    @Param({"echo", "reverb"})
+    public String type;
+
+    @Override
+    protected Filter createFilter() throws FilterException {
+        switch (type) {
+            case "echo":
+                return new ConvolutionFilter(ImpulseResponse.capture(
+                        new EchoFilter(0.6, 10000)));
+            case "reverb":
+                return new ConvolutionFilter(ImpulseResponse.capture(
+                        new ReverberatorFilter()));
+            default:
+                throw new IllegalArgumentException("Unknown filter: " + type);
+        }
+    }
+}
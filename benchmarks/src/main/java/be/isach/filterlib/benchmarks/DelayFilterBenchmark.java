@@ -0,0 +1,23 @@
+package be.isach.filterlib.benchmarks;
+
+import be.isach.filterlib.filters.DelayFilter;
+import be.uliege.montefiore.oop.audio.Filter;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * Benchmarks of the delay filter, from delays shorter than a block to
+ * delays larger than the CPU caches.
+ */
+public class DelayFilterBenchmark extends FilterBenchmark {
+
+    /**
+     * The delay of the filter, in samples.
+     */
+    @Param({"1", "16", "256", "4096", "65536", "1048576"})
+    public int delay;
+
+    @Override
+    protected Filter createFilter() {
+        return new DelayFilter(delay);
+    }
+}
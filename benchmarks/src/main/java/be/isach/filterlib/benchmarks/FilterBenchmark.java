@@ -0,0 +1,120 @@
+package be.isach.filterlib.benchmarks;
+
+import be.isach.filterlib.filters.BlockFilter;
+import be.uliege.montefiore.oop.audio.Filter;
+import be.uliege.montefiore.oop.audio.FilterException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Base of the benchmarks of a filter.
+ * <p>
+ * Each operation is one sample, so that scores read as nanoseconds per
+ * sample, and the allocation rate reported by {@code -prof gc} as bytes per
+ * sample. Filters are fed with white noise at the amplitude of 16 bits
+ * audio, both one step at a time through the original filter interface, as
+ * the audio library does, and by blocks of frames.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public abstract class FilterBenchmark {
+
+    /**
+     * Amount of samples processed by each invocation.
+     */
+    public static final int FRAMES = 4096;
+
+    /**
+     * The filter being measured.
+     */
+    protected Filter filter;
+
+    /**
+     * Input samples, one buffer per input of the filter.
+     */
+    protected double[][] input;
+
+    /**
+     * Output samples, one buffer per output of the filter.
+     */
+    protected double[][] output;
+
+    /**
+     * Creates the filter to measure.
+     *
+     * @return the filter to measure.
+     * @throws FilterException if the filter cannot be built.
+     */
+    protected abstract Filter createFilter() throws FilterException;
+
+    /**
+     * Creates the filter and its buffers.
+     *
+     * @throws FilterException if the filter cannot be built.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws FilterException {
+        filter = createFilter();
+
+        Random random = new Random(42);
+        input = new double[filter.nbInputs()][FRAMES];
+        for (double[] buffer : input) {
+            for (int n = 0; n < FRAMES; n++) {
+                buffer[n] = (random.nextDouble() * 2 - 1) * Short.MAX_VALUE;
+            }
+        }
+        output = new double[filter.nbOutputs()][FRAMES];
+    }
+
+    /**
+     * Processes samples one at a time, allocating the input array of each
+     * step like the audio library does.
+     *
+     * @return the sum of the first output, so that it is not optimized away.
+     * @throws FilterException if the filter fails.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public double oneStep() throws FilterException {
+        double sum = 0;
+        for (int n = 0; n < FRAMES; n++) {
+            double[] step = new double[input.length];
+            for (int i = 0; i < step.length; i++) {
+                step[i] = input[i][n];
+            }
+            sum += filter.computeOneStep(step)[0];
+        }
+        return sum;
+    }
+
+    /**
+     * Processes samples by blocks, natively for block filters.
+     *
+     * @return the last sample of the first output.
+     * @throws FilterException if the filter fails.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public double block() throws FilterException {
+        BlockFilter.computeBlock(filter, input, output, FRAMES);
+        return output[0][FRAMES - 1];
+    }
+}
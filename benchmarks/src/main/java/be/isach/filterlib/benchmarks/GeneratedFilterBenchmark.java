@@ -0,0 +1,153 @@
+package be.isach.filterlib.benchmarks;
+
+import be.isach.filterlib.engine.FilterCompiler;
+import be.isach.filterlib.engine.FloatFilter;
+import be.isach.filterlib.engine.PipelinedFilter;
+import be.isach.filterlib.engine.TransferFunction;
+import be.isach.filterlib.filters.BlockFilter;
+import be.isach.filterlib.filters.CompositeFilter;
+import be.uliege.montefiore.oop.audio.FilterException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Random;
+
+/**
+ * Base of the benchmarks of composite filters, which also measure the
+ * filters generated from them at runtime, the sparse recursive filters
+ * their transfer functions reduce to, their pipelines over every
+ * processor, and their single precision variants, on doubles and on 16 bits
+ * samples.
+ */
+public abstract class GeneratedFilterBenchmark extends FilterBenchmark {
+
+    /**
+     * The filter generated from the composite filter.
+     */
+    private BlockFilter generated;
+
+    /**
+     * The filter the transfer function of the composite filter reduces to.
+     */
+    private BlockFilter reduced;
+
+    /**
+     * The pipeline of the composite filter, one stage per processor.
+     */
+    private PipelinedFilter pipelined;
+
+    /**
+     * The single precision variant of the composite filter.
+     */
+    private FloatFilter single;
+
+    /**
+     * Input samples of the first input, as 16 bits samples.
+     */
+    private short[] samples;
+
+    /**
+     * Output samples of the first output, as 16 bits samples.
+     */
+    private short[] results;
+
+    /**
+     * Generates the filter of the composite filter, reduces its transfer
+     * function, and builds its pipeline and its single precision variant.
+     *
+     * @throws FilterException if the composite filter is not valid.
+     */
+    @Setup(Level.Trial)
+    public void generate() throws FilterException {
+        generated = FilterCompiler.compile((CompositeFilter) createFilter());
+        reduced = TransferFunction.reduce((CompositeFilter) createFilter(),
+                1e-9);
+        pipelined = new PipelinedFilter((CompositeFilter) createFilter());
+        single = new FloatFilter(createFilter());
+
+        samples = new short[FRAMES];
+        results = new short[FRAMES];
+        Random random = new Random(42);
+        for (int n = 0; n < FRAMES; n++) {
+            samples[n] = (short) random.nextInt();
+        }
+    }
+
+    /**
+     * Stops the threads of the pipeline.
+     */
+    @TearDown(Level.Trial)
+    public void close() {
+        pipelined.close();
+    }
+
+    /**
+     * Processes samples by blocks, with the generated filter.
+     *
+     * @return the last sample of the first output.
+     * @throws FilterException if the filter fails.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public double generated() throws FilterException {
+        generated.computeBlock(input, output, FRAMES);
+        return output[0][FRAMES - 1];
+    }
+
+    /**
+     * Processes samples by blocks, with the reduced filter.
+     *
+     * @return the last sample of the first output.
+     * @throws FilterException if the filter fails.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public double reduced() throws FilterException {
+        reduced.computeBlock(input, output, FRAMES);
+        return output[0][FRAMES - 1];
+    }
+
+    /**
+     * Processes samples by blocks, through the pipeline.
+     *
+     * @return the last sample of the first output.
+     * @throws FilterException if a stage fails.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public double pipelined() throws FilterException {
+        pipelined.computeBlock(input, output, FRAMES);
+        return output[0][FRAMES - 1];
+    }
+
+    /**
+     * Processes samples by blocks, in single precision.
+     *
+     * @return the last sample of the first output.
+     * @throws FilterException if the filter fails.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public double single() throws FilterException {
+        single.computeBlock(input, output, FRAMES);
+        return output[0][FRAMES - 1];
+    }
+
+    /**
+     * Processes 16 bits samples by blocks, in single precision, for filters
+     * with one input and one output.
+     *
+     * @return the last sample of the output.
+     * @throws FilterException if the filter has several inputs or outputs,
+     *                         or fails.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public short singleShorts() throws FilterException {
+        single.computeBlock(samples, 0, 1, results, 0, 1, FRAMES);
+        return results[FRAMES - 1];
+    }
+}
@@ -0,0 +1,195 @@
+package be.isach.filterlib.benchmarks;
+
+import be.isach.filterlib.engine.PlanCache;
+import be.isach.filterlib.filters.CompositeFilter;
+import be.isach.filterlib.io.GraphDescription;
+import be.uliege.montefiore.oop.audio.FilterException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the loading of a graph description until its first frame,
+ * compiled against read from a plan cache. Each operation is one load.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GraphLoadBenchmark {
+
+    /**
+     * The amount of blocks of the described random graph.
+     */
+    @Param({"16", "128", "1024"})
+    public int nodes;
+
+    private GraphDescription description;
+
+    private Path directory;
+
+    private PlanCache cache;
+
+    private final double[][] input = new double[1][1];
+
+    private final double[][] output = new double[1][1];
+
+    /**
+     * Parses the description and fills the cache with its plan.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws FilterException, IOException {
+        description = GraphDescription.parse(generate(nodes, 1));
+        directory = Files.createTempDirectory("filterlib-plans");
+        cache = new PlanCache(directory);
+        description.build(cache);
+    }
+
+    /**
+     * Removes the cache.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        cache.clear();
+        Files.deleteIfExists(directory);
+    }
+
+    /**
+     * Builds the filter, then compiles it by computing a frame.
+     *
+     * @return the computed frame.
+     */
+    @Benchmark
+    public double compiled() throws FilterException {
+        CompositeFilter filter = description.build();
+        filter.computeBlock(input, output, 1);
+        return output[0][0];
+    }
+
+    /**
+     * Builds the filter with the plan of the cache, then computes a frame.
+     *
+     * @return the computed frame.
+     */
+    @Benchmark
+    public double cached() throws FilterException {
+        CompositeFilter filter = description.build(cache);
+        filter.computeBlock(input, output, 1);
+        return output[0][0];
+    }
+
+    /**
+     * Generates the description of a random graph of gains, additions and
+     * delays, as {@link RandomGraphBenchmark} builds them.
+     *
+     * @param nodes The amount of blocks of the graph.
+     * @param seed  The seed of the graph.
+     * @return the text of the description.
+     */
+    public static String generate(int nodes, long seed) {
+        Random random = new Random(seed);
+        StringBuilder blocks = new StringBuilder();
+        StringBuilder links = new StringBuilder();
+
+        // Ports whose output can be read, "in" being the input.
+        List<String> sources = new ArrayList<>();
+        sources.add("in");
+        List<String> unread = new ArrayList<>(sources);
+        List<String> loops = new ArrayList<>();
+
+        for (int i = 0; i < nodes; i++) {
+            String name = "b" + i;
+            int kind = random.nextInt(10);
+            if (kind < 4 || sources.size() < 2) {
+                blocks.append(name).append(" = gain ")
+                        .append(random.nextDouble() - 0.5).append('\n');
+                link(links, pick(random, sources, null), name + ".0",
+                        unread);
+            } else if (kind < 7) {
+                blocks.append(name).append(" = add\n");
+                String first = pick(random, sources, null);
+                link(links, first, name + ".0", unread);
+                link(links, pick(random, sources, first), name + ".1",
+                        unread);
+            } else {
+                blocks.append(name).append(" = delay ")
+                        .append(1 + random.nextInt(2000)).append('\n');
+                if (kind < 9) {
+                    link(links, pick(random, sources, null), name + ".0",
+                            unread);
+                } else {
+                    loops.add(name);
+                }
+            }
+            sources.add(name);
+            unread.add(name);
+        }
+
+        for (String loop : loops) {
+            link(links, pick(random, sources, null), loop + ".0", unread);
+        }
+
+        String sum = unread.isEmpty() ? sources.get(sources.size() - 1)
+                : unread.remove(0);
+        for (int i = 0; i < unread.size(); i++) {
+            String add = "s" + i;
+            blocks.append(add).append(" = add\n");
+            link(links, sum, add + ".0", null);
+            link(links, unread.get(i), add + ".1", null);
+            sum = add;
+        }
+        if (sum.equals("in")) {
+            blocks.append("unit = gain 1\n");
+            link(links, "in", "unit.0", null);
+            sum = "unit";
+        }
+        link(links, sum, "out.0", null);
+
+        return "graph random 1 1\n" + blocks + links + "end\n";
+    }
+
+    /**
+     * @return a random source, other than the excluded one if there are
+     *         others, since a source cannot feed two inputs of the same
+     *         block.
+     */
+    private static String pick(Random random, List<String> sources,
+                               String excluded) {
+        String source;
+        do {
+            source = sources.get(random.nextInt(sources.size()));
+        } while (source.equals(excluded) && sources.size() > 1);
+        return source;
+    }
+
+    /**
+     * Connects a source to a port.
+     */
+    private static void link(StringBuilder links, String source, String port,
+                             List<String> unread) {
+        links.append(source).append(" -> ").append(port).append('\n');
+        if (unread != null) {
+            unread.remove(source);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package be.isach.filterlib.benchmarks;
+
+import be.isach.filterlib.util.BlockKernels;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the block kernels, scalar against vector, on the same
+ * blocks of white noise as the filter benchmarks. Each operation is one
+ * sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class KernelBenchmark {
+
+    private static final int FRAMES = FilterBenchmark.FRAMES;
+
+    /**
+     * The kernels to measure.
+     */
+    @Param({"scalar", "vector"})
+    public String kernels;
+
+    private BlockKernels measured;
+
+    private double[] first;
+
+    private double[] second;
+
+    private double[] output;
+
+    private short[] samples;
+
+    /**
+     * Picks the kernels and fills the buffers.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        measured = kernels.equals("vector")
+                ? BlockKernels.vector() : BlockKernels.scalar();
+        if (measured == null) {
+            throw new IllegalStateException("The vector kernels are not " +
+                    "available.");
+        }
+
+        Random random = new Random(42);
+        first = new double[FRAMES];
+        second = new double[FRAMES];
+        for (int n = 0; n < FRAMES; n++) {
+            first[n] = (random.nextDouble() * 2 - 1) * Short.MAX_VALUE;
+            second[n] = (random.nextDouble() * 2 - 1) * Short.MAX_VALUE;
+        }
+        output = new double[FRAMES];
+        samples = new short[FRAMES];
+        BlockKernels.scalar().toShorts(first, 0, samples, 0, 1, FRAMES);
+    }
+
+    /**
+     * Multiplies a block by a gain, as the gain filter does.
+     *
+     * @return the last sample of the output.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public double scale() {
+        measured.scale(first, 0.6, output, FRAMES);
+        return output[FRAMES - 1];
+    }
+
+    /**
+     * Sums two blocks, as the addition filter does.
+     *
+     * @return the last sample of the output.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public double add() {
+        measured.add(first, second, output, FRAMES);
+        return output[FRAMES - 1];
+    }
+
+    /**
+     * Sums two weighted blocks, as the weighted addition filter does.
+     *
+     * @return the last sample of the output.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public double addWeighted() {
+        measured.addWeighted(first, 0.6, second, 0.4, output, FRAMES);
+        return output[FRAMES - 1];
+    }
+
+    /**
+     * Converts a block of mono 16 bits samples, as the WAV reader does.
+     *
+     * @return the last sample of the output.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public double toDoubles() {
+        measured.toDoubles(samples, 0, 1, output, 0, FRAMES);
+        return output[FRAMES - 1];
+    }
+
+    /**
+     * Converts a block to mono 16 bits samples, as the WAV writer does.
+     *
+     * @return the last converted sample.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public short toShorts() {
+        measured.toShorts(first, 0, samples, 0, 1, FRAMES);
+        return samples[FRAMES - 1];
+    }
+}
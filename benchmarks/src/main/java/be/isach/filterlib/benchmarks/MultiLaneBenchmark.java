@@ -0,0 +1,149 @@
+package be.isach.filterlib.benchmarks;
+
+import be.isach.filterlib.engine.MultiLaneFilter;
+import be.isach.filterlib.filters.BlockFilter;
+import be.isach.filterlib.filters.EchoFilter;
+import be.isach.filterlib.reverberator.LowPassFilter;
+import be.isach.filterlib.reverberator.ReverberatorFilter;
+import be.uliege.montefiore.oop.audio.Filter;
+import be.uliege.montefiore.oop.audio.FilterException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the same filter applied to many streams, either by one
+ * filter per stream or by a single multi-lane filter, on white noise. Each
+ * operation is one sample of one stream.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1)
+public class MultiLaneBenchmark {
+
+    /**
+     * Amount of samples of all streams computed per invocation.
+     */
+    private static final int SAMPLES = 1 << 16;
+
+    /**
+     * The filter applied to every stream.
+     */
+    @Param({"echo", "lowpass", "reverb"})
+    public String type;
+
+    /**
+     * The amount of streams.
+     */
+    @Param({"2", "16", "256"})
+    public int lanes;
+
+    private int frames;
+
+    private Filter[] filters;
+
+    private MultiLaneFilter multiLane;
+
+    /**
+     * Input of each stream, for the filters of every stream.
+     */
+    private double[][][] inputs;
+
+    private double[][][] outputs;
+
+    /**
+     * Inputs of every stream side by side, for the multi-lane filter.
+     */
+    private double[][] input;
+
+    private double[][] output;
+
+    /**
+     * Builds the filters and fills the inputs with the same noise.
+     *
+     * @throws FilterException if a filter cannot be built.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws FilterException {
+        frames = SAMPLES / lanes;
+        filters = new Filter[lanes];
+        for (int k = 0; k < lanes; k++) {
+            filters[k] = createFilter();
+        }
+        multiLane = new MultiLaneFilter(createFilter(), lanes);
+
+        Random random = new Random(42);
+        inputs = new double[lanes][1][frames];
+        outputs = new double[lanes][1][frames];
+        input = new double[1][SAMPLES];
+        output = new double[1][SAMPLES];
+        for (int n = 0; n < frames; n++) {
+            for (int k = 0; k < lanes; k++) {
+                double value = (random.nextDouble() * 2 - 1) * Short.MAX_VALUE;
+                inputs[k][0][n] = value;
+                input[0][n * lanes + k] = value;
+            }
+        }
+    }
+
+    /**
+     * @return the filter applied to every stream.
+     */
+    private Filter createFilter() {
+        switch (type) {
+            case "echo":
+                return new EchoFilter(0.6, 10000);
+            case "lowpass":
+                return new LowPassFilter(0.7133, 8);
+            case "reverb":
+                return new ReverberatorFilter();
+            default:
+                throw new IllegalArgumentException("Unknown filter: " + type);
+        }
+    }
+
+    /**
+     * Processes each stream by blocks, with its own filter.
+     *
+     * @return the last sample of the last stream.
+     * @throws FilterException if a filter fails.
+     */
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public double separate() throws FilterException {
+        for (int k = 0; k < lanes; k++) {
+            BlockFilter.computeBlock(filters[k], inputs[k], outputs[k],
+                    frames);
+        }
+        return outputs[lanes - 1][0][frames - 1];
+    }
+
+    /**
+     * Processes every stream at once, by blocks, with the multi-lane filter.
+     *
+     * @return the last sample of the last stream.
+     * @throws FilterException if the filter fails.
+     */
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public double multiLane() throws FilterException {
+        multiLane.computeLanes(input, output, frames);
+        return output[0][SAMPLES - 1];
+    }
+}
@@ -0,0 +1,105 @@
+package be.isach.filterlib.benchmarks;
+
+import be.isach.filterlib.engine.OverlapAddFilter;
+import be.isach.filterlib.filters.EchoFilter;
+import be.isach.filterlib.reverberator.ReverberatorFilter;
+import be.uliege.montefiore.oop.audio.FilterException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the echo and the reverberator rendered by overlap-add, with
+ * the default error bound, on pools of several sizes. Blocks are long, so
+ * that each chunk is much longer than the tails of the filters. Each
+ * operation is one sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class OverlapAddFilterBenchmark {
+
+    /**
+     * Amount of samples processed by each invocation.
+     */
+    private static final int FRAMES = 1 << 23;
+
+    /**
+     * The amount of threads of the pool.
+     */
+    @Param({"1", "2", "4"})
+    public int threads;
+
+    /**
+     * The filter to measure.
+     */
+    @Param({"echo", "reverb"})
+    public String type;
+
+    private ForkJoinPool pool;
+
+    private OverlapAddFilter filter;
+
+    private double[][] input;
+
+    private double[][] output;
+
+    /**
+     * Builds the filter, its pool and its buffers.
+     *
+     * @throws FilterException if the filter cannot be built.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws FilterException {
+        pool = new ForkJoinPool(threads);
+        filter = new OverlapAddFilter(type.equals("echo")
+                ? new EchoFilter(0.6, 10000) : new ReverberatorFilter(), pool,
+                OverlapAddFilter.DEFAULT_TOLERANCE);
+
+        Random random = new Random(42);
+        input = new double[1][FRAMES];
+        for (int n = 0; n < FRAMES; n++) {
+            input[0][n] = (random.nextDouble() * 2 - 1) * Short.MAX_VALUE;
+        }
+        output = new double[1][FRAMES];
+    }
+
+    /**
+     * Stops the threads of the pool.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Processes a long block, by chunks.
+     *
+     * @return the last sample of the output.
+     * @throws FilterException if a chunk fails.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public double overlapAdd() throws FilterException {
+        filter.computeBlock(input, output, FRAMES);
+        return output[0][FRAMES - 1];
+    }
+}
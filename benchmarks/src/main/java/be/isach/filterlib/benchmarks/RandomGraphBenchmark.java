@@ -0,0 +1,139 @@
+package be.isach.filterlib.benchmarks;
+
+import be.isach.filterlib.filters.AdditionFilter;
+import be.isach.filterlib.filters.CompositeFilter;
+import be.isach.filterlib.filters.DelayFilter;
+import be.isach.filterlib.filters.GainFilter;
+import be.uliege.montefiore.oop.audio.Filter;
+import org.openjdk.jmh.annotations.Param;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmarks of large random graphs of gains, additions and delays, some of
+ * the delays closing loops.
+ */
+public class RandomGraphBenchmark extends GeneratedFilterBenchmark {
+
+    /**
+     * The amount of filters of the graph, not counting the additions
+     * gathering its unused outputs.
+     */
+    @Param({"16", "128", "1024"})
+    public int nodes;
+
+    /**
+     * The seed of the graph.
+     */
+    @Param({"1"})
+    public long seed;
+
+    @Override
+    protected Filter createFilter() {
+        return generate(nodes, seed);
+    }
+
+    /**
+     * Generates a random graph with one input and one output.
+     *
+     * @param nodes The amount of filters of the graph.
+     * @param seed  The seed of the graph.
+     * @return the generated composite filter.
+     */
+    public static CompositeFilter generate(int nodes, long seed) {
+        Random random = new Random(seed);
+        CompositeFilter composite = new CompositeFilter(1, 1);
+
+        // Filters whose output can be read, null being the input.
+        List<Filter> sources = new ArrayList<>();
+        sources.add(null);
+        List<Filter> unread = new ArrayList<>(sources);
+        List<Filter> loops = new ArrayList<>();
+
+        for (int i = 0; i < nodes; i++) {
+            int kind = random.nextInt(10);
+            Filter filter;
+            if (kind < 4 || sources.size() < 2) {
+                filter = new GainFilter(random.nextDouble() - 0.5);
+                composite.addBlock(filter);
+                connect(composite, pick(random, sources, null), filter, 0,
+                        unread);
+            } else if (kind < 7) {
+                filter = new AdditionFilter();
+                composite.addBlock(filter);
+                Filter first = pick(random, sources, null);
+                connect(composite, first, filter, 0, unread);
+                connect(composite, pick(random, sources, first), filter, 1,
+                        unread);
+            } else {
+                filter = new DelayFilter(1 + random.nextInt(2000));
+                composite.addBlock(filter);
+                if (kind < 9) {
+                    connect(composite, pick(random, sources, null), filter,
+                            0, unread);
+                } else {
+                    // Fed later, by any filter, closing a loop.
+                    loops.add(filter);
+                }
+            }
+            sources.add(filter);
+            unread.add(filter);
+        }
+
+        for (Filter loop : loops) {
+            connect(composite, pick(random, sources, null), loop, 0, unread);
+        }
+
+        // Sum every output that is not read yet into the output, or output
+        // the last filter if loops already read all of them.
+        Filter sum = unread.isEmpty() ? sources.get(sources.size() - 1)
+                : unread.remove(0);
+        for (Filter filter : unread) {
+            Filter add = new AdditionFilter();
+            composite.addBlock(add);
+            connect(composite, sum, add, 0, null);
+            connect(composite, filter, add, 1, null);
+            sum = add;
+        }
+        if (sum == null) {
+            sum = new GainFilter(1);
+            composite.addBlock(sum);
+            composite.connectInputToBlock(0, sum, 0);
+        }
+        composite.connectBlockToOutput(sum, 0, 0);
+
+        return composite;
+    }
+
+    /**
+     * @return a random source, other than the excluded one if there are
+     *         others, since a source cannot feed two inputs of the same
+     *         filter.
+     */
+    private static Filter pick(Random random, List<Filter> sources,
+                               Filter excluded) {
+        Filter source;
+        do {
+            source = sources.get(random.nextInt(sources.size()));
+        } while (source == excluded && sources.size() > 1);
+        return source;
+    }
+
+    /**
+     * Connects a source, null for the input, to an input of a filter.
+     */
+    private static void connect(CompositeFilter composite, Filter source,
+                                Filter filter, int input,
+                                List<Filter> unread) {
+        if (source == null) {
+            composite.connectInputToBlock(0, filter, input);
+        } else {
+            composite.connectBlockToBlock(source, 0, filter, input);
+        }
+        if (unread != null) {
+            unread.remove(source);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package be.isach.filterlib.benchmarks;
+
+import be.isach.filterlib.engine.AllPassKernel;
+import be.isach.filterlib.engine.CombKernel;
+import be.uliege.montefiore.oop.audio.FilterException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the comb and all-pass kernels with short delays, their
+ * recurrences solved one sample after the other or by a scan, on the same
+ * blocks of white noise as the filter benchmarks. Each operation is one
+ * sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1)
+public class RecurrenceBenchmark {
+
+    private static final int FRAMES = FilterBenchmark.FRAMES;
+
+    /**
+     * The delay of the kernels, in samples.
+     */
+    @Param({"1", "2", "3"})
+    public int delay;
+
+    private CombKernel comb;
+
+    private AllPassKernel allPass;
+
+    private double[][] input;
+
+    private double[][] output;
+
+    /**
+     * Builds the kernels and fills the input.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        comb = new CombKernel(0.3, 0.7, delay);
+        allPass = new AllPassKernel(-0.7, 1, 1, 0.7, delay);
+
+        Random random = new Random(42);
+        input = new double[1][FRAMES];
+        for (int n = 0; n < FRAMES; n++) {
+            input[0][n] = (random.nextDouble() * 2 - 1) * Short.MAX_VALUE;
+        }
+        output = new double[1][FRAMES];
+    }
+
+    /**
+     * Runs the comb kernel one sample after the other.
+     *
+     * @return the last sample of the output.
+     * @throws FilterException if the kernel fails.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public double comb() throws FilterException {
+        comb.computeBlock(input, output, FRAMES);
+        return output[0][FRAMES - 1];
+    }
+
+    /**
+     * Runs the comb kernel by a scan.
+     *
+     * @return the last sample of the output.
+     * @throws FilterException if the kernel fails.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    @Fork(value = 1, jvmArgsAppend = "-Dfilterlib.recurrences=scan")
+    public double combScan() throws FilterException {
+        comb.computeBlock(input, output, FRAMES);
+        return output[0][FRAMES - 1];
+    }
+
+    /**
+     * Runs the all-pass kernel one sample after the other.
+     *
+     * @return the last sample of the output.
+     * @throws FilterException if the kernel fails.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public double allPass() throws FilterException {
+        allPass.computeBlock(input, output, FRAMES);
+        return output[0][FRAMES - 1];
+    }
+
+    /**
+     * Runs the all-pass kernel by a scan.
+     *
+     * @return the last sample of the output.
+     * @throws FilterException if the kernel fails.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    @Fork(value = 1, jvmArgsAppend = "-Dfilterlib.recurrences=scan")
+    public double allPassScan() throws FilterException {
+        allPass.computeBlock(input, output, FRAMES);
+        return output[0][FRAMES - 1];
+    }
+}
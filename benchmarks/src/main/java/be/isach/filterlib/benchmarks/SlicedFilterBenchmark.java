@@ -0,0 +1,113 @@
+package be.isach.filterlib.benchmarks;
+
+import be.isach.filterlib.engine.SlicedFilter;
+import be.isach.filterlib.filters.AdditionFilter;
+import be.isach.filterlib.filters.CompositeFilter;
+import be.isach.filterlib.filters.DelayFilter;
+import be.isach.filterlib.filters.GainFilter;
+import be.uliege.montefiore.oop.audio.Filter;
+import be.uliege.montefiore.oop.audio.FilterException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the alternative echo, a composite filter without loops,
+ * rendered by slices of time on pools of several sizes. Blocks are long, so
+ * that each slice is much longer than the delay of the echo. Each operation
+ * is one sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class SlicedFilterBenchmark {
+
+    /**
+     * Amount of samples processed by each invocation.
+     */
+    private static final int FRAMES = 1 << 20;
+
+    /**
+     * The amount of threads of the pool.
+     */
+    @Param({"1", "2", "4"})
+    public int threads;
+
+    private ForkJoinPool pool;
+
+    private SlicedFilter filter;
+
+    private double[][] input;
+
+    private double[][] output;
+
+    /**
+     * Builds the filter, its pool and its buffers.
+     *
+     * @throws FilterException if the filter cannot be built.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws FilterException {
+        CompositeFilter altEcho = new CompositeFilter(1, 1);
+        Filter gain = new GainFilter(0.6);
+        Filter delay = new DelayFilter(4410);
+        Filter add = new AdditionFilter();
+        altEcho.addBlock(gain);
+        altEcho.addBlock(delay);
+        altEcho.addBlock(add);
+        altEcho.connectInputToBlock(0, add, 0);
+        altEcho.connectInputToBlock(0, delay, 0);
+        altEcho.connectBlockToBlock(delay, 0, gain, 0);
+        altEcho.connectBlockToBlock(gain, 0, add, 1);
+        altEcho.connectBlockToOutput(add, 0, 0);
+
+        pool = new ForkJoinPool(threads);
+        filter = new SlicedFilter(altEcho, pool);
+
+        Random random = new Random(42);
+        input = new double[1][FRAMES];
+        for (int n = 0; n < FRAMES; n++) {
+            input[0][n] = (random.nextDouble() * 2 - 1) * Short.MAX_VALUE;
+        }
+        output = new double[1][FRAMES];
+    }
+
+    /**
+     * Stops the threads of the pool.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Processes a long block, by slices.
+     *
+     * @return the last sample of the output.
+     * @throws FilterException if a slice fails.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public double sliced() throws FilterException {
+        filter.computeBlock(input, output, FRAMES);
+        return output[0][FRAMES - 1];
+    }
+}
@@ -0,0 +1,44 @@
+package be.isach.filterlib.engine;
+
+import be.isach.filterlib.filters.GainFilter;
+
+/**
+ * Unit gain clipping its output to [-1, 1], a subclass of a library filter
+ * that engines must not take for its parent.
+ */
+class ClippingGain extends GainFilter {
+
+    ClippingGain() {
+        super(1);
+    }
+
+    @Override
+    public double[] computeOneStep(double[] input) {
+        return new double[]{clip(input[0])};
+    }
+
+    @Override
+    public void computeOneStep(double[] input, double[] output) {
+        output[0] = clip(input[0]);
+    }
+
+    @Override
+    public void computeBlock(double[][] input, double[][] output,
+                             int frames) {
+        for (int n = 0; n < frames; n++) {
+            output[0][n] = clip(input[0][n]);
+        }
+    }
+
+    @Override
+    public ClippingGain copy() {
+        return new ClippingGain();
+    }
+
+    /**
+     * @return the value clipped to [-1, 1].
+     */
+    private static double clip(double value) {
+        return Math.max(-1, Math.min(1, value));
+    }
+}
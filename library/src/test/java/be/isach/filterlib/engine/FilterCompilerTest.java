@@ -0,0 +1,93 @@
+package be.isach.filterlib.engine;
+
+import be.isach.filterlib.filters.AdditionFilter;
+import be.isach.filterlib.filters.AllPassFilter;
+import be.isach.filterlib.filters.BlockFilter;
+import be.isach.filterlib.filters.CompositeFilter;
+import be.isach.filterlib.filters.DelayFilter;
+import be.isach.filterlib.filters.EchoFilter;
+import be.uliege.montefiore.oop.audio.Filter;
+import be.uliege.montefiore.oop.audio.FilterException;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Checks the filters generated by the compiler against their composites.
+ */
+class FilterCompilerTest {
+
+    @Test
+    void parametersShareTheClassOfTheirShape() throws FilterException {
+        BlockFilter first = FilterCompiler.compile(new EchoFilter(0.6, 100));
+        BlockFilter second = FilterCompiler.compile(new EchoFilter(0.3, 77));
+        assumeTrue(first instanceof GeneratedFilter,
+                "No Java compiler at runtime.");
+
+        assertSame(first.getClass(), second.getClass());
+    }
+
+    @Test
+    void generatedFiltersMatchTheirComposites() throws FilterException {
+        for (double gain : new double[]{0.6, -0.25, 0.9}) {
+            CompositeFilter composite = new AllPassFilter(gain, 31);
+            BlockFilter generated = FilterCompiler.compile(
+                    new AllPassFilter(gain, 31));
+            assumeTrue(generated instanceof GeneratedFilter,
+                    "No Java compiler at runtime.");
+
+            assertArrayEquals(render(composite), render(generated));
+        }
+    }
+
+    @Test
+    void graphsWithHugeMethodsAreNotGenerated() throws FilterException {
+        assumeTrue(FilterCompiler.compile(delays(2))
+                        instanceof GeneratedFilter,
+                "No Java compiler at runtime.");
+
+        // Additions and delays take about fifty bytes of bytecode each.
+        CompositeFilter composite = delays(127);
+        assertSame(composite, FilterCompiler.compile(composite));
+        assertArrayEquals(render(delays(127)), render(composite));
+    }
+
+    /**
+     * @return a cascade of delays, the input being added back after each
+     *         of them.
+     */
+    private static CompositeFilter delays(int count) throws FilterException {
+        CompositeFilter composite = new CompositeFilter(1, 1);
+        Filter previous = new DelayFilter(3);
+        composite.addBlock(previous);
+        composite.connectInputToBlock(0, previous, 0);
+        for (int d = 0; d < count; d++) {
+            Filter add = new AdditionFilter();
+            Filter delay = new DelayFilter(3);
+            composite.addBlock(add);
+            composite.addBlock(delay);
+            composite.connectBlockToBlock(previous, 0, add, 0);
+            composite.connectInputToBlock(0, add, 1);
+            composite.connectBlockToBlock(add, 0, delay, 0);
+            previous = delay;
+        }
+        composite.connectBlockToOutput(previous, 0, 0);
+        return composite;
+    }
+
+    /**
+     * @return the response of the filter to a sawtooth, by blocks.
+     */
+    private static double[] render(BlockFilter filter)
+            throws FilterException {
+        double[] input = new double[5000];
+        for (int n = 0; n < input.length; n++) {
+            input[n] = (n % 200) * 100 - 10000;
+        }
+        double[][] output = new double[1][input.length];
+        filter.computeBlock(new double[][]{input}, output, input.length);
+        return output[0];
+    }
+}
@@ -0,0 +1,140 @@
+package be.isach.filterlib.engine;
+
+import be.isach.filterlib.filters.CompositeFilter;
+import be.isach.filterlib.filters.EchoFilter;
+import be.isach.filterlib.filters.GainFilter;
+import be.isach.filterlib.reverberator.ReverberatorFilter;
+import be.uliege.montefiore.oop.audio.FilterException;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the single precision variant computes what the filters it
+ * wraps compute, up to rounding.
+ */
+class FloatFilterTest {
+
+    /**
+     * Largest difference allowed between the outputs, relative to the peak
+     * of the input.
+     */
+    private static final double TOLERANCE = 1e-6;
+
+    /**
+     * Peak of the input, a quarter of the full scale as in accuracy
+     * reports, so that echoes do not overflow 16 bits samples.
+     */
+    private static final int PEAK = 8192;
+
+    @Test
+    void echoMatchesItsPlan() throws FilterException {
+        assertMatchesPlan(new EchoFilter(0.6, 100), new EchoFilter(0.6, 100));
+        assertSamplesMatchPlan(new EchoFilter(0.6, 100),
+                new EchoFilter(0.6, 100));
+    }
+
+    @Test
+    void reverberatorMatchesItsPlan() throws FilterException {
+        assertMatchesPlan(new ReverberatorFilter(), new ReverberatorFilter());
+        assertSamplesMatchPlan(new ReverberatorFilter(),
+                new ReverberatorFilter());
+    }
+
+    @Test
+    void subclassesOfGainsKeepTheirBehaviour() throws FilterException {
+        CompositeFilter composite = new CompositeFilter(1, 1);
+        GainFilter clipping = new ClippingGain();
+        composite.addBlock(clipping);
+        composite.connectInputToBlock(0, clipping, 0);
+        composite.connectBlockToOutput(clipping, 0, 0);
+
+        FloatFilter filter = new FloatFilter(composite);
+        assertEquals(1, filter.computeOneStep(new double[]{10})[0]);
+
+        double[][] output = new double[1][2];
+        filter.computeBlock(new double[][]{{-10, 0.5}}, output, 2);
+        assertEquals(-1, output[0][0]);
+        assertEquals(0.5, output[0][1]);
+    }
+
+    /**
+     * Checks that blocks of noise computed in single precision match those
+     * computed by the plan of another copy of the composite.
+     */
+    private static void assertMatchesPlan(CompositeFilter composite,
+                                          CompositeFilter copy)
+            throws FilterException {
+        FloatFilter filter = new FloatFilter(composite);
+        ExecutionPlan plan = ExecutionPlan.compile(copy);
+        Random random = new Random(42);
+        for (int block = 0; block < 10; block++) {
+            int frames = 1 + random.nextInt(10000);
+            double[][] input = noise(random, frames);
+            double[][] expected = new double[1][frames];
+            double[][] output = new double[1][frames];
+            plan.executeBlock(input, expected, frames);
+            filter.computeBlock(input, output, frames);
+
+            for (int n = 0; n < frames; n++) {
+                assertEquals(expected[0][n], output[0][n], TOLERANCE * PEAK);
+            }
+        }
+    }
+
+    /**
+     * Checks that blocks of interleaved 16 bits samples computed in single
+     * precision match the outputs of the plan of another copy of the
+     * composite, truncated as audio sequences do, and that the samples of
+     * the other channels are left untouched.
+     */
+    private static void assertSamplesMatchPlan(CompositeFilter composite,
+                                               CompositeFilter copy)
+            throws FilterException {
+        FloatFilter filter = new FloatFilter(composite);
+        ExecutionPlan plan = ExecutionPlan.compile(copy);
+        Random random = new Random(7);
+        for (int block = 0; block < 10; block++) {
+            int frames = 1 + random.nextInt(10000);
+            double[][] input = noise(random, frames);
+            double[][] expected = new double[1][frames];
+            plan.executeBlock(input, expected, frames);
+
+            // The channel is the second of two at the input, and the third
+            // of three at the output.
+            short[] samples = new short[2 * frames];
+            for (int n = 0; n < frames; n++) {
+                samples[2 * n] = (short) random.nextInt();
+                samples[2 * n + 1] = (short) input[0][n];
+            }
+            short[] output = new short[3 * frames];
+            Arrays.fill(output, (short) 12345);
+            filter.computeBlock(samples, 1, 2, output, 2, 3, frames);
+
+            for (int n = 0; n < frames; n++) {
+                assertEquals(12345, output[3 * n]);
+                assertEquals(12345, output[3 * n + 1]);
+                int sample = (short) (int) expected[0][n];
+                assertTrue(Math.abs(output[3 * n + 2] - sample) <= 1,
+                        "Frame " + n + ": " + output[3 * n + 2]
+                                + " instead of " + sample);
+            }
+        }
+    }
+
+    /**
+     * @return a block of whole sample values, at a quarter of the full
+     *         scale.
+     */
+    private static double[][] noise(Random random, int frames) {
+        double[][] input = new double[1][frames];
+        for (int n = 0; n < frames; n++) {
+            input[0][n] = random.nextInt(2 * PEAK + 1) - PEAK;
+        }
+        return input;
+    }
+}
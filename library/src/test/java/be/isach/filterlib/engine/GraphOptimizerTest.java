@@ -0,0 +1,190 @@
+package be.isach.filterlib.engine;
+
+import be.isach.filterlib.engine.FilterGraph.Node;
+import be.isach.filterlib.filters.AdditionFilter;
+import be.isach.filterlib.filters.AllPassFilter;
+import be.isach.filterlib.filters.CompositeFilter;
+import be.isach.filterlib.filters.DelayFilter;
+import be.isach.filterlib.filters.EchoFilter;
+import be.isach.filterlib.filters.GainFilter;
+import be.isach.filterlib.filters.WeightedAdditionFilter;
+import be.isach.filterlib.reverberator.ReverberatorFilter;
+import be.uliege.montefiore.oop.audio.Filter;
+import be.uliege.montefiore.oop.audio.FilterException;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the optimizer keeps the behaviour of the filters it rewrites,
+ * each pass being run on its own graph next to an unoptimized one.
+ */
+class GraphOptimizerTest {
+
+    /**
+     * Largest difference allowed between the outputs, relative to the peak
+     * of the input, gains folded together differing by rounding.
+     */
+    private static final double TOLERANCE = 1e-12;
+
+    private static final double PEAK = 32768;
+
+    @Test
+    void removesDeadNodes() throws FilterException {
+        assertPassKeepsOutput(() -> {
+            // A feedback loop reading the input but feeding no output.
+            CompositeFilter composite = new CompositeFilter(1, 1);
+            CompositeFilter echo = new EchoFilter(0.6, 100);
+            Filter add = new AdditionFilter();
+            Filter delay = new DelayFilter(50);
+            Filter gain = new GainFilter(0.5);
+            composite.addBlock(echo);
+            composite.addBlock(add);
+            composite.addBlock(delay);
+            composite.addBlock(gain);
+            composite.connectInputToBlock(0, echo, 0);
+            composite.connectInputToBlock(0, add, 0);
+            composite.connectBlockToBlock(add, 0, delay, 0);
+            composite.connectBlockToBlock(delay, 0, gain, 0);
+            composite.connectBlockToBlock(gain, 0, add, 1);
+            composite.connectBlockToOutput(echo, 0, 0);
+            return composite;
+        }, GraphOptimizer::removeDeadNodes);
+    }
+
+    @Test
+    void mergesTheDelayChainsOfTheReverberator() throws FilterException {
+        assertPassKeepsOutput(ReverberatorFilter::new,
+                GraphOptimizer::mergeDelays);
+    }
+
+    @Test
+    void foldsGains() throws FilterException {
+        assertPassKeepsOutput(() -> {
+            CompositeFilter composite = new CompositeFilter(1, 1);
+            Filter first = new GainFilter(0.3);
+            Filter second = new GainFilter(-1.7);
+            composite.addBlock(first);
+            composite.addBlock(second);
+            composite.connectInputToBlock(0, first, 0);
+            composite.connectBlockToBlock(first, 0, second, 0);
+            composite.connectBlockToOutput(second, 0, 0);
+            return composite;
+        }, GraphOptimizer::foldGains);
+    }
+
+    @Test
+    void fusesTheGainOfTheEcho() throws FilterException {
+        FilterGraph graph = assertPassKeepsOutput(
+                () -> new EchoFilter(0.6, 100), GraphOptimizer::fuseGains);
+        assertTrue(contains(graph, WeightedAdditionFilter.class));
+    }
+
+    @Test
+    void substitutesACombKernelToTheEcho() throws FilterException {
+        FilterGraph graph = assertPassKeepsOutput(
+                () -> new EchoFilter(0.6, 100), GraphOptimizer::optimize);
+        assertEquals(1, graph.getNodes().size());
+        assertTrue(contains(graph, CombKernel.class));
+    }
+
+    @Test
+    void substitutesAnAllPassKernelToTheAllPass() throws FilterException {
+        FilterGraph graph = assertPassKeepsOutput(
+                () -> new AllPassFilter(0.5, 100), GraphOptimizer::optimize);
+        assertEquals(1, graph.getNodes().size());
+        assertTrue(contains(graph, AllPassKernel.class));
+    }
+
+    @Test
+    void optimizesTheReverberator() throws FilterException {
+        FilterGraph graph = assertPassKeepsOutput(ReverberatorFilter::new,
+                GraphOptimizer::optimize);
+        assertTrue(contains(graph, AllPassKernel.class));
+        assertTrue(contains(graph, CombKernel.class));
+    }
+
+    @Test
+    void subclassesOfGainsAreNotFolded() throws FilterException {
+        CompositeFilter composite = new CompositeFilter(1, 1);
+        GainFilter clipping = new ClippingGain();
+        GainFilter half = new GainFilter(0.5);
+        composite.addBlock(clipping);
+        composite.addBlock(half);
+        composite.connectInputToBlock(0, clipping, 0);
+        composite.connectBlockToBlock(clipping, 0, half, 0);
+        composite.connectBlockToOutput(half, 0, 0);
+
+        assertEquals(0.5, composite.computeOneStep(new double[]{10})[0]);
+
+        double[][] output = new double[1][2];
+        composite.computeBlock(new double[][]{{-10, 0.5}}, output, 2);
+        assertEquals(-0.5, output[0][0]);
+        assertEquals(0.25, output[0][1]);
+    }
+
+    /**
+     * Composite filter built anew for each graph, so that graphs never
+     * share the state of their filters.
+     */
+    private interface Source {
+
+        CompositeFilter build() throws FilterException;
+    }
+
+    /**
+     * Rewrites the flattened graph of a composite with a pass, and checks
+     * that the pass removed nodes and that the rewritten graph computes the
+     * outputs of the original one.
+     *
+     * @return the rewritten graph.
+     */
+    private static FilterGraph assertPassKeepsOutput(
+            Source source, Consumer<FilterGraph> pass)
+            throws FilterException {
+        FilterGraph original = FilterGraph.flatten(source.build());
+        FilterGraph rewritten = FilterGraph.flatten(source.build());
+        int nodes = rewritten.getNodes().size();
+        pass.accept(rewritten);
+        assertTrue(rewritten.getNodes().size() < nodes, "Nodes: "
+                + rewritten.getNodes().size() + " of " + nodes);
+
+        ExecutionPlan expected = ExecutionPlan.compile(original);
+        ExecutionPlan actual = ExecutionPlan.compile(rewritten);
+        Random random = new Random(42);
+        for (int block = 0; block < 10; block++) {
+            int frames = 1 + random.nextInt(3000);
+            double[][] input = new double[1][frames];
+            for (int n = 0; n < frames; n++) {
+                input[0][n] = random.nextInt(65536) - PEAK;
+            }
+            double[][] reference = new double[1][frames];
+            double[][] output = new double[1][frames];
+            expected.executeBlock(input, reference, frames);
+            actual.executeBlock(input, output, frames);
+
+            for (int n = 0; n < frames; n++) {
+                assertEquals(reference[0][n], output[0][n],
+                        TOLERANCE * PEAK);
+            }
+        }
+        return rewritten;
+    }
+
+    /**
+     * @return {@code true} if a node of the graph runs a filter of the
+     *         given class, {@code false} otherwise.
+     */
+    private static boolean contains(FilterGraph graph, Class<?> type) {
+        for (Node node : graph.getNodes()) {
+            if (node.getFilter().getClass() == type) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
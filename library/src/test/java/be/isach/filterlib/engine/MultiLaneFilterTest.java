@@ -0,0 +1,91 @@
+package be.isach.filterlib.engine;
+
+import be.isach.filterlib.filters.CompositeFilter;
+import be.isach.filterlib.filters.CopyableFilter;
+import be.isach.filterlib.filters.EchoFilter;
+import be.isach.filterlib.filters.GainFilter;
+import be.isach.filterlib.reverberator.ReverberatorFilter;
+import be.uliege.montefiore.oop.audio.Filter;
+import be.uliege.montefiore.oop.audio.FilterException;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that every lane computes what the filters it wraps compute.
+ */
+class MultiLaneFilterTest {
+
+    @Test
+    void echoLanesMatchIndependentEchoes() throws FilterException {
+        for (int lanes : new int[]{1, 3, 4, 5}) {
+            assertLanesMatchCopies(new EchoFilter(0.6, 100), lanes);
+        }
+    }
+
+    @Test
+    void reverberatorLanesMatchIndependentReverberators()
+            throws FilterException {
+        for (int lanes : new int[]{3, 8}) {
+            assertLanesMatchCopies(new ReverberatorFilter(), lanes);
+        }
+    }
+
+    @Test
+    void subclassesOfGainsKeepTheirBehaviour() throws FilterException {
+        CompositeFilter composite = new CompositeFilter(1, 1);
+        GainFilter clipping = new ClippingGain();
+        composite.addBlock(clipping);
+        composite.connectInputToBlock(0, clipping, 0);
+        composite.connectBlockToOutput(clipping, 0, 0);
+
+        MultiLaneFilter filter = new MultiLaneFilter(composite, 2);
+        double[] output = filter.computeOneStep(new double[]{10, 0.5});
+        assertEquals(1, output[0]);
+        assertEquals(0.5, output[1]);
+
+        double[][] lanes = new double[1][4];
+        filter.computeLanes(new double[][]{{-10, 3, 0.25, -0.5}}, lanes, 2);
+        assertEquals(-1, lanes[0][0]);
+        assertEquals(1, lanes[0][1]);
+        assertEquals(0.25, lanes[0][2]);
+        assertEquals(-0.5, lanes[0][3]);
+    }
+
+    /**
+     * Checks that blocks of different noise in each lane, the lane count
+     * being possibly no multiple of the vector width, give exactly the
+     * outputs of independent copies of the filter stepped one sample at a
+     * time.
+     */
+    private static void assertLanesMatchCopies(Filter filter, int lanes)
+            throws FilterException {
+        MultiLaneFilter filters = new MultiLaneFilter(filter, lanes);
+        Filter[] copies = new Filter[lanes];
+        for (int k = 0; k < lanes; k++) {
+            copies[k] = CopyableFilter.copy(filter);
+        }
+
+        Random random = new Random(42);
+        for (int block = 0; block < 10; block++) {
+            int frames = 1 + random.nextInt(3000);
+            double[][] input = new double[1][frames * lanes];
+            for (int j = 0; j < input[0].length; j++) {
+                input[0][j] = random.nextInt(65536) - 32768;
+            }
+            double[][] output = new double[1][frames * lanes];
+            filters.computeLanes(input, output, frames);
+
+            for (int n = 0; n < frames; n++) {
+                for (int k = 0; k < lanes; k++) {
+                    double expected = copies[k].computeOneStep(
+                            new double[]{input[0][n * lanes + k]})[0];
+                    assertEquals(expected, output[0][n * lanes + k],
+                            "Lane " + k + " of " + lanes + ", frame " + n);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package be.isach.filterlib.engine;
+
+import be.isach.filterlib.filters.AdditionFilter;
+import be.isach.filterlib.filters.CompositeFilter;
+import be.isach.filterlib.filters.DelayFilter;
+import be.isach.filterlib.filters.EchoFilter;
+import be.isach.filterlib.filters.GainFilter;
+import be.uliege.montefiore.oop.audio.Filter;
+import be.uliege.montefiore.oop.audio.FilterException;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that overlap-add keeps the outputs of a linear composite within
+ * its error bound.
+ */
+class OverlapAddFilterTest {
+
+    private static final double PEAK = 32768;
+
+    @Test
+    void chunksStayWithinTheErrorBound() throws FilterException {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            EchoFilter echo = new EchoFilter(0.6, 1000);
+            OverlapAddFilter filter = new OverlapAddFilter(
+                    new EchoFilter(0.6, 1000), pool,
+                    OverlapAddFilter.DEFAULT_TOLERANCE);
+
+            Random random = new Random(42);
+            for (int frames : new int[]{400_000, 300_000}) {
+                double[][] input = noise(random, frames);
+                double[] expected = singleSteps(echo, input[0]);
+                double[][] output = new double[1][frames];
+                filter.computeBlock(input, output, frames);
+
+                double error = 0;
+                for (int n = 0; n < frames; n++) {
+                    error = Math.max(error,
+                            Math.abs(output[0][n] - expected[n]));
+                }
+                assertTrue(error <= OverlapAddFilter.DEFAULT_TOLERANCE
+                        * PEAK, "Error: " + error);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void shortBlocksAreExact() throws FilterException {
+        EchoFilter echo = new EchoFilter(0.6, 1000);
+        OverlapAddFilter filter = new OverlapAddFilter(
+                new EchoFilter(0.6, 1000));
+
+        Random random = new Random(7);
+        for (int block = 0; block < 5; block++) {
+            double[][] input = noise(random, 3000);
+            double[][] output = new double[1][3000];
+            filter.computeBlock(input, output, 3000);
+
+            assertArrayEquals(singleSteps(echo, input[0]), output[0]);
+        }
+    }
+
+    @Test
+    void subclassesOfGainsAreRejected() throws FilterException {
+        CompositeFilter composite = new CompositeFilter(1, 1);
+        Filter add = new AdditionFilter();
+        Filter delay = new DelayFilter(100);
+        Filter gain = new GainFilter(0.5) {
+        };
+        composite.addBlock(add);
+        composite.addBlock(delay);
+        composite.addBlock(gain);
+        composite.connectInputToBlock(0, add, 0);
+        composite.connectBlockToBlock(add, 0, delay, 0);
+        composite.connectBlockToBlock(delay, 0, gain, 0);
+        composite.connectBlockToBlock(gain, 0, add, 1);
+        composite.connectBlockToOutput(add, 0, 0);
+
+        assertThrows(FilterException.class,
+                () -> new OverlapAddFilter(composite));
+    }
+
+    /**
+     * @return a buffer of random 16 bits samples.
+     */
+    private static double[][] noise(Random random, int frames) {
+        double[][] input = new double[1][frames];
+        for (int n = 0; n < frames; n++) {
+            input[0][n] = random.nextInt(65536) - PEAK;
+        }
+        return input;
+    }
+
+    /**
+     * @return the outputs of the filter computed one step at a time.
+     */
+    private static double[] singleSteps(Filter filter, double[] input)
+            throws FilterException {
+        double[] output = new double[input.length];
+        for (int n = 0; n < input.length; n++) {
+            output[n] = filter.computeOneStep(new double[]{input[n]})[0];
+        }
+        return output;
+    }
+}
@@ -0,0 +1,70 @@
+package be.isach.filterlib.engine;
+
+import be.isach.filterlib.reverberator.ReverberatorFilter;
+import be.uliege.montefiore.oop.audio.FilterException;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the outputs of a pipeline, and the lifetime of its threads.
+ */
+class PipelinedFilterTest {
+
+    @Test
+    void idleThreadsExitAndRestart() throws Exception {
+        ReverberatorFilter reverberator = new ReverberatorFilter();
+        try (PipelinedFilter pipeline = new PipelinedFilter(
+                new ReverberatorFilter(), 3, 256)) {
+            assertTrue(pipeline.getStages() > 1);
+
+            Random random = new Random(42);
+            assertMatches(reverberator, pipeline, random);
+            assertTrue(stageThreads() > 0);
+
+            long deadline = System.nanoTime() + 20_000_000_000L;
+            while (stageThreads() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(100);
+            }
+            assertEquals(0, stageThreads());
+
+            assertMatches(reverberator, pipeline, random);
+        }
+    }
+
+    /**
+     * Checks that a block of noise computed by the pipeline matches the
+     * outputs of the reverberator computed one step at a time.
+     */
+    private static void assertMatches(ReverberatorFilter reverberator,
+                                      PipelinedFilter pipeline,
+                                      Random random)
+            throws FilterException {
+        int frames = 20000;
+        double[][] input = new double[1][frames];
+        double[] expected = new double[frames];
+        for (int n = 0; n < frames; n++) {
+            input[0][n] = random.nextInt(65536) - 32768;
+            expected[n] = reverberator.computeOneStep(
+                    new double[]{input[0][n]})[0];
+        }
+
+        double[][] output = new double[1][frames];
+        pipeline.computeBlock(input, output, frames);
+        assertArrayEquals(expected, output[0]);
+    }
+
+    /**
+     * @return the amount of live threads running stages of pipelines.
+     */
+    private static long stageThreads() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.isAlive() && thread.getName()
+                        .startsWith("filterlib-pipeline-stage-"))
+                .count();
+    }
+}
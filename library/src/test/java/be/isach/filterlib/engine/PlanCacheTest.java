@@ -0,0 +1,106 @@
+package be.isach.filterlib.engine;
+
+import be.isach.filterlib.filters.AdditionFilter;
+import be.isach.filterlib.filters.CompositeFilter;
+import be.isach.filterlib.filters.DelayFilter;
+import be.isach.filterlib.filters.EchoFilter;
+import be.isach.filterlib.filters.GainFilter;
+import be.isach.filterlib.reverberator.ReverberatorFilter;
+import be.uliege.montefiore.oop.audio.Filter;
+import be.uliege.montefiore.oop.audio.FilterException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that cached plans are only used for the graphs they were compiled
+ * from.
+ */
+class PlanCacheTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void cachedPlanMatchesCompiledOne() throws FilterException {
+        PlanCache cache = new PlanCache(directory);
+        cache.compile(new ReverberatorFilter(), "ab12");
+
+        CompositeFilter cached = new ReverberatorFilter();
+        cached.setPlan(cache.compile(cached, "ab12"));
+        assertEquals(1, cache.getHits());
+
+        assertArrayEquals(outputOf(new ReverberatorFilter()),
+                outputOf(cached));
+    }
+
+    @Test
+    void otherParametersUnderTheSameKeyAreCompiled()
+            throws FilterException {
+        PlanCache cache = new PlanCache(directory);
+        cache.compile(new EchoFilter(0.6, 100), "cd34");
+
+        CompositeFilter other = new EchoFilter(0.3, 100);
+        other.setPlan(cache.compile(other, "cd34"));
+        CompositeFilter longer = new EchoFilter(0.6, 101);
+        longer.setPlan(cache.compile(longer, "cd34"));
+        assertEquals(0, cache.getHits());
+        assertEquals(3, cache.getMisses());
+
+        assertArrayEquals(outputOf(new EchoFilter(0.3, 100)),
+                outputOf(other));
+        assertArrayEquals(outputOf(new EchoFilter(0.6, 101)),
+                outputOf(longer));
+    }
+
+    @Test
+    void subclassesOfGainsAreCompiled() throws FilterException {
+        PlanCache cache = new PlanCache(directory);
+        cache.compile(echo(new GainFilter(1)), "ef56");
+
+        CompositeFilter clipping = echo(new ClippingGain());
+        clipping.setPlan(cache.compile(clipping, "ef56"));
+        assertEquals(0, cache.getHits());
+        assertArrayEquals(outputOf(echo(new ClippingGain())),
+                outputOf(clipping));
+    }
+
+    /**
+     * @return an echo whose feedback goes through the given gain.
+     */
+    private static CompositeFilter echo(GainFilter gain)
+            throws FilterException {
+        CompositeFilter composite = new CompositeFilter(1, 1);
+        Filter add = new AdditionFilter();
+        Filter delay = new DelayFilter(100);
+        composite.addBlock(add);
+        composite.addBlock(delay);
+        composite.addBlock(gain);
+        composite.connectInputToBlock(0, add, 0);
+        composite.connectBlockToBlock(add, 0, delay, 0);
+        composite.connectBlockToBlock(delay, 0, gain, 0);
+        composite.connectBlockToBlock(gain, 0, add, 1);
+        composite.connectBlockToOutput(add, 0, 0);
+        return composite;
+    }
+
+    /**
+     * @return the output of the filter for a block of noise.
+     */
+    private static double[] outputOf(CompositeFilter filter)
+            throws FilterException {
+        Random random = new Random(42);
+        double[][] input = new double[1][5000];
+        for (int n = 0; n < input[0].length; n++) {
+            input[0][n] = random.nextInt(65536) - 32768;
+        }
+        double[][] output = new double[1][input[0].length];
+        filter.computeBlock(input, output, input[0].length);
+        return output[0];
+    }
+}
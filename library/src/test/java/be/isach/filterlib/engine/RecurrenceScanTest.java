@@ -0,0 +1,111 @@
+package be.isach.filterlib.engine;
+
+import be.isach.filterlib.filters.BlockFilter;
+import be.uliege.montefiore.oop.audio.FilterException;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the blocked scan solves recurrences as the sequential loop
+ * does, up to rounding. The build runs it a second time with the scan
+ * enabled in the kernels.
+ */
+class RecurrenceScanTest {
+
+    /**
+     * Largest error allowed, relative to the largest value.
+     */
+    private static final double TOLERANCE = 1e-12;
+
+    @Test
+    void scanMatchesTheSequentialLoop() {
+        Random random = new Random(42);
+        for (double feedback : new double[]{0.7, -0.95, 0.999}) {
+            double[] powers = RecurrenceScan.powersOf(feedback);
+            for (int delay = 1; delay < RecurrenceScan.MAX_DELAY; delay++) {
+                for (int frames : new int[]{64, 100, 4096, 8191}) {
+                    double[] history = new double[delay];
+                    for (int r = 0; r < delay; r++) {
+                        history[r] = random.nextInt(65536) - 32768;
+                    }
+                    double[] values = new double[frames];
+                    for (int n = 0; n < frames; n++) {
+                        values[n] = random.nextInt(65536) - 32768;
+                    }
+
+                    double[] expected = sequential(feedback, delay, history,
+                            values);
+                    RecurrenceScan.solve(powers, delay, history, values,
+                            frames);
+
+                    double peak = 0;
+                    double error = 0;
+                    for (int n = 0; n < frames; n++) {
+                        peak = Math.max(peak, Math.abs(expected[n]));
+                        error = Math.max(error,
+                                Math.abs(values[n] - expected[n]));
+                    }
+                    assertTrue(error <= TOLERANCE * peak, "Feedback "
+                            + feedback + ", delay " + delay + ", frames "
+                            + frames + ": error " + error);
+                }
+            }
+        }
+    }
+
+    @Test
+    void kernelsMatchTheirOneStepPath() throws FilterException {
+        for (int delay = 1; delay < RecurrenceScan.MAX_DELAY; delay++) {
+            assertMatchesOneStepPath(new CombKernel(1, 0.9, delay),
+                    new CombKernel(1, 0.9, delay));
+            assertMatchesOneStepPath(
+                    new AllPassKernel(-0.7, 1, 1, 0.7, delay),
+                    new AllPassKernel(-0.7, 1, 1, 0.7, delay));
+        }
+    }
+
+    /**
+     * Checks that blocks of random sizes computed by a kernel match the
+     * outputs of another one computed one step at a time.
+     */
+    private static void assertMatchesOneStepPath(BlockFilter kernel,
+                                                 BlockFilter reference)
+            throws FilterException {
+        Random random = new Random(7);
+        for (int block = 0; block < 50; block++) {
+            int frames = 1 + random.nextInt(500);
+            double[][] input = new double[1][frames];
+            for (int n = 0; n < frames; n++) {
+                input[0][n] = random.nextInt(65536) - 32768;
+            }
+            double[][] output = new double[1][frames];
+            kernel.computeBlock(input, output, frames);
+
+            for (int n = 0; n < frames; n++) {
+                double expected = reference.computeOneStep(
+                        new double[]{input[0][n]})[0];
+                // Outputs stay below ten times the peak of the input.
+                assertEquals(expected, output[0][n],
+                        TOLERANCE * 10 * 32768);
+            }
+        }
+    }
+
+    /**
+     * @return the solution of the recurrence computed one sample after the
+     *         other, the inputs being left untouched.
+     */
+    private static double[] sequential(double feedback, int delay,
+                                       double[] history, double[] inputs) {
+        double[] values = inputs.clone();
+        for (int n = 0; n < values.length; n++) {
+            values[n] += feedback
+                    * (n < delay ? history[n] : values[n - delay]);
+        }
+        return values;
+    }
+}
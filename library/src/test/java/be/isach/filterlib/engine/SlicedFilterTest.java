@@ -0,0 +1,90 @@
+package be.isach.filterlib.engine;
+
+import be.isach.filterlib.filters.AdditionFilter;
+import be.isach.filterlib.filters.CompositeFilter;
+import be.isach.filterlib.filters.DelayFilter;
+import be.isach.filterlib.filters.GainFilter;
+import be.uliege.montefiore.oop.audio.Filter;
+import be.uliege.montefiore.oop.audio.FilterException;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks that slicing a feed-forward composite keeps its outputs exact.
+ */
+class SlicedFilterTest {
+
+    @Test
+    void slicesMatchTheSingleStepPath() throws FilterException {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            CompositeFilter composite = echoes(new DelayFilter(1000));
+            SlicedFilter sliced = new SlicedFilter(composite.copy(), pool);
+
+            Random random = new Random(42);
+            for (int frames : new int[]{100_000, 777, 60_000}) {
+                double[][] input = new double[1][frames];
+                for (int n = 0; n < frames; n++) {
+                    input[0][n] = random.nextInt(65536) - 32768;
+                }
+
+                double[] expected = new double[frames];
+                for (int n = 0; n < frames; n++) {
+                    expected[n] = composite.computeOneStep(
+                            new double[]{input[0][n]})[0];
+                }
+                double[][] output = new double[1][frames];
+                sliced.computeBlock(input, output, frames);
+
+                assertArrayEquals(expected, output[0]);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void subclassesOfDelaysAreRejected() throws FilterException {
+        CompositeFilter composite = echoes(new DelayFilter(1000) {
+        });
+
+        assertThrows(FilterException.class,
+                () -> new SlicedFilter(composite));
+    }
+
+    /**
+     * @return a composite adding its input to two delayed and attenuated
+     *         copies of it, the first one delayed by the given filter.
+     */
+    private static CompositeFilter echoes(Filter delay)
+            throws FilterException {
+        CompositeFilter composite = new CompositeFilter(1, 1);
+        Filter gain = new GainFilter(0.6);
+        Filter late = new DelayFilter(2500);
+        Filter lateGain = new GainFilter(-0.3);
+        Filter add = new AdditionFilter();
+        Filter sum = new AdditionFilter();
+        composite.addBlock(delay);
+        composite.addBlock(gain);
+        composite.addBlock(late);
+        composite.addBlock(lateGain);
+        composite.addBlock(add);
+        composite.addBlock(sum);
+
+        composite.connectInputToBlock(0, delay, 0);
+        composite.connectBlockToBlock(delay, 0, gain, 0);
+        composite.connectInputToBlock(0, add, 0);
+        composite.connectBlockToBlock(gain, 0, add, 1);
+        composite.connectBlockToBlock(add, 0, late, 0);
+        composite.connectBlockToBlock(late, 0, lateGain, 0);
+        composite.connectBlockToBlock(add, 0, sum, 0);
+        composite.connectBlockToBlock(lateGain, 0, sum, 1);
+        composite.connectBlockToOutput(sum, 0, 0);
+        return composite;
+    }
+}
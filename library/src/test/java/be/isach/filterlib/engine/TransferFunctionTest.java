@@ -0,0 +1,107 @@
+package be.isach.filterlib.engine;
+
+import be.isach.filterlib.filters.AdditionFilter;
+import be.isach.filterlib.filters.AllPassFilter;
+import be.isach.filterlib.filters.CompositeFilter;
+import be.isach.filterlib.filters.DelayFilter;
+import be.isach.filterlib.filters.EchoFilter;
+import be.isach.filterlib.filters.GainFilter;
+import be.isach.filterlib.filters.SparseIIRFilter;
+import be.isach.filterlib.reverberator.LowPassFilter;
+import be.uliege.montefiore.oop.audio.Filter;
+import be.uliege.montefiore.oop.audio.FilterException;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks which composites have a transfer function, and that the filters
+ * built from it compute what their graphs compute.
+ */
+class TransferFunctionTest {
+
+    /**
+     * Largest difference allowed between the outputs, relative to the peak
+     * of the input, the coefficients being rounded once expanded.
+     */
+    private static final double TOLERANCE = 1e-12;
+
+    @Test
+    void echoHasATransferFunction() throws FilterException {
+        assertNotNull(TransferFunction.of(new EchoFilter(0.6, 100)));
+    }
+
+    @Test
+    void sparseFiltersMatchTheirGraphs() throws FilterException {
+        assertMatchesGraph(new EchoFilter(0.6, 100),
+                new EchoFilter(0.6, 100));
+        assertMatchesGraph(new AllPassFilter(0.5, 31),
+                new AllPassFilter(0.5, 31));
+        assertMatchesGraph(lowPassThenGain(), lowPassThenGain());
+    }
+
+    @Test
+    void subclassesOfGainsAreRejected() throws FilterException {
+        CompositeFilter composite = new CompositeFilter(1, 1);
+        Filter add = new AdditionFilter();
+        Filter delay = new DelayFilter(100);
+        Filter gain = new GainFilter(0.5) {
+        };
+        composite.addBlock(add);
+        composite.addBlock(delay);
+        composite.addBlock(gain);
+        composite.connectInputToBlock(0, add, 0);
+        composite.connectBlockToBlock(add, 0, delay, 0);
+        composite.connectBlockToBlock(delay, 0, gain, 0);
+        composite.connectBlockToBlock(gain, 0, add, 1);
+        composite.connectBlockToOutput(add, 0, 0);
+
+        assertThrows(FilterException.class,
+                () -> TransferFunction.of(composite));
+    }
+
+    /**
+     * @return a low-pass filter followed by a gain.
+     */
+    private static CompositeFilter lowPassThenGain() throws FilterException {
+        CompositeFilter composite = new CompositeFilter(1, 1);
+        Filter lowPass = new LowPassFilter(0.7133, 88);
+        Filter gain = new GainFilter(-0.4);
+        composite.addBlock(lowPass);
+        composite.addBlock(gain);
+        composite.connectInputToBlock(0, lowPass, 0);
+        composite.connectBlockToBlock(lowPass, 0, gain, 0);
+        composite.connectBlockToOutput(gain, 0, 0);
+        return composite;
+    }
+
+    /**
+     * Checks that the sparse filter of a composite, computing blocks of
+     * noise, matches the graph of another one stepped one sample at a time.
+     */
+    private static void assertMatchesGraph(CompositeFilter composite,
+                                           CompositeFilter graph)
+            throws FilterException {
+        SparseIIRFilter sparse = TransferFunction.of(composite).toFilter();
+        Random random = new Random(42);
+        for (int block = 0; block < 10; block++) {
+            int frames = 1 + random.nextInt(1000);
+            double[][] input = new double[1][frames];
+            for (int n = 0; n < frames; n++) {
+                input[0][n] = random.nextInt(65536) - 32768;
+            }
+            double[][] output = new double[1][frames];
+            sparse.computeBlock(input, output, frames);
+
+            for (int n = 0; n < frames; n++) {
+                double expected = graph.computeOneStep(
+                        new double[]{input[0][n]})[0];
+                assertEquals(expected, output[0][n], TOLERANCE * 32768);
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package be.isach.filterlib.filters;
+
+import be.isach.filterlib.reverberator.ReverberatorFilter;
+import be.uliege.montefiore.oop.audio.FilterException;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Checks that the single-step path of filters does not allocate.
+ */
+class AllocationTest {
+
+    private static final int WARMUP = 200_000;
+
+    private static final int SAMPLES = 1_000_000;
+
+    @Test
+    void echoDoesNotAllocate() throws FilterException {
+        assertEquals(0, bytesPerSample(new EchoFilter(0.6, 10000)));
+    }
+
+    @Test
+    void allPassDoesNotAllocate() throws FilterException {
+        assertEquals(0, bytesPerSample(new AllPassFilter(0.5, 353)));
+    }
+
+    @Test
+    void reverberatorDoesNotAllocate() throws FilterException {
+        assertEquals(0, bytesPerSample(new ReverberatorFilter()));
+    }
+
+    /**
+     * @return the bytes allocated by the current thread per sample computed
+     *         by the filter, once warmed up.
+     */
+    private static long bytesPerSample(BlockFilter filter)
+            throws FilterException {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean)
+                        ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        double[] input = new double[1];
+        double[] output = new double[1];
+        run(filter, input, output, WARMUP);
+
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        run(filter, input, output, SAMPLES);
+        long after = threads.getThreadAllocatedBytes(thread);
+        return (after - before) / SAMPLES;
+    }
+
+    /**
+     * Computes samples of a sawtooth one step at a time.
+     */
+    private static void run(BlockFilter filter, double[] input,
+                            double[] output, int samples)
+            throws FilterException {
+        for (int n = 0; n < samples; n++) {
+            input[0] = (n % 200) * 100 - 10000;
+            filter.computeOneStep(input, output);
+        }
+    }
+}
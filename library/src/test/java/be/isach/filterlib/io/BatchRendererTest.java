@@ -0,0 +1,87 @@
+package be.isach.filterlib.io;
+
+import be.isach.filterlib.filters.EchoFilter;
+import be.uliege.montefiore.oop.audio.AudioSequenceException;
+import be.uliege.montefiore.oop.audio.FilterException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the rendering of many WAV files by the batch renderer.
+ */
+class BatchRendererTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void rendersAsTheStreamingFilter() throws Exception {
+        Path input = directory.resolve("input.wav");
+        writeNoise(input, 2, 30000);
+        Path expected = directory.resolve("expected.wav");
+        StreamingAudioFilter.applyFilter(new EchoFilter(0.6, 1000),
+                input.toString(), expected.toString(), false, 4096);
+
+        Path outputs = directory.resolve("out");
+        List<BatchRenderer.Result> results = renderer()
+                .render(List.of(input), outputs);
+
+        assertTrue(results.get(0).isSuccess(), results.get(0).getError());
+        assertEquals(30000, results.get(0).getFrames());
+        assertArrayEquals(Files.readAllBytes(expected),
+                Files.readAllBytes(outputs.resolve("input.wav")));
+    }
+
+    @Test
+    void rejectsInputsWithTheSameOutput() throws Exception {
+        Path first = directory.resolve("a").resolve("take.wav");
+        Path second = directory.resolve("b").resolve("take.wav");
+        Files.createDirectories(first.getParent());
+        Files.createDirectories(second.getParent());
+        writeNoise(first, 1, 1000);
+        writeNoise(second, 1, 1000);
+
+        List<BatchRenderer.Result> results = renderer()
+                .render(Arrays.asList(first, second),
+                        directory.resolve("out"));
+
+        assertTrue(results.get(0).isSuccess(), results.get(0).getError());
+        assertFalse(results.get(1).isSuccess());
+    }
+
+    /**
+     * @return a renderer of an echo, with small chunks.
+     */
+    private static BatchRenderer renderer() throws FilterException {
+        return new BatchRenderer(new EchoFilter(0.6, 1000), 2, 1 << 20,
+                4096);
+    }
+
+    /**
+     * Writes a WAV file of noise.
+     */
+    private static void writeNoise(Path file, int channels, int frames)
+            throws AudioSequenceException, IOException {
+        double[][] samples = new double[channels][frames];
+        for (int c = 0; c < channels; c++) {
+            for (int n = 0; n < frames; n++) {
+                samples[c][n] = ((n * 7919 + c * 104729) % 20000) - 10000;
+            }
+        }
+        try (WavWriter writer = new WavWriter(file.toString(), channels,
+                44100)) {
+            writer.write(0, samples, frames);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package be.isach.filterlib.io;
+
+import be.isach.filterlib.filters.CopyableFilter;
+import be.isach.filterlib.reverberator.ReverberatorFilter;
+import be.uliege.montefiore.oop.audio.AudioSequenceException;
+import be.uliege.montefiore.oop.audio.FilterException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+/**
+ * Checks the rendering of WAV files by the streaming filter.
+ */
+class StreamingAudioFilterTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void errorOfOneChannelStopsTheOthers() throws Exception {
+        String input = directory.resolve("input.wav").toString();
+        String output = directory.resolve("output.wav").toString();
+        writeNoise(input, 2, 20000);
+
+        assertTimeoutPreemptively(Duration.ofSeconds(20), () ->
+                assertThrows(StackOverflowError.class, () ->
+                        StreamingAudioFilter.applyFilterInParallel(
+                                new FailingFilter(-1), input, output, false,
+                                1024)));
+    }
+
+    @Test
+    void resumedRenderMatchesUninterruptedOne() throws Exception {
+        String input = directory.resolve("input.wav").toString();
+        String expected = directory.resolve("expected.wav").toString();
+        String output = directory.resolve("output.wav").toString();
+        String index = directory.resolve("output.idx").toString();
+        writeNoise(input, 2, 30000);
+
+        StreamingAudioFilter.applyFilter(new ReverberatorFilter(), input,
+                expected);
+        StreamingAudioFilter.applyFilterWithCheckpoints(
+                new ReverberatorFilter(), input, output, index, 0.1);
+        assertArrayEquals(Files.readAllBytes(Paths.get(expected)),
+                Files.readAllBytes(Paths.get(output)));
+
+        // Damages the end of the output, which resuming must write again.
+        try (FileChannel channel = FileChannel.open(Paths.get(output),
+                StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(40000), 80000);
+        }
+        StreamingAudioFilter.resumeFilter(new ReverberatorFilter(), input,
+                output, index, 0.3, 0.1);
+
+        assertArrayEquals(Files.readAllBytes(Paths.get(expected)),
+                Files.readAllBytes(Paths.get(output)));
+    }
+
+    /**
+     * Writes a WAV file of noise.
+     */
+    private static void writeNoise(String file, int channels, int frames)
+            throws AudioSequenceException, IOException {
+        double[][] samples = new double[channels][frames];
+        for (int c = 0; c < channels; c++) {
+            for (int n = 0; n < frames; n++) {
+                samples[c][n] = ((n * 7919 + c * 104729) % 20000) - 10000;
+            }
+        }
+        try (WavWriter writer = new WavWriter(file, channels, 44100)) {
+            writer.write(0, samples, frames);
+        }
+    }
+
+    /**
+     * Identity filter whose second copy throws an error after a few
+     * thousands samples.
+     */
+    private static final class FailingFilter implements CopyableFilter {
+
+        private static int copies;
+
+        private final int index;
+
+        private int samples;
+
+        private FailingFilter(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public int nbInputs() {
+            return 1;
+        }
+
+        @Override
+        public int nbOutputs() {
+            return 1;
+        }
+
+        @Override
+        public double[] computeOneStep(double[] input) {
+            if (index % 2 == 1 && ++samples > 5000) {
+                throw new StackOverflowError();
+            }
+            return new double[]{input[0]};
+        }
+
+        @Override
+        public void reset() {
+            samples = 0;
+        }
+
+        @Override
+        public FailingFilter copy() {
+            synchronized (FailingFilter.class) {
+                return new FailingFilter(copies++);
+            }
+        }
+    }
+}
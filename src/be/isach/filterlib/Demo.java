@@ -1,12 +1,20 @@
 package be.isach.filterlib;
 
+import be.isach.filterlib.engine.FilterCompiler;
+import be.isach.filterlib.engine.PlanCache;
 import be.isach.filterlib.filters.*;
+import be.isach.filterlib.io.BatchRenderer;
+import be.isach.filterlib.io.GraphDescription;
+import be.isach.filterlib.io.RealTimeStreamer;
+import be.isach.filterlib.io.StreamingAudioFilter;
 import be.isach.filterlib.reverberator.ReverberatorFilter;
 import be.uliege.montefiore.oop.audio.Filter;
-import be.uliege.montefiore.oop.audio.TestAudioFilter;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.List;
 
 /**
  * Demo classes.
@@ -17,6 +25,14 @@ import java.time.Instant;
  *       input3.wav output.wave
  * Reverb:
  *       Reverb input3.wav output.wave
+ * Batch, rendering a directory or manifest of files with either filter:
+ *       Batch Echo|Reverb inputs/ outputs/ [threads]
+ * Live, filtering raw 16 bits PCM from the standard input to the standard
+ * output, with either filter:
+ *       Live Echo|Reverb [channels] [sample rate] [period size]
+ * Graph, applying the filter of a graph description, its compiled plan
+ * being kept in a cache directory for the next runs:
+ *       Graph reverberator.graph input3.wav output.wav [cache directory]
  */
 public class Demo {
 
@@ -25,6 +41,19 @@ public class Demo {
     }
 
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equalsIgnoreCase("batch")) {
+            batch(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equalsIgnoreCase("live")) {
+            live(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equalsIgnoreCase("graph")) {
+            graph(args);
+            return;
+        }
+
         if (args.length != 2 && args.length != 3) {
             System.err.println("Wrong number of arguments.");
             System.err.println("Expected: 2. Got: " + args.length);
@@ -43,11 +72,12 @@ public class Demo {
             String outputFile = args[1];
 
             try {
-                EchoFilter echoFilter = new EchoFilter(0.6, 10000);
+                Filter echoFilter = FilterCompiler.compile(
+                        new EchoFilter(0.6, 10000));
 
                 Instant start = Instant.now();
-                TestAudioFilter.applyFilter(echoFilter, inputFile,
-                        outputFile);
+                StreamingAudioFilter.applyFilterInParallel(echoFilter,
+                        inputFile, outputFile);
                 Instant finish = Instant.now();
                 long timeElapsed = Duration.between(start, finish).toMillis();
 
@@ -62,10 +92,11 @@ public class Demo {
             String outputFile = args[2];
 
             try {
-                ReverberatorFilter reverbFilter = new ReverberatorFilter();
+                Filter reverbFilter = FilterCompiler.compile(
+                        new ReverberatorFilter());
                 Instant start = Instant.now();
-                TestAudioFilter.applyFilter(reverbFilter, inputFile,
-                        outputFile);
+                StreamingAudioFilter.applyFilterInParallel(reverbFilter,
+                        inputFile, outputFile);
                 Instant finish = Instant.now();
                 long timeElapsed = Duration.between(start, finish).toMillis();
 
@@ -74,9 +105,154 @@ public class Demo {
                 System.out.println("Wrote Result to " + outputFile);
                 System.out.println("Time elapsed: " + timeElapsed);
             } catch (Exception e) {
-                e.printStackTrace();
                 System.err.println("Error: " + e.getMessage());
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Renders many files in one run, and reports the throughput of each file
+     * and of the whole batch.
+     *
+     * @param args The program arguments, starting with the batch mode.
+     */
+    private static void batch(String[] args) {
+        if (args.length != 4 && args.length != 5) {
+            System.err.println("Wrong number of arguments.");
+            System.err.println("Expected: Batch Echo|Reverb <input directory"
+                    + " or manifest> <output directory> [threads]");
+            return;
+        }
+
+        try {
+            Filter filter;
+            if (args[1].equalsIgnoreCase("echo")) {
+                filter = FilterCompiler.compile(new EchoFilter(0.6, 10000));
+            } else if (args[1].equalsIgnoreCase("reverb")) {
+                filter = FilterCompiler.compile(new ReverberatorFilter());
+            } else {
+                System.err.println("Wrong demo mode.");
+                return;
+            }
+
+            int threads = args.length == 5 ? Integer.parseInt(args[4])
+                    : Runtime.getRuntime().availableProcessors();
+            BatchRenderer renderer = new BatchRenderer(filter, threads,
+                    Runtime.getRuntime().maxMemory() / 2,
+                    StreamingAudioFilter.DEFAULT_CHUNK_SIZE);
+
+            List<Path> inputs = BatchRenderer.listInputs(Paths.get(args[2]));
+            Instant start = Instant.now();
+            List<BatchRenderer.Result> results = renderer.render(inputs,
+                    Paths.get(args[3]));
+            Instant finish = Instant.now();
+
+            long frames = 0;
+            int failures = 0;
+            for (BatchRenderer.Result result : results) {
+                if (result.isSuccess()) {
+                    frames += result.getFrames();
+                    System.out.printf("%s: %d frames in %d ms (%.1fx real "
+                                    + "time)%n", result.getInput(),
+                            result.getFrames(),
+                            result.getNanos() / 1_000_000,
+                            result.getRealTimeFactor());
+                } else {
+                    failures++;
+                    System.err.println(result.getInput() + ": "
+                            + result.getError());
+                }
+            }
+
+            long timeElapsed = Duration.between(start, finish).toMillis();
+            System.out.println("Rendered " + (results.size() - failures)
+                    + " of " + results.size() + " files, " + frames
+                    + " frames, with " + threads + " threads.");
+            System.out.println("Time elapsed: " + timeElapsed);
+            System.out.printf("Throughput: %.0f frames/s, %.1f files/s%n",
+                    frames * 1000.0 / Math.max(1, timeElapsed),
+                    results.size() * 1000.0 / Math.max(1, timeElapsed));
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Filters raw audio from the standard input to the standard output,
+     * period by period, and reports the time spent on the periods.
+     *
+     * @param args The program arguments, starting with the live mode.
+     */
+    private static void live(String[] args) {
+        if (args.length < 2 || args.length > 5) {
+            System.err.println("Wrong number of arguments.");
+            System.err.println("Expected: Live Echo|Reverb [channels] "
+                    + "[sample rate] [period size]");
+            return;
+        }
+
+        try {
+            Filter filter;
+            if (args[1].equalsIgnoreCase("echo")) {
+                filter = FilterCompiler.compile(new EchoFilter(0.6, 10000));
+            } else if (args[1].equalsIgnoreCase("reverb")) {
+                filter = FilterCompiler.compile(new ReverberatorFilter());
+            } else {
+                System.err.println("Wrong demo mode.");
+                return;
+            }
+
+            int channels = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+            int sampleRate = args.length > 3 ? Integer.parseInt(args[3])
+                    : 44100;
+            int periodSize = args.length > 4 ? Integer.parseInt(args[4])
+                    : RealTimeStreamer.DEFAULT_PERIOD_SIZE;
+            RealTimeStreamer streamer = new RealTimeStreamer(filter, channels,
+                    sampleRate, periodSize);
+
+            RealTimeStreamer.Report report = streamer.run(System.in,
+                    System.out);
+            System.err.println(report);
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Applies the filter of a graph description, and reports whether its
+     * plan was read from the cache and the time spent loading it.
+     *
+     * @param args The program arguments, starting with the graph mode.
+     */
+    private static void graph(String[] args) {
+        if (args.length != 4 && args.length != 5) {
+            System.err.println("Wrong number of arguments.");
+            System.err.println("Expected: Graph <description> <input file> "
+                    + "<output file> [cache directory]");
+            return;
+        }
+
+        try {
+            PlanCache cache = new PlanCache(args.length == 5
+                    ? Paths.get(args[4]) : PlanCache.DEFAULT_DIRECTORY);
+
+            Instant start = Instant.now();
+            CompositeFilter filter = GraphDescription.read(args[1])
+                    .build(cache);
+            Instant loaded = Instant.now();
+            StreamingAudioFilter.applyFilter(filter, args[2], args[3]);
+            Instant finish = Instant.now();
+
+            System.out.println("Applied " + args[1] + " to " + args[2]);
+            System.out.println("Wrote Result to " + args[3]);
+            System.out.println(cache.getHits() > 0
+                    ? "Plan read from the cache." : "Plan compiled.");
+            System.out.println("Load time: "
+                    + Duration.between(start, loaded).toMillis());
+            System.out.println("Time elapsed: "
+                    + Duration.between(start, finish).toMillis());
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+}
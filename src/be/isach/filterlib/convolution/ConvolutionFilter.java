@@ -0,0 +1,612 @@
+package be.isach.filterlib.convolution;
+
+import be.isach.filterlib.filters.BlockFilter;
+import be.isach.filterlib.filters.CopyableFilter;
+import be.isach.filterlib.filters.StatefulFilter;
+import be.uliege.montefiore.oop.audio.FilterException;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Filter convolving its input with a finite impulse response, for instance
+ * one captured from another filter by {@link ImpulseResponse}.
+ * <p>
+ * The head of the response is applied directly, sample by sample, so that
+ * the filter has no latency. The rest of it is cut into partitions applied
+ * by fast Fourier transforms, overlapping and adding blocks of the input:
+ * partitions grow in size along the response, up to a maximum size, so that
+ * a long response costs little more per sample than a short one.
+ * Choosing a maximum block size equal to the head size gives uniform
+ * partitions.
+ * </p>
+ * <p>
+ * Outputs are those of the direct convolution, up to the rounding errors of
+ * the transforms.
+ * </p>
+ */
+public class ConvolutionFilter implements BlockFilter, CopyableFilter,
+        StatefulFilter {
+
+    /**
+     * Default amount of samples of the response applied directly.
+     */
+    public static final int DEFAULT_HEAD_SIZE = 64;
+
+    /**
+     * Default size of the largest partitions of the response.
+     */
+    public static final int DEFAULT_MAX_BLOCK_SIZE = 8192;
+
+    /**
+     * Factor by which the size of the partitions grows. Each size costs two
+     * transforms per block, while each partition only costs a product of
+     * spectra: few sizes of many partitions are cheaper than doubling the
+     * size every other partition.
+     */
+    private static final int GROWTH = 16;
+
+    /**
+     * The impulse response.
+     */
+    private final double[] response;
+
+    private final int headSize;
+
+    private final int maxBlockSize;
+
+    /**
+     * First headSize samples of the response, in reverse order.
+     */
+    private final double[] head;
+
+    /**
+     * Last headSize inputs. Each input is written twice, headSize values
+     * apart, so that the last headSize ones are always contiguous.
+     */
+    private final double[] history;
+
+    /**
+     * Position of the next input in the history.
+     */
+    private int position;
+
+    /**
+     * Partitions of the rest of the response, grouped by size.
+     */
+    private final Segment[] segments;
+
+    /**
+     * Initializes a convolution filter, with the default block sizes.
+     *
+     * @param response The impulse response.
+     * @throws FilterException if the response is null.
+     */
+    public ConvolutionFilter(double[] response) throws FilterException {
+        this(response, DEFAULT_HEAD_SIZE, DEFAULT_MAX_BLOCK_SIZE);
+    }
+
+    /**
+     * Initializes a convolution filter.
+     *
+     * @param response     The impulse response.
+     * @param headSize     The amount of samples of the response applied
+     *                     directly, and the size of the first partitions,
+     *                     a power of two.
+     * @param maxBlockSize The size of the largest partitions, a power of two
+     *                     of at least headSize.
+     * @throws FilterException if the response is null, or the sizes are not
+     *                         valid.
+     */
+    public ConvolutionFilter(double[] response, int headSize,
+                             int maxBlockSize) throws FilterException {
+        if (response == null) {
+            throw new FilterException("Specified impulse response points " +
+                    "to null.");
+        }
+
+        if (Integer.bitCount(headSize) != 1
+                || Integer.bitCount(maxBlockSize) != 1
+                || maxBlockSize < headSize) {
+            throw new FilterException("Block sizes must be powers of two, " +
+                    "the head size being at most the maximum block size. " +
+                    "Got: " + headSize + ", " + maxBlockSize);
+        }
+
+        this.response = response.clone();
+        this.headSize = headSize;
+        this.maxBlockSize = maxBlockSize;
+
+        this.head = new double[headSize];
+        for (int k = 0; k < Math.min(headSize, response.length); k++) {
+            head[headSize - 1 - k] = response[k];
+        }
+        this.history = new double[2 * headSize];
+        this.position = 0;
+        this.segments = partition(this.response, headSize, maxBlockSize);
+    }
+
+    /**
+     * Initializes a copy of a filter, sharing its transformed response.
+     */
+    private ConvolutionFilter(ConvolutionFilter filter) {
+        this.response = filter.response;
+        this.headSize = filter.headSize;
+        this.maxBlockSize = filter.maxBlockSize;
+        this.head = filter.head;
+        this.history = new double[2 * headSize];
+        this.position = 0;
+
+        this.segments = new Segment[filter.segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(filter.segments[i]);
+        }
+    }
+
+    /**
+     * Cuts the response after its head into partitions, their size growing
+     * by {@link #GROWTH} as soon as their offset allows it.
+     *
+     * @return the partitions, grouped by size.
+     */
+    private static Segment[] partition(double[] response, int headSize,
+                                       int maxBlockSize) {
+        List<Segment> segments = new ArrayList<>();
+        int offset = headSize;
+        int size = headSize;
+        while (offset < response.length) {
+            if (grows(offset, size, maxBlockSize)) {
+                size = Math.min(size * GROWTH, maxBlockSize);
+            }
+
+            int start = offset;
+            int partitions = 0;
+            do {
+                offset += size;
+                partitions++;
+            } while (offset < response.length
+                    && !grows(offset, size, maxBlockSize));
+
+            segments.add(new Segment(response, start, size, partitions));
+        }
+        return segments.toArray(new Segment[0]);
+    }
+
+    /**
+     * @return whether the partition starting at the given offset of the
+     * response is larger than the previous one. Its offset must be a
+     * multiple of its size, so that its input blocks are aligned on those of
+     * the filter, and at least its size, so that they are complete before
+     * being needed.
+     */
+    private static boolean grows(int offset, int size, int maxBlockSize) {
+        int next = Math.min(size * GROWTH, maxBlockSize);
+        return size < maxBlockSize && offset >= next && offset % next == 0;
+    }
+
+    /**
+     * A convolution filter requires only 1 input.
+     *
+     * @return the number of inputs of the filter.
+     */
+    @Override
+    public int nbInputs() {
+        return 1;
+    }
+
+    /**
+     * A convolution filter produces only 1 output.
+     *
+     * @return the number of outputs of the filter.
+     */
+    @Override
+    public int nbOutputs() {
+        return 1;
+    }
+
+    /**
+     * Computes one step of the filtering.
+     *
+     * @param input contains the input sample.
+     * @return an array containing one output: the input convolved with the
+     * response.
+     * @throws FilterException if the input array is null or of wrong length.
+     */
+    @Override
+    public double[] computeOneStep(double[] input) throws FilterException {
+        if (input == null) {
+            throw new FilterException("Specified input array points to null.");
+        }
+
+        if (input.length != nbInputs()) {
+            throw new FilterException("Invalid number of inputs. Expected: "
+                    + nbInputs() + ", Got: " + input.length);
+        }
+
+        return new double[]{step(input[0])};
+    }
+
+    /**
+     * Computes one step of the filtering, without allocating any array.
+     *
+     * @param input  contains the input sample.
+     * @param output receives the input convolved with the response.
+     * @throws FilterException if the arrays are null or of wrong length.
+     */
+    @Override
+    public void computeOneStep(double[] input, double[] output)
+            throws FilterException {
+        BlockFilter.checkStep(this, input, output);
+
+        output[0] = step(input[0]);
+    }
+
+    /**
+     * Computes several steps of the filtering at once. The head of the
+     * response is applied to the whole block first, then each group of
+     * partitions adds its outputs, processing its blocks as they fill.
+     *
+     * @param input  contains the single input buffer.
+     * @param output contains the single output buffer.
+     * @param frames the amount of frames to process.
+     * @throws FilterException if the buffers are null or of wrong amount.
+     */
+    @Override
+    public void computeBlock(double[][] input, double[][] output, int frames)
+            throws FilterException {
+        BlockFilter.checkBuffers(this, input, output);
+
+        double[] in = input[0];
+        double[] out = output[0];
+        for (int n = 0; n < frames; n++) {
+            out[n] = direct(in[n]);
+        }
+        for (Segment segment : segments) {
+            segment.add(in, out, frames);
+        }
+    }
+
+    /**
+     * Computes one output, from the head of the response first.
+     */
+    private double step(double sample) {
+        double output = direct(sample);
+        for (Segment segment : segments) {
+            output += segment.step(sample);
+        }
+        return output;
+    }
+
+    /**
+     * Adds an input to the history, and applies the head of the response to
+     * the last inputs.
+     */
+    private double direct(double sample) {
+        history[position] = sample;
+        history[position + headSize] = sample;
+
+        double output = 0;
+        int from = position + 1;
+        for (int k = 0; k < headSize; k++) {
+            output += head[k] * history[from + k];
+        }
+
+        position = (position + 1) & (headSize - 1);
+        return output;
+    }
+
+    /**
+     * Creates a convolution filter with the same response, in its initial
+     * state. Transformed partitions are shared with this filter.
+     *
+     * @return the copy of the filter.
+     */
+    @Override
+    public ConvolutionFilter copy() {
+        return new ConvolutionFilter(this);
+    }
+
+    /**
+     * Writes the last inputs, and the blocks and spectra held by each group
+     * of partitions.
+     *
+     * @param out The destination of the state.
+     * @throws IOException if the state cannot be written.
+     */
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        out.writeInt(position);
+        StatefulFilter.writeValues(out, history);
+        for (Segment segment : segments) {
+            segment.saveState(out);
+        }
+    }
+
+    /**
+     * Reads back the last inputs, and the blocks and spectra held by each
+     * group of partitions.
+     *
+     * @param in The source of the state.
+     * @throws IOException if the state cannot be read, or was saved from a
+     *                     filter with another response or other sizes.
+     */
+    @Override
+    public void restoreState(DataInput in) throws IOException {
+        position = readPosition(in, headSize);
+        System.arraycopy(StatefulFilter.readValues(in, history.length), 0,
+                history, 0, history.length);
+        for (Segment segment : segments) {
+            segment.restoreState(in);
+        }
+    }
+
+    /**
+     * Reads a position of a snapshot, in [0, size).
+     */
+    private static int readPosition(DataInput in, int size)
+            throws IOException {
+        int position = in.readInt();
+        if (position < 0 || position >= size) {
+            throw new IOException("Snapshot does not match the filter.");
+        }
+        return position;
+    }
+
+    /**
+     * Resets the filter, as if it had only been fed zeros.
+     */
+    @Override
+    public void reset() {
+        Arrays.fill(history, 0);
+        position = 0;
+        for (Segment segment : segments) {
+            segment.reset();
+        }
+    }
+
+    /**
+     * @return the impulse response of the filter.
+     */
+    public double[] getResponse() {
+        return response.clone();
+    }
+
+    /**
+     * @return the amount of samples of the response applied directly.
+     */
+    public int getHeadSize() {
+        return headSize;
+    }
+
+    /**
+     * @return the size of the largest partitions of the response.
+     */
+    public int getMaxBlockSize() {
+        return maxBlockSize;
+    }
+
+    /**
+     * Consecutive partitions of the same size, applied together by a delay
+     * line of input spectra.
+     * <p>
+     * Inputs are gathered into blocks of the size of the partitions. Once a
+     * block is full, its spectrum is computed, and the spectra of the blocks
+     * reaching each partition are multiplied by that of the partition and
+     * summed. A single inverse transform then gives the outputs of the next
+     * block, plus a tail overlapping the block after it.
+     * </p>
+     */
+    private static final class Segment {
+
+        private final int size;
+
+        /**
+         * Amount of blocks between the last input block and the one reaching
+         * the first partition.
+         */
+        private final int skip;
+
+        private final FFT fft;
+
+        /**
+         * Spectrum of each partition, shared by copies of the filter.
+         */
+        private final double[][] responseRe, responseIm;
+
+        /**
+         * Spectra of the last input blocks, as a ring.
+         */
+        private final double[][] spectraRe, spectraIm;
+
+        /**
+         * Position of the spectrum of the last input block in the ring.
+         */
+        private int newest;
+
+        /**
+         * Inputs of the block being gathered.
+         */
+        private final double[] input;
+
+        /**
+         * Outputs of the block being gathered.
+         */
+        private final double[] output;
+
+        /**
+         * Tail of the last inverse transform, added to the next outputs.
+         */
+        private final double[] overlap;
+
+        /**
+         * Position in the block being gathered.
+         */
+        private int position;
+
+        private final double[] buffer, sumRe, sumIm;
+
+        /**
+         * Initializes a group of partitions of a response.
+         *
+         * @param response   The impulse response.
+         * @param start      The offset of the first partition, a multiple
+         *                   of size of at least size.
+         * @param size       The size of the partitions.
+         * @param partitions The amount of partitions.
+         */
+        Segment(double[] response, int start, int size, int partitions) {
+            this.size = size;
+            this.skip = start / size - 1;
+            this.fft = new FFT(2 * size);
+            this.responseRe = new double[partitions][fft.bins()];
+            this.responseIm = new double[partitions][fft.bins()];
+            this.buffer = new double[2 * size];
+
+            for (int p = 0; p < partitions; p++) {
+                int from = start + p * size;
+                Arrays.fill(buffer, 0);
+                System.arraycopy(response, from, buffer, 0,
+                        Math.min(size, response.length - from));
+                fft.forward(buffer, responseRe[p], responseIm[p]);
+            }
+
+            this.spectraRe = new double[skip + partitions][fft.bins()];
+            this.spectraIm = new double[skip + partitions][fft.bins()];
+            this.input = new double[size];
+            this.output = new double[size];
+            this.overlap = new double[size];
+            this.sumRe = new double[fft.bins()];
+            this.sumIm = new double[fft.bins()];
+        }
+
+        /**
+         * Initializes a copy of a group of partitions, in its initial state.
+         */
+        Segment(Segment segment) {
+            this.size = segment.size;
+            this.skip = segment.skip;
+            this.fft = new FFT(2 * size);
+            this.responseRe = segment.responseRe;
+            this.responseIm = segment.responseIm;
+            this.spectraRe = new double[segment.spectraRe.length][fft.bins()];
+            this.spectraIm = new double[segment.spectraIm.length][fft.bins()];
+            this.input = new double[size];
+            this.output = new double[size];
+            this.overlap = new double[size];
+            this.buffer = new double[2 * size];
+            this.sumRe = new double[fft.bins()];
+            this.sumIm = new double[fft.bins()];
+        }
+
+        /**
+         * Returns the next output of the partitions, and gathers an input.
+         */
+        double step(double sample) {
+            double value = output[position];
+            input[position] = sample;
+            if (++position == size) {
+                process();
+            }
+            return value;
+        }
+
+        /**
+         * Adds the next outputs of the partitions to a block, and gathers its
+         * inputs.
+         */
+        void add(double[] in, double[] out, int frames) {
+            int n = 0;
+            while (n < frames) {
+                int length = Math.min(frames - n, size - position);
+                for (int i = 0; i < length; i++) {
+                    out[n + i] += output[position + i];
+                }
+                System.arraycopy(in, n, input, position, length);
+                position += length;
+                n += length;
+
+                if (position == size) {
+                    process();
+                }
+            }
+        }
+
+        /**
+         * Transforms the full input block, and computes the outputs of the
+         * next one.
+         */
+        private void process() {
+            int ring = spectraRe.length;
+            newest = (newest + 1) % ring;
+
+            System.arraycopy(input, 0, buffer, 0, size);
+            Arrays.fill(buffer, size, 2 * size, 0);
+            fft.forward(buffer, spectraRe[newest], spectraIm[newest]);
+
+            Arrays.fill(sumRe, 0);
+            Arrays.fill(sumIm, 0);
+            for (int p = 0; p < responseRe.length; p++) {
+                int block = (newest - skip - p + ring) % ring;
+                double[] xr = spectraRe[block], xi = spectraIm[block];
+                double[] hr = responseRe[p], hi = responseIm[p];
+                for (int k = 0; k < sumRe.length; k++) {
+                    sumRe[k] += xr[k] * hr[k] - xi[k] * hi[k];
+                    sumIm[k] += xr[k] * hi[k] + xi[k] * hr[k];
+                }
+            }
+
+            fft.inverse(sumRe, sumIm, buffer);
+            for (int i = 0; i < size; i++) {
+                output[i] = buffer[i] + overlap[i];
+                overlap[i] = buffer[size + i];
+            }
+            position = 0;
+        }
+
+        void saveState(DataOutput out) throws IOException {
+            out.writeInt(position);
+            out.writeInt(newest);
+            StatefulFilter.writeValues(out, input);
+            StatefulFilter.writeValues(out, output);
+            StatefulFilter.writeValues(out, overlap);
+            for (int i = 0; i < spectraRe.length; i++) {
+                StatefulFilter.writeValues(out, spectraRe[i]);
+                StatefulFilter.writeValues(out, spectraIm[i]);
+            }
+        }
+
+        void restoreState(DataInput in) throws IOException {
+            position = readPosition(in, size);
+            newest = readPosition(in, spectraRe.length);
+            readInto(in, input);
+            readInto(in, output);
+            readInto(in, overlap);
+            for (int i = 0; i < spectraRe.length; i++) {
+                readInto(in, spectraRe[i]);
+                readInto(in, spectraIm[i]);
+            }
+        }
+
+        private static void readInto(DataInput in, double[] values)
+                throws IOException {
+            System.arraycopy(StatefulFilter.readValues(in, values.length), 0,
+                    values, 0, values.length);
+        }
+
+        void reset() {
+            for (int i = 0; i < spectraRe.length; i++) {
+                Arrays.fill(spectraRe[i], 0);
+                Arrays.fill(spectraIm[i], 0);
+            }
+            Arrays.fill(input, 0);
+            Arrays.fill(output, 0);
+            Arrays.fill(overlap, 0);
+            newest = 0;
+            position = 0;
+        }
+    }
+}
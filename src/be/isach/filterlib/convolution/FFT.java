@@ -0,0 +1,186 @@
+package be.isach.filterlib.convolution;
+
+/**
+ * Fast Fourier transform of real signals of a fixed power of two size.
+ * <p>
+ * A real signal of size n is transformed as a complex signal of size n / 2,
+ * its even samples being the real parts and its odd ones the imaginary
+ * parts, and the two halves of the spectrum are then separated. Only the
+ * n / 2 + 1 first bins of the spectrum are kept, the others being their
+ * conjugates.
+ * </p>
+ */
+final class FFT {
+
+    /**
+     * Size of the real signals.
+     */
+    private final int size;
+
+    /**
+     * Size of the complex transform, half the size of the signals.
+     */
+    private final int half;
+
+    /**
+     * Position of each sample of the complex transform after bit reversal.
+     */
+    private final int[] reversed;
+
+    /**
+     * Twiddle factors of each pass of the complex transform: the pass
+     * combining transforms of size m reads cos and sin of pi j / m at m + j.
+     */
+    private final double[] cos, sin;
+
+    /**
+     * Twiddle factors separating the spectrum, cos and sin of 2 pi k / size.
+     */
+    private final double[] splitCos, splitSin;
+
+    /**
+     * Real and imaginary parts of the complex signal being transformed.
+     */
+    private final double[] re, im;
+
+    /**
+     * Initializes a transform.
+     *
+     * @param size The size of the signals, a power of two of at least 2.
+     */
+    FFT(int size) {
+        this.size = size;
+        this.half = size / 2;
+
+        int bits = Integer.numberOfTrailingZeros(half);
+        this.reversed = new int[half];
+        for (int i = 1; i < half; i++) {
+            reversed[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+
+        this.cos = new double[half];
+        this.sin = new double[half];
+        for (int middle = 1; middle < half; middle <<= 1) {
+            for (int j = 0; j < middle; j++) {
+                cos[middle + j] = Math.cos(Math.PI * j / middle);
+                sin[middle + j] = Math.sin(Math.PI * j / middle);
+            }
+        }
+
+        this.splitCos = new double[half + 1];
+        this.splitSin = new double[half + 1];
+        for (int k = 0; k <= half; k++) {
+            splitCos[k] = Math.cos(2 * Math.PI * k / size);
+            splitSin[k] = Math.sin(2 * Math.PI * k / size);
+        }
+
+        this.re = new double[half];
+        this.im = new double[half];
+    }
+
+    /**
+     * @return the size of the signals.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the amount of bins of a spectrum, size / 2 + 1.
+     */
+    int bins() {
+        return half + 1;
+    }
+
+    /**
+     * Computes the spectrum of a real signal.
+     *
+     * @param signal     The signal, of {@link #size()} samples.
+     * @param spectrumRe Receives the real parts of the {@link #bins()} bins.
+     * @param spectrumIm Receives the imaginary parts of the bins.
+     */
+    void forward(double[] signal, double[] spectrumRe, double[] spectrumIm) {
+        for (int k = 0; k < half; k++) {
+            re[reversed[k]] = signal[2 * k];
+            im[reversed[k]] = signal[2 * k + 1];
+        }
+        transform(-1);
+
+        for (int k = 0; k <= half; k++) {
+            int m = (half - k) & (half - 1);
+            double a = re[k & (half - 1)], b = im[k & (half - 1)];
+            double c = re[m], d = im[m];
+
+            // Spectra of the even and odd samples.
+            double evenRe = (a + c) / 2, evenIm = (b - d) / 2;
+            double oddRe = (b + d) / 2, oddIm = (c - a) / 2;
+
+            double wr = splitCos[k], wi = -splitSin[k];
+            spectrumRe[k] = evenRe + wr * oddRe - wi * oddIm;
+            spectrumIm[k] = evenIm + wr * oddIm + wi * oddRe;
+        }
+    }
+
+    /**
+     * Computes the real signal of a spectrum.
+     *
+     * @param spectrumRe The real parts of the {@link #bins()} bins.
+     * @param spectrumIm The imaginary parts of the bins.
+     * @param signal     Receives the {@link #size()} samples of the signal.
+     */
+    void inverse(double[] spectrumRe, double[] spectrumIm, double[] signal) {
+        for (int k = 0; k < half; k++) {
+            double a = spectrumRe[k], b = spectrumIm[k];
+            double c = spectrumRe[half - k], d = spectrumIm[half - k];
+
+            double evenRe = (a + c) / 2, evenIm = (b - d) / 2;
+            double diffRe = (a - c) / 2, diffIm = (b + d) / 2;
+
+            double wr = splitCos[k], wi = splitSin[k];
+            double oddRe = diffRe * wr - diffIm * wi;
+            double oddIm = diffRe * wi + diffIm * wr;
+
+            re[reversed[k]] = evenRe - oddIm;
+            im[reversed[k]] = evenIm + oddRe;
+        }
+        transform(1);
+
+        double scale = 1.0 / half;
+        for (int k = 0; k < half; k++) {
+            signal[2 * k] = re[k] * scale;
+            signal[2 * k + 1] = im[k] * scale;
+        }
+    }
+
+    /**
+     * Computes the unscaled complex transform of the bit reversed signal,
+     * in place.
+     *
+     * @param sign -1 for the forward transform, 1 for the inverse one.
+     */
+    private void transform(int sign) {
+        double[] re = this.re, im = this.im;
+        for (int a = 0; a < half - 1; a += 2) {
+            double tr = re[a + 1], ti = im[a + 1];
+            re[a + 1] = re[a] - tr;
+            im[a + 1] = im[a] - ti;
+            re[a] += tr;
+            im[a] += ti;
+        }
+
+        for (int middle = 2; middle < half; middle <<= 1) {
+            for (int start = 0; start < half; start += 2 * middle) {
+                for (int j = 0; j < middle; j++) {
+                    double wr = cos[middle + j], wi = sign * sin[middle + j];
+                    int a = start + j, b = a + middle;
+                    double tr = re[b] * wr - im[b] * wi;
+                    double ti = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package be.isach.filterlib.convolution;
+
+import be.isach.filterlib.filters.BlockFilter;
+import be.uliege.montefiore.oop.audio.Filter;
+import be.uliege.montefiore.oop.audio.FilterException;
+
+import java.util.Arrays;
+
+/**
+ * Captures the impulse response of a filter, so that it can be replaced by
+ * a {@link ConvolutionFilter}.
+ * <p>
+ * The response of a linear filter, such as the echo or the reverberator,
+ * describes it completely. Recursive filters have infinite responses: the
+ * response is cut once it has decayed below a threshold, relative to its
+ * peak, for long enough. Filters that are not linear, or clip their values,
+ * are not described by their response.
+ * </p>
+ */
+public final class ImpulseResponse {
+
+    /**
+     * Default threshold below which the response is cut, in decibels
+     * relative to its peak. It is well below the resolution of 16 bit
+     * samples, since the cut tail would be summed over many inputs.
+     */
+    public static final double DEFAULT_THRESHOLD = -120;
+
+    /**
+     * Default amount of samples the response must stay below the threshold
+     * to be cut. It must be longer than the longest delay of the filter.
+     */
+    public static final int DEFAULT_SILENCE = 1 << 16;
+
+    /**
+     * Default maximum length of a response.
+     */
+    public static final int DEFAULT_MAX_LENGTH = 1 << 22;
+
+    /**
+     * Amount of frames the filter is run for at a time.
+     */
+    private static final int BLOCK_SIZE = 4096;
+
+    private ImpulseResponse() {
+    }
+
+    /**
+     * Captures the impulse response of a filter, with the default
+     * threshold and lengths.
+     *
+     * @param filter The filter, with 1 input and 1 output.
+     * @return the response.
+     * @throws FilterException if the filter does not have 1 input and 1
+     *                         output, or fails.
+     */
+    public static double[] capture(Filter filter) throws FilterException {
+        return capture(filter, DEFAULT_THRESHOLD, DEFAULT_SILENCE,
+                DEFAULT_MAX_LENGTH);
+    }
+
+    /**
+     * Captures the impulse response of a filter. The filter is reset before
+     * and after the capture.
+     *
+     * @param filter    The filter, with 1 input and 1 output.
+     * @param threshold The level below which the response is cut, in
+     *                  decibels relative to its peak, negative.
+     * @param silence   The amount of samples the response must stay below
+     *                  the threshold to be cut.
+     * @param maxLength The maximum length of the response.
+     * @return the response, without its samples after the last one above
+     *         the threshold.
+     * @throws FilterException if the filter does not have 1 input and 1
+     *                         output, or fails.
+     */
+    public static double[] capture(Filter filter, double threshold,
+                                   int silence, int maxLength)
+            throws FilterException {
+        if (filter.nbInputs() != 1 || filter.nbOutputs() != 1) {
+            throw new FilterException("Impulse responses can only be " +
+                    "captured from filters with 1 input and 1 output.");
+        }
+
+        double ratio = Math.pow(10, threshold / 20);
+        double[][] input = {new double[BLOCK_SIZE]};
+        double[][] output = {new double[BLOCK_SIZE]};
+        double[] response = new double[BLOCK_SIZE];
+        int length = 0;
+        int lastLoud = 0;
+        double peak = 0;
+
+        filter.reset();
+        input[0][0] = 1;
+        while (length < maxLength && (peak == 0
+                || length - lastLoud <= silence)) {
+            int frames = Math.min(BLOCK_SIZE, maxLength - length);
+            BlockFilter.computeBlock(filter, input, output, frames);
+            input[0][0] = 0;
+
+            if (length + frames > response.length) {
+                response = Arrays.copyOf(response, 2 * response.length);
+            }
+            for (int n = 0; n < frames; n++) {
+                double value = Math.abs(output[0][n]);
+                peak = Math.max(peak, value);
+                if (value > 0 && value >= peak * ratio) {
+                    lastLoud = length + n;
+                }
+                response[length + n] = output[0][n];
+            }
+            length += frames;
+        }
+        filter.reset();
+
+        // Cut after the last sample above the threshold of the final peak.
+        while (length > 1 && !(Math.abs(response[length - 1])
+                >= peak * ratio && response[length - 1] != 0)) {
+            length--;
+        }
+        return Arrays.copyOf(response, length);
+    }
+}
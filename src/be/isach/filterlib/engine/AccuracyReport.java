@@ -0,0 +1,188 @@
+package be.isach.filterlib.engine;
+
+import be.isach.filterlib.filters.BlockFilter;
+import be.isach.filterlib.filters.CopyableFilter;
+import be.uliege.montefiore.oop.audio.Filter;
+import be.uliege.montefiore.oop.audio.FilterException;
+
+import java.util.Random;
+
+/**
+ * Differences between the outputs of a filter and those of its single
+ * precision variant, a {@link FloatFilter}, on the same noise.
+ * <p>
+ * The noise is made of whole 16 bits sample values, at a quarter of the
+ * full scale so that echoes rarely overflow, exactly as audio files are
+ * read. Outputs are compared both as values and as the 16 bits samples they
+ * would be written as.
+ * </p>
+ */
+public final class AccuracyReport {
+
+    /**
+     * Default amount of frames compared, about 6 seconds at 44.1 kHz.
+     */
+    public static final int DEFAULT_FRAMES = 1 << 18;
+
+    /**
+     * Amount of frames computed at a time.
+     */
+    private static final int CHUNK_SIZE = 4096;
+
+    /**
+     * Largest value of the noise.
+     */
+    private static final int AMPLITUDE = 8192;
+
+    private final long samples;
+
+    private final double maxError;
+
+    private final double errorEnergy;
+
+    private final double signalEnergy;
+
+    private final long differingSamples;
+
+    private final int maxSampleError;
+
+    private AccuracyReport(long samples, double maxError, double errorEnergy,
+                           double signalEnergy, long differingSamples,
+                           int maxSampleError) {
+        this.samples = samples;
+        this.maxError = maxError;
+        this.errorEnergy = errorEnergy;
+        this.signalEnergy = signalEnergy;
+        this.differingSamples = differingSamples;
+        this.maxSampleError = maxSampleError;
+    }
+
+    /**
+     * Compares a filter with its single precision variant over
+     * {@link #DEFAULT_FRAMES} frames.
+     *
+     * @param filter The filter to compare, copied and left untouched.
+     * @return the report of the comparison.
+     * @throws FilterException if the filter cannot be copied, or fails.
+     */
+    public static AccuracyReport measure(Filter filter)
+            throws FilterException {
+        return measure(filter, DEFAULT_FRAMES);
+    }
+
+    /**
+     * Compares a filter with its single precision variant, both starting
+     * from silence, on every output.
+     *
+     * @param filter The filter to compare, copied and left untouched.
+     * @param frames The amount of frames to compare.
+     * @return the report of the comparison.
+     * @throws FilterException if the filter cannot be copied, or fails.
+     */
+    public static AccuracyReport measure(Filter filter, int frames)
+            throws FilterException {
+        Filter reference = CopyableFilter.copy(filter);
+        FloatFilter single = new FloatFilter(filter);
+
+        double[][] input = new double[filter.nbInputs()][CHUNK_SIZE];
+        double[][] expected = new double[filter.nbOutputs()][CHUNK_SIZE];
+        double[][] actual = new double[filter.nbOutputs()][CHUNK_SIZE];
+        Random random = new Random(42);
+
+        double maxError = 0;
+        double errorEnergy = 0;
+        double signalEnergy = 0;
+        long differingSamples = 0;
+        int maxSampleError = 0;
+        for (int start = 0; start < frames; start += CHUNK_SIZE) {
+            int length = Math.min(CHUNK_SIZE, frames - start);
+            for (double[] in : input) {
+                for (int n = 0; n < length; n++) {
+                    in[n] = random.nextInt(2 * AMPLITUDE + 1) - AMPLITUDE;
+                }
+            }
+
+            BlockFilter.computeBlock(reference, input, expected, length);
+            single.computeBlock(input, actual, length);
+
+            for (int o = 0; o < expected.length; o++) {
+                for (int n = 0; n < length; n++) {
+                    double value = expected[o][n];
+                    double error = Math.abs(actual[o][n] - value);
+                    maxError = Math.max(maxError, error);
+                    errorEnergy += error * error;
+                    signalEnergy += value * value;
+
+                    int sampleError = Math.abs((short) (int) actual[o][n]
+                            - (short) (int) value);
+                    if (sampleError != 0) {
+                        differingSamples++;
+                        maxSampleError = Math.max(maxSampleError,
+                                sampleError);
+                    }
+                }
+            }
+        }
+
+        return new AccuracyReport((long) frames * expected.length, maxError,
+                errorEnergy, signalEnergy, differingSamples, maxSampleError);
+    }
+
+    /**
+     * @return the amount of output samples compared.
+     */
+    public long getSamples() {
+        return samples;
+    }
+
+    /**
+     * @return the largest difference between two outputs.
+     */
+    public double getMaxError() {
+        return maxError;
+    }
+
+    /**
+     * @return the root mean square of the differences between outputs.
+     */
+    public double getRmsError() {
+        return samples == 0 ? 0 : Math.sqrt(errorEnergy / samples);
+    }
+
+    /**
+     * @return the ratio between the energy of the reference outputs and that
+     *         of the differences, in decibels.
+     */
+    public double getSignalToErrorRatio() {
+        return 10 * Math.log10(signalEnergy / errorEnergy);
+    }
+
+    /**
+     * @return the amount of outputs written as different 16 bits samples.
+     */
+    public long getDifferingSamples() {
+        return differingSamples;
+    }
+
+    /**
+     * @return the largest difference between two outputs written as 16 bits
+     *         samples.
+     */
+    public int getMaxSampleError() {
+        return maxSampleError;
+    }
+
+    /**
+     * @return a summary of the report.
+     */
+    @Override
+    public String toString() {
+        return String.format("%d samples: max error %.3g, rms error %.3g, "
+                        + "signal to error %.1f dB, %d differing 16 bits "
+                        + "samples (%.4f%%), by %d at most",
+                samples, maxError, getRmsError(), getSignalToErrorRatio(),
+                differingSamples,
+                samples == 0 ? 0 : 100.0 * differingSamples / samples,
+                maxSampleError);
+    }
+}
@@ -0,0 +1,413 @@
+package be.isach.filterlib.engine;
+
+import be.isach.filterlib.filters.BlockFilter;
+import be.isach.filterlib.filters.CopyableFilter;
+import be.isach.filterlib.filters.DelayFilter;
+import be.isach.filterlib.filters.StatefulFilter;
+import be.uliege.montefiore.oop.audio.FilterException;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Direct implementation of a Schroeder all-pass filter, following the
+ * recurrences {@code y[n] = a * x[n] + b * w[n - d]} and
+ * {@code w[n] = c * x[n] + e * y[n]} over a single ring buffer.
+ * <p>
+ * The all-pass filter of this library uses {@code a = -gain}, {@code b = 1},
+ * {@code c = 1} and {@code e = gain}. The graph optimizer substitutes this
+ * kernel to any pair of weighted additions looped through a delay filter
+ * that way, giving exactly the same output.
+ * </p>
+ * <p>
+ * With short delays, blocks may be solved by a {@link RecurrenceScan}
+ * instead, when enabled.
+ * </p>
+ */
+public class AllPassKernel implements BlockFilter, CopyableFilter,
+        StatefulFilter {
+
+    /**
+     * The value by which the input is multiplied in the output.
+     */
+    private final double directWeight;
+
+    /**
+     * The value by which the delayed value is multiplied in the output.
+     */
+    private final double delayedWeight;
+
+    /**
+     * The value by which the input is multiplied in the stored value.
+     */
+    private final double storedInputWeight;
+
+    /**
+     * The value by which the output is multiplied in the stored value.
+     */
+    private final double storedOutputWeight;
+
+    /**
+     * The amount of samples after which stored values are read.
+     */
+    private final int delay;
+
+    /**
+     * Ring buffer of the last delay stored values, the region of this array
+     * starting at offset. Its capacity is a power of two.
+     */
+    private double[] queue;
+
+    /**
+     * Index of the ring buffer in the queue array.
+     */
+    private int offset;
+
+    /**
+     * Capacity of the ring buffer minus one.
+     */
+    private final int mask;
+
+    /**
+     * Position of the next stored value in the ring buffer. The one read is
+     * delay positions before.
+     */
+    private int counter;
+
+    /**
+     * Powers of the factor of the delayed stored values, used when blocks are
+     * solved by a {@link RecurrenceScan}.
+     */
+    private final double[] powers;
+
+    /**
+     * Buffer receiving the stored values preceding a block solved by a scan.
+     */
+    private final double[] history;
+
+    /**
+     * Buffer receiving the stored values of a block solved by a scan, grown
+     * as needed.
+     */
+    private double[] stored;
+
+    /**
+     * Initializes an all-pass kernel, with an empty ring buffer.
+     *
+     * @param directWeight       The value by which the input is multiplied
+     *                           in the output.
+     * @param delayedWeight      The value by which the delayed value is
+     *                           multiplied in the output.
+     * @param storedInputWeight  The value by which the input is multiplied
+     *                           in the stored value.
+     * @param storedOutputWeight The value by which the output is multiplied
+     *                           in the stored value.
+     * @param delay              The amount of samples after which stored
+     *                           values are read.
+     */
+    public AllPassKernel(double directWeight, double delayedWeight,
+                         double storedInputWeight, double storedOutputWeight,
+                         int delay) {
+        this(directWeight, delayedWeight, storedInputWeight,
+                storedOutputWeight, new double[delay]);
+    }
+
+    /**
+     * Initializes an all-pass kernel whose ring buffer holds the given
+     * values.
+     *
+     * @param directWeight       The value by which the input is multiplied
+     *                           in the output.
+     * @param delayedWeight      The value by which the delayed value is
+     *                           multiplied in the output.
+     * @param storedInputWeight  The value by which the input is multiplied
+     *                           in the stored value.
+     * @param storedOutputWeight The value by which the output is multiplied
+     *                           in the stored value.
+     * @param pending            The stored values, in the order they will be
+     *                           read. Its length is the delay.
+     */
+    public AllPassKernel(double directWeight, double delayedWeight,
+                         double storedInputWeight, double storedOutputWeight,
+                         double[] pending) {
+        this.directWeight = directWeight;
+        this.delayedWeight = delayedWeight;
+        this.storedInputWeight = storedInputWeight;
+        this.storedOutputWeight = storedOutputWeight;
+        this.delay = pending.length;
+        this.queue = new double[DelayFilter.capacityOf(delay)];
+        this.offset = 0;
+        this.mask = queue.length - 1;
+        this.counter = delay & mask;
+        this.powers = RecurrenceScan.powersOf(
+                storedOutputWeight * delayedWeight);
+        this.history = new double[delay];
+        this.stored = new double[0];
+        System.arraycopy(pending, 0, queue, 0, delay);
+    }
+
+    /**
+     * An all-pass kernel requires only 1 input.
+     *
+     * @return the number of inputs of the filter.
+     */
+    @Override
+    public int nbInputs() {
+        return 1;
+    }
+
+    /**
+     * An all-pass kernel produces only 1 output.
+     *
+     * @return the number of outputs of the filter.
+     */
+    @Override
+    public int nbOutputs() {
+        return 1;
+    }
+
+    /**
+     * Computes one step of the filtering.
+     *
+     * @param input contains the input sample.
+     * @return an array containing the single output.
+     * @throws FilterException if the input array is null or of wrong length.
+     */
+    @Override
+    public double[] computeOneStep(double[] input) throws FilterException {
+        double[] output = new double[1];
+        computeOneStep(input, output);
+        return output;
+    }
+
+    /**
+     * Computes one step of the filtering, without allocating any array.
+     *
+     * @param input  contains the input sample.
+     * @param output receives the output sample.
+     * @throws FilterException if the arrays are null or of wrong length.
+     */
+    @Override
+    public void computeOneStep(double[] input, double[] output)
+            throws FilterException {
+        BlockFilter.checkStep(this, input, output);
+
+        double x = input[0];
+        double y = directWeight * x
+                + delayedWeight * queue[offset + ((counter - delay) & mask)];
+        queue[offset + counter] = storedInputWeight * x
+                + storedOutputWeight * y;
+        counter = (counter + 1) & mask;
+        output[0] = y;
+    }
+
+    /**
+     * Computes several steps of the filtering at once.
+     *
+     * @param input  contains the single input buffer.
+     * @param output contains the single output buffer.
+     * @param frames the amount of frames to process.
+     * @throws FilterException if the buffers are null or of wrong amount.
+     */
+    @Override
+    public void computeBlock(double[][] input, double[][] output, int frames)
+            throws FilterException {
+        BlockFilter.checkBuffers(this, input, output);
+
+        double[] in = input[0];
+        double[] out = output[0];
+        if (RecurrenceScan.applies(delay, frames)) {
+            scanBlock(in, out, frames);
+            return;
+        }
+
+        double[] q = queue;
+        int o = offset;
+        int m = mask;
+        int c = counter;
+        int r = (c - delay) & m;
+        for (int n = 0; n < frames; n++) {
+            double x = in[n];
+            double y = directWeight * x + delayedWeight * q[o + r];
+            q[o + c] = storedInputWeight * x + storedOutputWeight * y;
+            c = (c + 1) & m;
+            r = (r + 1) & m;
+            out[n] = y;
+        }
+        counter = c;
+    }
+
+    /**
+     * @return the stored values currently held by the kernel, in the order they
+     *         will be read.
+     */
+    public double[] getPendingValues() {
+        double[] values = new double[delay];
+        readPending(values);
+        return values;
+    }
+
+    /**
+     * Computes several steps of the filtering by a {@link RecurrenceScan}.
+     * Substituting the output in the stored value gives the recurrence
+     * {@code w[n] = (c + e * a) * x[n] + e * b * w[n - d]}, solved first.
+     *
+     * @param in     The input buffer.
+     * @param out    The output buffer.
+     * @param frames The amount of frames to process, at least the delay.
+     */
+    private void scanBlock(double[] in, double[] out, int frames) {
+        if (stored.length < frames) {
+            stored = new double[frames];
+        }
+        double[] w = stored;
+        readPending(history);
+        double weight = storedInputWeight + storedOutputWeight * directWeight;
+        for (int n = 0; n < frames; n++) {
+            w[n] = weight * in[n];
+        }
+        RecurrenceScan.solve(powers, delay, history, w, frames);
+        for (int n = 0; n < delay; n++) {
+            out[n] = directWeight * in[n] + delayedWeight * history[n];
+        }
+        for (int n = delay; n < frames; n++) {
+            out[n] = directWeight * in[n] + delayedWeight * w[n - delay];
+        }
+        writePending(w, frames);
+    }
+
+    /**
+     * Copies the stored values held by the kernel, in the order they will be
+     * read.
+     *
+     * @param values The array receiving the values, of length delay.
+     */
+    private void readPending(double[] values) {
+        int start = (counter - delay) & mask;
+        int first = Math.min(delay, mask + 1 - start);
+        System.arraycopy(queue, offset + start, values, 0, first);
+        System.arraycopy(queue, offset, values, first, delay - first);
+    }
+
+    /**
+     * Stores the last stored values of a block solved by a scan, as if they
+     * had been computed one after the other.
+     *
+     * @param values The stored values of the block.
+     * @param frames The amount of frames of the block.
+     */
+    private void writePending(double[] values, int frames) {
+        int c = counter;
+        for (int n = frames - delay; n < frames; n++) {
+            queue[offset + ((c + n) & mask)] = values[n];
+        }
+        counter = (c + frames) & mask;
+    }
+
+    /**
+     * Moves the ring buffer of the kernel to a region of a larger array,
+     * keeping the values it holds.
+     *
+     * @param arena  The array holding the region.
+     * @param offset The index of the region, which must hold
+     *               {@link #getCapacity()} values.
+     */
+    public void moveTo(double[] arena, int offset) {
+        System.arraycopy(queue, this.offset, arena, offset, mask + 1);
+        this.queue = arena;
+        this.offset = offset;
+    }
+
+    /**
+     * Creates an all-pass kernel with the same weights and delay, its ring
+     * buffer holding only 0 values.
+     *
+     * @return the copy of the filter.
+     */
+    @Override
+    public AllPassKernel copy() {
+        return new AllPassKernel(directWeight, delayedWeight,
+                storedInputWeight, storedOutputWeight, delay);
+    }
+
+    /**
+     * Writes the stored values held by the kernel.
+     *
+     * @param out The destination of the state.
+     * @throws IOException if the state cannot be written.
+     */
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        StatefulFilter.writeValues(out, getPendingValues());
+    }
+
+    /**
+     * Reads back the stored values held by the kernel.
+     *
+     * @param in The source of the state.
+     * @throws IOException if the state cannot be read, or was saved from a
+     *                     kernel with another delay.
+     */
+    @Override
+    public void restoreState(DataInput in) throws IOException {
+        double[] values = StatefulFilter.readValues(in, delay);
+        counter = delay & mask;
+        System.arraycopy(values, 0, queue, offset, delay);
+    }
+
+    /**
+     * Resets the filter, clearing its ring buffer.
+     */
+    @Override
+    public void reset() {
+        Arrays.fill(queue, offset, offset + mask + 1, 0);
+        counter = delay & mask;
+    }
+
+    /**
+     * @return the value by which the input is multiplied in the output.
+     */
+    public double getDirectWeight() {
+        return directWeight;
+    }
+
+    /**
+     * @return the value by which the delayed value is multiplied in the
+     *         output.
+     */
+    public double getDelayedWeight() {
+        return delayedWeight;
+    }
+
+    /**
+     * @return the value by which the input is multiplied in the stored
+     *         value.
+     */
+    public double getStoredInputWeight() {
+        return storedInputWeight;
+    }
+
+    /**
+     * @return the value by which the output is multiplied in the stored
+     *         value.
+     */
+    public double getStoredOutputWeight() {
+        return storedOutputWeight;
+    }
+
+    /**
+     * @return the amount of samples after which stored values are read.
+     */
+    public int getDelay() {
+        return delay;
+    }
+
+    /**
+     * @return the capacity of the ring buffer of the kernel.
+     */
+    public int getCapacity() {
+        return mask + 1;
+    }
+}
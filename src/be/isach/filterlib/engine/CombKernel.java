@@ -0,0 +1,344 @@
+package be.isach.filterlib.engine;
+
+import be.isach.filterlib.filters.BlockFilter;
+import be.isach.filterlib.filters.CopyableFilter;
+import be.isach.filterlib.filters.DelayFilter;
+import be.isach.filterlib.filters.StatefulFilter;
+import be.uliege.montefiore.oop.audio.FilterException;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Direct implementation of a feedback comb filter, following the recurrence
+ * {@code y[n] = a * x[n] + b * y[n - d]} over a single ring buffer.
+ * <p>
+ * This is the shape of both the echo filter ({@code a = 1}) and the low-pass
+ * filter of the reverberator ({@code a = 1 - b}). The graph optimizer
+ * substitutes it to any weighted addition looped onto itself through a delay
+ * filter, giving exactly the same output.
+ * </p>
+ * <p>
+ * With short delays, blocks may be solved by a {@link RecurrenceScan}
+ * instead, when enabled.
+ * </p>
+ */
+public class CombKernel implements BlockFilter, CopyableFilter,
+        StatefulFilter {
+
+    /**
+     * The value by which the input is multiplied.
+     */
+    private final double inputWeight;
+
+    /**
+     * The value by which the delayed output is multiplied.
+     */
+    private final double feedbackWeight;
+
+    /**
+     * The amount of samples after which outputs are fed back.
+     */
+    private final int delay;
+
+    /**
+     * Ring buffer of the last delay outputs, the region of this array
+     * starting at offset. Its capacity is a power of two.
+     */
+    private double[] queue;
+
+    /**
+     * Index of the ring buffer in the queue array.
+     */
+    private int offset;
+
+    /**
+     * Capacity of the ring buffer minus one.
+     */
+    private final int mask;
+
+    /**
+     * Position of the next output in the ring buffer. The one read is
+     * delay positions before.
+     */
+    private int counter;
+
+    /**
+     * Powers of the feedback weight, used when blocks are solved by a
+     * {@link RecurrenceScan}.
+     */
+    private final double[] powers;
+
+    /**
+     * Buffer receiving the delayed outputs preceding a block solved by a
+     * scan.
+     */
+    private final double[] history;
+
+    /**
+     * Initializes a comb kernel, with an empty ring buffer.
+     *
+     * @param inputWeight    The value by which the input is multiplied.
+     * @param feedbackWeight The value by which the delayed output is
+     *                       multiplied.
+     * @param delay          The amount of samples after which outputs are
+     *                       fed back.
+     */
+    public CombKernel(double inputWeight, double feedbackWeight, int delay) {
+        this(inputWeight, feedbackWeight, new double[delay]);
+    }
+
+    /**
+     * Initializes a comb kernel whose ring buffer holds the given values.
+     *
+     * @param inputWeight    The value by which the input is multiplied.
+     * @param feedbackWeight The value by which the delayed output is
+     *                       multiplied.
+     * @param pending        The delayed outputs, in the order they will be
+     *                       fed back. Its length is the delay.
+     */
+    public CombKernel(double inputWeight, double feedbackWeight,
+                      double[] pending) {
+        this.inputWeight = inputWeight;
+        this.feedbackWeight = feedbackWeight;
+        this.delay = pending.length;
+        this.queue = new double[DelayFilter.capacityOf(delay)];
+        this.offset = 0;
+        this.mask = queue.length - 1;
+        this.counter = delay & mask;
+        this.powers = RecurrenceScan.powersOf(feedbackWeight);
+        this.history = new double[delay];
+        System.arraycopy(pending, 0, queue, 0, delay);
+    }
+
+    /**
+     * A comb kernel requires only 1 input.
+     *
+     * @return the number of inputs of the filter.
+     */
+    @Override
+    public int nbInputs() {
+        return 1;
+    }
+
+    /**
+     * A comb kernel produces only 1 output.
+     *
+     * @return the number of outputs of the filter.
+     */
+    @Override
+    public int nbOutputs() {
+        return 1;
+    }
+
+    /**
+     * Computes one step of the filtering.
+     *
+     * @param input contains the input sample.
+     * @return an array containing the single output.
+     * @throws FilterException if the input array is null or of wrong length.
+     */
+    @Override
+    public double[] computeOneStep(double[] input) throws FilterException {
+        double[] output = new double[1];
+        computeOneStep(input, output);
+        return output;
+    }
+
+    /**
+     * Computes one step of the filtering, without allocating any array.
+     *
+     * @param input  contains the input sample.
+     * @param output receives the output sample.
+     * @throws FilterException if the arrays are null or of wrong length.
+     */
+    @Override
+    public void computeOneStep(double[] input, double[] output)
+            throws FilterException {
+        BlockFilter.checkStep(this, input, output);
+
+        double y = inputWeight * input[0]
+                + feedbackWeight * queue[offset + ((counter - delay) & mask)];
+        queue[offset + counter] = y;
+        counter = (counter + 1) & mask;
+        output[0] = y;
+    }
+
+    /**
+     * Computes several steps of the filtering at once.
+     *
+     * @param input  contains the single input buffer.
+     * @param output contains the single output buffer.
+     * @param frames the amount of frames to process.
+     * @throws FilterException if the buffers are null or of wrong amount.
+     */
+    @Override
+    public void computeBlock(double[][] input, double[][] output, int frames)
+            throws FilterException {
+        BlockFilter.checkBuffers(this, input, output);
+
+        double[] in = input[0];
+        double[] out = output[0];
+        if (RecurrenceScan.applies(delay, frames)) {
+            scanBlock(in, out, frames);
+            return;
+        }
+
+        double[] q = queue;
+        int o = offset;
+        int m = mask;
+        int c = counter;
+        int r = (c - delay) & m;
+        for (int n = 0; n < frames; n++) {
+            double y = inputWeight * in[n] + feedbackWeight * q[o + r];
+            q[o + c] = y;
+            c = (c + 1) & m;
+            r = (r + 1) & m;
+            out[n] = y;
+        }
+        counter = c;
+    }
+
+    /**
+     * @return the delayed outputs currently held by the kernel, in the order
+     *         they will be read.
+     */
+    public double[] getPendingValues() {
+        double[] values = new double[delay];
+        readPending(values);
+        return values;
+    }
+
+    /**
+     * Computes several steps of the filtering by a {@link RecurrenceScan}.
+     *
+     * @param in     The input buffer.
+     * @param out    The output buffer.
+     * @param frames The amount of frames to process, at least the delay.
+     */
+    private void scanBlock(double[] in, double[] out, int frames) {
+        readPending(history);
+        for (int n = 0; n < frames; n++) {
+            out[n] = inputWeight * in[n];
+        }
+        RecurrenceScan.solve(powers, delay, history, out, frames);
+        writePending(out, frames);
+    }
+
+    /**
+     * Copies the delayed outputs held by the kernel, in the order they will be
+     * read.
+     *
+     * @param values The array receiving the values, of length delay.
+     */
+    private void readPending(double[] values) {
+        int start = (counter - delay) & mask;
+        int first = Math.min(delay, mask + 1 - start);
+        System.arraycopy(queue, offset + start, values, 0, first);
+        System.arraycopy(queue, offset, values, first, delay - first);
+    }
+
+    /**
+     * Stores the last delayed outputs of a block solved by a scan, as if they
+     * had been computed one after the other.
+     *
+     * @param values The delayed outputs of the block.
+     * @param frames The amount of frames of the block.
+     */
+    private void writePending(double[] values, int frames) {
+        int c = counter;
+        for (int n = frames - delay; n < frames; n++) {
+            queue[offset + ((c + n) & mask)] = values[n];
+        }
+        counter = (c + frames) & mask;
+    }
+
+    /**
+     * Moves the ring buffer of the kernel to a region of a larger array,
+     * keeping the values it holds.
+     *
+     * @param arena  The array holding the region.
+     * @param offset The index of the region, which must hold
+     *               {@link #getCapacity()} values.
+     */
+    public void moveTo(double[] arena, int offset) {
+        System.arraycopy(queue, this.offset, arena, offset, mask + 1);
+        this.queue = arena;
+        this.offset = offset;
+    }
+
+    /**
+     * Creates a comb kernel with the same weights and delay, its ring
+     * buffer holding only 0 values.
+     *
+     * @return the copy of the filter.
+     */
+    @Override
+    public CombKernel copy() {
+        return new CombKernel(inputWeight, feedbackWeight, delay);
+    }
+
+    /**
+     * Writes the delayed outputs held by the kernel.
+     *
+     * @param out The destination of the state.
+     * @throws IOException if the state cannot be written.
+     */
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        StatefulFilter.writeValues(out, getPendingValues());
+    }
+
+    /**
+     * Reads back the delayed outputs held by the kernel.
+     *
+     * @param in The source of the state.
+     * @throws IOException if the state cannot be read, or was saved from a
+     *                     kernel with another delay.
+     */
+    @Override
+    public void restoreState(DataInput in) throws IOException {
+        double[] values = StatefulFilter.readValues(in, delay);
+        counter = delay & mask;
+        System.arraycopy(values, 0, queue, offset, delay);
+    }
+
+    /**
+     * Resets the filter, clearing its ring buffer.
+     */
+    @Override
+    public void reset() {
+        Arrays.fill(queue, offset, offset + mask + 1, 0);
+        counter = delay & mask;
+    }
+
+    /**
+     * @return the value by which the input is multiplied.
+     */
+    public double getInputWeight() {
+        return inputWeight;
+    }
+
+    /**
+     * @return the value by which the delayed output is multiplied.
+     */
+    public double getFeedbackWeight() {
+        return feedbackWeight;
+    }
+
+    /**
+     * @return the amount of samples after which outputs are fed back.
+     */
+    public int getDelay() {
+        return delay;
+    }
+
+    /**
+     * @return the capacity of the ring buffer of the kernel.
+     */
+    public int getCapacity() {
+        return mask + 1;
+    }
+}
@@ -0,0 +1,126 @@
+package be.isach.filterlib.engine;
+
+import be.isach.filterlib.filters.DelayFilter;
+import be.uliege.montefiore.oop.audio.Filter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Places the delay lines of a compiled graph next to each other, in one
+ * array.
+ * <p>
+ * Every ring buffer has a power of two capacity. Placing the largest ones
+ * first keeps each of them aligned on its own capacity, and the small lines
+ * of a reverberator end up sharing the same few cache lines and pages
+ * instead of being scattered across the heap.
+ * </p>
+ */
+final class DelayArena {
+
+    /**
+     * Largest amount of values an arena may hold. Lines of larger graphs are
+     * left where they are.
+     */
+    static final int MAX_SIZE = 1 << 28;
+
+    private DelayArena() {
+    }
+
+    /**
+     * Moves the ring buffers of the given delay filters and kernels into one
+     * array, keeping the values they hold. Other filters are ignored.
+     *
+     * @param filters The filters of the compiled graph.
+     */
+    static void pack(Filter... filters) {
+        List<Filter> lines = new ArrayList<>();
+        for (Filter filter : filters) {
+            if (capacityOf(filter) > 0) {
+                lines.add(filter);
+            }
+        }
+        if (lines.size() < 2) {
+            return;
+        }
+
+        int[] capacities = new int[lines.size()];
+        for (int i = 0; i < capacities.length; i++) {
+            capacities[i] = capacityOf(lines.get(i));
+        }
+        int[] offsets = layout(capacities);
+        if (offsets == null) {
+            return;
+        }
+
+        double[] arena = new double[size(capacities, offsets)];
+        for (int i = 0; i < offsets.length; i++) {
+            Filter line = lines.get(i);
+            if (line instanceof DelayFilter) {
+                ((DelayFilter) line).moveTo(arena, offsets[i]);
+            } else if (line instanceof CombKernel) {
+                ((CombKernel) line).moveTo(arena, offsets[i]);
+            } else {
+                ((AllPassKernel) line).moveTo(arena, offsets[i]);
+            }
+        }
+    }
+
+    /**
+     * Places ring buffers in an arena, by decreasing capacity.
+     *
+     * @param capacities The capacity of each ring buffer, powers of two.
+     * @return the offset of each ring buffer in the arena, or null if the
+     *         arena would be larger than {@link #MAX_SIZE}.
+     */
+    static int[] layout(int[] capacities) {
+        Integer[] order = new Integer[capacities.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingInt(
+                (Integer i) -> capacities[i]).reversed());
+
+        int[] offsets = new int[capacities.length];
+        long offset = 0;
+        for (int i : order) {
+            offsets[i] = (int) offset;
+            offset += capacities[i];
+            if (offset > MAX_SIZE) {
+                return null;
+            }
+        }
+        return offsets;
+    }
+
+    /**
+     * @return the amount of values of an arena holding the given ring
+     *         buffers.
+     */
+    static int size(int[] capacities, int[] offsets) {
+        int size = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            size = Math.max(size, offsets[i] + capacities[i]);
+        }
+        return size;
+    }
+
+    /**
+     * @return the capacity of the ring buffer of a delay filter or kernel, 0
+     *         for another filter.
+     */
+    private static int capacityOf(Filter filter) {
+        if (filter instanceof DelayFilter) {
+            return ((DelayFilter) filter).getCapacity();
+        }
+        if (filter instanceof CombKernel) {
+            return ((CombKernel) filter).getCapacity();
+        }
+        if (filter instanceof AllPassKernel) {
+            return ((AllPassKernel) filter).getCapacity();
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,811 @@
+package be.isach.filterlib.engine;
+
+import be.isach.filterlib.filters.BlockFilter;
+import be.isach.filterlib.filters.CompositeFilter;
+import be.isach.filterlib.engine.FilterGraph.Node;
+import be.isach.filterlib.engine.FilterGraph.Port;
+import be.isach.filterlib.filters.DelayFilter;
+import be.isach.filterlib.filters.StatefulFilter;
+import be.uliege.montefiore.oop.audio.Filter;
+import be.uliege.montefiore.oop.audio.FilterException;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Flat, precompiled schedule of a composite filter.
+ * <p>
+ * Nested composite filters are first inlined into a single graph of simple
+ * filters. Every output of every block, as well as every input of the
+ * composite, is then given an integer slot in a single array of values. The
+ * blocks are then sorted once in topological order. Loops are resolved by
+ * some of their delay filters, called breakers, which are popped before and
+ * fed after the other blocks, since their output never depends on the
+ * current input. Computing one step is then a simple loop over that order,
+ * without any recursion or map lookup.
+ * </p>
+ * <p>
+ * The same schedule can process blocks of frames, as long as they are not
+ * longer than the shortest breaker. Breakers are chosen so that this bound is
+ * as large as the loops of the graph allow.
+ * </p>
+ * <p>
+ * The ring buffers of all the delay filters and kernels of the plan are
+ * placed next to each other in one array, see {@link DelayArena}.
+ * </p>
+ */
+public class ExecutionPlan {
+
+    /**
+     * Maximum amount of frames processed at once when no loop bounds it.
+     */
+    public static final int MAX_BLOCK_SIZE = 1024;
+
+    /**
+     * Amount of inputs of the compiled composite filter.
+     */
+    private final int nbInputs;
+
+    /**
+     * Slots of the values array read by each output of the composite.
+     */
+    private final int[] outputSlots;
+
+    /**
+     * Current value of every slot of the plan.
+     */
+    private final double[] values;
+
+    /**
+     * Filters, in the order they have to be computed.
+     */
+    private final Filter[] filters;
+
+    /**
+     * For each scheduled filter, the slots its inputs are read from.
+     */
+    private final int[][] inputSlots;
+
+    /**
+     * For each scheduled filter, the slot of its first output. Outputs of a
+     * same filter are stored contiguously.
+     */
+    private final int[] firstOutputSlots;
+
+    /**
+     * Reused input arrays of the scheduled filters.
+     */
+    private final double[][] arguments;
+
+    /**
+     * Reused output arrays of the scheduled filters.
+     */
+    private final double[][] results;
+
+    /**
+     * Delay filters resolving the loops, popped before and fed after the
+     * scheduled filters.
+     */
+    private final DelayFilter[] breakers;
+
+    /**
+     * Slot each breaker writes its popped value to.
+     */
+    private final int[] breakerOutputSlots;
+
+    /**
+     * Slot each breaker reads its new value from, -1 if the input of the
+     * breaker can never be computed.
+     */
+    private final int[] breakerInputSlots;
+
+    /**
+     * Maximum amount of frames that can be processed at once.
+     */
+    private final int maxBlockSize;
+
+    /**
+     * Buffer of every slot when processing blocks, allocated on first use.
+     */
+    private double[][] blockValues;
+
+    /**
+     * For each scheduled filter, its input buffers when processing blocks.
+     */
+    private double[][][] blockInputs;
+
+    /**
+     * For each scheduled filter, its output buffers when processing blocks.
+     */
+    private double[][][] blockOutputs;
+
+    private ExecutionPlan(int nbInputs, int[] outputSlots, int slotsAmount,
+                          List<Filter> filters, List<int[]> inputSlots,
+                          List<Integer> firstOutputSlots,
+                          List<DelayFilter> breakers,
+                          List<Integer> breakerOutputSlots,
+                          List<Integer> breakerInputSlots, int maxBlockSize) {
+        this.nbInputs = nbInputs;
+        this.outputSlots = outputSlots;
+        this.values = new double[slotsAmount];
+        this.maxBlockSize = maxBlockSize;
+
+        int size = filters.size();
+        this.filters = filters.toArray(new Filter[0]);
+        this.inputSlots = inputSlots.toArray(new int[0][]);
+        this.firstOutputSlots = new int[size];
+        this.arguments = new double[size][];
+        this.results = new double[size][];
+        for (int i = 0; i < size; i++) {
+            this.firstOutputSlots[i] = firstOutputSlots.get(i);
+            arguments[i] = new double[this.inputSlots[i].length];
+            results[i] = new double[this.filters[i].nbOutputs()];
+        }
+
+        size = breakers.size();
+        this.breakers = breakers.toArray(new DelayFilter[0]);
+        this.breakerOutputSlots = new int[size];
+        this.breakerInputSlots = new int[size];
+        for (int i = 0; i < size; i++) {
+            this.breakerOutputSlots[i] = breakerOutputSlots.get(i);
+            this.breakerInputSlots[i] = breakerInputSlots.get(i);
+        }
+    }
+
+    /**
+     * Initializes a plan running the same schedule, on the same filters, as
+     * the given one, but with its own values.
+     *
+     * @param plan The plan to run the schedule of.
+     */
+    ExecutionPlan(ExecutionPlan plan) {
+        this.nbInputs = plan.nbInputs;
+        this.outputSlots = plan.outputSlots;
+        this.values = new double[plan.values.length];
+        this.filters = plan.filters;
+        this.inputSlots = plan.inputSlots;
+        this.firstOutputSlots = plan.firstOutputSlots;
+        this.arguments = plan.arguments.clone();
+        this.results = plan.results.clone();
+        for (int i = 0; i < filters.length; i++) {
+            arguments[i] = arguments[i].clone();
+            results[i] = results[i].clone();
+        }
+        this.breakers = plan.breakers;
+        this.breakerOutputSlots = plan.breakerOutputSlots;
+        this.breakerInputSlots = plan.breakerInputSlots;
+        this.maxBlockSize = plan.maxBlockSize;
+    }
+
+    /**
+     * Compiles the current graph of a composite filter. Nested composite
+     * filters are inlined, so that the whole filter runs as one flat schedule,
+     * which is then optimized.
+     *
+     * @param composite The composite filter to compile.
+     * @return the execution plan of the composite filter.
+     * @throws FilterException if an output of the composite can never be
+     *                         computed, typically because of a loop without
+     *                         any delay filter.
+     */
+    public static ExecutionPlan compile(CompositeFilter composite)
+            throws FilterException {
+        return compile(GraphOptimizer.optimize(
+                FilterGraph.flatten(composite)));
+    }
+
+    /**
+     * Compiles the current graph of a composite filter into a plan measuring
+     * each of its blocks. The graph is flattened but not optimized, so that
+     * the time of each block can be told apart.
+     *
+     * @param composite The composite filter to compile.
+     * @param profile   The profile receiving the measures, created for the
+     *                  composite filter.
+     * @return the profiled execution plan of the composite filter.
+     * @throws FilterException if an output of the composite can never be
+     *                         computed.
+     */
+    public static ExecutionPlan compileProfiled(CompositeFilter composite,
+                                                FilterProfile profile)
+            throws FilterException {
+        return ProfiledPlan.compile(composite, profile);
+    }
+
+    /**
+     * Compiles a graph of filters.
+     *
+     * @param graph The graph to compile.
+     * @return the execution plan of the graph.
+     * @throws FilterException if an output of the graph can never be
+     *                         computed, typically because of a loop without
+     *                         any delay filter.
+     */
+    public static ExecutionPlan compile(FilterGraph graph)
+            throws FilterException {
+        List<Node> nodes = graph.getNodes();
+        int size = nodes.size();
+
+        // Give a slot to every input of the graph, then to every output
+        // of every node.
+        Map<Node, Integer> indices = new IdentityHashMap<>();
+        int[] firstSlots = new int[size];
+        int slotsAmount = graph.nbInputs();
+        for (int i = 0; i < size; i++) {
+            indices.put(nodes.get(i), i);
+            firstSlots[i] = slotsAmount;
+            slotsAmount += nodes.get(i).getFilter().nbOutputs();
+        }
+
+        // Resolve, for every node, which slot each of its inputs reads, and
+        // which nodes read its outputs.
+        int[][] nodeInputSlots = new int[size][];
+        List<List<Integer>> successors = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            successors.add(new ArrayList<>());
+        }
+        for (int i = 0; i < size; i++) {
+            Port[] ports = nodes.get(i).getInputs();
+            nodeInputSlots[i] = new int[ports.length];
+            for (int j = 0; j < ports.length; j++) {
+                nodeInputSlots[i][j] = slotOf(ports[j], indices, firstSlots);
+                if (ports[j] != null && !ports[j].isGraphInput()) {
+                    successors.get(indices.get(ports[j].getNode())).add(i);
+                }
+            }
+        }
+
+        boolean[] breakers = chooseBreakers(nodes, successors);
+        int maxBlockSize = MAX_BLOCK_SIZE;
+        for (int i = 0; i < size; i++) {
+            if (breakers[i]) {
+                maxBlockSize = Math.min(maxBlockSize, delayOf(nodes.get(i)));
+            }
+        }
+
+        // Breaker outputs and graph inputs are available from the start
+        // of each step, everything else is scheduled once its inputs are.
+        boolean[] available = new boolean[slotsAmount];
+        Arrays.fill(available, 0, graph.nbInputs(), true);
+        for (int i = 0; i < size; i++) {
+            if (breakers[i]) available[firstSlots[i]] = true;
+        }
+
+        List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            if (!breakers[i]) pending.add(i);
+        }
+
+        List<Filter> filters = new ArrayList<>();
+        List<int[]> inputSlots = new ArrayList<>();
+        List<Integer> firstOutputSlots = new ArrayList<>();
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            for (int k = 0; k < pending.size(); k++) {
+                int i = pending.get(k);
+                if (!allAvailable(nodeInputSlots[i], available)) {
+                    continue;
+                }
+
+                Filter filter = nodes.get(i).getFilter();
+                Arrays.fill(available, firstSlots[i],
+                        firstSlots[i] + filter.nbOutputs(), true);
+                filters.add(filter);
+                inputSlots.add(nodeInputSlots[i]);
+                firstOutputSlots.add(firstSlots[i]);
+
+                pending.remove(k--);
+                progress = true;
+            }
+        }
+
+        List<DelayFilter> breakerFilters = new ArrayList<>();
+        List<Integer> breakerOutputSlots = new ArrayList<>();
+        List<Integer> breakerInputSlots = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            if (breakers[i]) {
+                int slot = nodeInputSlots[i][0];
+                breakerFilters.add((DelayFilter) nodes.get(i).getFilter());
+                breakerOutputSlots.add(firstSlots[i]);
+                breakerInputSlots.add(slot >= 0 && available[slot]
+                        ? slot : -1);
+            }
+        }
+
+        // Resolve the outputs of the graph.
+        Port[] outputs = graph.getOutputs();
+        int[] outputSlots = new int[outputs.length];
+        for (int o = 0; o < outputs.length; o++) {
+            outputSlots[o] = slotOf(outputs[o], indices, firstSlots);
+        }
+
+        if (!allAvailable(outputSlots, available)) {
+            throw new FilterException("Filter is not valid, " +
+                    "possibly mising a delay filter in a loop.");
+        }
+
+        // Keep every delay line of the plan in one contiguous array.
+        List<Filter> lines = new ArrayList<>(filters);
+        lines.addAll(breakerFilters);
+        DelayArena.pack(lines.toArray(new Filter[0]));
+
+        return new ExecutionPlan(graph.nbInputs(), outputSlots, slotsAmount,
+                filters, inputSlots, firstOutputSlots, breakerFilters,
+                breakerOutputSlots, breakerInputSlots, maxBlockSize);
+    }
+
+    /**
+     * Assembles a plan from a schedule compiled beforehand, such as one read
+     * by a {@link PlanCache}. The filters must be new, as the plan owns
+     * them, and their delay lines are packed like those of a compiled plan.
+     *
+     * @param nbInputs           The amount of inputs of the plan.
+     * @param outputSlots        The slots read by each output.
+     * @param slotsAmount        The amount of slots.
+     * @param filters            The filters, in the order they have to be
+     *                           computed.
+     * @param inputSlots         For each filter, the slots of its inputs.
+     * @param firstOutputSlots   For each filter, the slot of its first
+     *                           output.
+     * @param breakers           The delay filters resolving the loops.
+     * @param breakerOutputSlots The slot each breaker writes to.
+     * @param breakerInputSlots  The slot each breaker reads from, -1 if
+     *                           never.
+     * @param maxBlockSize       The maximum amount of frames processed at
+     *                           once.
+     * @return the plan running the schedule.
+     */
+    static ExecutionPlan of(int nbInputs, int[] outputSlots, int slotsAmount,
+                            Filter[] filters, int[][] inputSlots,
+                            int[] firstOutputSlots, DelayFilter[] breakers,
+                            int[] breakerOutputSlots,
+                            int[] breakerInputSlots, int maxBlockSize) {
+        List<Integer> firstSlots = new ArrayList<>();
+        for (int slot : firstOutputSlots) {
+            firstSlots.add(slot);
+        }
+        List<Integer> breakerOutputs = new ArrayList<>();
+        List<Integer> breakerInputs = new ArrayList<>();
+        for (int i = 0; i < breakers.length; i++) {
+            breakerOutputs.add(breakerOutputSlots[i]);
+            breakerInputs.add(breakerInputSlots[i]);
+        }
+
+        List<Filter> lines = new ArrayList<>(Arrays.asList(filters));
+        lines.addAll(Arrays.asList(breakers));
+        DelayArena.pack(lines.toArray(new Filter[0]));
+
+        return new ExecutionPlan(nbInputs, outputSlots, slotsAmount,
+                Arrays.asList(filters), Arrays.asList(inputSlots), firstSlots,
+                Arrays.asList(breakers), breakerOutputs, breakerInputs,
+                maxBlockSize);
+    }
+
+    /**
+     * @return the slot read through the given port, -1 if not connected.
+     */
+    private static int slotOf(Port port, Map<Node, Integer> indices,
+                              int[] firstSlots) {
+        if (port == null) return -1;
+        if (port.isGraphInput()) return port.getIndex();
+        return firstSlots[indices.get(port.getNode())] + port.getIndex();
+    }
+
+    /**
+     * @return the delay of the delay filter of the given node.
+     */
+    private static int delayOf(Node node) {
+        return ((DelayFilter) node.getFilter()).getDelay();
+    }
+
+    /**
+     * Chooses the delay filters breaking the loops of a graph.
+     * Every delay filter lying on a loop is a candidate. The longest ones
+     * are preferred, as long as they break every loop, so that the shortest
+     * breaker, which bounds the size of the blocks, is as long as possible.
+     *
+     * @param nodes      The nodes of the graph.
+     * @param successors For each node, the nodes reading its outputs.
+     * @return for each node, whether it is a breaker or not.
+     */
+    private static boolean[] chooseBreakers(List<Node> nodes,
+                                            List<List<Integer>> successors) {
+        boolean[] candidates = new boolean[nodes.size()];
+        TreeSet<Integer> thresholds = new TreeSet<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            if (nodes.get(i).getFilter() instanceof DelayFilter
+                    && isOnLoop(i, successors)) {
+                candidates[i] = true;
+                thresholds.add(delayOf(nodes.get(i)));
+            }
+        }
+
+        for (int threshold : thresholds.descendingSet()) {
+            boolean[] breakers = new boolean[nodes.size()];
+            for (int i = 0; i < nodes.size(); i++) {
+                breakers[i] = candidates[i]
+                        && delayOf(nodes.get(i)) >= threshold;
+            }
+
+            if (isAcyclic(successors, breakers)) {
+                return breakers;
+            }
+        }
+
+        // Some loops have no delay at all: they will never be computed.
+        return candidates;
+    }
+
+    /**
+     * @return {@code true} if the given node can reach itself,
+     *         {@code false} otherwise.
+     */
+    private static boolean isOnLoop(int start,
+                                    List<List<Integer>> successors) {
+        boolean[] visited = new boolean[successors.size()];
+        List<Integer> stack = new ArrayList<>(successors.get(start));
+        while (!stack.isEmpty()) {
+            int node = stack.remove(stack.size() - 1);
+            if (node == start) return true;
+            if (visited[node]) continue;
+
+            visited[node] = true;
+            stack.addAll(successors.get(node));
+        }
+        return false;
+    }
+
+    /**
+     * @return {@code true} if the graph has no loop once the outgoing
+     *         connections of the given breakers are cut,
+     *         {@code false} otherwise.
+     */
+    private static boolean isAcyclic(List<List<Integer>> successors,
+                                     boolean[] breakers) {
+        int[] incoming = new int[successors.size()];
+        for (int i = 0; i < successors.size(); i++) {
+            if (breakers[i]) continue;
+            for (int next : successors.get(i)) {
+                incoming[next]++;
+            }
+        }
+
+        List<Integer> ready = new ArrayList<>();
+        for (int i = 0; i < incoming.length; i++) {
+            if (incoming[i] == 0) ready.add(i);
+        }
+
+        int visited = 0;
+        while (!ready.isEmpty()) {
+            int node = ready.remove(ready.size() - 1);
+            visited++;
+            if (breakers[node]) continue;
+
+            for (int next : successors.get(node)) {
+                if (--incoming[next] == 0) ready.add(next);
+            }
+        }
+        return visited == incoming.length;
+    }
+
+    /**
+     * @return {@code true} if all the given slots are connected and
+     *         available, {@code false} otherwise.
+     */
+    private static boolean allAvailable(int[] slots, boolean[] available) {
+        for (int slot : slots) {
+            if (slot < 0 || !available[slot]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the amount of inputs of the plan.
+     */
+    int nbInputs() {
+        return nbInputs;
+    }
+
+    /**
+     * @return the amount of slots of the plan.
+     */
+    int nbSlots() {
+        return values.length;
+    }
+
+    /**
+     * @return the slots read by each output of the plan.
+     */
+    int[] getOutputSlots() {
+        return outputSlots;
+    }
+
+    /**
+     * @return the scheduled filters, in the order they have to be computed.
+     */
+    Filter[] getFilters() {
+        return filters;
+    }
+
+    /**
+     * @return for each scheduled filter, the slots its inputs are read from.
+     */
+    int[][] getInputSlots() {
+        return inputSlots;
+    }
+
+    /**
+     * @return for each scheduled filter, the slot of its first output.
+     */
+    int[] getFirstOutputSlots() {
+        return firstOutputSlots;
+    }
+
+    /**
+     * @return the delay filters resolving the loops.
+     */
+    DelayFilter[] getBreakers() {
+        return breakers;
+    }
+
+    /**
+     * @return the slot each breaker writes its popped value to.
+     */
+    int[] getBreakerOutputSlots() {
+        return breakerOutputSlots;
+    }
+
+    /**
+     * @return the slot each breaker reads its new value from, -1 if never.
+     */
+    int[] getBreakerInputSlots() {
+        return breakerInputSlots;
+    }
+
+    /**
+     * @return the maximum amount of frames processed at once by the plan.
+     */
+    public int getMaxBlockSize() {
+        return maxBlockSize;
+    }
+
+    /**
+     * Resets every filter of the plan, including the ones created when
+     * optimizing the graph.
+     */
+    public void reset() {
+        for (Filter filter : filters) {
+            filter.reset();
+        }
+        for (DelayFilter breaker : breakers) {
+            breaker.reset();
+        }
+    }
+
+    /**
+     * Computes one step of the compiled composite filter. Nothing is
+     * allocated as long as the scheduled filters are block filters.
+     *
+     * @param input  The inputs of the composite filter.
+     * @param output Receives the outputs of the composite filter.
+     * @throws FilterException if one of the scheduled filters fails.
+     */
+    public void execute(double[] input, double[] output)
+            throws FilterException {
+        System.arraycopy(input, 0, values, 0, nbInputs);
+
+        // First, pop the breakers to resolve loops.
+        for (int i = 0; i < breakers.length; i++) {
+            values[breakerOutputSlots[i]] = popBreaker(i);
+        }
+
+        for (int i = 0; i < filters.length; i++) {
+            int[] slots = inputSlots[i];
+            double[] args = arguments[i];
+            for (int j = 0; j < slots.length; j++) {
+                args[j] = values[slots[j]];
+            }
+
+            double[] result = results[i];
+            computeFilter(i, args, result);
+            System.arraycopy(result, 0, values, firstOutputSlots[i],
+                    result.length);
+        }
+
+        // Then, feed the breakers with their new values.
+        for (int i = 0; i < breakers.length; i++) {
+            if (breakerInputSlots[i] >= 0) {
+                feedBreaker(i, values[breakerInputSlots[i]]);
+            }
+        }
+
+        for (int i = 0; i < outputSlots.length; i++) {
+            output[i] = values[outputSlots[i]];
+        }
+    }
+
+    /**
+     * Computes several steps of the compiled composite filter, split in
+     * blocks no longer than the maximum block size.
+     *
+     * @param input  The input buffers of the composite filter.
+     * @param output The output buffers of the composite filter.
+     * @param frames The amount of frames to process.
+     * @throws FilterException if one of the scheduled filters fails.
+     */
+    public void executeBlock(double[][] input, double[][] output, int frames)
+            throws FilterException {
+        if (blockValues == null) {
+            allocateBlockBuffers();
+        }
+
+        for (int start = 0; start < frames; start += maxBlockSize) {
+            int length = Math.min(maxBlockSize, frames - start);
+
+            for (int i = 0; i < nbInputs; i++) {
+                System.arraycopy(input[i], start, blockValues[i], 0, length);
+            }
+
+            for (int i = 0; i < breakers.length; i++) {
+                popBreaker(i, blockValues[breakerOutputSlots[i]], length);
+            }
+
+            for (int i = 0; i < filters.length; i++) {
+                computeFilter(i, blockInputs[i], blockOutputs[i], length);
+            }
+
+            for (int i = 0; i < breakers.length; i++) {
+                if (breakerInputSlots[i] >= 0) {
+                    feedBreaker(i, blockValues[breakerInputSlots[i]],
+                            length);
+                }
+            }
+
+            for (int o = 0; o < outputSlots.length; o++) {
+                System.arraycopy(blockValues[outputSlots[o]], 0, output[o],
+                        start, length);
+            }
+        }
+    }
+
+    /**
+     * Writes the state of every scheduled filter and breaker.
+     *
+     * @param out The destination of the state.
+     * @throws FilterException if a scheduled filter has no state to save.
+     * @throws IOException     if the state cannot be written.
+     */
+    public void saveState(DataOutput out)
+            throws FilterException, IOException {
+        out.writeInt(filters.length);
+        out.writeInt(breakers.length);
+        for (Filter filter : filters) {
+            StatefulFilter.save(filter, out);
+        }
+        for (DelayFilter breaker : breakers) {
+            breaker.saveState(out);
+        }
+    }
+
+    /**
+     * Reads back a state written by {@link #saveState(DataOutput)}, from a
+     * plan with the same schedule.
+     *
+     * @param in The source of the state.
+     * @throws FilterException if a scheduled filter has no state to restore.
+     * @throws IOException     if the state cannot be read, or does not match
+     *                         the schedule.
+     */
+    public void restoreState(DataInput in)
+            throws FilterException, IOException {
+        if (in.readInt() != filters.length
+                || in.readInt() != breakers.length) {
+            throw new IOException("Snapshot does not match the compiled " +
+                    "graph.");
+        }
+        for (Filter filter : filters) {
+            StatefulFilter.restore(filter, in);
+        }
+        for (DelayFilter breaker : breakers) {
+            breaker.restoreState(in);
+        }
+    }
+
+    /**
+     * Computes one step of a scheduled filter.
+     *
+     * @param index  The index of the filter in the schedule.
+     * @param input  The inputs of the filter.
+     * @param output Receives the outputs of the filter.
+     * @throws FilterException if the filter fails.
+     */
+    void computeFilter(int index, double[] input, double[] output)
+            throws FilterException {
+        BlockFilter.computeOneStep(filters[index], input, output);
+    }
+
+    /**
+     * Computes several steps of a scheduled filter.
+     *
+     * @param index  The index of the filter in the schedule.
+     * @param input  The input buffers of the filter.
+     * @param output The output buffers of the filter.
+     * @param frames The amount of frames to process.
+     * @throws FilterException if the filter fails.
+     */
+    void computeFilter(int index, double[][] input, double[][] output,
+                       int frames) throws FilterException {
+        BlockFilter.computeBlock(filters[index], input, output, frames);
+    }
+
+    /**
+     * Pops the next value of a breaker.
+     *
+     * @param index The index of the breaker.
+     * @return the popped value.
+     */
+    double popBreaker(int index) {
+        return breakers[index].pop();
+    }
+
+    /**
+     * Pops the next values of a breaker.
+     *
+     * @param index  The index of the breaker.
+     * @param output Receives the popped values.
+     * @param frames The amount of values to pop.
+     */
+    void popBreaker(int index, double[] output, int frames) {
+        breakers[index].pop(output, frames);
+    }
+
+    /**
+     * Feeds a breaker with its new value.
+     *
+     * @param index The index of the breaker.
+     * @param value The value to enqueue.
+     */
+    void feedBreaker(int index, double value) {
+        breakers[index].enqueue(value);
+    }
+
+    /**
+     * Feeds a breaker with its new values.
+     *
+     * @param index  The index of the breaker.
+     * @param input  The values to enqueue.
+     * @param frames The amount of values to enqueue.
+     */
+    void feedBreaker(int index, double[] input, int frames) {
+        breakers[index].enqueue(input, frames);
+    }
+
+    /**
+     * Allocates one buffer per slot, and binds them to the scheduled filters.
+     */
+    private void allocateBlockBuffers() {
+        blockValues = new double[values.length][maxBlockSize];
+        blockInputs = new double[filters.length][][];
+        blockOutputs = new double[filters.length][][];
+
+        for (int i = 0; i < filters.length; i++) {
+            blockInputs[i] = new double[inputSlots[i].length][];
+            for (int j = 0; j < inputSlots[i].length; j++) {
+                blockInputs[i][j] = blockValues[inputSlots[i][j]];
+            }
+
+            blockOutputs[i] = new double[filters[i].nbOutputs()][];
+            for (int o = 0; o < blockOutputs[i].length; o++) {
+                blockOutputs[i][o] = blockValues[firstOutputSlots[i] + o];
+            }
+        }
+    }
+}
@@ -0,0 +1,596 @@
+package be.isach.filterlib.engine;
+
+import be.isach.filterlib.filters.AdditionFilter;
+import be.isach.filterlib.filters.BlockFilter;
+import be.isach.filterlib.filters.CompositeFilter;
+import be.isach.filterlib.filters.DelayFilter;
+import be.isach.filterlib.filters.GainFilter;
+import be.isach.filterlib.filters.WeightedAdditionFilter;
+import be.uliege.montefiore.oop.audio.Filter;
+import be.uliege.montefiore.oop.audio.FilterException;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles composite filters into dedicated classes, generated at runtime.
+ * <p>
+ * The execution plan of the composite is turned into the source of a
+ * {@link GeneratedFilter} whose methods compute the whole schedule as
+ * straight arithmetic: gains and additions become expressions on local
+ * variables, and delays and kernels index their ring buffers inline. The
+ * source is compiled in memory and defined as a hidden class, so that the
+ * JIT sees one monomorphic loop per graph shape instead of calls to many
+ * different filters.
+ * </p>
+ * <p>
+ * Gains, weights and delays are given to the constructor of the generated
+ * class, so that generated classes are shared by graphs of the same shape,
+ * whatever their parameters. Only the most recently used classes are kept; the
+ * others are unloaded once their filters are gone. When no Java compiler is
+ * available at runtime, or when the methods of the generated class are too
+ * large to be compiled by the JIT, the composite filter itself is
+ * returned.
+ * </p>
+ */
+public class FilterCompiler {
+
+    /**
+     * Maximum amount of scheduled nodes for which code is generated. Past
+     * the first hundred nodes, locals need wide instructions and each node
+     * takes at least a dozen bytes, so the methods of larger graphs always
+     * exceed {@link #MAX_METHOD_BYTES} and their source is not even
+     * compiled.
+     */
+    public static final int MAX_GENERATED_NODES = 1024;
+
+    /**
+     * Maximum size of the bytecode of a generated method. HotSpot does not
+     * compile larger methods, which then run in the interpreter far slower
+     * than the filters they replace.
+     */
+    public static final int MAX_METHOD_BYTES = 8000;
+
+    /**
+     * Name of the generated class, before it is made hidden.
+     */
+    private static final String CLASS_NAME = "CompiledGraph";
+
+    /**
+     * Maximum amount of generated classes kept for later graphs.
+     */
+    public static final int MAX_CACHED_CLASSES = 64;
+
+    /**
+     * Most recently used generated classes, by source. Sources whose
+     * methods are too large map to null.
+     */
+    private static final Map<String, Class<?>> classes =
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, Class<?>> eldest) {
+                    return size() > MAX_CACHED_CLASSES;
+                }
+            };
+
+    /**
+     * Compiles a composite filter into a generated filter. The delays of the
+     * new filter start from the current state of the composite, but then
+     * evolve independently of it; filters that are not generated are shared
+     * with the composite.
+     *
+     * @param composite The composite filter to compile.
+     * @return the generated filter, or the composite filter itself if it
+     *         cannot be generated.
+     * @throws FilterException if the composite filter is not valid.
+     */
+    public static BlockFilter compile(CompositeFilter composite)
+            throws FilterException {
+        if (composite.isInvalid()) {
+            throw new FilterException("Filter is not valid, missing " +
+                    "connections.");
+        }
+
+        BlockFilter generated = compile(ExecutionPlan.compile(composite));
+        return generated != null ? generated : composite;
+    }
+
+    /**
+     * Generates a filter computing an execution plan. The delays of the new
+     * filter start from the current state of the plan; filters that are not
+     * generated are shared with it.
+     *
+     * @param plan The plan to generate the filter of.
+     * @return the generated filter, or null if it cannot be generated.
+     */
+    static BlockFilter compile(ExecutionPlan plan) {
+        if (plan.getFilters().length + plan.getBreakers().length
+                > MAX_GENERATED_NODES) {
+            return null;
+        }
+
+        CodeWriter writer = new CodeWriter(plan);
+        String source = writer.write();
+
+        Class<?> generated;
+        boolean known;
+        synchronized (classes) {
+            generated = classes.get(source);
+            known = generated != null || classes.containsKey(source);
+        }
+        if (!known) {
+            byte[] bytes = compileSource(source);
+            if (bytes == null) {
+                return null;
+            }
+
+            if (largestMethod(bytes) <= MAX_METHOD_BYTES) {
+                try {
+                    generated = MethodHandles.lookup()
+                            .defineHiddenClass(bytes, true).lookupClass();
+                } catch (IllegalAccessException | LinkageError e) {
+                    return null;
+                }
+            }
+            synchronized (classes) {
+                classes.putIfAbsent(source, generated);
+            }
+        }
+        if (generated == null) {
+            return null;
+        }
+
+        try {
+            return (BlockFilter) generated
+                    .getConstructor(GeneratedFilter.CONSTRUCTOR_TYPES)
+                    .newInstance(plan.nbInputs(),
+                            plan.getOutputSlots().length, writer.getLines(),
+                            writer.getCoefficients(), writer.getOthers());
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Compiles the source of a generated filter in memory.
+     *
+     * @param source The source of the class.
+     * @return the bytes of the compiled class, or null if it could not be
+     *         compiled.
+     */
+    private static byte[] compileSource(String source) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            return null;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JavaFileObject sourceFile = new SimpleJavaFileObject(
+                URI.create("string:///" + CLASS_NAME + ".java"),
+                JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreErrors) {
+                return source;
+            }
+        };
+
+        JavaFileManager fileManager = new ForwardingJavaFileManager<>(
+                compiler.getStandardFileManager(null, null, null)) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(
+                    Location location, String className,
+                    JavaFileObject.Kind kind, FileObject sibling) {
+                return new SimpleJavaFileObject(
+                        URI.create("bytes:///" + className + ".class"),
+                        kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        return bytes;
+                    }
+                };
+            }
+        };
+
+        List<String> options = Arrays.asList("-proc:none", "-classpath",
+                System.getProperty("java.class.path"));
+        Boolean success = compiler.getTask(null, fileManager, null, options,
+                null, List.of(sourceFile)).call();
+
+        return Boolean.TRUE.equals(success) ? bytes.toByteArray() : null;
+    }
+
+    /**
+     * Reads the size of the bytecode of every method of a compiled class.
+     *
+     * @param bytes The bytes of the class file.
+     * @return the size of the largest method, or
+     *         {@link Integer#MAX_VALUE} if the class file cannot be read.
+     */
+    private static int largestMethod(byte[] bytes) {
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(bytes));
+        try {
+            // Magic number and version.
+            in.skipNBytes(8);
+
+            // Only the names of the attributes are needed from the pool.
+            int count = in.readUnsignedShort();
+            String[] strings = new String[count];
+            for (int i = 1; i < count; i++) {
+                int tag = in.readUnsignedByte();
+                switch (tag) {
+                    case 1: // Text.
+                        strings[i] = in.readUTF();
+                        break;
+                    case 7: case 8: case 16: case 19: case 20:
+                        in.skipNBytes(2);
+                        break;
+                    case 15: // Method handle.
+                        in.skipNBytes(3);
+                        break;
+                    case 3: case 4: case 9: case 10: case 11: case 12:
+                    case 17: case 18:
+                        in.skipNBytes(4);
+                        break;
+                    case 5: case 6: // Longs and doubles take two entries.
+                        in.skipNBytes(8);
+                        i++;
+                        break;
+                    default:
+                        return Integer.MAX_VALUE;
+                }
+            }
+
+            // Access flags, this and super classes, interfaces and fields.
+            in.skipNBytes(6);
+            in.skipNBytes(2L * in.readUnsignedShort());
+            int fields = in.readUnsignedShort();
+            for (int f = 0; f < fields; f++) {
+                in.skipNBytes(6);
+                skipAttributes(in);
+            }
+
+            int largest = 0;
+            int methods = in.readUnsignedShort();
+            for (int m = 0; m < methods; m++) {
+                in.skipNBytes(6);
+                int attributes = in.readUnsignedShort();
+                for (int a = 0; a < attributes; a++) {
+                    String name = strings[in.readUnsignedShort()];
+                    int length = in.readInt();
+                    if ("Code".equals(name)) {
+                        // Maximum stack and locals precede the code.
+                        in.skipNBytes(4);
+                        largest = Math.max(largest, in.readInt());
+                        in.skipNBytes(length - 8);
+                    } else {
+                        in.skipNBytes(length);
+                    }
+                }
+            }
+            return largest;
+        } catch (IOException e) {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Skips the attributes of a field or method of a class file.
+     */
+    private static void skipAttributes(DataInputStream in)
+            throws IOException {
+        int attributes = in.readUnsignedShort();
+        for (int a = 0; a < attributes; a++) {
+            in.skipNBytes(2);
+            in.skipNBytes(in.readInt());
+        }
+    }
+
+    /**
+     * Writes the source of the generated filter of an execution plan.
+     */
+    private static class CodeWriter {
+
+        /**
+         * The plan to generate code for.
+         */
+        private final ExecutionPlan plan;
+
+        /**
+         * Initial content of each ring buffer.
+         */
+        private final List<double[]> lines = new ArrayList<>();
+
+        /**
+         * Gains and weights read by the code.
+         */
+        private final List<Double> coefficients = new ArrayList<>();
+
+        /**
+         * Filters that are called rather than generated.
+         */
+        private final List<Filter> others = new ArrayList<>();
+
+        /**
+         * Statements of one step, computing every slot.
+         */
+        private final StringBuilder body = new StringBuilder();
+
+        /**
+         * Statements feeding the breakers, at the end of one step.
+         */
+        private final StringBuilder tail = new StringBuilder();
+
+        private CodeWriter(ExecutionPlan plan) {
+            this.plan = plan;
+        }
+
+        /**
+         * @return the initial content of each ring buffer.
+         */
+        private double[][] getLines() {
+            return lines.toArray(new double[0][]);
+        }
+
+        /**
+         * @return the gains and weights read by the code.
+         */
+        private double[] getCoefficients() {
+            double[] values = new double[coefficients.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = coefficients.get(i);
+            }
+            return values;
+        }
+
+        /**
+         * @return the filters that are called rather than generated.
+         */
+        private Filter[] getOthers() {
+            return others.toArray(new Filter[0]);
+        }
+
+        /**
+         * @return the source of the generated filter.
+         */
+        private String write() {
+            DelayFilter[] breakers = plan.getBreakers();
+            for (int i = 0; i < breakers.length; i++) {
+                int line = addLine(breakers[i].getPendingValues());
+                declare(plan.getBreakerOutputSlots()[i], read(line));
+
+                int input = plan.getBreakerInputSlots()[i];
+                if (input >= 0) {
+                    write(tail, line, "s" + input);
+                }
+            }
+
+            Filter[] filters = plan.getFilters();
+            for (int i = 0; i < filters.length; i++) {
+                writeNode(filters[i], plan.getInputSlots()[i],
+                        plan.getFirstOutputSlots()[i]);
+            }
+
+            StringBuilder source = new StringBuilder();
+            source.append("package be.isach.filterlib.engine;\n\n")
+                    .append("import be.isach.filterlib.filters.BlockFilter;\n")
+                    .append("import be.uliege.montefiore.oop.audio.Filter;\n")
+                    .append("import be.uliege.montefiore.oop.audio"
+                            + ".FilterException;\n\n")
+                    .append("public final class ").append(CLASS_NAME)
+                    .append(" extends GeneratedFilter {\n\n")
+                    .append("    public ").append(CLASS_NAME)
+                    .append("(int nbInputs, int nbOutputs, double[][] lines,"
+                            + " double[] coefficients, Filter[] others) {\n")
+                    .append("        super(nbInputs, nbOutputs, lines, "
+                            + "coefficients, others);\n    }\n\n");
+
+            // One step reads and writes single values.
+            source.append("    @Override\n    protected void step(double[] "
+                    + "in, double[] out) throws FilterException {\n");
+            loadState(source);
+            source.append("        {\n");
+            for (int i = 0; i < plan.nbInputs(); i++) {
+                source.append("            double s").append(i)
+                        .append(" = in[").append(i).append("];\n");
+            }
+            source.append(body).append(tail);
+            int[] outputSlots = plan.getOutputSlots();
+            for (int o = 0; o < outputSlots.length; o++) {
+                source.append("            out[").append(o).append("] = s")
+                        .append(outputSlots[o]).append(";\n");
+            }
+            source.append("        }\n");
+            storeState(source);
+            source.append("    }\n\n");
+
+            // Several steps loop over the same statements.
+            source.append("    @Override\n    protected void run(double[][] "
+                    + "in, double[][] out, int frames) throws "
+                    + "FilterException {\n");
+            loadState(source);
+            for (int i = 0; i < plan.nbInputs(); i++) {
+                source.append("        final double[] in").append(i)
+                        .append(" = in[").append(i).append("];\n");
+            }
+            for (int o = 0; o < outputSlots.length; o++) {
+                source.append("        final double[] out").append(o)
+                        .append(" = out[").append(o).append("];\n");
+            }
+            source.append("        for (int n = 0; n < frames; n++) {\n");
+            for (int i = 0; i < plan.nbInputs(); i++) {
+                source.append("            double s").append(i)
+                        .append(" = in").append(i).append("[n];\n");
+            }
+            source.append(body).append(tail);
+            for (int o = 0; o < outputSlots.length; o++) {
+                source.append("            out").append(o).append("[n] = s")
+                        .append(outputSlots[o]).append(";\n");
+            }
+            source.append("        }\n");
+            storeState(source);
+            source.append("    }\n}\n");
+
+            return source.toString();
+        }
+
+        /**
+         * Writes the statements computing one scheduled filter.
+         */
+        private void writeNode(Filter filter, int[] inputs, int firstOutput) {
+            // Subclasses of the library filters may override what they
+            // compute, so they are called like any other filter.
+            Class<?> type = filter.getClass();
+            if (type == GainFilter.class) {
+                declare(firstOutput, coefficient(
+                        ((GainFilter) filter).getGain()) + " * s" + inputs[0]);
+            } else if (type == AdditionFilter.class) {
+                declare(firstOutput, "s" + inputs[0] + " + s" + inputs[1]);
+            } else if (type == WeightedAdditionFilter.class) {
+                WeightedAdditionFilter weighted =
+                        (WeightedAdditionFilter) filter;
+                declare(firstOutput, coefficient(weighted.getFirstWeight())
+                        + " * s" + inputs[0] + " + "
+                        + coefficient(weighted.getSecondWeight())
+                        + " * s" + inputs[1]);
+            } else if (type == DelayFilter.class) {
+                int line = addLine(((DelayFilter) filter).getPendingValues());
+                declare(firstOutput, read(line));
+                write(body, line, "s" + inputs[0]);
+            } else if (type == CombKernel.class) {
+                CombKernel comb = (CombKernel) filter;
+                int line = addLine(comb.getPendingValues());
+                declare(firstOutput, coefficient(comb.getInputWeight())
+                        + " * s" + inputs[0] + " + "
+                        + coefficient(comb.getFeedbackWeight())
+                        + " * " + read(line));
+                write(body, line, "s" + firstOutput);
+            } else if (type == AllPassKernel.class) {
+                AllPassKernel allPass = (AllPassKernel) filter;
+                int line = addLine(allPass.getPendingValues());
+                declare(firstOutput, coefficient(allPass.getDirectWeight())
+                        + " * s" + inputs[0] + " + "
+                        + coefficient(allPass.getDelayedWeight())
+                        + " * " + read(line));
+                write(body, line, coefficient(allPass.getStoredInputWeight())
+                        + " * s" + inputs[0] + " + "
+                        + coefficient(allPass.getStoredOutputWeight())
+                        + " * s" + firstOutput);
+            } else {
+                int other = others.size();
+                others.add(filter);
+                for (int j = 0; j < inputs.length; j++) {
+                    body.append("            arguments[").append(other)
+                            .append("][").append(j).append("] = s")
+                            .append(inputs[j]).append(";\n");
+                }
+                body.append("            BlockFilter.computeOneStep(others[")
+                        .append(other).append("], arguments[").append(other)
+                        .append("], results[").append(other).append("]);\n");
+                for (int o = 0; o < filter.nbOutputs(); o++) {
+                    declare(firstOutput + o,
+                            "results[" + other + "][" + o + "]");
+                }
+            }
+        }
+
+        /**
+         * Adds a ring buffer, holding the given values.
+         *
+         * @return the index of the new ring buffer.
+         */
+        private int addLine(double[] pending) {
+            lines.add(pending);
+            return lines.size() - 1;
+        }
+
+        /**
+         * Adds a gain or weight read by the code.
+         *
+         * @return the name of the local variable holding it.
+         */
+        private String coefficient(double value) {
+            coefficients.add(value);
+            return "k" + (coefficients.size() - 1);
+        }
+
+        /**
+         * Writes the declaration of a slot.
+         */
+        private void declare(int slot, String expression) {
+            body.append("            double s").append(slot).append(" = ")
+                    .append(expression).append(";\n");
+        }
+
+        /**
+         * @return the expression reading the oldest value of a ring buffer.
+         */
+        private String read(int line) {
+            return "a[o" + line + " + ((c" + line + " - d" + line + ") & m"
+                    + line + ")]";
+        }
+
+        /**
+         * Writes a value into a ring buffer, and moves to its next value.
+         */
+        private void write(StringBuilder code, int line, String expression) {
+            code.append("            a[o").append(line).append(" + c")
+                    .append(line).append("] = ").append(expression)
+                    .append(";\n")
+                    .append("            c").append(line).append(" = (c")
+                    .append(line).append(" + 1) & m").append(line)
+                    .append(";\n");
+        }
+
+        /**
+         * Writes the statements loading the arena, the coefficients, the
+         * offsets, delays and masks of the ring buffers and their counters
+         * into local variables.
+         */
+        private void loadState(StringBuilder source) {
+            source.append("        final double[] a = arena;\n");
+            for (int k = 0; k < coefficients.size(); k++) {
+                source.append("        final double k").append(k)
+                        .append(" = coefficients[").append(k).append("];\n");
+            }
+            for (int line = 0; line < lines.size(); line++) {
+                source.append("        final int o").append(line)
+                        .append(" = offsets[").append(line).append("];\n")
+                        .append("        final int d").append(line)
+                        .append(" = delays[").append(line).append("];\n")
+                        .append("        final int m").append(line)
+                        .append(" = masks[").append(line).append("];\n")
+                        .append("        int c").append(line)
+                        .append(" = counters[").append(line).append("];\n");
+            }
+        }
+
+        /**
+         * Writes the statements storing the counters back.
+         */
+        private void storeState(StringBuilder source) {
+            for (int line = 0; line < lines.size(); line++) {
+                source.append("        counters[").append(line)
+                        .append("] = c").append(line).append(";\n");
+            }
+        }
+    }
+}
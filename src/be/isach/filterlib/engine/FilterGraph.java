@@ -0,0 +1,383 @@
+package be.isach.filterlib.engine;
+
+import be.isach.filterlib.filters.CompositeFilter;
+import be.isach.filterlib.filters.FilterBlock;
+import be.uliege.montefiore.oop.audio.Filter;
+import be.uliege.montefiore.oop.audio.FilterException;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Graph of filters, as compiled into an execution plan.
+ * <p>
+ * Unlike the blocks of a composite filter, which are only meant to be
+ * connected, nodes of this graph directly refer to the port feeding each of
+ * their inputs, and can be freely rewritten before compilation.
+ * </p>
+ */
+public class FilterGraph {
+
+    /**
+     * Amount of inputs of the graph.
+     */
+    private final int nbInputs;
+
+    /**
+     * Nodes of the graph, in insertion order.
+     */
+    private final List<Node> nodes;
+
+    /**
+     * Ports feeding each output of the graph, null if not connected.
+     */
+    private final Port[] outputs;
+
+    /**
+     * Initializes an empty graph.
+     *
+     * @param nbInputs  The amount of inputs of the graph.
+     * @param nbOutputs The amount of outputs of the graph.
+     */
+    public FilterGraph(int nbInputs, int nbOutputs) {
+        this.nbInputs = nbInputs;
+        this.nodes = new ArrayList<>();
+        this.outputs = new Port[nbOutputs];
+    }
+
+    /**
+     * Builds the graph of the blocks of a composite filter, nested composite
+     * filters being kept as single nodes.
+     *
+     * @param composite The composite filter to read.
+     * @return the graph of the composite filter.
+     * @throws FilterException if the composite filter is incomplete.
+     */
+    public static FilterGraph of(CompositeFilter composite)
+            throws FilterException {
+        if (composite.isInvalid()) {
+            throw new FilterException("Filter is not valid, missing " +
+                    "connections.");
+        }
+
+        FilterBlock selfBlock = composite.getSelfBlock();
+        FilterGraph graph = new FilterGraph(composite.nbInputs(),
+                composite.nbOutputs());
+
+        Map<FilterBlock, Node> nodes = new IdentityHashMap<>();
+        for (FilterBlock block : composite.getBlocks()) {
+            nodes.put(block, graph.addNode(block.getFilter()));
+        }
+
+        for (FilterBlock block : composite.getBlocks()) {
+            Node node = nodes.get(block);
+            for (Map.Entry<FilterBlock, Integer> entry
+                    : block.getInputBlocks().entrySet()) {
+                FilterBlock source = entry.getKey();
+                if (source == selfBlock) {
+                    node.inputs[selfBlock.getInputBlocks().get(block)] =
+                            new Port(null, entry.getValue());
+                } else {
+                    node.inputs[source.getOutputBlocks().get(block)] =
+                            new Port(nodes.get(source), entry.getValue());
+                }
+            }
+        }
+
+        for (Map.Entry<FilterBlock, Integer> entry
+                : selfBlock.getOutputBlocks().entrySet()) {
+            FilterBlock block = entry.getKey();
+            graph.outputs[block.getOutputBlocks().get(selfBlock)] =
+                    new Port(nodes.get(block), entry.getValue());
+        }
+
+        return graph;
+    }
+
+    /**
+     * Builds the graph of a composite filter in which every nested composite
+     * filter is recursively replaced by its own blocks, so that the whole
+     * filter runs as one flat set of simple filters.
+     *
+     * @param composite The composite filter to read.
+     * @return the flattened graph of the composite filter.
+     * @throws FilterException if a composite filter is incomplete, or if
+     *                         composites are looped without any filter in
+     *                         between.
+     */
+    public static FilterGraph flatten(CompositeFilter composite)
+            throws FilterException {
+        FilterGraph graph = of(composite);
+
+        // Ports replacing the outputs of each inlined composite.
+        Map<Node, Port[]> inlined = new IdentityHashMap<>();
+        List<Node> flatNodes = new ArrayList<>();
+
+        for (Node node : graph.nodes) {
+            if (!(node.filter instanceof CompositeFilter)) {
+                flatNodes.add(node);
+                continue;
+            }
+
+            // Inputs of the nested composite become the ports feeding it.
+            FilterGraph child = flatten((CompositeFilter) node.filter);
+            for (Node childNode : child.nodes) {
+                for (int i = 0; i < childNode.inputs.length; i++) {
+                    childNode.inputs[i] = bind(childNode.inputs[i], node);
+                }
+                // The outermost composite the node came from is now nested.
+                Node owner = childNode;
+                while (owner.owner != null && owner.owner != node) {
+                    owner = owner.owner;
+                }
+                if (owner.owner == null) {
+                    owner.owner = node;
+                }
+                flatNodes.add(childNode);
+            }
+
+            Port[] childOutputs = new Port[child.outputs.length];
+            for (int o = 0; o < childOutputs.length; o++) {
+                childOutputs[o] = bind(child.outputs[o], node);
+            }
+            inlined.put(node, childOutputs);
+        }
+
+        // Redirect ports reading inlined composites to their inner blocks.
+        for (Node node : flatNodes) {
+            for (int i = 0; i < node.inputs.length; i++) {
+                node.inputs[i] = resolve(node.inputs[i], inlined);
+            }
+        }
+        for (int o = 0; o < graph.outputs.length; o++) {
+            graph.outputs[o] = resolve(graph.outputs[o], inlined);
+        }
+
+        graph.nodes.clear();
+        graph.nodes.addAll(flatNodes);
+        return graph;
+    }
+
+    /**
+     * Binds a port of a nested composite's graph to the parent graph:
+     * inputs of the composite become the ports feeding it in the parent.
+     */
+    private static Port bind(Port port, Node composite) {
+        if (port == null || !port.isGraphInput()) return port;
+        return composite.inputs[port.index];
+    }
+
+    /**
+     * Follows a port until it reaches a node that was not inlined.
+     */
+    private static Port resolve(Port port, Map<Node, Port[]> inlined)
+            throws FilterException {
+        for (int hops = 0; port != null && inlined.containsKey(port.node);
+             hops++) {
+            if (hops > inlined.size()) {
+                throw new FilterException("Filter is not valid, " +
+                        "possibly mising a delay filter in a loop.");
+            }
+            port = inlined.get(port.node)[port.index];
+        }
+        return port;
+    }
+
+    /**
+     * Adds a new node to the graph, with all its inputs unconnected.
+     *
+     * @param filter The filter of the node.
+     * @return the new node.
+     */
+    public Node addNode(Filter filter) {
+        Node node = new Node(filter);
+        nodes.add(node);
+        return node;
+    }
+
+    /**
+     * Replaces a node by a new one, at the same position in the graph.
+     * Every port reading the old node now reads the new one, whose inputs
+     * are left unconnected.
+     *
+     * @param node   The node to replace.
+     * @param filter The filter of the new node.
+     * @return the new node.
+     */
+    public Node replaceNode(Node node, Filter filter) {
+        Node replacement = new Node(filter);
+        nodes.set(nodes.indexOf(node), replacement);
+
+        for (Node other : nodes) {
+            for (int i = 0; i < other.inputs.length; i++) {
+                other.inputs[i] = redirect(other.inputs[i], node,
+                        replacement);
+            }
+        }
+        for (int o = 0; o < outputs.length; o++) {
+            outputs[o] = redirect(outputs[o], node, replacement);
+        }
+
+        return replacement;
+    }
+
+    /**
+     * @return the given port, made to read the replacement if it read the
+     *         replaced node.
+     */
+    private static Port redirect(Port port, Node replaced, Node replacement) {
+        if (port == null || port.node != replaced) return port;
+        return new Port(replacement, port.index);
+    }
+
+    /**
+     * Counts how many times an output of a node is read, by other nodes or
+     * by the outputs of the graph.
+     *
+     * @param node  The node to look for.
+     * @param index The output of the node.
+     * @return the amount of readers of the output.
+     */
+    public int countReaders(Node node, int index) {
+        int readers = 0;
+        for (Node other : nodes) {
+            for (Port port : other.inputs) {
+                if (port != null && port.node == node && port.index == index) {
+                    readers++;
+                }
+            }
+        }
+        for (Port port : outputs) {
+            if (port != null && port.node == node && port.index == index) {
+                readers++;
+            }
+        }
+        return readers;
+    }
+
+    /**
+     * @return the amount of inputs of the graph.
+     */
+    public int nbInputs() {
+        return nbInputs;
+    }
+
+    /**
+     * @return the nodes of the graph, in insertion order.
+     */
+    public List<Node> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * @return the ports feeding each output of the graph.
+     */
+    public Port[] getOutputs() {
+        return outputs;
+    }
+
+    /**
+     * Node of the graph, wrapping a filter.
+     */
+    public static class Node {
+
+        /**
+         * Filter computed by the node.
+         */
+        private final Filter filter;
+
+        /**
+         * Ports feeding each input of the node, null if not connected.
+         */
+        private final Port[] inputs;
+
+        /**
+         * Node of the nested composite filter this node was inlined from,
+         * null if it belongs to the flattened composite itself.
+         */
+        private Node owner;
+
+        private Node(Filter filter) {
+            this.filter = filter;
+            this.inputs = new Port[filter.nbInputs()];
+        }
+
+        /**
+         * @return the filter computed by the node.
+         */
+        public Filter getFilter() {
+            return filter;
+        }
+
+        /**
+         * @return the ports feeding each input of the node.
+         */
+        public Port[] getInputs() {
+            return inputs;
+        }
+
+        /**
+         * @return the node of the nested composite filter this node was
+         *         inlined from, null if it belongs to the flattened composite
+         *         itself.
+         */
+        public Node getOwner() {
+            return owner;
+        }
+    }
+
+    /**
+     * Output of a node, or input of the graph, feeding an input of a node.
+     */
+    public static class Port {
+
+        /**
+         * Node the port is an output of, null for an input of the graph.
+         */
+        private final Node node;
+
+        /**
+         * Index of the output of the node, or of the input of the graph.
+         */
+        private final int index;
+
+        /**
+         * Initializes a port.
+         *
+         * @param node  The node the port is an output of, null for an input
+         *              of the graph.
+         * @param index The index of the output of the node, or of the input
+         *              of the graph.
+         */
+        public Port(Node node, int index) {
+            this.node = node;
+            this.index = index;
+        }
+
+        /**
+         * @return the node the port is an output of, null for an input of
+         *         the graph.
+         */
+        public Node getNode() {
+            return node;
+        }
+
+        /**
+         * @return the index of the output of the node, or of the input of
+         *         the graph.
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return {@code true} if the port is an input of the graph,
+         *         {@code false} otherwise.
+         */
+        public boolean isGraphInput() {
+            return node == null;
+        }
+    }
+}
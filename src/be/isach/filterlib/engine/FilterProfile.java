@@ -0,0 +1,301 @@
+package be.isach.filterlib.engine;
+
+import be.isach.filterlib.filters.CompositeFilter;
+import be.isach.filterlib.filters.FilterBlock;
+import be.uliege.montefiore.oop.audio.Filter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Invocation counts and time spent in each block of a composite filter,
+ * gathered while it is being profiled.
+ * <p>
+ * Entries form a tree following the nesting of the composite filters: the
+ * time of a nested composite is the time of its own blocks. The time of the
+ * root also counts the scheduling of the blocks, and the time taken by the
+ * measures themselves.
+ * </p>
+ * <p>
+ * The profile can be written as a readable report, or as collapsed stacks,
+ * one line per block, which flame graph tools read directly.
+ * </p>
+ */
+public class FilterProfile {
+
+    /**
+     * Entry of the profiled composite filter.
+     */
+    private final Entry root;
+
+    /**
+     * Initializes an empty profile of a composite filter.
+     *
+     * @param composite The profiled composite filter.
+     */
+    public FilterProfile(CompositeFilter composite) {
+        this.root = new Entry(composite, nameOf(composite), null);
+    }
+
+    /**
+     * @return the entry of the profiled composite filter.
+     */
+    public Entry getRoot() {
+        return root;
+    }
+
+    /**
+     * @return the simple name of the class of a filter, or its full name for
+     *         an anonymous class.
+     */
+    private static String nameOf(Filter filter) {
+        String name = filter.getClass().getSimpleName();
+        return name.isEmpty() ? filter.getClass().getName() : name;
+    }
+
+    /**
+     * Finds the entry of a node of the flattened graph of the profiled
+     * filter.
+     *
+     * @param node The node of the flattened graph.
+     * @return the entry of the block the node comes from.
+     */
+    Entry find(FilterGraph.Node node) {
+        Entry parent = node.getOwner() == null ? root : find(node.getOwner());
+        return parent.getChild(node.getFilter());
+    }
+
+    /**
+     * Clears every count and time measured so far.
+     */
+    public void reset() {
+        root.reset();
+    }
+
+    /**
+     * Writes a readable report of the profile, one line per block, indented
+     * by nesting level.
+     *
+     * @param out The destination of the report.
+     * @throws IOException if the report cannot be written.
+     */
+    public void writeReport(Appendable out) throws IOException {
+        out.append(String.format(Locale.ROOT, "%-40s %12s %12s %7s %10s%n",
+                "Block", "Calls", "Time (ms)", "Share", "ns/call"));
+        writeReport(out, root, 0, Math.max(1, root.getNanos()));
+    }
+
+    private static void writeReport(Appendable out, Entry entry, int depth,
+                                    long total) throws IOException {
+        long calls = entry.getCalls();
+        out.append(String.format(Locale.ROOT,
+                "%-40s %12d %12.3f %6.1f%% %10.1f%n",
+                "  ".repeat(depth) + entry.getName(), calls,
+                entry.getNanos() / 1e6, 100.0 * entry.getNanos() / total,
+                calls == 0 ? 0.0 : (double) entry.getNanos() / calls));
+
+        for (Entry child : entry.getChildren()) {
+            writeReport(out, child, depth + 1, total);
+        }
+    }
+
+    /**
+     * Writes the profile as collapsed stacks: one line per entry that spent
+     * time on its own, made of the names from the root to the entry
+     * separated by semicolons, followed by that time in nanoseconds.
+     *
+     * @param out The destination of the stacks.
+     * @throws IOException if the stacks cannot be written.
+     */
+    public void writeCollapsedStacks(Appendable out) throws IOException {
+        writeCollapsedStacks(out, root, root.getName());
+    }
+
+    private static void writeCollapsedStacks(Appendable out, Entry entry,
+                                             String stack)
+            throws IOException {
+        if (entry.getSelfNanos() > 0) {
+            out.append(stack).append(' ')
+                    .append(Long.toString(entry.getSelfNanos()))
+                    .append(System.lineSeparator());
+        }
+
+        for (Entry child : entry.getChildren()) {
+            writeCollapsedStacks(out, child, stack + ';' + child.getName());
+        }
+    }
+
+    /**
+     * @return the readable report of the profile.
+     */
+    @Override
+    public String toString() {
+        StringBuilder report = new StringBuilder();
+        try {
+            writeReport(report);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return report.toString();
+    }
+
+    /**
+     * Counts and time of one block of the profiled filter.
+     */
+    public static class Entry {
+
+        /**
+         * Filter of the block.
+         */
+        private final Filter filter;
+
+        /**
+         * Name of the block: the name of its class, followed by its index
+         * among the blocks of its composite.
+         */
+        private final String name;
+
+        /**
+         * Entry of the composite filter holding the block, null for the
+         * root.
+         */
+        private final Entry parent;
+
+        /**
+         * Entries of the blocks of a composite filter, in insertion order.
+         */
+        private final List<Entry> children;
+
+        /**
+         * Entries of the blocks of a composite filter, by filter.
+         */
+        private final Map<Filter, Entry> childrenByFilter;
+
+        /**
+         * Amount of measured invocations of the block.
+         */
+        private long calls;
+
+        /**
+         * Time measured in the block, in nanoseconds.
+         */
+        private long nanos;
+
+        private Entry(Filter filter, String name, Entry parent) {
+            this.filter = filter;
+            this.name = name;
+            this.parent = parent;
+            this.children = new ArrayList<>();
+            this.childrenByFilter = new IdentityHashMap<>();
+
+            if (filter instanceof CompositeFilter) {
+                int index = 0;
+                for (FilterBlock block
+                        : ((CompositeFilter) filter).getBlocks()) {
+                    Filter child = block.getFilter();
+                    Entry entry = new Entry(child,
+                            nameOf(child) + "[" + index++ + "]", this);
+                    children.add(entry);
+                    childrenByFilter.put(child, entry);
+                }
+            }
+        }
+
+        /**
+         * @return the entry of a block of this composite filter.
+         */
+        private Entry getChild(Filter child) {
+            return childrenByFilter.get(child);
+        }
+
+        /**
+         * Adds one invocation of the block.
+         *
+         * @param time The time the invocation took, in nanoseconds.
+         */
+        void record(long time) {
+            calls++;
+            nanos += time;
+        }
+
+        /**
+         * Adds time to the last invocation of the block.
+         *
+         * @param time The time to add, in nanoseconds.
+         */
+        void addTime(long time) {
+            nanos += time;
+        }
+
+        private void reset() {
+            calls = 0;
+            nanos = 0;
+            for (Entry child : children) {
+                child.reset();
+            }
+        }
+
+        /**
+         * @return the filter of the block.
+         */
+        public Filter getFilter() {
+            return filter;
+        }
+
+        /**
+         * @return the name of the block: the name of its class, followed by
+         *         its index among the blocks of its composite filter.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the entries of the blocks of a composite filter, in
+         *         insertion order, and an empty list for another filter.
+         */
+        public List<Entry> getChildren() {
+            return Collections.unmodifiableList(children);
+        }
+
+        /**
+         * @return the amount of invocations of the block. Nested composite
+         *         filters are invoked as many times as the profiled filter.
+         */
+        public long getCalls() {
+            if (parent != null && filter instanceof CompositeFilter) {
+                return parent.getCalls();
+            }
+            return calls;
+        }
+
+        /**
+         * @return the time spent in the block, its own blocks included, in
+         *         nanoseconds.
+         */
+        public long getNanos() {
+            return Math.max(nanos, getChildrenNanos());
+        }
+
+        /**
+         * @return the time spent in the block, its own blocks excluded, in
+         *         nanoseconds.
+         */
+        public long getSelfNanos() {
+            return getNanos() - getChildrenNanos();
+        }
+
+        private long getChildrenNanos() {
+            long total = 0;
+            for (Entry child : children) {
+                total += child.getNanos();
+            }
+            return total;
+        }
+    }
+}
@@ -0,0 +1,827 @@
+package be.isach.filterlib.engine;
+
+import be.isach.filterlib.filters.AdditionFilter;
+import be.isach.filterlib.filters.BlockFilter;
+import be.isach.filterlib.filters.CompositeFilter;
+import be.isach.filterlib.filters.CopyableFilter;
+import be.isach.filterlib.filters.DelayFilter;
+import be.isach.filterlib.filters.GainFilter;
+import be.isach.filterlib.filters.StatefulFilter;
+import be.isach.filterlib.filters.WeightedAdditionFilter;
+import be.uliege.montefiore.oop.audio.Filter;
+import be.uliege.montefiore.oop.audio.FilterException;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Single precision variant of a filter, computing every sample as a 32 bits
+ * float instead of a double.
+ * <p>
+ * The filter is compiled into the same schedule as an {@link ExecutionPlan},
+ * whose gains, additions, delays and comb and all-pass kernels are then run
+ * on floats. Delay lines hold floats too, which halves the memory of
+ * filters such as the reverberator, whose lines are tens of thousands of
+ * samples long, and doubles the amount of samples per vector register. Any
+ * other filter of the graph is still computed in double precision, its
+ * inputs and outputs being converted.
+ * </p>
+ * <p>
+ * Single precision is chosen per graph, by wrapping it. Besides the double
+ * buffers of {@link BlockFilter}, filters with one input and one output can
+ * process 16 bits samples directly, possibly interleaved with other
+ * channels, without going through doubles. Outputs differ from those of the
+ * wrapped filter by rounding, see {@link AccuracyReport}: for the echo and
+ * the reverberator, by less than a millionth of the peak of the input, so
+ * that 16 bits samples differ by one at most.
+ * </p>
+ */
+public class FloatFilter implements BlockFilter, CopyableFilter,
+        StatefulFilter {
+
+    /**
+     * Copy of the wrapped filter, which the stages were built from.
+     */
+    private final Filter source;
+
+    private final int nbInputs;
+
+    /**
+     * Slots read by each output of the filter.
+     */
+    private final int[] outputSlots;
+
+    /**
+     * Stages, in the order they have to be computed.
+     */
+    private final Stage[] stages;
+
+    /**
+     * Delay lines resolving the loops, popped before and fed after the
+     * stages.
+     */
+    private final Delay[] breakers;
+
+    /**
+     * Slot each breaker writes its popped values to.
+     */
+    private final int[] breakerOutputSlots;
+
+    /**
+     * Slot each breaker reads its new values from, -1 if never.
+     */
+    private final int[] breakerInputSlots;
+
+    /**
+     * Maximum amount of frames computed at once.
+     */
+    private final int maxBlockSize;
+
+    /**
+     * Buffer of every slot.
+     */
+    private final float[][] values;
+
+    /**
+     * For each stage, its input buffers.
+     */
+    private final float[][][] stageInputs;
+
+    /**
+     * For each stage, its output buffers.
+     */
+    private final float[][][] stageOutputs;
+
+    /**
+     * Initializes the single precision variant of a filter. The filter is
+     * copied, so that it is left untouched, and the variant starts from
+     * silence.
+     *
+     * @param filter The filter to compute in single precision.
+     * @throws FilterException if the filter cannot be copied, or if an
+     *                         output can never be computed.
+     */
+    public FloatFilter(Filter filter) throws FilterException {
+        this.source = CopyableFilter.copy(filter);
+
+        ExecutionPlan plan = ExecutionPlan.compile(asComposite(
+                CopyableFilter.copy(filter)));
+        this.nbInputs = plan.nbInputs();
+        this.outputSlots = plan.getOutputSlots();
+        this.maxBlockSize = plan.getMaxBlockSize();
+
+        this.values = new float[plan.nbSlots()][maxBlockSize];
+        this.breakerOutputSlots = plan.getBreakerOutputSlots();
+        this.breakerInputSlots = plan.getBreakerInputSlots();
+
+        Filter[] filters = plan.getFilters();
+        int[][] inputSlots = plan.getInputSlots();
+        int[] firstOutputSlots = plan.getFirstOutputSlots();
+
+        this.stages = new Stage[filters.length];
+        this.stageInputs = new float[filters.length][][];
+        this.stageOutputs = new float[filters.length][][];
+        for (int i = 0; i < filters.length; i++) {
+            stages[i] = stageOf(filters[i], maxBlockSize);
+            stageInputs[i] = new float[inputSlots[i].length][];
+            for (int j = 0; j < inputSlots[i].length; j++) {
+                stageInputs[i][j] = values[inputSlots[i][j]];
+            }
+            stageOutputs[i] = new float[filters[i].nbOutputs()][];
+            for (int o = 0; o < stageOutputs[i].length; o++) {
+                stageOutputs[i][o] = values[firstOutputSlots[i] + o];
+            }
+        }
+
+        DelayFilter[] delays = plan.getBreakers();
+        this.breakers = new Delay[delays.length];
+        for (int i = 0; i < delays.length; i++) {
+            breakers[i] = new Delay(delays[i].getDelay());
+        }
+    }
+
+    /**
+     * @return the given filter if it is a composite filter, or a composite
+     *         filter made of it alone otherwise.
+     */
+    static CompositeFilter asComposite(Filter filter)
+            throws FilterException {
+        if (filter instanceof CompositeFilter) {
+            return (CompositeFilter) filter;
+        }
+
+        CompositeFilter composite = new CompositeFilter(filter.nbInputs(),
+                filter.nbOutputs());
+        composite.addBlock(filter);
+        for (int i = 0; i < filter.nbInputs(); i++) {
+            composite.connectInputToBlock(i, filter, i);
+        }
+        for (int o = 0; o < filter.nbOutputs(); o++) {
+            composite.connectBlockToOutput(filter, o, o);
+        }
+        return composite;
+    }
+
+    /**
+     * @return the stage computing the given filter, in single precision when
+     *         possible. Subclasses of the library filters are widened as
+     *         any other filter, since they may compute something else.
+     */
+    private static Stage stageOf(Filter filter, int maxBlockSize) {
+        Class<?> type = filter.getClass();
+        if (type == GainFilter.class) {
+            return new Gain(((GainFilter) filter).getGain());
+        }
+        if (type == AdditionFilter.class) {
+            return new Addition();
+        }
+        if (type == WeightedAdditionFilter.class) {
+            WeightedAdditionFilter addition = (WeightedAdditionFilter) filter;
+            return new WeightedAddition(addition.getFirstWeight(),
+                    addition.getSecondWeight());
+        }
+        if (type == DelayFilter.class) {
+            return new Delay(((DelayFilter) filter).getDelay());
+        }
+        if (type == CombKernel.class) {
+            CombKernel comb = (CombKernel) filter;
+            return new Comb(comb.getInputWeight(), comb.getFeedbackWeight(),
+                    comb.getDelay());
+        }
+        if (type == AllPassKernel.class) {
+            AllPassKernel allPass = (AllPassKernel) filter;
+            return new AllPass(allPass.getDirectWeight(),
+                    allPass.getDelayedWeight(),
+                    allPass.getStoredInputWeight(),
+                    allPass.getStoredOutputWeight(), allPass.getDelay());
+        }
+        return new Widened(filter, maxBlockSize);
+    }
+
+    /**
+     * @return the number of inputs of the wrapped filter.
+     */
+    @Override
+    public int nbInputs() {
+        return nbInputs;
+    }
+
+    /**
+     * @return the number of outputs of the wrapped filter.
+     */
+    @Override
+    public int nbOutputs() {
+        return outputSlots.length;
+    }
+
+    /**
+     * Computes one step of the filtering.
+     *
+     * @param input contains the inputs of the filter.
+     * @return an array containing the outputs of the filter.
+     * @throws FilterException if the input array is null or of wrong length,
+     *                         or if a stage fails.
+     */
+    @Override
+    public double[] computeOneStep(double[] input) throws FilterException {
+        double[] output = new double[outputSlots.length];
+        computeOneStep(input, output);
+        return output;
+    }
+
+    /**
+     * Computes one step of the filtering, without allocating any array.
+     *
+     * @param input  contains the inputs of the filter.
+     * @param output receives the outputs of the filter.
+     * @throws FilterException if the arrays are null or of wrong length, or
+     *                         if a stage fails.
+     */
+    @Override
+    public void computeOneStep(double[] input, double[] output)
+            throws FilterException {
+        BlockFilter.checkStep(this, input, output);
+
+        for (int i = 0; i < nbInputs; i++) {
+            values[i][0] = (float) input[i];
+        }
+        execute(1);
+        for (int o = 0; o < outputSlots.length; o++) {
+            output[o] = values[outputSlots[o]][0];
+        }
+    }
+
+    /**
+     * Computes several steps of the filtering at once, rounding the inputs
+     * to floats.
+     *
+     * @param input  contains the input buffers of the filter.
+     * @param output contains the output buffers of the filter.
+     * @param frames the amount of frames to process.
+     * @throws FilterException if the buffers are null or of wrong amount, or
+     *                         if a stage fails.
+     */
+    @Override
+    public void computeBlock(double[][] input, double[][] output, int frames)
+            throws FilterException {
+        BlockFilter.checkBuffers(this, input, output);
+
+        for (int start = 0; start < frames; start += maxBlockSize) {
+            int length = Math.min(maxBlockSize, frames - start);
+            for (int i = 0; i < nbInputs; i++) {
+                float[] target = values[i];
+                double[] in = input[i];
+                for (int n = 0; n < length; n++) {
+                    target[n] = (float) in[start + n];
+                }
+            }
+
+            execute(length);
+
+            for (int o = 0; o < outputSlots.length; o++) {
+                float[] result = values[outputSlots[o]];
+                double[] out = output[o];
+                for (int n = 0; n < length; n++) {
+                    out[start + n] = result[n];
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes several steps of the filtering on 16 bits samples, converted
+     * to floats and back as the audio library does with doubles. Samples may
+     * be interleaved with those of other channels.
+     *
+     * @param input        The input samples.
+     * @param inputOffset  The index of the first input sample.
+     * @param inputStride  The distance between two input samples.
+     * @param output       Receives the output samples.
+     * @param outputOffset The index of the first output sample.
+     * @param outputStride The distance between two output samples.
+     * @param frames       The amount of frames to process.
+     * @throws FilterException if the filter has more than one input or
+     *                         output, or if a stage fails.
+     */
+    public void computeBlock(short[] input, int inputOffset, int inputStride,
+                             short[] output, int outputOffset,
+                             int outputStride, int frames)
+            throws FilterException {
+        if (nbInputs != 1 || outputSlots.length != 1) {
+            throw new FilterException("Only filters with one input and one " +
+                    "output can process 16 bits samples.");
+        }
+
+        float[] in = values[0];
+        float[] out = values[outputSlots[0]];
+        for (int start = 0; start < frames; start += maxBlockSize) {
+            int length = Math.min(maxBlockSize, frames - start);
+            int index = inputOffset + start * inputStride;
+            for (int n = 0; n < length; n++) {
+                in[n] = input[index];
+                index += inputStride;
+            }
+
+            execute(length);
+
+            index = outputOffset + start * outputStride;
+            for (int n = 0; n < length; n++) {
+                output[index] = (short) (int) out[n];
+                index += outputStride;
+            }
+        }
+    }
+
+    /**
+     * Computes a block no longer than the maximum block size, whose inputs
+     * are in the first slots.
+     */
+    private void execute(int frames) throws FilterException {
+        for (int i = 0; i < breakers.length; i++) {
+            breakers[i].pop(values[breakerOutputSlots[i]], frames);
+        }
+
+        for (int i = 0; i < stages.length; i++) {
+            stages[i].compute(stageInputs[i], stageOutputs[i], frames);
+        }
+
+        for (int i = 0; i < breakers.length; i++) {
+            if (breakerInputSlots[i] >= 0) {
+                breakers[i].enqueue(values[breakerInputSlots[i]], frames);
+            }
+        }
+    }
+
+    /**
+     * Creates the single precision variant of a copy of the wrapped filter,
+     * starting from silence.
+     *
+     * @return the copy of the filter.
+     * @throws FilterException if the wrapped filter cannot be copied.
+     */
+    @Override
+    public FloatFilter copy() throws FilterException {
+        return new FloatFilter(source);
+    }
+
+    /**
+     * Writes the state of every stage and breaker, the values of the delay
+     * lines being written as doubles.
+     *
+     * @param out The destination of the state.
+     * @throws FilterException if a stage computed in double precision has no
+     *                         state to save.
+     * @throws IOException     if the state cannot be written.
+     */
+    @Override
+    public void saveState(DataOutput out)
+            throws FilterException, IOException {
+        out.writeInt(stages.length);
+        out.writeInt(breakers.length);
+        for (Stage stage : stages) {
+            stage.saveState(out);
+        }
+        for (Delay breaker : breakers) {
+            breaker.saveState(out);
+        }
+    }
+
+    /**
+     * Reads back a state written by {@link #saveState(DataOutput)}.
+     *
+     * @param in The source of the state.
+     * @throws FilterException if a stage computed in double precision has no
+     *                         state to restore.
+     * @throws IOException     if the state cannot be read, or does not match
+     *                         the filter.
+     */
+    @Override
+    public void restoreState(DataInput in)
+            throws FilterException, IOException {
+        if (in.readInt() != stages.length
+                || in.readInt() != breakers.length) {
+            throw new IOException("Snapshot does not match the filter.");
+        }
+        for (Stage stage : stages) {
+            stage.restoreState(in);
+        }
+        for (Delay breaker : breakers) {
+            breaker.restoreState(in);
+        }
+    }
+
+    /**
+     * Resets every stage and breaker.
+     */
+    @Override
+    public void reset() {
+        for (Stage stage : stages) {
+            stage.reset();
+        }
+        for (Delay breaker : breakers) {
+            breaker.reset();
+        }
+    }
+
+    /**
+     * @return the maximum amount of frames computed at once.
+     */
+    public int getMaxBlockSize() {
+        return maxBlockSize;
+    }
+
+    /**
+     * @return the amount of floats held by the delay lines of the filter.
+     */
+    public long getDelayLineSize() {
+        long size = 0;
+        for (Stage stage : stages) {
+            size += stage.getLineSize();
+        }
+        for (Delay breaker : breakers) {
+            size += breaker.getLineSize();
+        }
+        return size;
+    }
+
+    /**
+     * Filter of the schedule, computed on blocks of floats.
+     */
+    private abstract static class Stage {
+
+        /**
+         * Computes several steps of the filter.
+         *
+         * @param input  The input buffers of the filter.
+         * @param output The output buffers of the filter.
+         * @param frames The amount of frames to process.
+         * @throws FilterException if the filter fails.
+         */
+        abstract void compute(float[][] input, float[][] output, int frames)
+                throws FilterException;
+
+        /**
+         * Writes the state of the stage, nothing by default.
+         */
+        void saveState(DataOutput out) throws FilterException, IOException {
+        }
+
+        /**
+         * Reads back the state of the stage, nothing by default.
+         */
+        void restoreState(DataInput in) throws FilterException, IOException {
+        }
+
+        /**
+         * Resets the stage, nothing to do by default.
+         */
+        void reset() {
+        }
+
+        /**
+         * @return the amount of floats held by the stage, 0 by default.
+         */
+        int getLineSize() {
+            return 0;
+        }
+    }
+
+    /**
+     * Multiplication by a gain.
+     */
+    private static final class Gain extends Stage {
+
+        private final float gain;
+
+        private Gain(double gain) {
+            this.gain = (float) gain;
+        }
+
+        /**
+         * Multiplies the input by the gain.
+         */
+        @Override
+        void compute(float[][] input, float[][] output, int frames) {
+            float[] in = input[0];
+            float[] out = output[0];
+            for (int n = 0; n < frames; n++) {
+                out[n] = gain * in[n];
+            }
+        }
+    }
+
+    /**
+     * Sum of two inputs.
+     */
+    private static final class Addition extends Stage {
+
+        /**
+         * Sums the two inputs.
+         */
+        @Override
+        void compute(float[][] input, float[][] output, int frames) {
+            float[] first = input[0];
+            float[] second = input[1];
+            float[] out = output[0];
+            for (int n = 0; n < frames; n++) {
+                out[n] = first[n] + second[n];
+            }
+        }
+    }
+
+    /**
+     * Weighted sum of two inputs.
+     */
+    private static final class WeightedAddition extends Stage {
+
+        private final float firstWeight;
+
+        private final float secondWeight;
+
+        private WeightedAddition(double firstWeight, double secondWeight) {
+            this.firstWeight = (float) firstWeight;
+            this.secondWeight = (float) secondWeight;
+        }
+
+        /**
+         * Sums the two inputs, each multiplied by its weight.
+         */
+        @Override
+        void compute(float[][] input, float[][] output, int frames) {
+            float[] first = input[0];
+            float[] second = input[1];
+            float[] out = output[0];
+            for (int n = 0; n < frames; n++) {
+                out[n] = firstWeight * first[n] + secondWeight * second[n];
+            }
+        }
+    }
+
+    /**
+     * Ring buffer of floats, whose capacity is a power of two.
+     */
+    private abstract static class Line extends Stage {
+
+        /**
+         * The amount of samples after which values are read.
+         */
+        final int delay;
+
+        final float[] queue;
+
+        /**
+         * Capacity of the ring buffer minus one.
+         */
+        final int mask;
+
+        /**
+         * Position of the next value written. The one read is delay
+         * positions before.
+         */
+        int counter;
+
+        private Line(int delay) {
+            this.delay = delay;
+            this.queue = new float[DelayFilter.capacityOf(delay)];
+            this.mask = queue.length - 1;
+            this.counter = delay & mask;
+        }
+
+        /**
+         * Writes the values of the line, in the order they will be read.
+         */
+        @Override
+        void saveState(DataOutput out) throws IOException {
+            double[] pending = new double[delay];
+            int start = counter - delay;
+            for (int n = 0; n < delay; n++) {
+                pending[n] = queue[(start + n) & mask];
+            }
+            StatefulFilter.writeValues(out, pending);
+        }
+
+        /**
+         * Reads back the values of the line.
+         */
+        @Override
+        void restoreState(DataInput in) throws IOException {
+            double[] pending = StatefulFilter.readValues(in, delay);
+            Arrays.fill(queue, 0);
+            for (int n = 0; n < delay; n++) {
+                queue[n] = (float) pending[n];
+            }
+            counter = delay & mask;
+        }
+
+        /**
+         * Clears the line.
+         */
+        @Override
+        void reset() {
+            Arrays.fill(queue, 0);
+            counter = delay & mask;
+        }
+
+        /**
+         * @return the capacity of the line.
+         */
+        @Override
+        int getLineSize() {
+            return queue.length;
+        }
+    }
+
+    /**
+     * Delay line, either scheduled like any filter or resolving a loop.
+     */
+    private static final class Delay extends Line {
+
+        private Delay(int delay) {
+            super(delay);
+        }
+
+        /**
+         * Delays the input.
+         */
+        @Override
+        void compute(float[][] input, float[][] output, int frames) {
+            float[] in = input[0];
+            float[] out = output[0];
+            int c = counter;
+            int r = (c - delay) & mask;
+            for (int n = 0; n < frames; n++) {
+                out[n] = queue[r];
+                queue[c] = in[n];
+                c = (c + 1) & mask;
+                r = (r + 1) & mask;
+            }
+            counter = c;
+        }
+
+        /**
+         * Reads the next values of the line, which must not be longer than
+         * its delay.
+         */
+        private void pop(float[] output, int frames) {
+            int r = counter - delay;
+            for (int n = 0; n < frames; n++) {
+                output[n] = queue[(r + n) & mask];
+            }
+        }
+
+        /**
+         * Writes the new values of the line, after they were popped.
+         */
+        private void enqueue(float[] input, int frames) {
+            int c = counter;
+            for (int n = 0; n < frames; n++) {
+                queue[(c + n) & mask] = input[n];
+            }
+            counter = (c + frames) & mask;
+        }
+    }
+
+    /**
+     * Feedback comb filter, see {@link CombKernel}.
+     */
+    private static final class Comb extends Line {
+
+        private final float inputWeight;
+
+        private final float feedbackWeight;
+
+        private Comb(double inputWeight, double feedbackWeight, int delay) {
+            super(delay);
+            this.inputWeight = (float) inputWeight;
+            this.feedbackWeight = (float) feedbackWeight;
+        }
+
+        /**
+         * Computes the comb filter, one sample after the other.
+         */
+        @Override
+        void compute(float[][] input, float[][] output, int frames) {
+            float[] in = input[0];
+            float[] out = output[0];
+            int c = counter;
+            int r = (c - delay) & mask;
+            for (int n = 0; n < frames; n++) {
+                float y = inputWeight * in[n] + feedbackWeight * queue[r];
+                queue[c] = y;
+                c = (c + 1) & mask;
+                r = (r + 1) & mask;
+                out[n] = y;
+            }
+            counter = c;
+        }
+    }
+
+    /**
+     * Schroeder all-pass filter, see {@link AllPassKernel}.
+     */
+    private static final class AllPass extends Line {
+
+        private final float directWeight;
+
+        private final float delayedWeight;
+
+        private final float storedInputWeight;
+
+        private final float storedOutputWeight;
+
+        private AllPass(double directWeight, double delayedWeight,
+                        double storedInputWeight, double storedOutputWeight,
+                        int delay) {
+            super(delay);
+            this.directWeight = (float) directWeight;
+            this.delayedWeight = (float) delayedWeight;
+            this.storedInputWeight = (float) storedInputWeight;
+            this.storedOutputWeight = (float) storedOutputWeight;
+        }
+
+        /**
+         * Computes the all-pass filter, one sample after the other.
+         */
+        @Override
+        void compute(float[][] input, float[][] output, int frames) {
+            float[] in = input[0];
+            float[] out = output[0];
+            int c = counter;
+            int r = (c - delay) & mask;
+            for (int n = 0; n < frames; n++) {
+                float x = in[n];
+                float y = directWeight * x + delayedWeight * queue[r];
+                queue[c] = storedInputWeight * x + storedOutputWeight * y;
+                c = (c + 1) & mask;
+                r = (r + 1) & mask;
+                out[n] = y;
+            }
+            counter = c;
+        }
+    }
+
+    /**
+     * Filter without a single precision variant, computed in double
+     * precision between conversions.
+     */
+    private static final class Widened extends Stage {
+
+        private final Filter filter;
+
+        private final double[][] input;
+
+        private final double[][] output;
+
+        private Widened(Filter filter, int maxBlockSize) {
+            this.filter = filter;
+            this.input = new double[filter.nbInputs()][maxBlockSize];
+            this.output = new double[filter.nbOutputs()][maxBlockSize];
+        }
+
+        /**
+         * Converts the inputs to doubles, computes the filter, and rounds its
+         * outputs to floats.
+         */
+        @Override
+        void compute(float[][] in, float[][] out, int frames)
+                throws FilterException {
+            for (int i = 0; i < in.length; i++) {
+                for (int n = 0; n < frames; n++) {
+                    input[i][n] = in[i][n];
+                }
+            }
+            BlockFilter.computeBlock(filter, input, output, frames);
+            for (int o = 0; o < out.length; o++) {
+                for (int n = 0; n < frames; n++) {
+                    out[o][n] = (float) output[o][n];
+                }
+            }
+        }
+
+        /**
+         * Writes the state of the filter.
+         */
+        @Override
+        void saveState(DataOutput out) throws FilterException, IOException {
+            StatefulFilter.save(filter, out);
+        }
+
+        /**
+         * Reads back the state of the filter.
+         */
+        @Override
+        void restoreState(DataInput in) throws FilterException, IOException {
+            StatefulFilter.restore(filter, in);
+        }
+
+        /**
+         * Resets the filter.
+         */
+        @Override
+        void reset() {
+            filter.reset();
+        }
+    }
+}
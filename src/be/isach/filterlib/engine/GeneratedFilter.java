@@ -0,0 +1,326 @@
+package be.isach.filterlib.engine;
+
+import be.isach.filterlib.filters.BlockFilter;
+import be.isach.filterlib.filters.CopyableFilter;
+import be.isach.filterlib.filters.DelayFilter;
+import be.isach.filterlib.filters.StatefulFilter;
+import be.uliege.montefiore.oop.audio.Filter;
+import be.uliege.montefiore.oop.audio.FilterException;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.util.Arrays;
+
+/**
+ * Base class of the filters generated by the {@link FilterCompiler}.
+ * <p>
+ * A generated subclass computes the whole schedule of a graph as straight
+ * arithmetic, reading and writing the delay lines held by this class. Delay
+ * lines are power of two ring buffers, placed next to each other in one
+ * array as in execution plans. Gains, weights and delays are read from
+ * fields rather than written in the code, so that one class serves every
+ * graph of the same shape. Filters the compiler does not know are
+ * still called through the filter interface.
+ * </p>
+ */
+public abstract class GeneratedFilter implements BlockFilter,
+        CopyableFilter, StatefulFilter {
+
+    /**
+     * Parameter types of the constructor of every generated filter.
+     */
+    static final Class<?>[] CONSTRUCTOR_TYPES = {int.class, int.class,
+            double[][].class, double[].class, Filter[].class};
+
+    /**
+     * Amount of inputs of the filter.
+     */
+    private final int nbInputs;
+
+    /**
+     * Amount of outputs of the filter.
+     */
+    private final int nbOutputs;
+
+    /**
+     * Delay of each ring buffer.
+     */
+    protected final int[] delays;
+
+    /**
+     * Capacity of each ring buffer minus one, a power of two minus one.
+     */
+    protected final int[] masks;
+
+    /**
+     * Array holding the ring buffers of the delays and kernels of the graph.
+     */
+    protected final double[] arena;
+
+    /**
+     * Index of each ring buffer in the arena.
+     */
+    protected final int[] offsets;
+
+    /**
+     * Position of the next value written in each ring buffer. The value read
+     * is delay positions before.
+     */
+    protected final int[] counters;
+
+    /**
+     * Gains and weights of the graph, in the order the code reads them.
+     */
+    protected final double[] coefficients;
+
+    /**
+     * Filters of the graph that are not generated.
+     */
+    protected final Filter[] others;
+
+    /**
+     * Reused input arrays of the filters that are not generated.
+     */
+    protected final double[][] arguments;
+
+    /**
+     * Reused output arrays of the filters that are not generated.
+     */
+    protected final double[][] results;
+
+    /**
+     * Initializes a generated filter.
+     *
+     * @param nbInputs     The amount of inputs of the filter.
+     * @param nbOutputs    The amount of outputs of the filter.
+     * @param lines        The initial content of each ring buffer, in the
+     *                     order values will be read. Their lengths are the
+     *                     delays.
+     * @param coefficients The gains and weights of the graph.
+     * @param others       The filters of the graph that are not generated.
+     * @throws IllegalArgumentException if the ring buffers do not fit in one
+     *                                  array.
+     */
+    protected GeneratedFilter(int nbInputs, int nbOutputs, double[][] lines,
+                              double[] coefficients, Filter[] others) {
+        this.nbInputs = nbInputs;
+        this.nbOutputs = nbOutputs;
+        this.coefficients = coefficients;
+        this.others = others;
+
+        this.delays = new int[lines.length];
+        this.masks = new int[lines.length];
+        int[] capacities = new int[lines.length];
+        for (int i = 0; i < lines.length; i++) {
+            delays[i] = lines[i].length;
+            capacities[i] = DelayFilter.capacityOf(delays[i]);
+            masks[i] = capacities[i] - 1;
+        }
+        this.offsets = DelayArena.layout(capacities);
+        if (offsets == null) {
+            throw new IllegalArgumentException("Delay lines are too large.");
+        }
+        this.arena = new double[DelayArena.size(capacities, offsets)];
+        this.counters = new int[lines.length];
+        for (int i = 0; i < lines.length; i++) {
+            System.arraycopy(lines[i], 0, arena, offsets[i], delays[i]);
+            counters[i] = delays[i] & (capacities[i] - 1);
+        }
+
+        this.arguments = new double[others.length][];
+        this.results = new double[others.length][];
+        for (int i = 0; i < others.length; i++) {
+            arguments[i] = new double[others[i].nbInputs()];
+            results[i] = new double[others[i].nbOutputs()];
+        }
+    }
+
+    /**
+     * Computes one step of the graph.
+     *
+     * @param input  The inputs of the graph.
+     * @param output Receives the outputs of the graph.
+     * @throws FilterException if a filter that is not generated fails.
+     */
+    protected abstract void step(double[] input, double[] output)
+            throws FilterException;
+
+    /**
+     * Computes several steps of the graph.
+     *
+     * @param input  The input buffers of the graph.
+     * @param output The output buffers of the graph.
+     * @param frames The amount of frames to process.
+     * @throws FilterException if a filter that is not generated fails.
+     */
+    protected abstract void run(double[][] input, double[][] output,
+                                int frames) throws FilterException;
+
+    /**
+     * @return the number of inputs of the filter.
+     */
+    @Override
+    public int nbInputs() {
+        return nbInputs;
+    }
+
+    /**
+     * @return the number of outputs of the filter.
+     */
+    @Override
+    public int nbOutputs() {
+        return nbOutputs;
+    }
+
+    /**
+     * Computes one step of the graph.
+     *
+     * @param input contains one sample per input of the filter.
+     * @return an array containing one sample per output of the filter.
+     * @throws FilterException if the input array is null or of wrong length.
+     */
+    @Override
+    public double[] computeOneStep(double[] input) throws FilterException {
+        double[] output = new double[nbOutputs];
+        computeOneStep(input, output);
+        return output;
+    }
+
+    /**
+     * Computes one step of the graph, without allocating any array.
+     *
+     * @param input  contains one sample per input of the filter.
+     * @param output receives one sample per output of the filter.
+     * @throws FilterException if the arrays are null or of wrong length.
+     */
+    @Override
+    public void computeOneStep(double[] input, double[] output)
+            throws FilterException {
+        BlockFilter.checkStep(this, input, output);
+
+        step(input, output);
+    }
+
+    /**
+     * Computes several steps of the graph.
+     *
+     * @param input  The input buffers, one per input of the filter.
+     * @param output The output buffers, one per output of the filter.
+     * @param frames The amount of frames to process.
+     * @throws FilterException if the buffers are null or of wrong amount.
+     */
+    @Override
+    public void computeBlock(double[][] input, double[][] output, int frames)
+            throws FilterException {
+        BlockFilter.checkBuffers(this, input, output);
+
+        run(input, output, frames);
+    }
+
+    /**
+     * Creates a filter of the same generated class, with empty ring buffers
+     * and copies of the filters that are not generated.
+     *
+     * @return the copy of the filter, in its initial state.
+     * @throws FilterException if a filter that is not generated cannot be
+     *                         copied.
+     */
+    @Override
+    public GeneratedFilter copy() throws FilterException {
+        double[][] emptyLines = new double[delays.length][];
+        for (int i = 0; i < delays.length; i++) {
+            emptyLines[i] = new double[delays[i]];
+        }
+
+        Filter[] copies = new Filter[others.length];
+        for (int i = 0; i < others.length; i++) {
+            copies[i] = CopyableFilter.copy(others[i]);
+        }
+
+        try {
+            Constructor<?> constructor =
+                    getClass().getConstructor(CONSTRUCTOR_TYPES);
+            return (GeneratedFilter) constructor.newInstance(nbInputs,
+                    nbOutputs, emptyLines, coefficients, copies);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            throw new FilterException("Filter cannot be copied: "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the values held by every ring buffer, then the state of the
+     * filters that are not generated.
+     *
+     * @param out The destination of the state.
+     * @throws FilterException if a filter that is not generated has no
+     *                         state to save.
+     * @throws IOException     if the state cannot be written.
+     */
+    @Override
+    public void saveState(DataOutput out)
+            throws FilterException, IOException {
+        out.writeInt(delays.length);
+        for (int i = 0; i < delays.length; i++) {
+            int mask = DelayFilter.capacityOf(delays[i]) - 1;
+            int start = (counters[i] - delays[i]) & mask;
+            double[] values = new double[delays[i]];
+            for (int k = 0; k < values.length; k++) {
+                values[k] = arena[offsets[i] + ((start + k) & mask)];
+            }
+            StatefulFilter.writeValues(out, values);
+        }
+
+        out.writeInt(others.length);
+        for (Filter filter : others) {
+            StatefulFilter.save(filter, out);
+        }
+    }
+
+    /**
+     * Reads back a state written by {@link #saveState(DataOutput)}.
+     *
+     * @param in The source of the state.
+     * @throws FilterException if a filter that is not generated has no
+     *                         state to restore.
+     * @throws IOException     if the state cannot be read, or does not match
+     *                         the filter.
+     */
+    @Override
+    public void restoreState(DataInput in)
+            throws FilterException, IOException {
+        if (in.readInt() != delays.length) {
+            throw new IOException("Snapshot does not match the filter.");
+        }
+        for (int i = 0; i < delays.length; i++) {
+            double[] values = StatefulFilter.readValues(in, delays[i]);
+            System.arraycopy(values, 0, arena, offsets[i], delays[i]);
+            counters[i] = delays[i] & (DelayFilter.capacityOf(delays[i]) - 1);
+        }
+
+        if (in.readInt() != others.length) {
+            throw new IOException("Snapshot does not match the filter.");
+        }
+        for (Filter filter : others) {
+            StatefulFilter.restore(filter, in);
+        }
+    }
+
+    /**
+     * Resets the filter, clearing every ring buffer and resetting the
+     * filters that are not generated.
+     */
+    @Override
+    public void reset() {
+        Arrays.fill(arena, 0);
+        for (int i = 0; i < delays.length; i++) {
+            counters[i] = delays[i] & (DelayFilter.capacityOf(delays[i]) - 1);
+        }
+
+        for (Filter filter : others) {
+            filter.reset();
+        }
+    }
+}
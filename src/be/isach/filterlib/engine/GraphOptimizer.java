@@ -0,0 +1,350 @@
+package be.isach.filterlib.engine;
+
+import be.isach.filterlib.engine.FilterGraph.Node;
+import be.isach.filterlib.engine.FilterGraph.Port;
+import be.isach.filterlib.filters.AdditionFilter;
+import be.isach.filterlib.filters.DelayFilter;
+import be.isach.filterlib.filters.GainFilter;
+import be.isach.filterlib.filters.WeightedAdditionFilter;
+import be.uliege.montefiore.oop.audio.Filter;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rewrites a flat filter graph into an equivalent one with fewer nodes.
+ * <p>
+ * The following passes are repeated until none of them applies anymore:
+ * </p>
+ * <ul>
+ *     <li>blocks whose outputs never reach an output of the graph are
+ *     removed;</li>
+ *     <li>a delay filter only read by another delay filter is merged with
+ *     it;</li>
+ *     <li>a gain filter only read by another gain filter is folded into
+ *     it;</li>
+ *     <li>gain filters only read by an addition filter are fused into a
+ *     single weighted addition filter;</li>
+ *     <li>additions looped through a delay filter in the shape of an echo,
+ *     low-pass or all-pass filter are replaced by a {@link CombKernel} or an
+ *     {@link AllPassKernel}, wherever they come from.</li>
+ * </ul>
+ * <p>
+ * Nodes created by the optimizer hold their own state, which is why the
+ * execution plan resets its filters itself. Fusing gains into additions and
+ * substituting kernels give exactly the same output, while folding two gains
+ * into one may differ by rounding.
+ * </p>
+ */
+public class GraphOptimizer {
+
+    /**
+     * Optimizes a graph, in place.
+     *
+     * @param graph The graph to optimize.
+     * @return the optimized graph.
+     */
+    public static FilterGraph optimize(FilterGraph graph) {
+        boolean changed = true;
+        while (changed) {
+            changed = removeDeadNodes(graph);
+            changed |= mergeDelays(graph);
+            changed |= foldGains(graph);
+            changed |= fuseGains(graph);
+            changed |= substituteKernels(graph);
+        }
+        return graph;
+    }
+
+    /**
+     * Removes the nodes that do not contribute to any output of the graph.
+     *
+     * @return {@code true} if a node was removed, {@code false} otherwise.
+     */
+    static boolean removeDeadNodes(FilterGraph graph) {
+        Map<Node, Boolean> alive = new IdentityHashMap<>();
+        List<Node> stack = new ArrayList<>();
+        for (Port port : graph.getOutputs()) {
+            if (port != null && !port.isGraphInput()) stack.add(port.getNode());
+        }
+
+        while (!stack.isEmpty()) {
+            Node node = stack.remove(stack.size() - 1);
+            if (alive.put(node, true) != null) continue;
+
+            for (Port port : node.getInputs()) {
+                if (port != null && !port.isGraphInput()) {
+                    stack.add(port.getNode());
+                }
+            }
+        }
+
+        return graph.getNodes().removeIf(node -> !alive.containsKey(node));
+    }
+
+    /**
+     * Merges every delay filter only read by another delay filter with it.
+     *
+     * @return {@code true} if delays were merged, {@code false} otherwise.
+     */
+    static boolean mergeDelays(FilterGraph graph) {
+        boolean changed = false;
+        for (Node second : new ArrayList<>(graph.getNodes())) {
+            if (!graph.getNodes().contains(second)) continue;
+
+            Node first = singleReaderSource(graph, second, 0,
+                    DelayFilter.class);
+            if (second.getFilter().getClass() != DelayFilter.class
+                    || first == null) {
+                continue;
+            }
+
+            Node merged = graph.replaceNode(second, DelayFilter.chain(
+                    (DelayFilter) first.getFilter(),
+                    (DelayFilter) second.getFilter()));
+            merged.getInputs()[0] = first.getInputs()[0];
+            graph.getNodes().remove(first);
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Folds every gain filter only read by another gain filter into it.
+     *
+     * @return {@code true} if gains were folded, {@code false} otherwise.
+     */
+    static boolean foldGains(FilterGraph graph) {
+        boolean changed = false;
+        for (Node second : new ArrayList<>(graph.getNodes())) {
+            if (!graph.getNodes().contains(second)) continue;
+
+            Node first = singleReaderSource(graph, second, 0,
+                    GainFilter.class);
+            if (second.getFilter().getClass() != GainFilter.class
+                    || first == null) {
+                continue;
+            }
+
+            double gain = ((GainFilter) second.getFilter()).getGain()
+                    * ((GainFilter) first.getFilter()).getGain();
+            Node folded = graph.replaceNode(second, new GainFilter(gain));
+            folded.getInputs()[0] = first.getInputs()[0];
+            graph.getNodes().remove(first);
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Fuses the gain filters only read by an addition filter into a single
+     * weighted addition filter.
+     *
+     * @return {@code true} if gains were fused, {@code false} otherwise.
+     */
+    static boolean fuseGains(FilterGraph graph) {
+        boolean changed = false;
+        for (Node addition : new ArrayList<>(graph.getNodes())) {
+            if (!graph.getNodes().contains(addition)) continue;
+
+            double[] weights = weightsOf(addition.getFilter());
+            if (weights == null) continue;
+
+            Port[] inputs = addition.getInputs().clone();
+            Node[] gains = new Node[2];
+            for (int i = 0; i < 2; i++) {
+                gains[i] = singleReaderSource(graph, addition, i,
+                        GainFilter.class);
+                if (gains[i] != null) {
+                    weights[i] *= ((GainFilter) gains[i].getFilter())
+                            .getGain();
+                    inputs[i] = gains[i].getInputs()[0];
+                }
+            }
+
+            if (gains[0] == null && gains[1] == null) continue;
+
+            Node fused = graph.replaceNode(addition,
+                    new WeightedAdditionFilter(weights[0], weights[1]));
+            System.arraycopy(inputs, 0, fused.getInputs(), 0, 2);
+            for (Node gain : gains) {
+                if (gain != null) graph.getNodes().remove(gain);
+            }
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Replaces the loops matching a comb or an all-pass filter by the
+     * corresponding kernel, which takes over the values held by the delay.
+     *
+     * @return {@code true} if a kernel was substituted,
+     *         {@code false} otherwise.
+     */
+    static boolean substituteKernels(FilterGraph graph) {
+        boolean changed = false;
+        for (Node node : new ArrayList<>(graph.getNodes())) {
+            if (graph.getNodes().contains(node)
+                    && weightsOf(node.getFilter()) != null) {
+                changed |= substituteComb(graph, node)
+                        || substituteAllPass(graph, node);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Substitutes a comb kernel to an addition reading its own output
+     * through a delay filter: {@code y[n] = a * x[n] + b * y[n - d]}.
+     *
+     * @return {@code true} if the kernel was substituted,
+     *         {@code false} otherwise.
+     */
+    private static boolean substituteComb(FilterGraph graph, Node addition) {
+        double[] weights = weightsOf(addition.getFilter());
+        for (int k = 0; k < 2; k++) {
+            Node delay = singleReaderSource(graph, addition, k,
+                    DelayFilter.class);
+            Port input = addition.getInputs()[1 - k];
+            if (delay == null || input == null
+                    || !reads(delay, 0, addition)
+                    || reads(addition, 1 - k, addition, delay)) {
+                continue;
+            }
+
+            Node kernel = graph.replaceNode(addition, new CombKernel(
+                    weights[1 - k], weights[k],
+                    ((DelayFilter) delay.getFilter()).getPendingValues()));
+            kernel.getInputs()[0] = input;
+            graph.getNodes().remove(delay);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Substitutes an all-pass kernel to an addition reading, through a delay
+     * filter, another addition of the same input and of its own output:
+     * {@code y[n] = a * x[n] + b * w[n - d]} and
+     * {@code w[n] = c * x[n] + e * y[n]}.
+     *
+     * @return {@code true} if the kernel was substituted,
+     *         {@code false} otherwise.
+     */
+    private static boolean substituteAllPass(FilterGraph graph, Node output) {
+        double[] outputWeights = weightsOf(output.getFilter());
+        for (int k = 0; k < 2; k++) {
+            Node delay = singleReaderSource(graph, output, k,
+                    DelayFilter.class);
+            Port input = output.getInputs()[1 - k];
+            if (delay == null || input == null) continue;
+
+            Node stored = singleReaderSource(graph, delay, 0, Filter.class);
+            if (stored == null || stored == output
+                    || weightsOf(stored.getFilter()) == null
+                    || reads(output, 1 - k, output, delay, stored)) {
+                continue;
+            }
+
+            double[] storedWeights = weightsOf(stored.getFilter());
+            for (int j = 0; j < 2; j++) {
+                if (!samePort(stored.getInputs()[j], input)
+                        || !reads(stored, 1 - j, output)) {
+                    continue;
+                }
+
+                Node kernel = graph.replaceNode(output, new AllPassKernel(
+                        outputWeights[1 - k], outputWeights[k],
+                        storedWeights[j], storedWeights[1 - j],
+                        ((DelayFilter) delay.getFilter())
+                                .getPendingValues()));
+                kernel.getInputs()[0] = input;
+                graph.getNodes().remove(delay);
+                graph.getNodes().remove(stored);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the weights of the inputs of an addition filter, or null if
+     *         the filter is not an addition.
+     */
+    private static double[] weightsOf(Filter filter) {
+        if (filter.getClass() == AdditionFilter.class) {
+            return new double[]{1, 1};
+        }
+        if (filter.getClass() == WeightedAdditionFilter.class) {
+            WeightedAdditionFilter weighted = (WeightedAdditionFilter) filter;
+            return new double[]{weighted.getFirstWeight(),
+                    weighted.getSecondWeight()};
+        }
+        return null;
+    }
+
+    /**
+     * @return {@code true} if the given input of a node reads the first
+     *         output of one of the given sources, {@code false} otherwise.
+     */
+    private static boolean reads(Node node, int input, Node... sources) {
+        Port port = node.getInputs()[input];
+        if (port == null || port.isGraphInput() || port.getIndex() != 0) {
+            return false;
+        }
+        for (Node source : sources) {
+            if (port.getNode() == source) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return {@code true} if both ports read the same output,
+     *         {@code false} otherwise.
+     */
+    private static boolean samePort(Port first, Port second) {
+        return first != null && second != null
+                && first.getNode() == second.getNode()
+                && first.getIndex() == second.getIndex();
+    }
+
+    /**
+     * Finds the node feeding an input of another node, if it is of the
+     * given type and the input is its only reader.
+     *
+     * @param graph The graph the nodes belong to.
+     * @param node  The node reading the input.
+     * @param input The input of the node.
+     * @param type  The expected class of filter of the source node,
+     *              {@code Filter} for any filter.
+     * @return the source node, or null if it does not match.
+     */
+    private static Node singleReaderSource(FilterGraph graph, Node node,
+                                           int input,
+                                           Class<? extends Filter> type) {
+        if (node.getInputs().length <= input) return null;
+
+        Port port = node.getInputs()[input];
+        if (port == null || port.isGraphInput()
+                || port.getNode() == node
+                || !matches(port.getNode().getFilter(), type)
+                || graph.countReaders(port.getNode(), port.getIndex()) != 1) {
+            return null;
+        }
+        return port.getNode();
+    }
+
+    /**
+     * @return {@code true} if the filter is exactly of the given class, or
+     *         if any filter is expected, {@code false} otherwise. Subclasses
+     *         of the library filters may override their behaviour, so they
+     *         are never merged or replaced.
+     */
+    private static boolean matches(Filter filter,
+                                   Class<? extends Filter> type) {
+        return type == Filter.class || filter.getClass() == type;
+    }
+}
@@ -0,0 +1,937 @@
+package be.isach.filterlib.engine;
+
+import be.isach.filterlib.filters.AdditionFilter;
+import be.isach.filterlib.filters.BlockFilter;
+import be.isach.filterlib.filters.CopyableFilter;
+import be.isach.filterlib.filters.DelayFilter;
+import be.isach.filterlib.filters.GainFilter;
+import be.isach.filterlib.filters.StatefulFilter;
+import be.isach.filterlib.filters.WeightedAdditionFilter;
+import be.uliege.montefiore.oop.audio.Filter;
+import be.uliege.montefiore.oop.audio.FilterException;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Filter applied to several independent streams, its lanes, by a single
+ * compiled graph.
+ * <p>
+ * The filter is compiled into the same schedule as an
+ * {@link ExecutionPlan}, but each of its buffers and delay lines holds the
+ * values of every lane side by side: the value of lane {@code k} at frame
+ * {@code n} is at index {@code n * lanes + k}. Each stage thus advances all
+ * lanes in one pass, over contiguous values the JIT vectorizes, even within
+ * loops such as the feedback of a low-pass filter, whose frames can only be
+ * computed one after the other. Gains, additions, delays and the comb and
+ * all-pass kernels are computed this way; any other filter of the graph is
+ * computed by one copy per lane.
+ * </p>
+ * <p>
+ * Lanes hold either independent streams sharing a configuration, or the
+ * channels of the same stream: the lanes of a filter with one input and one
+ * output are laid out as interleaved frames, which are read and written as
+ * 16 bits samples directly. As a {@link Filter}, the inputs and outputs of
+ * every lane follow each other, those of the first lane first. Outputs of
+ * each lane are exactly those of the wrapped filter.
+ * </p>
+ */
+public class MultiLaneFilter implements BlockFilter, CopyableFilter,
+        StatefulFilter {
+
+    /**
+     * Amount of values of all lanes computed at once, so that the buffers
+     * of a block stay in the cache whatever the amount of lanes.
+     */
+    private static final int BLOCK_VALUES = 4096;
+
+    /**
+     * Copy of the wrapped filter, which the stages were built from.
+     */
+    private final Filter source;
+
+    private final int lanes;
+
+    /**
+     * The number of inputs of the wrapped filter.
+     */
+    private final int laneInputs;
+
+    /**
+     * Slots read by each output of the wrapped filter.
+     */
+    private final int[] outputSlots;
+
+    /**
+     * Stages, in the order they have to be computed.
+     */
+    private final Stage[] stages;
+
+    /**
+     * Delay lines resolving the loops, popped before and fed after the
+     * stages.
+     */
+    private final Delay[] breakers;
+
+    /**
+     * Slot each breaker writes its popped values to.
+     */
+    private final int[] breakerOutputSlots;
+
+    /**
+     * Slot each breaker reads its new values from, -1 if never.
+     */
+    private final int[] breakerInputSlots;
+
+    /**
+     * Maximum amount of frames computed at once.
+     */
+    private final int maxBlockSize;
+
+    /**
+     * Buffer of every slot, holding the values of every lane.
+     */
+    private final double[][] values;
+
+    /**
+     * For each stage, its input buffers.
+     */
+    private final double[][][] stageInputs;
+
+    /**
+     * For each stage, its output buffers.
+     */
+    private final double[][][] stageOutputs;
+
+    /**
+     * Initializes a filter applying the given one to several lanes. The
+     * filter is copied, so that it is left untouched, and every lane starts
+     * from silence.
+     *
+     * @param filter  The filter to apply to every lane.
+     * @param nbLanes The amount of lanes.
+     * @throws FilterException if the amount of lanes is not positive, if the
+     *                         filter cannot be copied, or if an output can
+     *                         never be computed.
+     */
+    public MultiLaneFilter(Filter filter, int nbLanes)
+            throws FilterException {
+        if (nbLanes <= 0) {
+            throw new FilterException("Amount of lanes must be positive.");
+        }
+        this.source = CopyableFilter.copy(filter);
+        this.lanes = nbLanes;
+
+        ExecutionPlan plan = ExecutionPlan.compile(FloatFilter.asComposite(
+                CopyableFilter.copy(filter)));
+        this.laneInputs = plan.nbInputs();
+        this.outputSlots = plan.getOutputSlots();
+        this.maxBlockSize = Math.max(1, Math.min(plan.getMaxBlockSize(),
+                BLOCK_VALUES / nbLanes));
+
+        this.values = new double[plan.nbSlots()][maxBlockSize * nbLanes];
+        this.breakerOutputSlots = plan.getBreakerOutputSlots();
+        this.breakerInputSlots = plan.getBreakerInputSlots();
+
+        Filter[] filters = plan.getFilters();
+        int[][] inputSlots = plan.getInputSlots();
+        int[] firstOutputSlots = plan.getFirstOutputSlots();
+
+        this.stages = new Stage[filters.length];
+        this.stageInputs = new double[filters.length][][];
+        this.stageOutputs = new double[filters.length][][];
+        for (int i = 0; i < filters.length; i++) {
+            stages[i] = stageOf(filters[i], nbLanes, maxBlockSize);
+            stageInputs[i] = new double[inputSlots[i].length][];
+            for (int j = 0; j < inputSlots[i].length; j++) {
+                stageInputs[i][j] = values[inputSlots[i][j]];
+            }
+            stageOutputs[i] = new double[filters[i].nbOutputs()][];
+            for (int o = 0; o < stageOutputs[i].length; o++) {
+                stageOutputs[i][o] = values[firstOutputSlots[i] + o];
+            }
+        }
+
+        DelayFilter[] delays = plan.getBreakers();
+        this.breakers = new Delay[delays.length];
+        for (int i = 0; i < delays.length; i++) {
+            breakers[i] = new Delay(delays[i].getDelay(), nbLanes);
+        }
+    }
+
+    /**
+     * @return the stage computing the given filter on every lane, in one
+     *         pass when possible. Subclasses of the library filters get one
+     *         copy per lane, as unknown filters do.
+     */
+    private static Stage stageOf(Filter filter, int lanes, int maxBlockSize)
+            throws FilterException {
+        Class<?> type = filter.getClass();
+        if (type == GainFilter.class) {
+            return new Gain(((GainFilter) filter).getGain(), lanes);
+        }
+        if (type == AdditionFilter.class) {
+            return new Addition(lanes);
+        }
+        if (type == WeightedAdditionFilter.class) {
+            WeightedAdditionFilter addition = (WeightedAdditionFilter) filter;
+            return new WeightedAddition(addition.getFirstWeight(),
+                    addition.getSecondWeight(), lanes);
+        }
+        if (type == DelayFilter.class) {
+            return new Delay(((DelayFilter) filter).getDelay(), lanes);
+        }
+        if (type == CombKernel.class) {
+            CombKernel comb = (CombKernel) filter;
+            return new Comb(comb.getInputWeight(), comb.getFeedbackWeight(),
+                    comb.getDelay(), lanes);
+        }
+        if (type == AllPassKernel.class) {
+            AllPassKernel allPass = (AllPassKernel) filter;
+            return new AllPass(allPass.getDirectWeight(),
+                    allPass.getDelayedWeight(),
+                    allPass.getStoredInputWeight(),
+                    allPass.getStoredOutputWeight(), allPass.getDelay(),
+                    lanes, maxBlockSize);
+        }
+        return new PerLane(filter, lanes, maxBlockSize);
+    }
+
+    /**
+     * @return the number of inputs of every lane.
+     */
+    @Override
+    public int nbInputs() {
+        return lanes * laneInputs;
+    }
+
+    /**
+     * @return the number of outputs of every lane.
+     */
+    @Override
+    public int nbOutputs() {
+        return lanes * outputSlots.length;
+    }
+
+    /**
+     * @return the amount of lanes.
+     */
+    public int nbLanes() {
+        return lanes;
+    }
+
+    /**
+     * Computes one step of the filtering.
+     *
+     * @param input contains the inputs of every lane, one lane after the
+     *              other.
+     * @return an array containing the outputs of every lane.
+     * @throws FilterException if the input array is null or of wrong length,
+     *                         or if a stage fails.
+     */
+    @Override
+    public double[] computeOneStep(double[] input) throws FilterException {
+        double[] output = new double[nbOutputs()];
+        computeOneStep(input, output);
+        return output;
+    }
+
+    /**
+     * Computes one step of the filtering, without allocating any array.
+     *
+     * @param input  contains the inputs of every lane, one lane after the
+     *               other.
+     * @param output receives the outputs of every lane.
+     * @throws FilterException if the arrays are null or of wrong length, or
+     *                         if a stage fails.
+     */
+    @Override
+    public void computeOneStep(double[] input, double[] output)
+            throws FilterException {
+        BlockFilter.checkStep(this, input, output);
+
+        for (int k = 0; k < lanes; k++) {
+            for (int i = 0; i < laneInputs; i++) {
+                values[i][k] = input[k * laneInputs + i];
+            }
+        }
+        execute(1);
+        for (int k = 0; k < lanes; k++) {
+            for (int o = 0; o < outputSlots.length; o++) {
+                output[k * outputSlots.length + o] = values[outputSlots[o]][k];
+            }
+        }
+    }
+
+    /**
+     * Computes several steps of the filtering at once, from planar buffers.
+     *
+     * @param input  contains the input buffers of every lane, one lane after
+     *               the other.
+     * @param output contains the output buffers of every lane.
+     * @param frames the amount of frames to process.
+     * @throws FilterException if the buffers are null or of wrong amount, or
+     *                         if a stage fails.
+     */
+    @Override
+    public void computeBlock(double[][] input, double[][] output, int frames)
+            throws FilterException {
+        BlockFilter.checkBuffers(this, input, output);
+
+        for (int start = 0; start < frames; start += maxBlockSize) {
+            int length = Math.min(maxBlockSize, frames - start);
+            for (int k = 0; k < lanes; k++) {
+                for (int i = 0; i < laneInputs; i++) {
+                    double[] target = values[i];
+                    double[] in = input[k * laneInputs + i];
+                    for (int n = 0; n < length; n++) {
+                        target[n * lanes + k] = in[start + n];
+                    }
+                }
+            }
+
+            execute(length);
+
+            for (int k = 0; k < lanes; k++) {
+                for (int o = 0; o < outputSlots.length; o++) {
+                    double[] result = values[outputSlots[o]];
+                    double[] out = output[k * outputSlots.length + o];
+                    for (int n = 0; n < length; n++) {
+                        out[start + n] = result[n * lanes + k];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes several steps of the filtering at once, from buffers holding
+     * the lanes side by side, without reordering them.
+     *
+     * @param input  contains one buffer per input of the wrapped filter, the
+     *               value of lane {@code k} at frame {@code n} being at index
+     *               {@code n * lanes + k}.
+     * @param output receives one buffer per output of the wrapped filter,
+     *               laid out the same way.
+     * @param frames the amount of frames to process.
+     * @throws FilterException if the buffers are null, of wrong amount or
+     *                         too short, or if a stage fails.
+     */
+    public void computeLanes(double[][] input, double[][] output, int frames)
+            throws FilterException {
+        checkLanes(input, laneInputs, frames);
+        checkLanes(output, outputSlots.length, frames);
+
+        for (int start = 0; start < frames; start += maxBlockSize) {
+            int length = Math.min(maxBlockSize, frames - start);
+            for (int i = 0; i < laneInputs; i++) {
+                System.arraycopy(input[i], start * lanes, values[i], 0,
+                        length * lanes);
+            }
+
+            execute(length);
+
+            for (int o = 0; o < outputSlots.length; o++) {
+                System.arraycopy(values[outputSlots[o]], 0, output[o],
+                        start * lanes, length * lanes);
+            }
+        }
+    }
+
+    /**
+     * Computes several steps of the filtering on interleaved 16 bits
+     * samples, one lane per channel, converted to doubles and back as the
+     * audio library does.
+     *
+     * @param input  The input frames.
+     * @param output Receives the output frames.
+     * @param frames The amount of frames to process.
+     * @throws FilterException if the wrapped filter has more than one input
+     *                         or output, if the arrays are too short, or if
+     *                         a stage fails.
+     */
+    public void computeLanes(short[] input, short[] output, int frames)
+            throws FilterException {
+        if (laneInputs != 1 || outputSlots.length != 1) {
+            throw new FilterException("Only filters with one input and one " +
+                    "output can process 16 bits samples.");
+        }
+        if (input.length < frames * lanes || output.length < frames * lanes) {
+            throw new FilterException("Buffers are too short for " + frames
+                    + " frames of " + lanes + " lanes.");
+        }
+
+        double[] in = values[0];
+        double[] out = values[outputSlots[0]];
+        for (int start = 0; start < frames; start += maxBlockSize) {
+            int length = Math.min(maxBlockSize, frames - start) * lanes;
+            int offset = start * lanes;
+            for (int j = 0; j < length; j++) {
+                in[j] = input[offset + j];
+            }
+
+            execute(length / lanes);
+
+            for (int j = 0; j < length; j++) {
+                output[offset + j] = (short) (int) out[j];
+            }
+        }
+    }
+
+    /**
+     * Checks that there is one buffer per input or output of the wrapped
+     * filter, each holding the given frames of every lane.
+     */
+    private void checkLanes(double[][] buffers, int expected, int frames)
+            throws FilterException {
+        if (buffers == null) {
+            throw new FilterException("Specified buffers point to null.");
+        }
+        if (buffers.length != expected) {
+            throw new FilterException("Invalid number of buffers. Expected: "
+                    + expected + ", Got: " + buffers.length);
+        }
+        for (double[] buffer : buffers) {
+            if (buffer == null || buffer.length < frames * lanes) {
+                throw new FilterException("Buffers are too short for "
+                        + frames + " frames of " + lanes + " lanes.");
+            }
+        }
+    }
+
+    /**
+     * Computes a block no longer than the maximum block size, whose inputs
+     * are in the first slots.
+     */
+    private void execute(int frames) throws FilterException {
+        for (int i = 0; i < breakers.length; i++) {
+            breakers[i].pop(values[breakerOutputSlots[i]], frames);
+        }
+
+        for (int i = 0; i < stages.length; i++) {
+            stages[i].compute(stageInputs[i], stageOutputs[i], frames);
+        }
+
+        for (int i = 0; i < breakers.length; i++) {
+            if (breakerInputSlots[i] >= 0) {
+                breakers[i].enqueue(values[breakerInputSlots[i]], frames);
+            }
+        }
+    }
+
+    /**
+     * Creates a filter applying a copy of the wrapped filter to as many
+     * lanes, all starting from silence.
+     *
+     * @return the copy of the filter.
+     * @throws FilterException if the wrapped filter cannot be copied.
+     */
+    @Override
+    public MultiLaneFilter copy() throws FilterException {
+        return new MultiLaneFilter(source, lanes);
+    }
+
+    /**
+     * Writes the state of every stage and breaker, lane after lane.
+     *
+     * @param out The destination of the state.
+     * @throws FilterException if a stage computed per lane has no state to
+     *                         save.
+     * @throws IOException     if the state cannot be written.
+     */
+    @Override
+    public void saveState(DataOutput out)
+            throws FilterException, IOException {
+        out.writeInt(lanes);
+        out.writeInt(stages.length);
+        out.writeInt(breakers.length);
+        for (Stage stage : stages) {
+            stage.saveState(out);
+        }
+        for (Delay breaker : breakers) {
+            breaker.saveState(out);
+        }
+    }
+
+    /**
+     * Reads back a state written by {@link #saveState(DataOutput)}.
+     *
+     * @param in The source of the state.
+     * @throws FilterException if a stage computed per lane has no state to
+     *                         restore.
+     * @throws IOException     if the state cannot be read, or does not match
+     *                         the filter.
+     */
+    @Override
+    public void restoreState(DataInput in)
+            throws FilterException, IOException {
+        if (in.readInt() != lanes || in.readInt() != stages.length
+                || in.readInt() != breakers.length) {
+            throw new IOException("Snapshot does not match the filter.");
+        }
+        for (Stage stage : stages) {
+            stage.restoreState(in);
+        }
+        for (Delay breaker : breakers) {
+            breaker.restoreState(in);
+        }
+    }
+
+    /**
+     * Resets every lane.
+     */
+    @Override
+    public void reset() {
+        for (Stage stage : stages) {
+            stage.reset();
+        }
+        for (Delay breaker : breakers) {
+            breaker.reset();
+        }
+    }
+
+    /**
+     * @return the maximum amount of frames computed at once.
+     */
+    public int getMaxBlockSize() {
+        return maxBlockSize;
+    }
+
+    /**
+     * Filter of the schedule, computed on every lane at once.
+     */
+    private abstract static class Stage {
+
+        /**
+         * Computes several steps of the filter on every lane.
+         *
+         * @param input  The input buffers of the filter.
+         * @param output The output buffers of the filter.
+         * @param frames The amount of frames to process.
+         * @throws FilterException if the filter fails.
+         */
+        abstract void compute(double[][] input, double[][] output, int frames)
+                throws FilterException;
+
+        /**
+         * Writes the state of the stage, nothing by default.
+         */
+        void saveState(DataOutput out) throws FilterException, IOException {
+        }
+
+        /**
+         * Reads back the state of the stage, nothing by default.
+         */
+        void restoreState(DataInput in) throws FilterException, IOException {
+        }
+
+        /**
+         * Resets the stage, nothing to do by default.
+         */
+        void reset() {
+        }
+    }
+
+    /**
+     * Multiplication by a gain.
+     */
+    private static final class Gain extends Stage {
+
+        private final double gain;
+
+        private final int lanes;
+
+        private Gain(double gain, int lanes) {
+            this.gain = gain;
+            this.lanes = lanes;
+        }
+
+        /**
+         * Multiplies the input of every lane by the gain.
+         */
+        @Override
+        void compute(double[][] input, double[][] output, int frames) {
+            double[] in = input[0];
+            double[] out = output[0];
+            int size = frames * lanes;
+            for (int j = 0; j < size; j++) {
+                out[j] = gain * in[j];
+            }
+        }
+    }
+
+    /**
+     * Sum of two inputs.
+     */
+    private static final class Addition extends Stage {
+
+        private final int lanes;
+
+        private Addition(int lanes) {
+            this.lanes = lanes;
+        }
+
+        /**
+         * Sums the two inputs of every lane.
+         */
+        @Override
+        void compute(double[][] input, double[][] output, int frames) {
+            double[] first = input[0];
+            double[] second = input[1];
+            double[] out = output[0];
+            int size = frames * lanes;
+            for (int j = 0; j < size; j++) {
+                out[j] = first[j] + second[j];
+            }
+        }
+    }
+
+    /**
+     * Weighted sum of two inputs.
+     */
+    private static final class WeightedAddition extends Stage {
+
+        private final double firstWeight;
+
+        private final double secondWeight;
+
+        private final int lanes;
+
+        private WeightedAddition(double firstWeight, double secondWeight,
+                                 int lanes) {
+            this.firstWeight = firstWeight;
+            this.secondWeight = secondWeight;
+            this.lanes = lanes;
+        }
+
+        /**
+         * Sums the two inputs of every lane, each multiplied by its weight.
+         */
+        @Override
+        void compute(double[][] input, double[][] output, int frames) {
+            double[] first = input[0];
+            double[] second = input[1];
+            double[] out = output[0];
+            int size = frames * lanes;
+            for (int j = 0; j < size; j++) {
+                out[j] = firstWeight * first[j] + secondWeight * second[j];
+            }
+        }
+    }
+
+    /**
+     * Ring buffer of frames of every lane, whose capacity is a power of two.
+     * <p>
+     * Blocks are computed in segments of at most delay frames, as
+     * {@link DelayFilter} does: the values a segment reads were all written
+     * before it, so that they are copied at once and every lane of every
+     * frame of the segment is computed in one pass.
+     * </p>
+     */
+    private abstract static class Line extends Stage {
+
+        /**
+         * The amount of frames after which values are read.
+         */
+        final int delay;
+
+        final int lanes;
+
+        final double[] queue;
+
+        /**
+         * Capacity of the ring buffer, in frames, minus one.
+         */
+        final int mask;
+
+        /**
+         * Frame position of the next values written. The ones read are
+         * delay positions before.
+         */
+        int counter;
+
+        private Line(int delay, int lanes) {
+            this.delay = delay;
+            this.lanes = lanes;
+            this.queue = new double[DelayFilter.capacityOf(delay) * lanes];
+            this.mask = DelayFilter.capacityOf(delay) - 1;
+            this.counter = delay & mask;
+        }
+
+        /**
+         * Copies frames of the line, from the given position on, into a
+         * buffer of every lane.
+         */
+        final void read(int position, double[] target, int offset,
+                        int frames) {
+            int start = position & mask;
+            int first = Math.min(frames, mask + 1 - start);
+            System.arraycopy(queue, start * lanes, target, offset * lanes,
+                    first * lanes);
+            System.arraycopy(queue, 0, target, (offset + first) * lanes,
+                    (frames - first) * lanes);
+        }
+
+        /**
+         * Copies frames of a buffer of every lane into the line, at the
+         * current position, and moves the position after them.
+         */
+        final void write(double[] source, int offset, int frames) {
+            int first = Math.min(frames, mask + 1 - counter);
+            System.arraycopy(source, offset * lanes, queue, counter * lanes,
+                    first * lanes);
+            System.arraycopy(source, (offset + first) * lanes, queue, 0,
+                    (frames - first) * lanes);
+            counter = (counter + frames) & mask;
+        }
+
+        /**
+         * Writes the values of every lane, in the order they will be read.
+         */
+        @Override
+        void saveState(DataOutput out) throws IOException {
+            double[] pending = new double[delay];
+            int start = counter - delay;
+            for (int k = 0; k < lanes; k++) {
+                for (int n = 0; n < delay; n++) {
+                    pending[n] = queue[((start + n) & mask) * lanes + k];
+                }
+                StatefulFilter.writeValues(out, pending);
+            }
+        }
+
+        /**
+         * Reads back the values of every lane.
+         */
+        @Override
+        void restoreState(DataInput in) throws IOException {
+            Arrays.fill(queue, 0);
+            for (int k = 0; k < lanes; k++) {
+                double[] pending = StatefulFilter.readValues(in, delay);
+                for (int n = 0; n < delay; n++) {
+                    queue[n * lanes + k] = pending[n];
+                }
+            }
+            counter = delay & mask;
+        }
+
+        /**
+         * Clears the line.
+         */
+        @Override
+        void reset() {
+            Arrays.fill(queue, 0);
+            counter = delay & mask;
+        }
+    }
+
+    /**
+     * Delay line, either scheduled like any filter or resolving a loop.
+     */
+    private static final class Delay extends Line {
+
+        private Delay(int delay, int lanes) {
+            super(delay, lanes);
+        }
+
+        /**
+         * Delays the input of every lane.
+         */
+        @Override
+        void compute(double[][] input, double[][] output, int frames) {
+            double[] in = input[0];
+            double[] out = output[0];
+            for (int n = 0; n < frames; n += delay) {
+                int length = Math.min(frames - n, delay);
+                read(counter - delay, out, n, length);
+                write(in, n, length);
+            }
+        }
+
+        /**
+         * Reads the next values of the line, which must not be longer than
+         * its delay.
+         */
+        private void pop(double[] output, int frames) {
+            read(counter - delay, output, 0, frames);
+        }
+
+        /**
+         * Writes the new values of the line, after they were popped.
+         */
+        private void enqueue(double[] input, int frames) {
+            write(input, 0, frames);
+        }
+    }
+
+    /**
+     * Feedback comb filter, see {@link CombKernel}.
+     */
+    private static final class Comb extends Line {
+
+        private final double inputWeight;
+
+        private final double feedbackWeight;
+
+        private Comb(double inputWeight, double feedbackWeight, int delay,
+                     int lanes) {
+            super(delay, lanes);
+            this.inputWeight = inputWeight;
+            this.feedbackWeight = feedbackWeight;
+        }
+
+        /**
+         * Computes the comb filter on every lane, one segment after the
+         * other, the delayed values being first copied to the output.
+         */
+        @Override
+        void compute(double[][] input, double[][] output, int frames) {
+            double[] in = input[0];
+            double[] out = output[0];
+            for (int n = 0; n < frames; n += delay) {
+                int length = Math.min(frames - n, delay);
+                read(counter - delay, out, n, length);
+                int end = (n + length) * lanes;
+                for (int j = n * lanes; j < end; j++) {
+                    out[j] = inputWeight * in[j] + feedbackWeight * out[j];
+                }
+                write(out, n, length);
+            }
+        }
+    }
+
+    /**
+     * Schroeder all-pass filter, see {@link AllPassKernel}.
+     */
+    private static final class AllPass extends Line {
+
+        private final double directWeight;
+
+        private final double delayedWeight;
+
+        private final double storedInputWeight;
+
+        private final double storedOutputWeight;
+
+        /**
+         * Values of a segment stored into the line.
+         */
+        private final double[] stored;
+
+        private AllPass(double directWeight, double delayedWeight,
+                        double storedInputWeight, double storedOutputWeight,
+                        int delay, int lanes, int maxBlockSize) {
+            super(delay, lanes);
+            this.directWeight = directWeight;
+            this.delayedWeight = delayedWeight;
+            this.storedInputWeight = storedInputWeight;
+            this.storedOutputWeight = storedOutputWeight;
+            this.stored = new double[Math.min(delay, maxBlockSize) * lanes];
+        }
+
+        /**
+         * Computes the all-pass filter on every lane, one segment after the
+         * other, the delayed values being first copied to the output.
+         */
+        @Override
+        void compute(double[][] input, double[][] output, int frames) {
+            double[] in = input[0];
+            double[] out = output[0];
+            for (int n = 0; n < frames; n += delay) {
+                int length = Math.min(frames - n, delay);
+                read(counter - delay, out, n, length);
+                int offset = n * lanes;
+                int size = length * lanes;
+                for (int j = 0; j < size; j++) {
+                    double x = in[offset + j];
+                    double y = directWeight * x
+                            + delayedWeight * out[offset + j];
+                    stored[j] = storedInputWeight * x
+                            + storedOutputWeight * y;
+                    out[offset + j] = y;
+                }
+                write(stored, 0, length);
+            }
+        }
+    }
+
+    /**
+     * Filter without a multi-lane variant, computed by one copy per lane.
+     */
+    private static final class PerLane extends Stage {
+
+        private final Filter[] filters;
+
+        private final int lanes;
+
+        private final double[][] input;
+
+        private final double[][] output;
+
+        private PerLane(Filter filter, int lanes, int maxBlockSize)
+                throws FilterException {
+            this.filters = new Filter[lanes];
+            filters[0] = filter;
+            for (int k = 1; k < lanes; k++) {
+                filters[k] = CopyableFilter.copy(filter);
+            }
+            this.lanes = lanes;
+            this.input = new double[filter.nbInputs()][maxBlockSize];
+            this.output = new double[filter.nbOutputs()][maxBlockSize];
+        }
+
+        /**
+         * Gathers the inputs of each lane, computes its copy of the filter,
+         * and scatters its outputs.
+         */
+        @Override
+        void compute(double[][] in, double[][] out, int frames)
+                throws FilterException {
+            for (int k = 0; k < lanes; k++) {
+                for (int i = 0; i < in.length; i++) {
+                    for (int n = 0; n < frames; n++) {
+                        input[i][n] = in[i][n * lanes + k];
+                    }
+                }
+                BlockFilter.computeBlock(filters[k], input, output, frames);
+                for (int o = 0; o < out.length; o++) {
+                    for (int n = 0; n < frames; n++) {
+                        out[o][n * lanes + k] = output[o][n];
+                    }
+                }
+            }
+        }
+
+        /**
+         * Writes the state of every copy of the filter.
+         */
+        @Override
+        void saveState(DataOutput out) throws FilterException, IOException {
+            for (Filter filter : filters) {
+                StatefulFilter.save(filter, out);
+            }
+        }
+
+        /**
+         * Reads back the state of every copy of the filter.
+         */
+        @Override
+        void restoreState(DataInput in) throws FilterException, IOException {
+            for (Filter filter : filters) {
+                StatefulFilter.restore(filter, in);
+            }
+        }
+
+        /**
+         * Resets every copy of the filter.
+         */
+        @Override
+        void reset() {
+            for (Filter filter : filters) {
+                filter.reset();
+            }
+        }
+    }
+}
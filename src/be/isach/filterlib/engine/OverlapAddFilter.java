@@ -0,0 +1,467 @@
+package be.isach.filterlib.engine;
+
+import be.isach.filterlib.engine.FilterGraph.Node;
+import be.isach.filterlib.filters.AdditionFilter;
+import be.isach.filterlib.filters.BlockFilter;
+import be.isach.filterlib.filters.CompositeFilter;
+import be.isach.filterlib.filters.CopyableFilter;
+import be.isach.filterlib.filters.DelayFilter;
+import be.isach.filterlib.filters.GainFilter;
+import be.isach.filterlib.filters.StatefulFilter;
+import be.isach.filterlib.filters.WeightedAdditionFilter;
+import be.uliege.montefiore.oop.audio.Filter;
+import be.uliege.montefiore.oop.audio.FilterException;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a linear composite filter, loops included, by chunks of time
+ * processed at the same time on a fork/join pool, and summed back by
+ * overlap-add.
+ * <p>
+ * A composite made of gains, additions and delays only, such as the echo
+ * or the reverberator, is linear: its output is the sum of the responses to
+ * each chunk of its input, each starting from silence. The response to a
+ * chunk goes on after its end, but decays at the pace set by the gains of
+ * the loops of the filter, and is cut once the rest of it is below the
+ * error bound. Each chunk of a block but the first is thus computed by its
+ * own copy of the filter, reset, and the copies of all chunks but the last
+ * are then fed with silence for the length of the tail, which is added to
+ * the following chunks. The first chunk is computed by the filter itself,
+ * and the copy computing the last chunk becomes the filter for the next
+ * block.
+ * </p>
+ * <p>
+ * The error bound is relative to the peak of the input: no output differs
+ * from the one of the composite by more than the bound times the largest
+ * absolute input. The length of the tails is estimated once, from the decay
+ * of the impulse response of the filter. Chunks are at least
+ * {@value #TAIL_RATIO} times as long as the tail, so that blocks should be
+ * much longer than it to use every thread of the pool; shorter blocks are
+ * computed as one chunk, exactly.
+ * </p>
+ */
+public class OverlapAddFilter implements BlockFilter, CopyableFilter,
+        StatefulFilter {
+
+    /**
+     * Default error bound, relative to the peak of the input: -120 dB, well
+     * below the resolution of 16 bits samples.
+     */
+    public static final double DEFAULT_TOLERANCE = 1e-6;
+
+    /**
+     * Minimum amount of frames of a chunk.
+     */
+    public static final int MIN_CHUNK_SIZE = 4096;
+
+    /**
+     * Minimum length of a chunk, relative to the tail.
+     */
+    public static final int TAIL_RATIO = 4;
+
+    /**
+     * Maximum length of a tail.
+     */
+    public static final int MAX_TAIL_LENGTH = 1 << 24;
+
+    /**
+     * Amount of frames copied at a time between the blocks and the chunks.
+     */
+    private static final int PIECE_SIZE = 4096;
+
+    /**
+     * The composite filter the filter was built from.
+     */
+    private final CompositeFilter composite;
+
+    /**
+     * The pool computing the chunks.
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * The error bound, relative to the peak of the input.
+     */
+    private final double tolerance;
+
+    /**
+     * Amount of frames of the response to a chunk kept after its end.
+     */
+    private final int tailLength;
+
+    /**
+     * Filter of each chunk, the first one holding the state of the filter
+     * between blocks.
+     */
+    private final BlockFilter[] filters;
+
+    /**
+     * Buffers of each chunk, through which its frames are copied.
+     */
+    private final Chunk[] chunks;
+
+    /**
+     * Initializes a filter computing its chunks on the common pool, with the
+     * default error bound.
+     *
+     * @param composite The composite filter to run.
+     * @throws FilterException if the composite filter is not valid, does not
+     *                         have 1 input and 1 output, has filters other
+     *                         than gains, additions and delays, or does not
+     *                         decay.
+     */
+    public OverlapAddFilter(CompositeFilter composite) throws FilterException {
+        this(composite, ForkJoinPool.commonPool(), DEFAULT_TOLERANCE);
+    }
+
+    /**
+     * Initializes a filter.
+     *
+     * @param composite The composite filter to run.
+     * @param pool      The pool computing the chunks, using as many chunks
+     *                  as it has threads at most.
+     * @param tolerance The error bound, relative to the peak of the input.
+     * @throws FilterException if the composite filter is not valid, does not
+     *                         have 1 input and 1 output, has filters other
+     *                         than gains, additions and delays, or does not
+     *                         decay below the error bound, or if the error
+     *                         bound is not positive.
+     */
+    public OverlapAddFilter(CompositeFilter composite, ForkJoinPool pool,
+                            double tolerance) throws FilterException {
+        if (!(tolerance > 0)) {
+            throw new FilterException("Error bound must be positive.");
+        }
+
+        this.composite = composite;
+        this.pool = pool;
+        this.tolerance = tolerance;
+        this.tailLength = tailLengthOf(composite, tolerance);
+
+        int amount = Math.max(1, pool.getParallelism());
+        this.filters = new BlockFilter[amount];
+        this.chunks = new Chunk[amount];
+        filters[0] = FilterCompiler.compile(composite);
+        for (int k = 0; k < amount; k++) {
+            if (k > 0) {
+                filters[k] = (BlockFilter) CopyableFilter.copy(filters[0]);
+            }
+            chunks[k] = new Chunk(tailLength);
+        }
+    }
+
+    /**
+     * Estimates the amount of frames after which the response of a linear
+     * filter to any input stays below an error bound. The impulse response
+     * is computed by windows of twice the longest delay of the filter, over
+     * which its loops decay by a steady ratio; the tail is cut once the
+     * rest of the response, extrapolated from that ratio, sums below the
+     * bound.
+     *
+     * @param composite The composite filter, with 1 input and 1 output, made
+     *                  of gains, additions and delays only.
+     * @param tolerance The error bound, relative to the peak of the input.
+     * @return the length of the tail.
+     * @throws FilterException if the filter is not valid, is not such a
+     *                         filter, or does not decay below the error
+     *                         bound within {@link #MAX_TAIL_LENGTH} frames.
+     */
+    public static int tailLengthOf(CompositeFilter composite,
+                                   double tolerance) throws FilterException {
+        if (composite.nbInputs() != 1 || composite.nbOutputs() != 1) {
+            throw new FilterException("Only filters with 1 input and 1 " +
+                    "output can be run by overlap-add.");
+        }
+
+        int longestDelay = 0;
+        for (Node node : FilterGraph.flatten(composite).getNodes()) {
+            Filter filter = node.getFilter();
+            // Only the exact library classes are known to be linear.
+            Class<?> type = filter.getClass();
+            if (!(type == GainFilter.class || type == AdditionFilter.class
+                    || type == WeightedAdditionFilter.class
+                    || type == DelayFilter.class)) {
+                throw new FilterException("Only filters made of gains, " +
+                        "additions and delays are linear, not: "
+                        + filter.getClass().getName());
+            }
+            if (filter instanceof DelayFilter) {
+                longestDelay = Math.max(longestDelay,
+                        ((DelayFilter) filter).getDelay());
+            }
+        }
+
+        BlockFilter probe = FilterCompiler.compile(composite.copy());
+        int window = Math.max(PIECE_SIZE, 2 * longestDelay);
+        double[][] input = new double[1][window];
+        double[][] output = new double[1][window];
+        input[0][0] = 1;
+
+        double previous = 0;
+        for (long end = window; end <= MAX_TAIL_LENGTH; end += window) {
+            probe.computeBlock(input, output, window);
+            input[0][0] = 0;
+
+            double sum = 0;
+            for (int n = 0; n < window; n++) {
+                sum += Math.abs(output[0][n]);
+            }
+            if (sum == 0 && end > window) {
+                return (int) (end - window);
+            }
+
+            double ratio = sum / previous;
+            if (ratio < 1 && sum * ratio / (1 - ratio) <= tolerance) {
+                return (int) end;
+            }
+            previous = sum;
+        }
+        throw new FilterException("Filter does not decay below the error " +
+                "bound.");
+    }
+
+    /**
+     * @return 1, the amount of inputs of the composite filter.
+     */
+    @Override
+    public int nbInputs() {
+        return composite.nbInputs();
+    }
+
+    /**
+     * @return 1, the amount of outputs of the composite filter.
+     */
+    @Override
+    public int nbOutputs() {
+        return composite.nbOutputs();
+    }
+
+    /**
+     * Computes one step of the filtering, exactly.
+     *
+     * @param input contains the input of the composite.
+     * @return an array containing the output of the composite.
+     * @throws FilterException if the input array is null or of wrong length.
+     */
+    @Override
+    public double[] computeOneStep(double[] input) throws FilterException {
+        return filters[0].computeOneStep(input);
+    }
+
+    /**
+     * Computes one step of the filtering exactly, with the filter of the
+     * first chunk.
+     *
+     * @param input  contains the input of the composite.
+     * @param output receives the output of the composite.
+     * @throws FilterException if the arrays are null or of wrong length.
+     */
+    @Override
+    public void computeOneStep(double[] input, double[] output)
+            throws FilterException {
+        filters[0].computeOneStep(input, output);
+    }
+
+    /**
+     * Computes several steps of the filtering, by chunks computed at the
+     * same time when the block is long enough, exactly otherwise.
+     *
+     * @param input  contains the input buffer of the composite.
+     * @param output contains the output buffer of the composite.
+     * @param frames the amount of frames to process.
+     * @throws FilterException if the buffers are null or of wrong amount, or
+     *                         if a chunk fails.
+     */
+    @Override
+    public void computeBlock(double[][] input, double[][] output, int frames)
+            throws FilterException {
+        BlockFilter.checkBuffers(this, input, output);
+        long minChunk = Math.max(MIN_CHUNK_SIZE,
+                (long) TAIL_RATIO * tailLength);
+        int amount = (int) Math.min(filters.length, frames / minChunk);
+        if (amount <= 1) {
+            filters[0].computeBlock(input, output, frames);
+            return;
+        }
+
+        // Chunks write their own frames, and keep their tails aside.
+        List<Callable<Void>> tasks = new ArrayList<>();
+        int length = frames / amount;
+        for (int k = 0; k < amount; k++) {
+            int chunk = k;
+            int start = k * length;
+            int end = k == amount - 1 ? frames : start + length;
+            tasks.add(() -> {
+                BlockFilter filter = filters[chunk];
+                if (chunk == 0) {
+                    filter.computeBlock(input, output, end);
+                } else {
+                    filter.reset();
+                    chunks[chunk].compute(filter, input, start, end, output);
+                }
+                if (chunk < amount - 1) {
+                    chunks[chunk].flush(filter);
+                }
+                return null;
+            });
+        }
+
+        try {
+            for (Future<Void> result : pool.invokeAll(tasks)) {
+                result.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof FilterException) {
+                throw (FilterException) e.getCause();
+            }
+            throw new FilterException("Filtering failed: "
+                    + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FilterException("Filtering was interrupted.");
+        }
+
+        // Each tail ends within the following chunk.
+        for (int k = 0; k < amount - 1; k++) {
+            double[] tail = chunks[k].tail;
+            int start = (k + 1) * length;
+            for (int n = 0; n < tailLength; n++) {
+                output[0][start + n] += tail[n];
+            }
+        }
+
+        // The filter of the last chunk holds the state after the block.
+        BlockFilter last = filters[amount - 1];
+        filters[amount - 1] = filters[0];
+        filters[0] = last;
+    }
+
+    /**
+     * Creates a filter over a copy of the composite filter, on the same
+     * pool and with the same error bound, in its initial state.
+     *
+     * @return the copy of the filter.
+     * @throws FilterException if the composite filter cannot be copied.
+     */
+    @Override
+    public OverlapAddFilter copy() throws FilterException {
+        return new OverlapAddFilter(composite.copy(), pool, tolerance);
+    }
+
+    /**
+     * Writes the state of the filter of the first chunk.
+     *
+     * @param out The destination of the state.
+     * @throws FilterException if the filter has no state to save.
+     * @throws IOException     if the state cannot be written.
+     */
+    @Override
+    public void saveState(DataOutput out)
+            throws FilterException, IOException {
+        StatefulFilter.save(filters[0], out);
+    }
+
+    /**
+     * Reads back a state written by {@link #saveState(DataOutput)} into the
+     * filter of the first chunk.
+     *
+     * @param in The source of the state.
+     * @throws FilterException if the filter has no state to restore.
+     * @throws IOException     if the state cannot be read, or does not match
+     *                         the filter.
+     */
+    @Override
+    public void restoreState(DataInput in)
+            throws FilterException, IOException {
+        StatefulFilter.restore(filters[0], in);
+    }
+
+    /**
+     * Resets the filter of the first chunk, the others being reset before
+     * each chunk.
+     */
+    @Override
+    public void reset() {
+        filters[0].reset();
+    }
+
+    /**
+     * @return the amount of frames of the response to a chunk kept after
+     *         its end.
+     */
+    public int getTailLength() {
+        return tailLength;
+    }
+
+    /**
+     * @return the error bound, relative to the peak of the input.
+     */
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    /**
+     * Buffers through which the frames of a chunk are copied, since block
+     * filters only process frames from the start of their buffers, and the
+     * tail of the chunk.
+     */
+    private static final class Chunk {
+
+        private final double[][] input = new double[1][PIECE_SIZE];
+
+        private final double[][] output = new double[1][PIECE_SIZE];
+
+        /**
+         * Response of the filter after the end of the chunk.
+         */
+        private final double[] tail;
+
+        Chunk(int tailLength) {
+            this.tail = new double[tailLength];
+        }
+
+        /**
+         * Feeds frames of a block to a filter, piece by piece.
+         *
+         * @param filter The filter of the chunk.
+         * @param input  The input buffers of the block.
+         * @param start  The index of the first frame to feed.
+         * @param end    The index following the last frame to feed.
+         * @param output The output buffers of the block.
+         */
+        void compute(BlockFilter filter, double[][] input, int start,
+                     int end, double[][] output) throws FilterException {
+            for (int from = start; from < end; from += PIECE_SIZE) {
+                int frames = Math.min(PIECE_SIZE, end - from);
+                System.arraycopy(input[0], from, this.input[0], 0, frames);
+                filter.computeBlock(this.input, this.output, frames);
+                System.arraycopy(this.output[0], 0, output[0], from, frames);
+            }
+        }
+
+        /**
+         * Feeds silence to a filter for the length of the tail, keeping its
+         * response as the tail.
+         *
+         * @param filter The filter of the chunk.
+         */
+        void flush(BlockFilter filter) throws FilterException {
+            Arrays.fill(input[0], 0);
+            for (int from = 0; from < tail.length; from += PIECE_SIZE) {
+                int frames = Math.min(PIECE_SIZE, tail.length - from);
+                filter.computeBlock(input, output, frames);
+                System.arraycopy(output[0], 0, tail, from, frames);
+            }
+        }
+    }
+}
@@ -0,0 +1,1343 @@
+package be.isach.filterlib.engine;
+
+import be.isach.filterlib.engine.FilterGraph.Node;
+import be.isach.filterlib.engine.FilterGraph.Port;
+import be.isach.filterlib.filters.AdditionFilter;
+import be.isach.filterlib.filters.BlockFilter;
+import be.isach.filterlib.filters.CompositeFilter;
+import be.isach.filterlib.filters.CopyableFilter;
+import be.isach.filterlib.filters.DelayFilter;
+import be.isach.filterlib.filters.GainFilter;
+import be.isach.filterlib.filters.SparseIIRFilter;
+import be.isach.filterlib.filters.StatefulFilter;
+import be.isach.filterlib.filters.WeightedAdditionFilter;
+import be.uliege.montefiore.oop.audio.Filter;
+import be.uliege.montefiore.oop.audio.FilterException;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a composite filter as a pipeline of stages, each on its own thread,
+ * so that a single stream of audio uses several cores.
+ * <p>
+ * Delay filters of at least {@value #MIN_CUT_DELAY} samples are first cut
+ * out of the optimized graph of the composite. The loops left are never
+ * split: they and the filters around them are taken in topological order,
+ * and cut into consecutive stages of balanced cost, estimated from the kind
+ * of each filter. Each stage is then compiled on its own, into a generated
+ * filter when possible. The delays cut out become queues of samples from
+ * the stage computing their input to the stages reading them, possibly
+ * earlier ones: this is how loops, such as the feedback of the
+ * reverberator, are spread over several stages.
+ * </p>
+ * <p>
+ * Frames go through the pipeline by blocks. A ring of block buffers holds
+ * every value exchanged between stages; each stage publishes how many
+ * blocks it has completed, and the next stage waits for that count, so that
+ * each pair of neighbouring stages forms a lock-free single producer, single
+ * consumer queue. Blocks are no longer than the delays read by the stage
+ * computing their input or by an earlier one, so that no stage waits for
+ * samples it has yet to compute. The calling thread runs the first stage,
+ * and collects the outputs of the last one, while the other stages run on
+ * threads of their own. Outputs are exactly those of the composite.
+ * </p>
+ * <p>
+ * The threads are started on the first block, and wait between calls for
+ * up to {@value #IDLE_MILLIS} ms, after which they exit until the next
+ * block. Callers must {@link #close()} the pipeline once done with it, which
+ * stops its threads at once; a pipeline left open keeps its threads, and
+ * itself, alive until they exit. The filters of the composite may be shared
+ * with the pipeline, so the composite should not be used on its own
+ * anymore.
+ * </p>
+ */
+public class PipelinedFilter implements BlockFilter, CopyableFilter,
+        StatefulFilter, AutoCloseable {
+
+    /**
+     * Default maximum amount of frames of the blocks going through the
+     * pipeline.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 512;
+
+    /**
+     * Minimum delay of the delay filters cut out of the stages.
+     */
+    public static final int MIN_CUT_DELAY = 64;
+
+    /**
+     * Time a stage keeps waiting actively for the next block, before
+     * sleeping until it is published, in nanoseconds.
+     */
+    private static final long SPIN_NANOS = 50_000;
+
+    /**
+     * Time the thread of a stage waits for the next block before exiting,
+     * in milliseconds.
+     */
+    private static final long IDLE_MILLIS = 1000;
+
+    /**
+     * The composite filter the pipeline was built from.
+     */
+    private final CompositeFilter composite;
+
+    /**
+     * Maximum amount of frames of the blocks, as requested.
+     */
+    private final int maxBlockSize;
+
+    /**
+     * Amount of frames of each block.
+     */
+    private final int blockSize;
+
+    /**
+     * The stages, in order.
+     */
+    private final Stage[] stages;
+
+    /**
+     * Queues of the delays cut out, one per delay and reading stage.
+     */
+    private final Ring[] rings;
+
+    /**
+     * Amount of blocks in the ring, the maximum amount of blocks in flight.
+     */
+    private final int depth;
+
+    /**
+     * Length of each block of the ring.
+     */
+    private final int[] lengths;
+
+    /**
+     * Buffers of each block of the ring, one per value exchanged between
+     * stages, the inputs of the composite first.
+     */
+    private final double[][][] buffers;
+
+    /**
+     * For each block of the ring and each stage, the buffers it reads.
+     */
+    private final double[][][][] stageInputs;
+
+    /**
+     * For each block of the ring and each stage, the buffers it writes.
+     */
+    private final double[][][][] stageOutputs;
+
+    /**
+     * Buffer read by each output of the composite.
+     */
+    private final int[] outputBuffers;
+
+    /**
+     * Amount of blocks completed by each stage.
+     */
+    private final Sequence[] sequences;
+
+    /**
+     * Whether each stage after the first one has a thread running it.
+     */
+    private final AtomicBoolean[] active;
+
+    /**
+     * Whether the pipeline was closed or failed.
+     */
+    private volatile boolean stopped;
+
+    /**
+     * Error thrown by a stage, null if none did.
+     */
+    private volatile FilterException failure;
+
+    /**
+     * Initializes a pipeline of as many stages as there are processors.
+     *
+     * @param composite The composite filter to run.
+     * @throws FilterException if the composite filter is not valid.
+     */
+    public PipelinedFilter(CompositeFilter composite) throws FilterException {
+        this(composite, Runtime.getRuntime().availableProcessors(),
+                DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Initializes a pipeline.
+     *
+     * @param composite    The composite filter to run.
+     * @param stages       The maximum amount of stages, fewer being used if
+     *                     the graph cannot be split as much.
+     * @param maxBlockSize The maximum amount of frames of the blocks going
+     *                     through the pipeline.
+     * @throws FilterException if the composite filter is not valid, or if
+     *                         the amount of stages or the block size is not
+     *                         positive.
+     */
+    public PipelinedFilter(CompositeFilter composite, int stages,
+                           int maxBlockSize) throws FilterException {
+        if (stages < 1 || maxBlockSize < 1) {
+            throw new FilterException("Stages and block size must be " +
+                    "positive.");
+        }
+        if (composite.isInvalid()) {
+            throw new FilterException("Filter is not valid, missing " +
+                    "connections.");
+        }
+
+        this.composite = composite;
+        this.maxBlockSize = maxBlockSize;
+
+        FilterGraph graph = GraphOptimizer.optimize(
+                FilterGraph.flatten(composite));
+        List<Node> nodes = graph.getNodes();
+        boolean[] cut = stages > 1 ? chooseCuts(graph)
+                : new boolean[nodes.size()];
+        int[] partition = partition(graph, cut, stages);
+        Map<Node, Integer> stageOf = new IdentityHashMap<>();
+        int amount = 1;
+        for (int i = 0; i < nodes.size(); i++) {
+            stageOf.put(nodes.get(i), partition[i]);
+            amount = Math.max(amount, partition[i] + 1);
+        }
+
+        // Every output read by another stage, by a delay cut out, or by the
+        // composite, is exchanged through a buffer, after the inputs of the
+        // composite. So is each delay cut out, once per stage reading it.
+        Map<Node, int[]> exchanged = new IdentityHashMap<>();
+        Map<Node, int[]> popped = new IdentityHashMap<>();
+        for (Node node : nodes) {
+            int[] indices = new int[node.getFilter().nbOutputs()];
+            Arrays.fill(indices, -1);
+            exchanged.put(node, indices);
+            if (stageOf.get(node) < 0) {
+                int[] readers = new int[amount];
+                Arrays.fill(readers, -1);
+                popped.put(node, readers);
+            }
+        }
+        int buffersAmount = graph.nbInputs();
+        for (Node node : nodes) {
+            int stage = stageOf.get(node);
+            for (Port port : node.getInputs()) {
+                if (port == null || port.isGraphInput()) continue;
+
+                int source = stageOf.get(port.getNode());
+                if (stage < 0 || source >= 0 && source != stage) {
+                    buffersAmount = exchange(port, exchanged, buffersAmount);
+                } else if (source < 0
+                        && popped.get(port.getNode())[stage] < 0) {
+                    popped.get(port.getNode())[stage] = buffersAmount++;
+                }
+            }
+        }
+        Port[] outputs = graph.getOutputs();
+        this.outputBuffers = new int[outputs.length];
+        for (int o = 0; o < outputs.length; o++) {
+            if (outputs[o] == null) {
+                throw new FilterException("Filter is not valid, " +
+                        "possibly missing a delay filter in a loop.");
+            }
+            if (!outputs[o].isGraphInput()) {
+                buffersAmount = exchange(outputs[o], exchanged,
+                        buffersAmount);
+            }
+            outputBuffers[o] = bufferOf(outputs[o], exchanged);
+        }
+
+        // A delay read by the stage computing its input, or by an earlier
+        // one, must hold a whole block.
+        int size = maxBlockSize;
+        for (Node node : nodes) {
+            int[] readers = popped.get(node);
+            if (readers == null) continue;
+
+            int writer = stageOf.get(node.getInputs()[0].getNode());
+            for (int r = 0; r <= writer; r++) {
+                if (readers[r] >= 0) {
+                    size = Math.min(size, delayOf(node));
+                }
+            }
+        }
+        this.blockSize = size;
+        this.depth = 2 * amount;
+
+        List<Ring> rings = new ArrayList<>();
+        List<List<Ring>> pops = new ArrayList<>();
+        List<List<Integer>> popBuffers = new ArrayList<>();
+        List<List<Ring>> pushes = new ArrayList<>();
+        List<List<Integer>> pushBuffers = new ArrayList<>();
+        for (int s = 0; s < amount; s++) {
+            pops.add(new ArrayList<>());
+            popBuffers.add(new ArrayList<>());
+            pushes.add(new ArrayList<>());
+            pushBuffers.add(new ArrayList<>());
+        }
+        for (Node node : nodes) {
+            int[] readers = popped.get(node);
+            if (readers == null) continue;
+
+            Port source = node.getInputs()[0];
+            int writer = stageOf.get(source.getNode());
+            for (int r = 0; r < amount; r++) {
+                if (readers[r] < 0) continue;
+
+                Ring ring = new Ring((DelayFilter) node.getFilter(),
+                        DelayFilter.capacityOf(delayOf(node)
+                                + (depth + 1) * blockSize));
+                rings.add(ring);
+                pops.get(r).add(ring);
+                popBuffers.get(r).add(readers[r]);
+                pushes.get(writer).add(ring);
+                pushBuffers.get(writer).add(bufferOf(source, exchanged));
+            }
+        }
+        this.rings = rings.toArray(new Ring[0]);
+
+        this.stages = new Stage[amount];
+        int[][] inputsOf = new int[amount][];
+        int[][] outputsOf = new int[amount][];
+        for (int s = 0; s < amount; s++) {
+            List<Integer> inputs = new ArrayList<>();
+            List<Integer> produced = new ArrayList<>();
+            ExecutionPlan plan = buildStage(graph, stageOf, s, exchanged,
+                    popped, inputs, produced);
+            this.stages[s] = new Stage(plan, costOf(graph, stageOf, s),
+                    pops.get(s).toArray(new Ring[0]),
+                    toArray(popBuffers.get(s)),
+                    pushes.get(s).toArray(new Ring[0]),
+                    toArray(pushBuffers.get(s)));
+            inputsOf[s] = toArray(inputs);
+            outputsOf[s] = toArray(produced);
+        }
+
+        this.lengths = new int[depth];
+        this.buffers = new double[depth][buffersAmount][blockSize];
+        this.stageInputs = new double[depth][amount][][];
+        this.stageOutputs = new double[depth][amount][][];
+        for (int d = 0; d < depth; d++) {
+            for (int s = 0; s < amount; s++) {
+                stageInputs[d][s] = select(buffers[d], inputsOf[s]);
+                stageOutputs[d][s] = select(buffers[d], outputsOf[s]);
+            }
+        }
+
+        this.sequences = new Sequence[amount];
+        this.active = new AtomicBoolean[amount];
+        for (int s = 0; s < amount; s++) {
+            sequences[s] = new Sequence();
+            active[s] = new AtomicBoolean();
+        }
+    }
+
+    /**
+     * Chooses the delay filters cut out of the stages: those of at least
+     * {@value #MIN_CUT_DELAY} samples, fed by a filter of the graph that is
+     * not such a delay, and not read by the outputs of the graph.
+     *
+     * @param graph The graph to cut.
+     * @return for each node of the graph, whether it is cut out.
+     */
+    private static boolean[] chooseCuts(FilterGraph graph) {
+        List<Node> nodes = graph.getNodes();
+        Map<Node, Integer> indices = new IdentityHashMap<>();
+        boolean[] candidates = new boolean[nodes.size()];
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            indices.put(node, i);
+            // The queue replacing a delay cut out would drop whatever a
+            // subclass adds to it.
+            candidates[i] = node.getFilter().getClass() == DelayFilter.class
+                    && delayOf(node) >= MIN_CUT_DELAY;
+        }
+
+        boolean[] cut = new boolean[nodes.size()];
+        for (int i = 0; i < nodes.size(); i++) {
+            Port source = nodes.get(i).getInputs()[0];
+            cut[i] = candidates[i] && source != null
+                    && !source.isGraphInput()
+                    && !candidates[indices.get(source.getNode())];
+        }
+        for (Port port : graph.getOutputs()) {
+            if (port != null && !port.isGraphInput()) {
+                cut[indices.get(port.getNode())] = false;
+            }
+        }
+        return cut;
+    }
+
+    /**
+     * Gives a buffer to the output read through a port, if it has none yet.
+     *
+     * @return the amount of buffers.
+     */
+    private static int exchange(Port port, Map<Node, int[]> exchanged,
+                                int buffersAmount) {
+        int[] indices = exchanged.get(port.getNode());
+        if (indices[port.getIndex()] < 0) {
+            indices[port.getIndex()] = buffersAmount++;
+        }
+        return buffersAmount;
+    }
+
+    /**
+     * @return the buffer holding the values read through a port.
+     */
+    private static int bufferOf(Port port, Map<Node, int[]> exchanged) {
+        if (port.isGraphInput()) return port.getIndex();
+        return exchanged.get(port.getNode())[port.getIndex()];
+    }
+
+    /**
+     * @return the buffer a stage reads through a port of another stage, of
+     *         a delay cut out, or of the composite.
+     */
+    private static int readBuffer(Port port, int stage,
+                                  Map<Node, int[]> exchanged,
+                                  Map<Node, int[]> popped) {
+        int[] readers = port.isGraphInput() ? null
+                : popped.get(port.getNode());
+        return readers != null ? readers[stage] : bufferOf(port, exchanged);
+    }
+
+    /**
+     * @return the delay of the delay filter of a node.
+     */
+    private static int delayOf(Node node) {
+        return ((DelayFilter) node.getFilter()).getDelay();
+    }
+
+    /**
+     * Builds the graph of one stage, whose inputs are the buffers it reads
+     * and outputs the buffers it writes, and compiles it.
+     *
+     * @param graph     The optimized graph of the composite.
+     * @param stageOf   The stage of each node of the graph, -1 if cut out.
+     * @param stage     The stage to build.
+     * @param exchanged The buffer of each output of each node, -1 if not
+     *                  exchanged.
+     * @param popped    For each delay cut out, the buffer each stage reads
+     *                  it from, -1 if it does not read it.
+     * @param inputs    Receives the buffers read by the stage.
+     * @param outputs   Receives the buffers written by the stage.
+     * @return the execution plan of the stage.
+     * @throws FilterException if an output of the stage can never be
+     *                         computed.
+     */
+    private static ExecutionPlan buildStage(FilterGraph graph,
+                                            Map<Node, Integer> stageOf,
+                                            int stage,
+                                            Map<Node, int[]> exchanged,
+                                            Map<Node, int[]> popped,
+                                            List<Integer> inputs,
+                                            List<Integer> outputs)
+            throws FilterException {
+        List<Node> members = new ArrayList<>();
+        List<Port> produced = new ArrayList<>();
+        for (Node node : graph.getNodes()) {
+            if (stageOf.get(node) != stage) continue;
+
+            members.add(node);
+            int[] indices = exchanged.get(node);
+            for (int o = 0; o < indices.length; o++) {
+                if (indices[o] >= 0) {
+                    outputs.add(indices[o]);
+                    produced.add(new Port(node, o));
+                }
+            }
+        }
+
+        // Ports of other stages, of delays cut out, and of the composite
+        // become inputs of the stage.
+        Map<Integer, Integer> inputIndices = new HashMap<>();
+        for (Node node : members) {
+            for (Port port : node.getInputs()) {
+                if (port == null || !port.isGraphInput()
+                        && stageOf.get(port.getNode()) == stage) {
+                    continue;
+                }
+
+                int buffer = readBuffer(port, stage, exchanged, popped);
+                if (!inputIndices.containsKey(buffer)) {
+                    inputIndices.put(buffer, inputs.size());
+                    inputs.add(buffer);
+                }
+            }
+        }
+
+        FilterGraph stageGraph = new FilterGraph(inputs.size(),
+                outputs.size());
+        Map<Node, Node> copies = new IdentityHashMap<>();
+        for (Node node : members) {
+            copies.put(node, stageGraph.addNode(node.getFilter()));
+        }
+        for (Node node : members) {
+            Port[] ports = node.getInputs();
+            Port[] stagePorts = copies.get(node).getInputs();
+            for (int j = 0; j < ports.length; j++) {
+                Port port = ports[j];
+                if (port == null) continue;
+
+                Node source = port.isGraphInput() ? null
+                        : copies.get(port.getNode());
+                stagePorts[j] = source != null
+                        ? new Port(source, port.getIndex())
+                        : new Port(null, inputIndices.get(readBuffer(port,
+                        stage, exchanged, popped)));
+            }
+        }
+        for (int o = 0; o < produced.size(); o++) {
+            Port port = produced.get(o);
+            stageGraph.getOutputs()[o] = new Port(copies.get(port.getNode()),
+                    port.getIndex());
+        }
+
+        return ExecutionPlan.compile(stageGraph);
+    }
+
+    /**
+     * Splits a graph into stages. Nodes lying on a same loop, once the
+     * delays cut out are removed, are kept together; these groups are
+     * ordered topologically, then cut into consecutive stages minimizing the
+     * cost of the most expensive one.
+     *
+     * @param graph  The graph to split.
+     * @param cut    For each node of the graph, whether it is cut out.
+     * @param stages The maximum amount of stages.
+     * @return the stage of each node of the graph, numbered from 0, -1 for
+     *         the nodes cut out.
+     */
+    private static int[] partition(FilterGraph graph, boolean[] cut,
+                                   int stages) {
+        List<Node> nodes = graph.getNodes();
+        int size = nodes.size();
+        Map<Node, Integer> indices = new IdentityHashMap<>();
+        for (int i = 0; i < size; i++) {
+            indices.put(nodes.get(i), i);
+        }
+
+        List<List<Integer>> successors = new ArrayList<>();
+        List<List<Integer>> predecessors = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            successors.add(new ArrayList<>());
+            predecessors.add(new ArrayList<>());
+        }
+        for (int i = 0; i < size; i++) {
+            if (cut[i]) continue;
+
+            for (Port port : nodes.get(i).getInputs()) {
+                if (port == null || port.isGraphInput()) continue;
+
+                int source = indices.get(port.getNode());
+                if (!cut[source]) {
+                    successors.get(source).add(i);
+                    predecessors.get(i).add(source);
+                }
+            }
+        }
+
+        // A node and the nodes both reaching it and reachable from it form
+        // a group, which a stage never splits.
+        int[] groupOf = new int[size];
+        Arrays.fill(groupOf, -1);
+        int groups = 0;
+        for (int i = 0; i < size; i++) {
+            if (cut[i] || groupOf[i] >= 0) continue;
+
+            boolean[] forward = reach(i, successors);
+            boolean[] backward = reach(i, predecessors);
+            for (int j = 0; j < size; j++) {
+                if (j == i || forward[j] && backward[j]) {
+                    groupOf[j] = groups;
+                }
+            }
+            groups++;
+        }
+
+        double[] costs = new double[groups];
+        int[] incoming = new int[groups];
+        List<List<Integer>> next = new ArrayList<>();
+        for (int g = 0; g < groups; g++) {
+            next.add(new ArrayList<>());
+        }
+        for (int i = 0; i < size; i++) {
+            if (cut[i]) continue;
+
+            costs[groupOf[i]] += costOf(nodes.get(i).getFilter());
+            for (int j : successors.get(i)) {
+                if (groupOf[i] != groupOf[j]) {
+                    next.get(groupOf[i]).add(groupOf[j]);
+                    incoming[groupOf[j]]++;
+                }
+            }
+        }
+
+        // Order the groups topologically, the first found first.
+        int[] order = new int[groups];
+        PriorityQueue<Integer> ready = new PriorityQueue<>();
+        for (int g = 0; g < groups; g++) {
+            if (incoming[g] == 0) ready.add(g);
+        }
+        for (int k = 0; k < groups; k++) {
+            int group = ready.remove();
+            order[k] = group;
+            for (int following : next.get(group)) {
+                if (--incoming[following] == 0) ready.add(following);
+            }
+        }
+
+        double[] ordered = new double[groups];
+        for (int k = 0; k < groups; k++) {
+            ordered[k] = costs[order[k]];
+        }
+        int[] stageOfRank = balance(ordered,
+                Math.max(1, Math.min(stages, groups)));
+
+        int[] stageOfGroup = new int[groups];
+        for (int k = 0; k < groups; k++) {
+            stageOfGroup[order[k]] = stageOfRank[k];
+        }
+        int[] stageOf = new int[size];
+        for (int i = 0; i < size; i++) {
+            stageOf[i] = cut[i] ? -1 : stageOfGroup[groupOf[i]];
+        }
+        return stageOf;
+    }
+
+    /**
+     * @return for each node, whether it can be reached from the given one.
+     */
+    private static boolean[] reach(int start, List<List<Integer>> next) {
+        boolean[] reached = new boolean[next.size()];
+        List<Integer> stack = new ArrayList<>(next.get(start));
+        while (!stack.isEmpty()) {
+            int node = stack.remove(stack.size() - 1);
+            if (reached[node]) continue;
+
+            reached[node] = true;
+            stack.addAll(next.get(node));
+        }
+        return reached;
+    }
+
+    /**
+     * Cuts a sequence of costs into consecutive parts, minimizing the
+     * largest sum of a part.
+     *
+     * @param costs The costs, in order.
+     * @param parts The amount of parts, at most the amount of costs.
+     * @return the part of each cost.
+     */
+    private static int[] balance(double[] costs, int parts) {
+        int size = costs.length;
+        double[] sums = new double[size + 1];
+        for (int k = 0; k < size; k++) {
+            sums[k + 1] = sums[k] + costs[k];
+        }
+
+        // best[p][k] is the largest part when cutting the first k costs in
+        // p + 1 parts, the last one starting at cuts[p][k].
+        double[][] best = new double[parts][size + 1];
+        int[][] cuts = new int[parts][size + 1];
+        for (int k = 0; k <= size; k++) {
+            best[0][k] = sums[k];
+        }
+        for (int p = 1; p < parts; p++) {
+            for (int k = p + 1; k <= size; k++) {
+                best[p][k] = Double.POSITIVE_INFINITY;
+                for (int cut = p; cut < k; cut++) {
+                    double largest = Math.max(best[p - 1][cut],
+                            sums[k] - sums[cut]);
+                    if (largest < best[p][k]) {
+                        best[p][k] = largest;
+                        cuts[p][k] = cut;
+                    }
+                }
+            }
+        }
+
+        int[] partOf = new int[size];
+        int end = size;
+        for (int p = parts - 1; p >= 0; p--) {
+            int start = p == 0 ? 0 : cuts[p][end];
+            Arrays.fill(partOf, start, end, p);
+            end = start;
+        }
+        return partOf;
+    }
+
+    /**
+     * @return the estimated cost of the nodes of a stage.
+     */
+    private static double costOf(FilterGraph graph,
+                                 Map<Node, Integer> stageOf, int stage) {
+        double cost = 0;
+        for (Node node : graph.getNodes()) {
+            if (stageOf.get(node) == stage) {
+                cost += costOf(node.getFilter());
+            }
+        }
+        return cost;
+    }
+
+    /**
+     * Estimates the time a filter takes per frame, relative to a gain.
+     *
+     * @param filter The filter to estimate.
+     * @return the estimated cost of the filter.
+     */
+    static double costOf(Filter filter) {
+        if (filter instanceof GainFilter || filter instanceof AdditionFilter) {
+            return 1;
+        }
+        if (filter instanceof WeightedAdditionFilter) {
+            return 1.5;
+        }
+        if (filter instanceof DelayFilter) {
+            return 2;
+        }
+        if (filter instanceof CombKernel) {
+            return 4;
+        }
+        if (filter instanceof AllPassKernel) {
+            return 5;
+        }
+        if (filter instanceof SparseIIRFilter) {
+            return 2 * ((SparseIIRFilter) filter).getTaps();
+        }
+        return filter instanceof BlockFilter ? 10 : 50;
+    }
+
+    /**
+     * @return the given buffers, in the given order.
+     */
+    private static double[][] select(double[][] buffers, int[] indices) {
+        double[][] selected = new double[indices.length][];
+        for (int i = 0; i < indices.length; i++) {
+            selected[i] = buffers[indices[i]];
+        }
+        return selected;
+    }
+
+    /**
+     * @return the given integers, as an array.
+     */
+    private static int[] toArray(List<Integer> values) {
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * @return the amount of inputs of the composite filter.
+     */
+    @Override
+    public int nbInputs() {
+        return composite.nbInputs();
+    }
+
+    /**
+     * @return the amount of outputs of the composite filter.
+     */
+    @Override
+    public int nbOutputs() {
+        return composite.nbOutputs();
+    }
+
+    /**
+     * Computes one step of the filtering.
+     *
+     * @param input contains the inputs of the composite.
+     * @return an array containing the outputs of the composite.
+     * @throws FilterException if the input array is null or of wrong length,
+     *                         or if a stage fails.
+     */
+    @Override
+    public double[] computeOneStep(double[] input) throws FilterException {
+        double[] output = new double[nbOutputs()];
+        computeOneStep(input, output);
+        return output;
+    }
+
+    /**
+     * Computes one step of the filtering, running every stage on the
+     * calling thread.
+     *
+     * @param input  contains the inputs of the composite.
+     * @param output receives the outputs of the composite.
+     * @throws FilterException if the arrays are null or of wrong length, or
+     *                         if a stage fails.
+     */
+    @Override
+    public void computeOneStep(double[] input, double[] output)
+            throws FilterException {
+        BlockFilter.checkStep(this, input, output);
+        checkRunning();
+
+        // No block is in flight between calls, so any block can be used.
+        double[][] block = buffers[0];
+        for (int i = 0; i < input.length; i++) {
+            block[i][0] = input[i];
+        }
+        for (int s = 0; s < stages.length; s++) {
+            runStage(s, 0, 1);
+        }
+        for (int o = 0; o < output.length; o++) {
+            output[o] = block[outputBuffers[o]][0];
+        }
+    }
+
+    /**
+     * Computes several steps of the filtering, through the pipeline. The
+     * calling thread runs the first stage and waits for the last one.
+     *
+     * @param input  contains the input buffers of the composite.
+     * @param output contains the output buffers of the composite.
+     * @param frames the amount of frames to process.
+     * @throws FilterException if the buffers are null or of wrong amount, or
+     *                         if a stage fails.
+     */
+    @Override
+    public void computeBlock(double[][] input, double[][] output, int frames)
+            throws FilterException {
+        BlockFilter.checkBuffers(this, input, output);
+        checkRunning();
+
+        Sequence first = sequences[0];
+        Sequence last = sequences[stages.length - 1];
+        long start = first.value;
+        long end = start + (frames + blockSize - 1) / blockSize;
+        long submitted = start;
+        long collected = start;
+        while (collected < end) {
+            // Blocks are submitted as long as the ring has room, and none
+            // is waiting to be collected.
+            if (submitted < end && submitted - collected < depth
+                    && last.value <= collected) {
+                int block = (int) (submitted % depth);
+                int offset = (int) (submitted - start) * blockSize;
+                int length = Math.min(blockSize, frames - offset);
+                for (int i = 0; i < input.length; i++) {
+                    System.arraycopy(input[i], offset, buffers[block][i], 0,
+                            length);
+                }
+                lengths[block] = length;
+                runStage(0, block, length);
+                first.publish(++submitted);
+                startWorkers();
+                continue;
+            }
+
+            if (!last.await(collected + 1, this)) {
+                throw stoppedError();
+            }
+            int block = (int) (collected % depth);
+            int offset = (int) (collected - start) * blockSize;
+            for (int o = 0; o < output.length; o++) {
+                System.arraycopy(buffers[block][outputBuffers[o]], 0,
+                        output[o], offset, lengths[block]);
+            }
+            collected++;
+        }
+    }
+
+    /**
+     * Runs a stage on a block of the ring, stopping the pipeline if it
+     * fails.
+     */
+    private void runStage(int stage, int block, int length)
+            throws FilterException {
+        try {
+            stages[stage].run(this, buffers[block],
+                    stageInputs[block][stage], stageOutputs[block][stage],
+                    length);
+        } catch (FilterException | RuntimeException e) {
+            FilterException error = e instanceof FilterException
+                    ? (FilterException) e
+                    : new FilterException("Stage " + stage + " failed: "
+                    + e.getMessage());
+            fail(error);
+            throw error;
+        }
+    }
+
+    /**
+     * Starts a thread for each stage after the first one that has none,
+     * once a block was submitted.
+     */
+    private void startWorkers() {
+        for (int s = 1; s < stages.length; s++) {
+            if (!active[s].get() && active[s].compareAndSet(false, true)) {
+                int stage = s;
+                Thread worker = new Thread(() -> work(stage),
+                        "filterlib-pipeline-stage-" + s);
+                worker.setDaemon(true);
+                worker.start();
+            }
+        }
+    }
+
+    /**
+     * Runs a stage on each block completed by the previous one, until the
+     * pipeline is stopped, or no block comes for {@value #IDLE_MILLIS} ms.
+     *
+     * @param stage The stage to run.
+     */
+    private void work(int stage) {
+        Sequence previous = sequences[stage - 1];
+        Sequence sequence = sequences[stage];
+        long next = sequence.value;
+        try {
+            while (true) {
+                if (previous.await(next + 1, this,
+                        TimeUnit.MILLISECONDS.toNanos(IDLE_MILLIS))) {
+                    int block = (int) (next % depth);
+                    runStage(stage, block, lengths[block]);
+                    sequence.publish(++next);
+                    continue;
+                }
+                if (stopped) return;
+
+                // The thread leaves, unless a block it has yet to compute
+                // was submitted meanwhile, and no new thread took over. The
+                // calling thread checks for threads after submitting, so
+                // that one of both sees the other.
+                active[stage].set(false);
+                if (sequences[0].value <= next
+                        || !active[stage].compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        } catch (FilterException ignored) {
+            // The error is thrown back to the calling thread.
+        }
+    }
+
+    /**
+     * Stops the pipeline after a stage failed.
+     */
+    private void fail(FilterException error) {
+        if (failure == null) {
+            failure = error;
+        }
+        stop();
+    }
+
+    /**
+     * Stops the pipeline, waking up every waiting stage.
+     */
+    private void stop() {
+        stopped = true;
+        for (Sequence sequence : sequences) {
+            sequence.wake();
+        }
+        for (Ring ring : rings) {
+            ring.written.wake();
+        }
+    }
+
+    /**
+     * @throws FilterException if the pipeline was closed or failed.
+     */
+    private void checkRunning() throws FilterException {
+        if (stopped) {
+            throw stoppedError();
+        }
+    }
+
+    /**
+     * @return the error thrown by a stage, or the one telling that the
+     *         pipeline was closed.
+     */
+    private FilterException stoppedError() {
+        FilterException error = failure;
+        return error != null ? error
+                : new FilterException("Pipeline is closed.");
+    }
+
+    /**
+     * Stops the threads of the pipeline, which cannot be used anymore. The
+     * pipeline must be closed once done with.
+     */
+    @Override
+    public void close() {
+        stop();
+    }
+
+    /**
+     * Creates a pipeline of as many stages over a copy of the composite
+     * filter, in its initial state.
+     *
+     * @return the copy of the pipeline.
+     * @throws FilterException if the composite filter cannot be copied.
+     */
+    @Override
+    public PipelinedFilter copy() throws FilterException {
+        return new PipelinedFilter(composite.copy(), stages.length,
+                maxBlockSize);
+    }
+
+    /**
+     * Writes the state of every stage, then the values held by every delay
+     * cut out.
+     *
+     * @param out The destination of the state.
+     * @throws FilterException if a filter of a stage has no state to save.
+     * @throws IOException     if the state cannot be written.
+     */
+    @Override
+    public void saveState(DataOutput out)
+            throws FilterException, IOException {
+        out.writeInt(stages.length);
+        out.writeInt(rings.length);
+        for (Stage stage : stages) {
+            stage.saveState(out);
+        }
+        for (Ring ring : rings) {
+            StatefulFilter.writeValues(out, ring.getPendingValues());
+        }
+    }
+
+    /**
+     * Reads back a state written by {@link #saveState(DataOutput)}, from a
+     * pipeline with the same stages.
+     *
+     * @param in The source of the state.
+     * @throws FilterException if a filter of a stage has no state to
+     *                         restore.
+     * @throws IOException     if the state cannot be read, or does not match
+     *                         the stages.
+     */
+    @Override
+    public void restoreState(DataInput in)
+            throws FilterException, IOException {
+        if (in.readInt() != stages.length || in.readInt() != rings.length) {
+            throw new IOException("Snapshot does not match the filter.");
+        }
+        for (Stage stage : stages) {
+            stage.restoreState(in);
+        }
+        for (Ring ring : rings) {
+            ring.fill(StatefulFilter.readValues(in, ring.delay));
+        }
+    }
+
+    /**
+     * Resets every stage and every delay cut out. The pipeline is idle
+     * between calls, so its threads see them reset on the next block.
+     */
+    @Override
+    public void reset() {
+        for (Stage stage : stages) {
+            stage.reset();
+        }
+        for (Ring ring : rings) {
+            ring.fill(new double[ring.delay]);
+        }
+    }
+
+    /**
+     * @return the amount of stages of the pipeline.
+     */
+    public int getStages() {
+        return stages.length;
+    }
+
+    /**
+     * @return the amount of frames of the blocks going through the
+     *         pipeline.
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * @return the estimated cost of each stage, relative to a gain.
+     */
+    public double[] getCosts() {
+        double[] costs = new double[stages.length];
+        for (int s = 0; s < stages.length; s++) {
+            costs[s] = stages[s].cost;
+        }
+        return costs;
+    }
+
+    /**
+     * Part of the graph run by one thread, compiled on its own.
+     */
+    private static final class Stage {
+
+        /**
+         * The schedule of the stage.
+         */
+        private final ExecutionPlan plan;
+
+        /**
+         * The filter generated from the schedule, null if it could not be.
+         */
+        private final BlockFilter generated;
+
+        /**
+         * Estimated cost of the stage, relative to a gain.
+         */
+        private final double cost;
+
+        /**
+         * Delays read by the stage, and the buffers they are read into.
+         */
+        private final Ring[] pops;
+
+        private final int[] popBuffers;
+
+        /**
+         * Delays fed by the stage, and the buffers they are fed from.
+         */
+        private final Ring[] pushes;
+
+        private final int[] pushBuffers;
+
+        Stage(ExecutionPlan plan, double cost, Ring[] pops, int[] popBuffers,
+              Ring[] pushes, int[] pushBuffers) {
+            this.plan = plan;
+            this.generated = FilterCompiler.compile(plan);
+            this.cost = cost;
+            this.pops = pops;
+            this.popBuffers = popBuffers;
+            this.pushes = pushes;
+            this.pushBuffers = pushBuffers;
+        }
+
+        /**
+         * Reads the delays the stage reads, computes a block, then feeds the
+         * delays whose input the stage computes.
+         */
+        void run(PipelinedFilter pipeline, double[][] block,
+                 double[][] input, double[][] output, int frames)
+                throws FilterException {
+            for (int i = 0; i < pops.length; i++) {
+                if (!pops[i].pop(block[popBuffers[i]], frames, pipeline)) {
+                    throw pipeline.stoppedError();
+                }
+            }
+
+            if (generated != null) {
+                generated.computeBlock(input, output, frames);
+            } else {
+                plan.executeBlock(input, output, frames);
+            }
+
+            for (int i = 0; i < pushes.length; i++) {
+                pushes[i].push(block[pushBuffers[i]], frames);
+            }
+        }
+
+        void saveState(DataOutput out) throws FilterException, IOException {
+            if (generated != null) {
+                StatefulFilter.save(generated, out);
+            } else {
+                plan.saveState(out);
+            }
+        }
+
+        void restoreState(DataInput in) throws FilterException, IOException {
+            if (generated != null) {
+                StatefulFilter.restore(generated, in);
+            } else {
+                plan.restoreState(in);
+            }
+        }
+
+        void reset() {
+            if (generated != null) {
+                generated.reset();
+            } else {
+                plan.reset();
+            }
+        }
+    }
+
+    /**
+     * Delay cut out of the stages, as a queue of samples fed by one stage
+     * and read by one other, holding as many samples as the delay between
+     * calls.
+     */
+    private static final class Ring {
+
+        private final double[] values;
+
+        /**
+         * Capacity of the queue minus one, the capacity being a power of
+         * two.
+         */
+        private final int mask;
+
+        private final int delay;
+
+        /**
+         * Amount of samples fed so far, those held initially included.
+         */
+        private final Sequence written;
+
+        /**
+         * Amount of samples read so far, only used by the reading stage.
+         */
+        private long read;
+
+        Ring(DelayFilter filter, int capacity) {
+            this.values = new double[capacity];
+            this.mask = capacity - 1;
+            this.delay = filter.getDelay();
+            this.written = new Sequence();
+            fill(filter.getPendingValues());
+        }
+
+        /**
+         * Empties the queue, then feeds it as many samples as the delay.
+         */
+        void fill(double[] pending) {
+            System.arraycopy(pending, 0, values, 0, delay);
+            read = 0;
+            written.publish(delay);
+        }
+
+        /**
+         * @return the samples held by the queue, in the order they will be
+         *         read.
+         */
+        double[] getPendingValues() {
+            double[] pending = new double[(int) (written.value - read)];
+            int index = (int) (read & mask);
+            int first = Math.min(pending.length, mask + 1 - index);
+            System.arraycopy(values, index, pending, 0, first);
+            System.arraycopy(values, 0, pending, first,
+                    pending.length - first);
+            return pending;
+        }
+
+        /**
+         * Reads samples, waiting for them to be fed if needed.
+         *
+         * @return {@code true} once read, {@code false} if the pipeline was
+         *         stopped before.
+         */
+        boolean pop(double[] output, int frames, PipelinedFilter pipeline) {
+            if (!written.await(read + frames, pipeline)) {
+                return false;
+            }
+
+            int index = (int) (read & mask);
+            int first = Math.min(frames, mask + 1 - index);
+            System.arraycopy(values, index, output, 0, first);
+            System.arraycopy(values, 0, output, first, frames - first);
+            read += frames;
+            return true;
+        }
+
+        /**
+         * Feeds samples. The queue holds every block in flight, so it never
+         * waits for samples to be read.
+         */
+        void push(double[] input, int frames) {
+            long position = written.value;
+            int index = (int) (position & mask);
+            int first = Math.min(frames, mask + 1 - index);
+            System.arraycopy(input, 0, values, index, first);
+            System.arraycopy(input, first, values, 0, frames - first);
+            written.publish(position + frames);
+        }
+    }
+
+    /**
+     * Amount published by the thread of one stage, and waited for by the
+     * thread of one other stage only: the amount of blocks a stage
+     * completed, or of samples fed to a delay.
+     */
+    private static final class Sequence {
+
+        /**
+         * The published amount.
+         */
+        private volatile long value;
+
+        /**
+         * Thread sleeping until the amount grows, null if none.
+         */
+        private volatile Thread waiter;
+
+        /**
+         * Publishes a new amount, waking up the waiting thread if it sleeps.
+         */
+        void publish(long amount) {
+            value = amount;
+            wake();
+        }
+
+        /**
+         * Wakes up the thread sleeping on the sequence, if any.
+         */
+        void wake() {
+            Thread sleeping = waiter;
+            if (sleeping != null) {
+                LockSupport.unpark(sleeping);
+            }
+        }
+
+        /**
+         * Waits until the amount reaches the given one, actively for a
+         * while, then sleeping.
+         *
+         * @return {@code true} once the amount is reached, {@code false} if
+         *         the pipeline was stopped before.
+         */
+        boolean await(long target, PipelinedFilter pipeline) {
+            return await(target, pipeline, Long.MAX_VALUE);
+        }
+
+        /**
+         * Waits until the amount reaches the given one, actively for a
+         * while, then sleeping, for a limited time.
+         *
+         * @param timeout The longest time to wait, in nanoseconds.
+         * @return {@code true} once the amount is reached, {@code false} if
+         *         the pipeline was stopped or the time ran out before.
+         */
+        boolean await(long target, PipelinedFilter pipeline, long timeout) {
+            long since = 0;
+            while (value < target) {
+                if (pipeline.stopped) return false;
+
+                long waited = since == 0 ? 0 : System.nanoTime() - since;
+                if (since == 0) {
+                    since = System.nanoTime();
+                } else if (waited < SPIN_NANOS) {
+                    Thread.yield();
+                } else if (waited >= timeout) {
+                    return false;
+                } else {
+                    waiter = Thread.currentThread();
+                    if (value < target && !pipeline.stopped) {
+                        LockSupport.parkNanos(this, timeout - waited);
+                    }
+                    waiter = null;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,661 @@
+package be.isach.filterlib.engine;
+
+import be.isach.filterlib.engine.FilterGraph.Node;
+import be.isach.filterlib.engine.FilterGraph.Port;
+import be.isach.filterlib.filters.AdditionFilter;
+import be.isach.filterlib.filters.CompositeFilter;
+import be.isach.filterlib.filters.DelayFilter;
+import be.isach.filterlib.filters.GainFilter;
+import be.isach.filterlib.filters.WeightedAdditionFilter;
+import be.uliege.montefiore.oop.audio.Filter;
+import be.uliege.montefiore.oop.audio.FilterException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Directory of compiled execution plans, so that a graph loaded again, for
+ * instance by the next run of a program, is not optimized and scheduled
+ * again.
+ * <p>
+ * Plans are stored under a key given by the caller, the structural hash of
+ * the graph they were compiled from, such as the one of a graph
+ * description. Each file holds the schedule of the plan and the parameters
+ * of its filters, with a checksum, and the structural hash of the composite
+ * it was compiled from: the kinds and parameters of its filters, nested
+ * composites included, and their connections, mixed into 64 bits without
+ * flattening the composite. A plan is only used if the composite has the
+ * same hash, which is cheap to compute, so that hits do not analyze the
+ * graph; a different graph would have to collide with both the key and
+ * this hash to be given a wrong plan. A file that is missing, cut short,
+ * written by another version or not matching the composite is simply
+ * compiled and written again. Files are written to a temporary
+ * file first and then moved, so that concurrent runs never read a partial
+ * plan.
+ * </p>
+ * <p>
+ * Only plans made of gains, additions, delays and the comb and all-pass
+ * kernels can be stored, which covers every graph built from the basic
+ * filters of the library. Other plans are compiled every time.
+ * </p>
+ */
+public class PlanCache {
+
+    /**
+     * Directory used by default, in the cache directory of the user:
+     * {@code $XDG_CACHE_HOME/filterlib/plans}, or
+     * {@code ~/.cache/filterlib/plans}. Unlike the temporary directory of
+     * the system, it cannot be written by other users.
+     */
+    public static final Path DEFAULT_DIRECTORY = defaultDirectory();
+
+    /**
+     * Value starting every plan file.
+     */
+    private static final int MAGIC = 0x46504C4E;
+
+    /**
+     * Version of the layout of plan files, changed whenever the layout or
+     * the compilation of plans changes.
+     */
+    private static final int VERSION = 3;
+
+    private static final byte GAIN = 0;
+
+    private static final byte ADDITION = 1;
+
+    private static final byte WEIGHTED_ADDITION = 2;
+
+    private static final byte DELAY = 3;
+
+    private static final byte COMB = 4;
+
+    private static final byte ALL_PASS = 5;
+
+    /**
+     * Directory holding the plan files.
+     */
+    private final Path directory;
+
+    /**
+     * Amount of plans read from the directory.
+     */
+    private int hits;
+
+    /**
+     * Amount of plans compiled.
+     */
+    private int misses;
+
+    /**
+     * Initializes a cache stored in the given directory, created when the
+     * first plan is written.
+     *
+     * @param directory The directory holding the plan files.
+     */
+    public PlanCache(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return the directory of the plans of the current user.
+     */
+    private static Path defaultDirectory() {
+        String cache = System.getenv("XDG_CACHE_HOME");
+        Path base = cache != null && Paths.get(cache).isAbsolute()
+                ? Paths.get(cache)
+                : Paths.get(System.getProperty("user.home"), ".cache");
+        return base.resolve("filterlib").resolve("plans");
+    }
+
+    /**
+     * Gives the plan of a composite filter, read from the cache if it holds
+     * one for the given key, or compiled and added to the cache otherwise.
+     *
+     * @param composite The composite filter to compile, whose graph must be
+     *                  the one the key was computed from.
+     * @param key       The structural hash of the graph, made of hexadecimal
+     *                  digits.
+     * @return the plan of the composite filter, owning its own filters.
+     * @throws FilterException if the key is not hexadecimal, or if an output
+     *                         of the composite can never be computed.
+     */
+    public synchronized ExecutionPlan compile(CompositeFilter composite,
+                                              String key)
+            throws FilterException {
+        boolean hexadecimal = !key.isEmpty();
+        for (int i = 0; i < key.length(); i++) {
+            hexadecimal &= "0123456789abcdefABCDEF"
+                    .indexOf(key.charAt(i)) >= 0;
+        }
+        if (!hexadecimal) {
+            throw new FilterException("Plan keys must be hexadecimal.");
+        }
+
+        long hash = hashOf(composite, new IdentityHashMap<>());
+        Path file = directory.resolve(key + ".plan");
+        ExecutionPlan plan = read(file, hash, composite, key);
+        if (plan != null) {
+            hits++;
+            return plan;
+        }
+
+        misses++;
+        plan = ExecutionPlan.compile(composite);
+        if (isPortable(plan)) {
+            write(file, hash, plan, key);
+        }
+        return plan;
+    }
+
+    /**
+     * @return the amount of plans read from the directory so far.
+     */
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the amount of plans compiled so far.
+     */
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    /**
+     * Removes every plan file of the directory.
+     *
+     * @throws IOException if a file cannot be removed.
+     */
+    public synchronized void clear() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (file.getFileName().toString().endsWith(".plan")) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if every filter of the plan can be written,
+     *         {@code false} otherwise.
+     */
+    private static boolean isPortable(ExecutionPlan plan) {
+        for (Filter filter : plan.getFilters()) {
+            if (kindOf(filter) < 0) {
+                return false;
+            }
+        }
+        for (DelayFilter breaker : plan.getBreakers()) {
+            if (kindOf(breaker) != DELAY) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the kind of the filter in plan files, -1 if it cannot be
+     *         written.
+     */
+    private static int kindOf(Filter filter) {
+        Class<?> type = filter.getClass();
+        if (type == GainFilter.class) return GAIN;
+        if (type == AdditionFilter.class) return ADDITION;
+        if (type == WeightedAdditionFilter.class) return WEIGHTED_ADDITION;
+        if (type == DelayFilter.class) return DELAY;
+        if (type == CombKernel.class) return COMB;
+        if (type == AllPassKernel.class) return ALL_PASS;
+        return -1;
+    }
+
+    /**
+     * Computes the structural hash of a composite filter from its own graph:
+     * the kind and parameters of each filter, the hash of each nested
+     * composite, and where each of their inputs and each output of the
+     * composite reads. Other filters than those of plan files are only
+     * hashed by their class: plans holding them are never written, and
+     * those the optimizer removed do not affect the outputs.
+     *
+     * @param nested The hashes of the nested composites computed so far,
+     *               each one being hashed once.
+     * @return the structural hash of the composite.
+     * @throws FilterException if a composite is missing connections.
+     */
+    private static long hashOf(CompositeFilter composite,
+                               Map<CompositeFilter, Long> nested)
+            throws FilterException {
+        Long known = nested.get(composite);
+        if (known != null) {
+            return known;
+        }
+
+        FilterGraph graph = FilterGraph.of(composite);
+        List<Node> nodes = graph.getNodes();
+        Map<Node, Integer> indices = new IdentityHashMap<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            indices.put(nodes.get(i), i);
+        }
+
+        long hash = mix(0x46504C4EL, graph.nbInputs());
+        hash = mix(hash, nodes.size());
+        for (Node node : nodes) {
+            Filter filter = node.getFilter();
+            if (filter instanceof CompositeFilter) {
+                hash = mix(hash, hashOf((CompositeFilter) filter, nested));
+            } else {
+                hash = hashFilter(hash, filter);
+            }
+            hash = hashPorts(hash, node.getInputs(), indices);
+        }
+        hash = hashPorts(hash, graph.getOutputs(), indices);
+
+        nested.put(composite, hash);
+        return hash;
+    }
+
+    /**
+     * @return the hash updated with the kind and parameters of a filter
+     *         other than a composite.
+     */
+    private static long hashFilter(long hash, Filter filter) {
+        int kind = kindOf(filter);
+        hash = mix(hash, kind);
+        switch (kind) {
+            case GAIN:
+                return mix(hash, Double.doubleToLongBits(
+                        ((GainFilter) filter).getGain()));
+            case WEIGHTED_ADDITION:
+                WeightedAdditionFilter addition =
+                        (WeightedAdditionFilter) filter;
+                hash = mix(hash, Double.doubleToLongBits(
+                        addition.getFirstWeight()));
+                return mix(hash, Double.doubleToLongBits(
+                        addition.getSecondWeight()));
+            case DELAY:
+                return mix(hash, ((DelayFilter) filter).getDelay());
+            case COMB:
+                CombKernel comb = (CombKernel) filter;
+                hash = mix(hash, Double.doubleToLongBits(
+                        comb.getInputWeight()));
+                hash = mix(hash, Double.doubleToLongBits(
+                        comb.getFeedbackWeight()));
+                return mix(hash, comb.getDelay());
+            case ALL_PASS:
+                AllPassKernel allPass = (AllPassKernel) filter;
+                hash = mix(hash, Double.doubleToLongBits(
+                        allPass.getDirectWeight()));
+                hash = mix(hash, Double.doubleToLongBits(
+                        allPass.getDelayedWeight()));
+                hash = mix(hash, Double.doubleToLongBits(
+                        allPass.getStoredInputWeight()));
+                hash = mix(hash, Double.doubleToLongBits(
+                        allPass.getStoredOutputWeight()));
+                return mix(hash, allPass.getDelay());
+            case ADDITION:
+                return hash;
+            default:
+                return mix(hash, filter.getClass().getName().hashCode());
+        }
+    }
+
+    /**
+     * @return the hash updated with where each of the given ports reads:
+     *         the index of its node, -1 for an input of the graph, or -2
+     *         for a missing connection, then the index of the output or
+     *         input.
+     */
+    private static long hashPorts(long hash, Port[] ports,
+                                  Map<Node, Integer> indices) {
+        hash = mix(hash, ports.length);
+        for (Port port : ports) {
+            if (port == null) {
+                hash = mix(mix(hash, -2), 0);
+            } else {
+                hash = mix(hash, port.isGraphInput() ? -1
+                        : indices.get(port.getNode()));
+                hash = mix(hash, port.getIndex());
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Mixes a value into a hash, every bit of the value affecting every bit
+     * of the result.
+     */
+    private static long mix(long hash, long value) {
+        long h = (hash ^ value) * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        h *= 0xD6E8FEB86659FD93L;
+        return h ^ (h >>> 32);
+    }
+
+    /**
+     * Writes a plan to its file, through a temporary file. The cache only
+     * saves time: a plan that cannot be written is compiled again next
+     * time.
+     *
+     * @param hash The structural hash of the composite of the plan.
+     */
+    private void write(Path file, long hash, ExecutionPlan plan,
+                       String key) {
+        Path temporary = null;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(bytes);
+            data.writeLong(hash);
+            writePlan(data, plan);
+            byte[] payload = bytes.toByteArray();
+            CRC32 checksum = new CRC32();
+            checksum.update(payload);
+
+            Files.createDirectories(directory);
+            temporary = Files.createTempFile(directory, key, ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    Files.newOutputStream(temporary))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(key);
+                out.writeInt(payload.length);
+                out.write(payload);
+                out.writeInt((int) checksum.getValue());
+            }
+
+            try {
+                Files.move(temporary, file,
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, file,
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            try {
+                if (temporary != null) {
+                    Files.deleteIfExists(temporary);
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Reads the plan of a file, if it holds a complete plan of the current
+     * version, for the given key and compiled from a composite of the same
+     * structural hash as the given one.
+     *
+     * @param hash The structural hash of the composite.
+     * @return the plan, null if it must be compiled.
+     */
+    private static ExecutionPlan read(Path file, long hash,
+                                      CompositeFilter composite,
+                                      String key) {
+        byte[] payload;
+        try (DataInputStream in = new DataInputStream(
+                Files.newInputStream(file))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || !in.readUTF().equals(key)) {
+                return null;
+            }
+
+            int length = in.readInt();
+            if (length < 0 || length > Files.size(file)) {
+                return null;
+            }
+            payload = new byte[length];
+            in.readFully(payload);
+
+            CRC32 checksum = new CRC32();
+            checksum.update(payload);
+            if (in.readInt() != (int) checksum.getValue()) {
+                return null;
+            }
+        } catch (IOException e) {
+            // Missing, truncated or unreadable: compiled again.
+            return null;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(payload));
+            if (in.readLong() != hash) {
+                return null;
+            }
+            return readPlan(in, payload.length, composite);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the schedule of a plan and the parameters of its filters.
+     */
+    private static void writePlan(DataOutput out, ExecutionPlan plan)
+            throws IOException {
+        out.writeInt(plan.nbInputs());
+        out.writeInt(plan.nbSlots());
+        out.writeInt(plan.getMaxBlockSize());
+        writeSlots(out, plan.getOutputSlots());
+
+        Filter[] filters = plan.getFilters();
+        out.writeInt(filters.length);
+        for (int i = 0; i < filters.length; i++) {
+            writeFilter(out, filters[i]);
+            writeSlots(out, plan.getInputSlots()[i]);
+            out.writeInt(plan.getFirstOutputSlots()[i]);
+        }
+
+        DelayFilter[] breakers = plan.getBreakers();
+        out.writeInt(breakers.length);
+        for (int i = 0; i < breakers.length; i++) {
+            out.writeInt(breakers[i].getDelay());
+            out.writeInt(plan.getBreakerOutputSlots()[i]);
+            out.writeInt(plan.getBreakerInputSlots()[i]);
+        }
+    }
+
+    /**
+     * Reads back a plan written by {@link #writePlan}, checking that its
+     * slots are consistent and that it matches the composite filter.
+     *
+     * @param limit The size of the written plan, which bounds the lengths
+     *              it holds.
+     * @throws IOException if the plan is truncated, or does not match.
+     */
+    private static ExecutionPlan readPlan(DataInput in, int limit,
+                                          CompositeFilter composite)
+            throws IOException {
+        int nbInputs = in.readInt();
+        int slotsAmount = in.readInt();
+        int maxBlockSize = in.readInt();
+        if (nbInputs != composite.nbInputs() || nbInputs > slotsAmount
+                || slotsAmount > nbInputs + limit) {
+            throw new IOException("Plan does not match the filter.");
+        }
+
+        int[] outputSlots = readSlots(in, limit, slotsAmount);
+        if (outputSlots.length != composite.nbOutputs()
+                || maxBlockSize <= 0
+                || maxBlockSize > ExecutionPlan.MAX_BLOCK_SIZE) {
+            throw new IOException("Plan does not match the filter.");
+        }
+
+        Filter[] filters = new Filter[checkedLength(in, limit)];
+        int[][] inputSlots = new int[filters.length][];
+        int[] firstOutputSlots = new int[filters.length];
+        for (int i = 0; i < filters.length; i++) {
+            filters[i] = readFilter(in);
+            inputSlots[i] = readSlots(in, limit, slotsAmount);
+            firstOutputSlots[i] = in.readInt();
+            if (inputSlots[i].length != filters[i].nbInputs()
+                    || firstOutputSlots[i] < nbInputs
+                    || firstOutputSlots[i] + filters[i].nbOutputs()
+                    > slotsAmount) {
+                throw new IOException("Plan does not match the filter.");
+            }
+        }
+
+        DelayFilter[] breakers = new DelayFilter[checkedLength(in, limit)];
+        int[] breakerOutputSlots = new int[breakers.length];
+        int[] breakerInputSlots = new int[breakers.length];
+        for (int i = 0; i < breakers.length; i++) {
+            int delay = in.readInt();
+            breakerOutputSlots[i] = in.readInt();
+            breakerInputSlots[i] = in.readInt();
+            if (delay < maxBlockSize || breakerOutputSlots[i] < nbInputs
+                    || breakerOutputSlots[i] >= slotsAmount
+                    || breakerInputSlots[i] < -1
+                    || breakerInputSlots[i] >= slotsAmount) {
+                throw new IOException("Plan does not match the filter.");
+            }
+            breakers[i] = new DelayFilter(delay);
+        }
+
+        return ExecutionPlan.of(nbInputs, outputSlots, slotsAmount, filters,
+                inputSlots, firstOutputSlots, breakers, breakerOutputSlots,
+                breakerInputSlots, maxBlockSize);
+    }
+
+    /**
+     * Writes the kind and parameters of a filter.
+     */
+    private static void writeFilter(DataOutput out, Filter filter)
+            throws IOException {
+        int kind = kindOf(filter);
+        out.writeByte(kind);
+        switch (kind) {
+            case GAIN:
+                out.writeDouble(((GainFilter) filter).getGain());
+                break;
+            case WEIGHTED_ADDITION:
+                WeightedAdditionFilter addition =
+                        (WeightedAdditionFilter) filter;
+                out.writeDouble(addition.getFirstWeight());
+                out.writeDouble(addition.getSecondWeight());
+                break;
+            case DELAY:
+                out.writeInt(((DelayFilter) filter).getDelay());
+                break;
+            case COMB:
+                CombKernel comb = (CombKernel) filter;
+                out.writeDouble(comb.getInputWeight());
+                out.writeDouble(comb.getFeedbackWeight());
+                out.writeInt(comb.getDelay());
+                break;
+            case ALL_PASS:
+                AllPassKernel allPass = (AllPassKernel) filter;
+                out.writeDouble(allPass.getDirectWeight());
+                out.writeDouble(allPass.getDelayedWeight());
+                out.writeDouble(allPass.getStoredInputWeight());
+                out.writeDouble(allPass.getStoredOutputWeight());
+                out.writeInt(allPass.getDelay());
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Reads back a filter written by {@link #writeFilter}, as a new filter
+     * holding only 0 values.
+     *
+     * @throws IOException if the filter is truncated or unknown.
+     */
+    private static Filter readFilter(DataInput in) throws IOException {
+        byte kind = in.readByte();
+        switch (kind) {
+            case GAIN:
+                return new GainFilter(in.readDouble());
+            case ADDITION:
+                return new AdditionFilter();
+            case WEIGHTED_ADDITION:
+                return new WeightedAdditionFilter(in.readDouble(),
+                        in.readDouble());
+            case DELAY:
+                return new DelayFilter(checkedDelay(in.readInt()));
+            case COMB:
+                return new CombKernel(in.readDouble(), in.readDouble(),
+                        checkedDelay(in.readInt()));
+            case ALL_PASS:
+                return new AllPassKernel(in.readDouble(), in.readDouble(),
+                        in.readDouble(), in.readDouble(),
+                        checkedDelay(in.readInt()));
+            default:
+                throw new IOException("Unknown filter kind: " + kind);
+        }
+    }
+
+    /**
+     * @return the given delay, if positive.
+     * @throws IOException otherwise.
+     */
+    private static int checkedDelay(int delay) throws IOException {
+        if (delay <= 0) {
+            throw new IOException("Plan does not match the filter.");
+        }
+        return delay;
+    }
+
+    /**
+     * Writes an array of slots, preceded by its length.
+     */
+    private static void writeSlots(DataOutput out, int[] slots)
+            throws IOException {
+        out.writeInt(slots.length);
+        for (int slot : slots) {
+            out.writeInt(slot);
+        }
+    }
+
+    /**
+     * Reads back an array of slots, which must all be lower than the given
+     * amount of slots.
+     *
+     * @throws IOException if the array is truncated, or a slot is invalid.
+     */
+    private static int[] readSlots(DataInput in, int limit, int slotsAmount)
+            throws IOException {
+        int[] slots = new int[checkedLength(in, limit)];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = in.readInt();
+            if (slots[i] < 0 || slots[i] >= slotsAmount) {
+                throw new IOException("Plan does not match the filter.");
+            }
+        }
+        return slots;
+    }
+
+    /**
+     * Reads a length, which cannot exceed the size of the written plan.
+     *
+     * @throws IOException if the length is invalid.
+     */
+    private static int checkedLength(DataInput in, int limit)
+            throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > limit) {
+            throw new IOException("Plan does not match the filter.");
+        }
+        return length;
+    }
+}
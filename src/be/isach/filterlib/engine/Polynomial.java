@@ -0,0 +1,310 @@
+package be.isach.filterlib.engine;
+
+import java.util.Arrays;
+
+/**
+ * Immutable sparse polynomial in the unit delay z^-1, as found in the
+ * transfer functions of graphs of gains, additions and delays.
+ * <p>
+ * Only the non-zero terms are kept, by increasing power: a delay of 44100
+ * samples is a single term.
+ * </p>
+ */
+final class Polynomial {
+
+    /**
+     * The zero polynomial.
+     */
+    static final Polynomial ZERO = new Polynomial(new int[0], new double[0]);
+
+    /**
+     * The constant polynomial 1.
+     */
+    static final Polynomial ONE = monomial(1, 0);
+
+    /**
+     * Powers of the non-zero terms, increasing.
+     */
+    private final int[] powers;
+
+    /**
+     * Coefficients of the non-zero terms.
+     */
+    private final double[] coefficients;
+
+    private Polynomial(int[] powers, double[] coefficients) {
+        this.powers = powers;
+        this.coefficients = coefficients;
+    }
+
+    /**
+     * @return the polynomial c z^-power.
+     */
+    static Polynomial monomial(double coefficient, int power) {
+        if (coefficient == 0) {
+            return ZERO;
+        }
+        return new Polynomial(new int[]{power}, new double[]{coefficient});
+    }
+
+    /**
+     * @return whether the polynomial has no term.
+     */
+    boolean isZero() {
+        return powers.length == 0;
+    }
+
+    /**
+     * @return the highest power of the polynomial, -1 for zero.
+     */
+    int degree() {
+        return powers.length == 0 ? -1 : powers[powers.length - 1];
+    }
+
+    /**
+     * @return the powers of the non-zero terms, increasing.
+     */
+    int[] getPowers() {
+        return powers.clone();
+    }
+
+    /**
+     * @return the coefficients of the non-zero terms.
+     */
+    double[] getCoefficients() {
+        return coefficients.clone();
+    }
+
+    /**
+     * @return the coefficient of the given power.
+     */
+    double coefficient(int power) {
+        int i = Arrays.binarySearch(powers, power);
+        return i < 0 ? 0 : coefficients[i];
+    }
+
+    /**
+     * @return the largest absolute coefficient, 0 for zero.
+     */
+    double maxAbs() {
+        double max = 0;
+        for (double coefficient : coefficients) {
+            max = Math.max(max, Math.abs(coefficient));
+        }
+        return max;
+    }
+
+    /**
+     * @return the sum of both polynomials.
+     */
+    Polynomial plus(Polynomial other) {
+        return combine(other, 1);
+    }
+
+    /**
+     * @return the difference of both polynomials.
+     */
+    Polynomial minus(Polynomial other) {
+        return combine(other, -1);
+    }
+
+    /**
+     * @return this polynomial plus the other one times a factor.
+     */
+    private Polynomial combine(Polynomial other, double factor) {
+        if (other.isZero()) {
+            return this;
+        }
+
+        int[] resultPowers = new int[powers.length + other.powers.length];
+        double[] resultCoefficients = new double[resultPowers.length];
+        int i = 0, j = 0, size = 0;
+        while (i < powers.length || j < other.powers.length) {
+            int power;
+            double coefficient;
+            if (j == other.powers.length
+                    || (i < powers.length && powers[i] < other.powers[j])) {
+                power = powers[i];
+                coefficient = coefficients[i++];
+            } else if (i == powers.length || other.powers[j] < powers[i]) {
+                power = other.powers[j];
+                coefficient = factor * other.coefficients[j++];
+            } else {
+                power = powers[i];
+                coefficient = coefficients[i++]
+                        + factor * other.coefficients[j++];
+            }
+
+            if (coefficient != 0) {
+                resultPowers[size] = power;
+                resultCoefficients[size++] = coefficient;
+            }
+        }
+        return new Polynomial(Arrays.copyOf(resultPowers, size),
+                Arrays.copyOf(resultCoefficients, size));
+    }
+
+    /**
+     * @return the polynomial multiplied by a constant.
+     */
+    Polynomial times(double factor) {
+        if (factor == 0) {
+            return ZERO;
+        }
+
+        double[] result = new double[coefficients.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = factor * coefficients[i];
+        }
+        return new Polynomial(powers, result);
+    }
+
+    /**
+     * @return the polynomial delayed by the given amount of samples, that is
+     *         multiplied by z^-delay.
+     */
+    Polynomial delay(int delay) {
+        if (delay == 0) {
+            return this;
+        }
+
+        int[] result = new int[powers.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = Math.addExact(powers[i], delay);
+        }
+        return new Polynomial(result, coefficients);
+    }
+
+    /**
+     * @return the product of both polynomials.
+     */
+    Polynomial times(Polynomial other) {
+        if (isZero() || other.isZero()) {
+            return ZERO;
+        }
+        if (powers.length == 1) {
+            return other.times(coefficients[0]).delay(powers[0]);
+        }
+        if (other.powers.length == 1) {
+            return times(other.coefficients[0]).delay(other.powers[0]);
+        }
+
+        // Terms are accumulated densely, then compacted.
+        int lowest = powers[0] + other.powers[0];
+        double[] dense = new double[Math.addExact(degree(), other.degree())
+                - lowest + 1];
+        boolean[] used = new boolean[dense.length];
+        for (int i = 0; i < powers.length; i++) {
+            for (int j = 0; j < other.powers.length; j++) {
+                int index = powers[i] + other.powers[j] - lowest;
+                dense[index] += coefficients[i] * other.coefficients[j];
+                used[index] = true;
+            }
+        }
+
+        int size = 0;
+        for (int k = 0; k < dense.length; k++) {
+            if (used[k] && dense[k] != 0) size++;
+        }
+        int[] resultPowers = new int[size];
+        double[] resultCoefficients = new double[size];
+        size = 0;
+        for (int k = 0; k < dense.length; k++) {
+            if (used[k] && dense[k] != 0) {
+                resultPowers[size] = k + lowest;
+                resultCoefficients[size++] = dense[k];
+            }
+        }
+        return new Polynomial(resultPowers, resultCoefficients);
+    }
+
+    /**
+     * @return the polynomial without its terms whose absolute coefficient is
+     *         at most the given threshold.
+     */
+    Polynomial prune(double threshold) {
+        int size = 0;
+        for (double coefficient : coefficients) {
+            if (Math.abs(coefficient) > threshold) size++;
+        }
+        if (size == powers.length) {
+            return this;
+        }
+
+        int[] resultPowers = new int[size];
+        double[] resultCoefficients = new double[size];
+        size = 0;
+        for (int i = 0; i < powers.length; i++) {
+            if (Math.abs(coefficients[i]) > threshold) {
+                resultPowers[size] = powers[i];
+                resultCoefficients[size++] = coefficients[i];
+            }
+        }
+        return new Polynomial(resultPowers, resultCoefficients);
+    }
+
+    /**
+     * Computes the determinant of a square matrix of polynomials, by
+     * expanding it over the subsets of its columns. This suits the small,
+     * sparse matrices of the loops of a graph, and involves no division.
+     *
+     * @param matrix The matrix, null entries being zero.
+     * @return the determinant.
+     */
+    static Polynomial determinant(Polynomial[][] matrix) {
+        int n = matrix.length;
+
+        // Sum over the permutations of the first rows, by used columns.
+        Polynomial[] minors = new Polynomial[1 << n];
+        minors[0] = ONE;
+        for (int used = 0; used < minors.length - 1; used++) {
+            if (minors[used] == null || minors[used].isZero()) {
+                continue;
+            }
+
+            int row = Integer.bitCount(used);
+            for (int column = 0; column < n; column++) {
+                Polynomial entry = matrix[row][column];
+                if ((used & 1 << column) != 0 || entry == null
+                        || entry.isZero()) {
+                    continue;
+                }
+
+                Polynomial term = minors[used].times(entry);
+                if (Integer.bitCount(used >>> column) % 2 == 1) {
+                    term = term.times(-1);
+                }
+                int next = used | 1 << column;
+                minors[next] = minors[next] == null
+                        ? term : minors[next].plus(term);
+            }
+        }
+
+        Polynomial determinant = minors[minors.length - 1];
+        return determinant == null ? ZERO : determinant;
+    }
+
+    /**
+     * @return the polynomial, as a sum of terms c z^-k.
+     */
+    @Override
+    public String toString() {
+        if (isZero()) {
+            return "0";
+        }
+
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < powers.length; i++) {
+            double coefficient = coefficients[i];
+            if (i > 0) {
+                builder.append(coefficient < 0 ? " - " : " + ");
+                coefficient = Math.abs(coefficient);
+            }
+            builder.append(coefficient);
+            if (powers[i] != 0) {
+                builder.append(" z^-").append(powers[i]);
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,172 @@
+package be.isach.filterlib.engine;
+
+import be.isach.filterlib.filters.CompositeFilter;
+import be.isach.filterlib.filters.DelayFilter;
+import be.uliege.montefiore.oop.audio.Filter;
+import be.uliege.montefiore.oop.audio.FilterException;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Execution plan measuring the time spent in each of its filters, and
+ * recording it into a profile.
+ * <p>
+ * The graph is flattened but not optimized, so that every scheduled filter
+ * is one of the blocks of the composite filter, and its time can be
+ * attributed to that block. Delays used to break loops are measured when
+ * they are popped and fed.
+ * </p>
+ * <p>
+ * Plans are only profiled when they are compiled by this class: as long as
+ * it is not used, the measures are not even loaded, and cost nothing to
+ * regular plans. Each measure reads the clock twice, which dominates the
+ * time of simple filters computed one step at a time: blocks of frames give
+ * more accurate profiles.
+ * </p>
+ */
+class ProfiledPlan extends ExecutionPlan {
+
+    /**
+     * Entry of the profiled composite filter.
+     */
+    private final FilterProfile.Entry root;
+
+    /**
+     * Entry of each scheduled filter.
+     */
+    private final FilterProfile.Entry[] filterEntries;
+
+    /**
+     * Entry of each delay breaking a loop.
+     */
+    private final FilterProfile.Entry[] breakerEntries;
+
+    private ProfiledPlan(ExecutionPlan plan, FilterProfile profile,
+                         Map<Filter, FilterProfile.Entry> entries) {
+        super(plan);
+        this.root = profile.getRoot();
+
+        Filter[] filters = getFilters();
+        this.filterEntries = new FilterProfile.Entry[filters.length];
+        for (int i = 0; i < filters.length; i++) {
+            filterEntries[i] = entries.get(filters[i]);
+        }
+
+        DelayFilter[] breakers = getBreakers();
+        this.breakerEntries = new FilterProfile.Entry[breakers.length];
+        for (int i = 0; i < breakers.length; i++) {
+            breakerEntries[i] = entries.get(breakers[i]);
+        }
+    }
+
+    /**
+     * Compiles the flattened graph of a composite filter, without
+     * optimizing it, into a plan recording its measures into a profile.
+     *
+     * @param composite The composite filter to compile.
+     * @param profile   The profile of the composite filter.
+     * @return the profiled execution plan.
+     * @throws FilterException if the graph cannot be scheduled.
+     */
+    static ExecutionPlan compile(CompositeFilter composite,
+                                 FilterProfile profile)
+            throws FilterException {
+        FilterGraph graph = FilterGraph.flatten(composite);
+
+        Map<Filter, FilterProfile.Entry> entries = new IdentityHashMap<>();
+        for (FilterGraph.Node node : graph.getNodes()) {
+            entries.put(node.getFilter(), profile.find(node));
+        }
+
+        return new ProfiledPlan(ExecutionPlan.compile(graph), profile,
+                entries);
+    }
+
+    /**
+     * Computes one step of the schedule, and measures it as one invocation
+     * of the profiled filter.
+     */
+    @Override
+    public void execute(double[] input, double[] output)
+            throws FilterException {
+        long start = System.nanoTime();
+        super.execute(input, output);
+        root.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Computes several steps of the schedule, and measures them as one
+     * invocation of the profiled filter.
+     */
+    @Override
+    public void executeBlock(double[][] input, double[][] output, int frames)
+            throws FilterException {
+        long start = System.nanoTime();
+        super.executeBlock(input, output, frames);
+        root.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Computes one step of a filter, counting one invocation of its block.
+     */
+    @Override
+    void computeFilter(int index, double[] input, double[] output)
+            throws FilterException {
+        long start = System.nanoTime();
+        super.computeFilter(index, input, output);
+        filterEntries[index].record(System.nanoTime() - start);
+    }
+
+    /**
+     * Computes a block of a filter, counting one invocation of its block.
+     */
+    @Override
+    void computeFilter(int index, double[][] input, double[][] output,
+                       int frames) throws FilterException {
+        long start = System.nanoTime();
+        super.computeFilter(index, input, output, frames);
+        filterEntries[index].record(System.nanoTime() - start);
+    }
+
+    /**
+     * Pops a breaker, counting the invocation of its delay.
+     */
+    @Override
+    double popBreaker(int index) {
+        long start = System.nanoTime();
+        double value = super.popBreaker(index);
+        breakerEntries[index].record(System.nanoTime() - start);
+        return value;
+    }
+
+    /**
+     * Pops a breaker, counting the invocation of its delay.
+     */
+    @Override
+    void popBreaker(int index, double[] output, int frames) {
+        long start = System.nanoTime();
+        super.popBreaker(index, output, frames);
+        breakerEntries[index].record(System.nanoTime() - start);
+    }
+
+    /**
+     * Feeds a breaker, adding the time to its delay.
+     */
+    @Override
+    void feedBreaker(int index, double value) {
+        long start = System.nanoTime();
+        super.feedBreaker(index, value);
+        breakerEntries[index].addTime(System.nanoTime() - start);
+    }
+
+    /**
+     * Feeds a breaker, adding the time to its delay.
+     */
+    @Override
+    void feedBreaker(int index, double[] input, int frames) {
+        long start = System.nanoTime();
+        super.feedBreaker(index, input, frames);
+        breakerEntries[index].addTime(System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,136 @@
+package be.isach.filterlib.engine;
+
+/**
+ * Solves the recurrence {@code z[n] = b * z[n - d] + u[n]} of the comb and
+ * all-pass kernels by a blocked scan, instead of one sample after the
+ * other.
+ * <p>
+ * Each step of the recurrence is an affine map of the value {@code d}
+ * samples before, and maps compose: over a segment of {@value #SEGMENT_ROWS}
+ * rows of {@code d} samples, each value is its response to the inputs of the
+ * segment, computed from 0, plus a power of {@code b} times the value
+ * preceding the segment. The responses do not depend on any previous value,
+ * so that the processor computes them ahead, while only one product per
+ * segment separates the last values of two segments. With a delay of 1
+ * sample, where the sequential loop waits for each product before the next,
+ * the scan runs about twice as fast. Results only differ from the sequential
+ * loop by rounding.
+ * </p>
+ * <p>
+ * Kernels use the scan when the {@value #PROPERTY} system property is set
+ * to {@code scan}, for delays shorter than {@value #MAX_DELAY} samples and
+ * blocks of at least {@value #MIN_FRAMES} frames. Filters generated by the
+ * {@link FilterCompiler} inline their kernels, and never use it.
+ * </p>
+ */
+final class RecurrenceScan {
+
+    /**
+     * System property enabling the scan, when set to {@code scan}.
+     */
+    static final String PROPERTY = "filterlib.recurrences";
+
+    /**
+     * Whether kernels use the scan.
+     */
+    static final boolean ENABLED = "scan".equals(
+            System.getProperty(PROPERTY));
+
+    /**
+     * Delay from which the sequential loop has enough independent rows to
+     * keep the processor busy.
+     */
+    static final int MAX_DELAY = 4;
+
+    /**
+     * Minimum amount of frames of a block solved by a scan.
+     */
+    static final int MIN_FRAMES = 64;
+
+    /**
+     * Amount of rows of a segment, written out in {@link #solve}.
+     */
+    private static final int SEGMENT_ROWS = 8;
+
+    private RecurrenceScan() {
+    }
+
+    /**
+     * @param delay  The delay of a recurrence.
+     * @param frames The amount of frames of a block.
+     * @return {@code true} if the block should be solved by a scan,
+     *         {@code false} otherwise.
+     */
+    static boolean applies(int delay, int frames) {
+        return ENABLED && delay < MAX_DELAY && frames >= MIN_FRAMES;
+    }
+
+    /**
+     * @param feedback The factor {@code b} of the delayed values of a
+     *                 recurrence.
+     * @return the powers of the factor used by {@link #solve}, from 0 to
+     *         the amount of rows of a segment.
+     */
+    static double[] powersOf(double feedback) {
+        double[] powers = new double[SEGMENT_ROWS + 1];
+        powers[0] = 1;
+        for (int k = 1; k <= SEGMENT_ROWS; k++) {
+            powers[k] = powers[k - 1] * feedback;
+        }
+        return powers;
+    }
+
+    /**
+     * Solves the recurrence over a block, in place. The rows of a segment
+     * are written out, so that the processor sees every response ahead
+     * whatever the compiler does with the loops.
+     *
+     * @param powers  The powers of the factor {@code b} of the delayed
+     *                values, given by {@link #powersOf(double)}.
+     * @param delay   The delay {@code d} of the recurrence.
+     * @param history The delay values preceding the block, oldest first.
+     * @param values  Holds {@code u} on input, and receives {@code z}.
+     * @param frames  The amount of frames of the block.
+     */
+    static void solve(double[] powers, int delay, double[] history,
+                      double[] values, int frames) {
+        double b = powers[1];
+        double b2 = powers[2];
+        double b3 = powers[3];
+        double b4 = powers[4];
+        double b5 = powers[5];
+        double b6 = powers[6];
+        double b7 = powers[7];
+        double b8 = powers[8];
+        int d = delay;
+        int segment = SEGMENT_ROWS * d;
+        int start = 0;
+        for (; start + segment <= frames; start += segment) {
+            for (int r = 0; r < d; r++) {
+                double z = start == 0 ? history[r] : values[start - d + r];
+                int n = start + r;
+                double u = values[n];
+                values[n] = u + b * z;
+                u = b * u + values[n + d];
+                values[n + d] = u + b2 * z;
+                u = b * u + values[n + 2 * d];
+                values[n + 2 * d] = u + b3 * z;
+                u = b * u + values[n + 3 * d];
+                values[n + 3 * d] = u + b4 * z;
+                u = b * u + values[n + 4 * d];
+                values[n + 4 * d] = u + b5 * z;
+                u = b * u + values[n + 5 * d];
+                values[n + 5 * d] = u + b6 * z;
+                u = b * u + values[n + 6 * d];
+                values[n + 6 * d] = u + b7 * z;
+                u = b * u + values[n + 7 * d];
+                values[n + 7 * d] = u + b8 * z;
+            }
+        }
+
+        // The frames left do not fill a segment.
+        for (int n = start; n < frames; n++) {
+            values[n] += b * (n < d ? history[n] : values[n - d]);
+        }
+    }
+}
@@ -0,0 +1,422 @@
+package be.isach.filterlib.engine;
+
+import be.isach.filterlib.engine.FilterGraph.Node;
+import be.isach.filterlib.engine.FilterGraph.Port;
+import be.isach.filterlib.filters.AdditionFilter;
+import be.isach.filterlib.filters.BlockFilter;
+import be.isach.filterlib.filters.CompositeFilter;
+import be.isach.filterlib.filters.CopyableFilter;
+import be.isach.filterlib.filters.DelayFilter;
+import be.isach.filterlib.filters.GainFilter;
+import be.isach.filterlib.filters.StatefulFilter;
+import be.isach.filterlib.filters.WeightedAdditionFilter;
+import be.uliege.montefiore.oop.audio.Filter;
+import be.uliege.montefiore.oop.audio.FilterException;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a composite filter without loops by slices of time, processed at the
+ * same time on a fork/join pool.
+ * <p>
+ * A composite made of gains, additions and delays only, without loops, such
+ * as the alternative echo, forgets its input after the longest delay along
+ * a path of its graph, its pre-roll. Each slice of a block but the first is
+ * thus computed by its own copy of the filter, reset, then fed with the
+ * pre-roll frames preceding the slice, which brings it to the exact state
+ * the filter would have reached on its own. The first slice is computed by
+ * the filter itself, and the copy computing the last slice becomes the
+ * filter for the next block. Outputs are exactly those of the composite.
+ * </p>
+ * <p>
+ * Slices are at least {@value #PRE_ROLL_RATIO} times as long as the
+ * pre-roll, so that blocks should be much longer than it to use every
+ * thread of the pool; shorter blocks are computed as one slice.
+ * </p>
+ */
+public class SlicedFilter implements BlockFilter, CopyableFilter,
+        StatefulFilter {
+
+    /**
+     * Minimum amount of frames of a slice.
+     */
+    public static final int MIN_SLICE_SIZE = 4096;
+
+    /**
+     * Minimum length of a slice, relative to the pre-roll.
+     */
+    public static final int PRE_ROLL_RATIO = 8;
+
+    /**
+     * Amount of frames copied at a time between the blocks and the slices.
+     */
+    private static final int PIECE_SIZE = 4096;
+
+    /**
+     * The composite filter the sliced filter was built from.
+     */
+    private final CompositeFilter composite;
+
+    /**
+     * The pool computing the slices.
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * Amount of frames preceding a slice fed to its filter.
+     */
+    private final int preRoll;
+
+    /**
+     * Filter of each slice, the first one holding the state of the filter
+     * between blocks.
+     */
+    private final BlockFilter[] filters;
+
+    /**
+     * Buffers of each slice, through which its frames are copied.
+     */
+    private final Slice[] slices;
+
+    /**
+     * Initializes a sliced filter computing its slices on the common pool.
+     *
+     * @param composite The composite filter to run.
+     * @throws FilterException if the composite filter is not valid, or has
+     *                         loops or filters other than gains, additions
+     *                         and delays.
+     */
+    public SlicedFilter(CompositeFilter composite) throws FilterException {
+        this(composite, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Initializes a sliced filter.
+     *
+     * @param composite The composite filter to run.
+     * @param pool      The pool computing the slices, using as many slices
+     *                  as it has threads at most.
+     * @throws FilterException if the composite filter is not valid, or has
+     *                         loops or filters other than gains, additions
+     *                         and delays.
+     */
+    public SlicedFilter(CompositeFilter composite, ForkJoinPool pool)
+            throws FilterException {
+        this.preRoll = preRollOf(composite);
+        if (preRoll < 0) {
+            throw new FilterException("Filter is not feed-forward: it has " +
+                    "loops, or filters other than gains, additions and " +
+                    "delays.");
+        }
+
+        this.composite = composite;
+        this.pool = pool;
+
+        int amount = Math.max(1, pool.getParallelism());
+        this.filters = new BlockFilter[amount];
+        this.slices = new Slice[amount];
+        filters[0] = FilterCompiler.compile(composite);
+        for (int k = 0; k < amount; k++) {
+            if (k > 0) {
+                filters[k] = (BlockFilter) CopyableFilter.copy(filters[0]);
+            }
+            slices[k] = new Slice(composite.nbInputs(),
+                    composite.nbOutputs());
+        }
+    }
+
+    /**
+     * Tells whether a composite filter is feed-forward: made of gains,
+     * additions and delays only, without loops.
+     *
+     * @param composite The composite filter.
+     * @return {@code true} if it is feed-forward, {@code false} otherwise.
+     * @throws FilterException if the composite filter is not valid.
+     */
+    public static boolean isFeedForward(CompositeFilter composite)
+            throws FilterException {
+        return preRollOf(composite) >= 0;
+    }
+
+    /**
+     * Computes the pre-roll of a composite filter: the longest delay along a
+     * path of its graph, from an input to any filter.
+     *
+     * @param composite The composite filter.
+     * @return the pre-roll of the filter, or -1 if it is not feed-forward.
+     * @throws FilterException if the composite filter is not valid.
+     */
+    public static int preRollOf(CompositeFilter composite)
+            throws FilterException {
+        FilterGraph graph = FilterGraph.flatten(composite);
+        List<Node> nodes = graph.getNodes();
+        Map<Node, Integer> indices = new IdentityHashMap<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            Filter filter = nodes.get(i).getFilter();
+            // A subclass may keep more state than its parent does.
+            Class<?> type = filter.getClass();
+            if (!(type == GainFilter.class || type == AdditionFilter.class
+                    || type == WeightedAdditionFilter.class
+                    || type == DelayFilter.class)) {
+                return -1;
+            }
+            indices.put(nodes.get(i), i);
+        }
+
+        // Nodes are visited in topological order: those left once no node
+        // is ready lie on loops.
+        int[] incoming = new int[nodes.size()];
+        List<List<Integer>> successors = new ArrayList<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            successors.add(new ArrayList<>());
+        }
+        for (int i = 0; i < nodes.size(); i++) {
+            for (Port port : nodes.get(i).getInputs()) {
+                if (port != null && !port.isGraphInput()) {
+                    successors.get(indices.get(port.getNode())).add(i);
+                    incoming[i]++;
+                }
+            }
+        }
+
+        List<Integer> ready = new ArrayList<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            if (incoming[i] == 0) ready.add(i);
+        }
+        long[] delays = new long[nodes.size()];
+        long longest = 0;
+        for (int visited = 0; visited < nodes.size(); visited++) {
+            if (ready.isEmpty()) {
+                return -1;
+            }
+
+            int i = ready.remove(ready.size() - 1);
+            Filter filter = nodes.get(i).getFilter();
+            if (filter instanceof DelayFilter) {
+                delays[i] += ((DelayFilter) filter).getDelay();
+            }
+            longest = Math.max(longest, delays[i]);
+            for (int j : successors.get(i)) {
+                delays[j] = Math.max(delays[j], delays[i]);
+                if (--incoming[j] == 0) ready.add(j);
+            }
+        }
+        return (int) Math.min(Integer.MAX_VALUE, longest);
+    }
+
+    /**
+     * @return the amount of inputs of the composite filter.
+     */
+    @Override
+    public int nbInputs() {
+        return composite.nbInputs();
+    }
+
+    /**
+     * @return the amount of outputs of the composite filter.
+     */
+    @Override
+    public int nbOutputs() {
+        return composite.nbOutputs();
+    }
+
+    /**
+     * Computes one step of the filtering.
+     *
+     * @param input contains the inputs of the composite.
+     * @return an array containing the outputs of the composite.
+     * @throws FilterException if the input array is null or of wrong length.
+     */
+    @Override
+    public double[] computeOneStep(double[] input) throws FilterException {
+        return filters[0].computeOneStep(input);
+    }
+
+    /**
+     * Computes one step of the filtering, with the filter of the first
+     * slice.
+     *
+     * @param input  contains the inputs of the composite.
+     * @param output receives the outputs of the composite.
+     * @throws FilterException if the arrays are null or of wrong length.
+     */
+    @Override
+    public void computeOneStep(double[] input, double[] output)
+            throws FilterException {
+        filters[0].computeOneStep(input, output);
+    }
+
+    /**
+     * Computes several steps of the filtering, by slices computed at the
+     * same time when the block is long enough.
+     *
+     * @param input  contains the input buffers of the composite.
+     * @param output contains the output buffers of the composite.
+     * @param frames the amount of frames to process.
+     * @throws FilterException if the buffers are null or of wrong amount, or
+     *                         if a slice fails.
+     */
+    @Override
+    public void computeBlock(double[][] input, double[][] output, int frames)
+            throws FilterException {
+        BlockFilter.checkBuffers(this, input, output);
+        long minSlice = Math.max(MIN_SLICE_SIZE,
+                (long) PRE_ROLL_RATIO * preRoll);
+        int amount = (int) Math.min(filters.length, frames / minSlice);
+        if (amount <= 1) {
+            filters[0].computeBlock(input, output, frames);
+            return;
+        }
+
+        // Each slice starts at least one pre-roll into the block.
+        List<Callable<Void>> tasks = new ArrayList<>();
+        int length = frames / amount;
+        tasks.add(() -> {
+            filters[0].computeBlock(input, output, length);
+            return null;
+        });
+        for (int k = 1; k < amount; k++) {
+            int slice = k;
+            int start = k * length;
+            int end = k == amount - 1 ? frames : start + length;
+            tasks.add(() -> {
+                BlockFilter filter = filters[slice];
+                filter.reset();
+                slices[slice].compute(filter, input, start - preRoll, start,
+                        null);
+                slices[slice].compute(filter, input, start, end, output);
+                return null;
+            });
+        }
+
+        try {
+            for (Future<Void> result : pool.invokeAll(tasks)) {
+                result.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof FilterException) {
+                throw (FilterException) e.getCause();
+            }
+            throw new FilterException("Filtering failed: "
+                    + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FilterException("Filtering was interrupted.");
+        }
+
+        // The filter of the last slice holds the state after the block.
+        BlockFilter last = filters[amount - 1];
+        filters[amount - 1] = filters[0];
+        filters[0] = last;
+    }
+
+    /**
+     * Creates a sliced filter over a copy of the composite filter, on the
+     * same pool, in its initial state.
+     *
+     * @return the copy of the sliced filter.
+     * @throws FilterException if the composite filter cannot be copied.
+     */
+    @Override
+    public SlicedFilter copy() throws FilterException {
+        return new SlicedFilter(composite.copy(), pool);
+    }
+
+    /**
+     * Writes the state of the filter of the first slice.
+     *
+     * @param out The destination of the state.
+     * @throws FilterException if the filter has no state to save.
+     * @throws IOException     if the state cannot be written.
+     */
+    @Override
+    public void saveState(DataOutput out)
+            throws FilterException, IOException {
+        StatefulFilter.save(filters[0], out);
+    }
+
+    /**
+     * Reads back a state written by {@link #saveState(DataOutput)} into the
+     * filter of the first slice.
+     *
+     * @param in The source of the state.
+     * @throws FilterException if the filter has no state to restore.
+     * @throws IOException     if the state cannot be read, or does not match
+     *                         the filter.
+     */
+    @Override
+    public void restoreState(DataInput in)
+            throws FilterException, IOException {
+        StatefulFilter.restore(filters[0], in);
+    }
+
+    /**
+     * Resets the filter of the first slice, the others being reset before
+     * each slice.
+     */
+    @Override
+    public void reset() {
+        filters[0].reset();
+    }
+
+    /**
+     * @return the amount of frames preceding a slice fed to its filter.
+     */
+    public int getPreRoll() {
+        return preRoll;
+    }
+
+    /**
+     * Buffers through which the frames of a slice are copied, since block
+     * filters only process frames from the start of their buffers.
+     */
+    private static final class Slice {
+
+        private final double[][] input;
+
+        private final double[][] output;
+
+        Slice(int nbInputs, int nbOutputs) {
+            this.input = new double[nbInputs][PIECE_SIZE];
+            this.output = new double[nbOutputs][PIECE_SIZE];
+        }
+
+        /**
+         * Feeds frames of a block to a filter, piece by piece.
+         *
+         * @param filter The filter of the slice.
+         * @param input  The input buffers of the block.
+         * @param start  The index of the first frame to feed.
+         * @param end    The index following the last frame to feed.
+         * @param output The output buffers of the block, receiving the
+         *               outputs of the frames, null to drop them.
+         */
+        void compute(BlockFilter filter, double[][] input, int start,
+                     int end, double[][] output) throws FilterException {
+            for (int from = start; from < end; from += PIECE_SIZE) {
+                int frames = Math.min(PIECE_SIZE, end - from);
+                for (int i = 0; i < input.length; i++) {
+                    System.arraycopy(input[i], from, this.input[i], 0,
+                            frames);
+                }
+                filter.computeBlock(this.input, this.output, frames);
+                if (output != null) {
+                    for (int o = 0; o < output.length; o++) {
+                        System.arraycopy(this.output[o], 0, output[o], from,
+                                frames);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,566 @@
+package be.isach.filterlib.engine;
+
+import be.isach.filterlib.engine.FilterGraph.Node;
+import be.isach.filterlib.engine.FilterGraph.Port;
+import be.isach.filterlib.filters.AdditionFilter;
+import be.isach.filterlib.filters.BlockFilter;
+import be.isach.filterlib.filters.CompositeFilter;
+import be.isach.filterlib.filters.DelayFilter;
+import be.isach.filterlib.filters.GainFilter;
+import be.isach.filterlib.filters.SparseIIRFilter;
+import be.isach.filterlib.filters.WeightedAdditionFilter;
+import be.uliege.montefiore.oop.audio.Filter;
+import be.uliege.montefiore.oop.audio.FilterException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Transfer function of a composite filter made of gains, additions and
+ * delays, as a ratio of two polynomials in z^-1.
+ * <p>
+ * Such a graph is linear and time-invariant. A few of its delays are chosen
+ * to break its loops: every other signal is then a polynomial combination
+ * of the input and of the outputs of those delays, and solving the loops
+ * with Cramer's rule gives the numerator and denominator of the graph. Only
+ * the loops between the input and the output are kept, so that no common
+ * factor is introduced by the others. The cost depends on the amount of
+ * loops, not on the amount of filters: gains and delays chained along a
+ * path collapse into a few terms.
+ * </p>
+ * <p>
+ * The function can then run as a {@link SparseIIRFilter}, computing only
+ * its non-zero taps. High order recursions are sensitive to rounding, so
+ * {@link #reduce(CompositeFilter, double)} checks the reduced filter against
+ * the graph before returning it.
+ * </p>
+ */
+public final class TransferFunction {
+
+    /**
+     * Largest amount of loops a graph may need to break to be analysed.
+     */
+    public static final int MAX_LOOPS = 16;
+
+    /**
+     * Amount of frames of noise the reduced filter is checked on.
+     */
+    private static final int CHECK_FRAMES = 1 << 17;
+
+    private final Polynomial numerator;
+
+    private final Polynomial denominator;
+
+    private TransferFunction(Polynomial numerator, Polynomial denominator) {
+        this.numerator = numerator;
+        this.denominator = denominator;
+    }
+
+    /**
+     * Derives the transfer function of a composite filter, nested
+     * composites included.
+     *
+     * @param composite The composite filter, with 1 input and 1 output,
+     *                  made of gains, additions and delays only.
+     * @return the transfer function, its denominator having a constant
+     *         term of 1.
+     * @throws FilterException if the filter is not valid, contains other
+     *                         filters, or has more than {@link #MAX_LOOPS}
+     *                         loops to break.
+     */
+    public static TransferFunction of(CompositeFilter composite)
+            throws FilterException {
+        if (composite.nbInputs() != 1 || composite.nbOutputs() != 1) {
+            throw new FilterException("Only filters with 1 input and 1 " +
+                    "output have a transfer function.");
+        }
+
+        FilterGraph graph = FilterGraph.flatten(composite);
+        List<Node> nodes = graph.getNodes();
+        int size = nodes.size();
+
+        Map<Node, Integer> indices = new IdentityHashMap<>();
+        for (int i = 0; i < size; i++) {
+            Filter filter = nodes.get(i).getFilter();
+            // A subclass may override what its parent computes.
+            Class<?> type = filter.getClass();
+            if (!(type == GainFilter.class || type == AdditionFilter.class
+                    || type == WeightedAdditionFilter.class
+                    || type == DelayFilter.class)) {
+                throw new FilterException("Only gains, additions and " +
+                        "delays have a transfer function, not: "
+                        + filter.getClass().getName());
+            }
+            indices.put(nodes.get(i), i);
+        }
+
+        // Nodes fed by the input, then those which also feed the output.
+        List<List<Integer>> successors = new ArrayList<>();
+        List<List<Integer>> predecessors = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            successors.add(new ArrayList<>());
+            predecessors.add(new ArrayList<>());
+        }
+        List<Integer> fedByInput = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            for (Port port : nodes.get(i).getInputs()) {
+                if (port.isGraphInput()) {
+                    fedByInput.add(i);
+                } else {
+                    int source = indices.get(port.getNode());
+                    successors.get(source).add(i);
+                    predecessors.get(i).add(source);
+                }
+            }
+        }
+        Port output = graph.getOutputs()[0];
+        boolean[] relevant = reach(fedByInput, successors);
+        boolean[] feeding = reach(output.isGraphInput()
+                ? new ArrayList<>()
+                : List.of(indices.get(output.getNode())), predecessors);
+        for (int i = 0; i < size; i++) {
+            relevant[i] &= feeding[i];
+        }
+
+        boolean[] breakers = chooseBreakers(nodes, successors, relevant);
+        List<Integer> loops = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            if (breakers[i]) loops.add(i);
+        }
+        int m = loops.size();
+
+        // Each relevant signal is a combination of the input (term 0) and
+        // of the outputs of the breakers (terms 1 to m).
+        Polynomial[][] forms = new Polynomial[size][];
+        for (int k = 0; k < m; k++) {
+            forms[loops.get(k)] = unit(m, k + 1);
+        }
+        for (int i : order(nodes, successors, relevant, breakers)) {
+            forms[i] = evaluate(nodes.get(i), m, indices, forms);
+        }
+
+        // Each breaker outputs its delayed input: b = z^-d (s x + q b).
+        Polynomial[][] system = new Polynomial[m + 1][m + 1];
+        Polynomial[] outputForm = formOf(output, m, indices, forms);
+        for (int k = 0; k < m; k++) {
+            Node breaker = nodes.get(loops.get(k));
+            int delay = ((DelayFilter) breaker.getFilter()).getDelay();
+            Polynomial[] input = formOf(breaker.getInputs()[0], m, indices,
+                    forms);
+            for (int j = 0; j < m; j++) {
+                system[k][j] = input[j + 1].delay(delay).times(-1);
+            }
+            system[k][k] = system[k][k].plus(Polynomial.ONE);
+            system[k][m] = input[0].delay(delay);
+            system[m][k] = outputForm[k + 1].times(-1);
+        }
+        system[m][m] = outputForm[0];
+
+        Polynomial[][] loopMatrix = new Polynomial[m][];
+        for (int k = 0; k < m; k++) {
+            loopMatrix[k] = Arrays.copyOf(system[k], m);
+        }
+        Polynomial denominator = Polynomial.determinant(loopMatrix);
+        Polynomial numerator = Polynomial.determinant(system);
+
+        double leading = denominator.coefficient(0);
+        return new TransferFunction(numerator.times(1 / leading),
+                denominator.times(1 / leading));
+    }
+
+    /**
+     * Derives, reduces and checks the transfer function of a composite
+     * filter, and returns the sparse recursive filter computing it.
+     *
+     * @param composite The composite filter, with 1 input and 1 output,
+     *                  made of gains, additions and delays only.
+     * @param tolerance The deviation allowed from the outputs of the
+     *                  composite filter, relative to their peak. Terms are
+     *                  dropped as long as they cannot add up to it.
+     * @return the sparse recursive filter.
+     * @throws FilterException if the composite filter has no transfer
+     *                         function, or if the reduced filter deviates
+     *                         too much from it.
+     */
+    public static SparseIIRFilter reduce(CompositeFilter composite,
+                                         double tolerance)
+            throws FilterException {
+        // Dropped terms may add up, each one must be far below the tolerance.
+        TransferFunction function = of(composite);
+        int terms = function.numerator.getPowers().length
+                + function.denominator.getPowers().length;
+        SparseIIRFilter reduced = function.reduce(tolerance / terms)
+                .toFilter();
+
+        double deviation = deviation(composite, reduced, CHECK_FRAMES);
+        if (!(deviation <= tolerance)) {
+            throw new FilterException("The reduced filter deviates from " +
+                    "the composite filter by " + deviation + ", more than " +
+                    "the tolerance.");
+        }
+        return reduced;
+    }
+
+    /**
+     * Measures how much a filter deviates from another on white noise,
+     * both filters being reset before and after.
+     *
+     * @param reference The reference filter, with 1 input and 1 output.
+     * @param candidate The filter compared to it.
+     * @param frames    The amount of frames of noise.
+     * @return the largest difference of outputs, relative to the peak of
+     *         the outputs of the reference.
+     * @throws FilterException if a filter fails.
+     */
+    public static double deviation(Filter reference, Filter candidate,
+                                   int frames) throws FilterException {
+        Random random = new Random(0);
+        double[][] input = {new double[frames]};
+        for (int n = 0; n < frames; n++) {
+            input[0][n] = random.nextDouble() * 2 - 1;
+        }
+        double[][] expected = {new double[frames]};
+        double[][] actual = {new double[frames]};
+
+        reference.reset();
+        candidate.reset();
+        BlockFilter.computeBlock(reference, input, expected, frames);
+        BlockFilter.computeBlock(candidate, input, actual, frames);
+        reference.reset();
+        candidate.reset();
+
+        double peak = 0, difference = 0;
+        for (int n = 0; n < frames; n++) {
+            peak = Math.max(peak, Math.abs(expected[0][n]));
+            difference = Math.max(difference,
+                    Math.abs(expected[0][n] - actual[0][n]));
+        }
+        return peak == 0 ? difference : difference / peak;
+    }
+
+    /**
+     * Drops the negligible terms of the function.
+     *
+     * @param tolerance The largest coefficient dropped, relative to the
+     *                  largest one of its polynomial.
+     * @return the reduced function.
+     */
+    public TransferFunction reduce(double tolerance) {
+        return new TransferFunction(
+                numerator.prune(tolerance * numerator.maxAbs()),
+                denominator.prune(tolerance * denominator.maxAbs()));
+    }
+
+    /**
+     * @return a sparse recursive filter computing the function.
+     * @throws FilterException if the denominator has no constant term.
+     */
+    public SparseIIRFilter toFilter() throws FilterException {
+        return new SparseIIRFilter(numerator.getPowers(),
+                numerator.getCoefficients(), denominator.getPowers(),
+                denominator.getCoefficients());
+    }
+
+    /**
+     * @return the delay of each term of the numerator, increasing.
+     */
+    public int[] getNumeratorDelays() {
+        return numerator.getPowers();
+    }
+
+    /**
+     * @return the coefficient of each term of the numerator.
+     */
+    public double[] getNumeratorCoefficients() {
+        return numerator.getCoefficients();
+    }
+
+    /**
+     * @return the delay of each term of the denominator, increasing.
+     */
+    public int[] getDenominatorDelays() {
+        return denominator.getPowers();
+    }
+
+    /**
+     * @return the coefficient of each term of the denominator.
+     */
+    public double[] getDenominatorCoefficients() {
+        return denominator.getCoefficients();
+    }
+
+    /**
+     * @return the function, as numerator / denominator.
+     */
+    @Override
+    public String toString() {
+        return "(" + numerator + ") / (" + denominator + ")";
+    }
+
+    /**
+     * @return for each node, whether it can be reached from the given ones.
+     */
+    private static boolean[] reach(List<Integer> starts,
+                                   List<List<Integer>> next) {
+        boolean[] reached = new boolean[next.size()];
+        List<Integer> stack = new ArrayList<>(starts);
+        while (!stack.isEmpty()) {
+            int node = stack.remove(stack.size() - 1);
+            if (reached[node]) continue;
+
+            reached[node] = true;
+            stack.addAll(next.get(node));
+        }
+        return reached;
+    }
+
+    /**
+     * Chooses delays breaking every loop among the relevant nodes: as long
+     * as a loop remains, the delay leaving the fewest nodes on loops once
+     * cut is chosen.
+     *
+     * @return for each node, whether it is a breaker or not.
+     * @throws FilterException if a loop has no delay, or too many loops
+     *                         must be broken.
+     */
+    private static boolean[] chooseBreakers(List<Node> nodes,
+                                            List<List<Integer>> successors,
+                                            boolean[] relevant)
+            throws FilterException {
+        boolean[] breakers = new boolean[nodes.size()];
+        for (int count = 0; ; count++) {
+            boolean[] looped = looped(successors, relevant, breakers);
+            int best = -1, bestLooped = Integer.MAX_VALUE;
+            for (int i = 0; i < looped.length; i++) {
+                if (!looped[i]
+                        || !(nodes.get(i).getFilter() instanceof DelayFilter)) {
+                    continue;
+                }
+
+                breakers[i] = true;
+                int remaining = count(looped(successors, relevant, breakers));
+                breakers[i] = false;
+                if (remaining < bestLooped) {
+                    best = i;
+                    bestLooped = remaining;
+                }
+            }
+
+            if (best < 0) {
+                if (count(looped) > 0) {
+                    throw new FilterException("Filter is not valid, " +
+                            "possibly missing a delay filter in a loop.");
+                }
+                return breakers;
+            }
+            if (count == MAX_LOOPS) {
+                throw new FilterException("The filter has more than "
+                        + MAX_LOOPS + " loops to reduce.");
+            }
+            breakers[best] = true;
+        }
+    }
+
+    /**
+     * @return for each relevant node, whether it lies on a loop once the
+     *         outgoing connections of the breakers are cut.
+     */
+    private static boolean[] looped(List<List<Integer>> successors,
+                                    boolean[] relevant, boolean[] breakers) {
+        Components components = new Components(successors, relevant,
+                breakers);
+        for (int i = 0; i < successors.size(); i++) {
+            if (relevant[i] && components.index[i] < 0) {
+                components.visit(i);
+            }
+        }
+        return components.looped;
+    }
+
+    /**
+     * Strongly connected components of the relevant nodes, found by
+     * Tarjan's algorithm.
+     */
+    private static final class Components {
+
+        private final List<List<Integer>> successors;
+
+        private final boolean[] relevant, breakers;
+
+        /**
+         * Visit index of each node, and lowest index it reaches.
+         */
+        private final int[] index, low;
+
+        private final boolean[] stacked;
+
+        private final List<Integer> stack;
+
+        /**
+         * Whether each node lies in a component with a loop.
+         */
+        private final boolean[] looped;
+
+        private int visits;
+
+        Components(List<List<Integer>> successors, boolean[] relevant,
+                   boolean[] breakers) {
+            int size = successors.size();
+            this.successors = successors;
+            this.relevant = relevant;
+            this.breakers = breakers;
+            this.index = new int[size];
+            this.low = new int[size];
+            Arrays.fill(index, -1);
+            this.stacked = new boolean[size];
+            this.stack = new ArrayList<>();
+            this.looped = new boolean[size];
+        }
+
+        void visit(int node) {
+            index[node] = low[node] = visits++;
+            stack.add(node);
+            stacked[node] = true;
+
+            boolean selfLoop = false;
+            if (!breakers[node]) {
+                for (int next : successors.get(node)) {
+                    if (!relevant[next]) continue;
+
+                    if (next == node) {
+                        selfLoop = true;
+                    } else if (index[next] < 0) {
+                        visit(next);
+                        low[node] = Math.min(low[node], low[next]);
+                    } else if (stacked[next]) {
+                        low[node] = Math.min(low[node], index[next]);
+                    }
+                }
+            }
+
+            if (low[node] == index[node]) {
+                int first = stack.size() - 1;
+                while (stack.get(first) != node) {
+                    first--;
+                }
+                boolean loop = selfLoop || first < stack.size() - 1;
+                while (stack.size() > first) {
+                    int member = stack.remove(stack.size() - 1);
+                    stacked[member] = false;
+                    looped[member] = loop && !breakers[member];
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the amount of true values.
+     */
+    private static int count(boolean[] values) {
+        int count = 0;
+        for (boolean value : values) {
+            if (value) count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return the relevant nodes other than the breakers, each one after
+     *         the nodes feeding it.
+     */
+    private static List<Integer> order(List<Node> nodes,
+                                       List<List<Integer>> successors,
+                                       boolean[] relevant,
+                                       boolean[] breakers) {
+        int size = nodes.size();
+        int[] incoming = new int[size];
+        for (int i = 0; i < size; i++) {
+            if (!relevant[i] || breakers[i]) continue;
+            for (int next : successors.get(i)) {
+                incoming[next]++;
+            }
+        }
+
+        List<Integer> ready = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            if (relevant[i] && !breakers[i] && incoming[i] == 0) {
+                ready.add(i);
+            }
+        }
+
+        List<Integer> order = new ArrayList<>();
+        while (!ready.isEmpty()) {
+            int node = ready.remove(ready.size() - 1);
+            order.add(node);
+            for (int next : successors.get(node)) {
+                if (--incoming[next] == 0 && relevant[next]
+                        && !breakers[next]) {
+                    ready.add(next);
+                }
+            }
+        }
+        return order;
+    }
+
+    /**
+     * @return the signal output by a node, from the signals feeding it.
+     */
+    private static Polynomial[] evaluate(Node node, int m,
+                                         Map<Node, Integer> indices,
+                                         Polynomial[][] forms) {
+        Filter filter = node.getFilter();
+        Port[] inputs = node.getInputs();
+        Polynomial[] first = formOf(inputs[0], m, indices, forms);
+
+        Polynomial[] result = new Polynomial[m + 1];
+        for (int k = 0; k <= m; k++) {
+            if (filter instanceof GainFilter) {
+                result[k] = first[k].times(((GainFilter) filter).getGain());
+            } else if (filter instanceof DelayFilter) {
+                result[k] = first[k].delay(
+                        ((DelayFilter) filter).getDelay());
+            } else if (filter instanceof AdditionFilter) {
+                Polynomial[] second = formOf(inputs[1], m, indices, forms);
+                result[k] = first[k].plus(second[k]);
+            } else {
+                WeightedAdditionFilter addition =
+                        (WeightedAdditionFilter) filter;
+                Polynomial[] second = formOf(inputs[1], m, indices, forms);
+                result[k] = first[k].times(addition.getFirstWeight())
+                        .plus(second[k].times(addition.getSecondWeight()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the signal read through a port, zero for a node which is not
+     *         fed by the input.
+     */
+    private static Polynomial[] formOf(Port port, int m,
+                                       Map<Node, Integer> indices,
+                                       Polynomial[][] forms) {
+        if (port.isGraphInput()) {
+            return unit(m, 0);
+        }
+
+        Polynomial[] form = forms[indices.get(port.getNode())];
+        return form != null ? form : unit(m, -1);
+    }
+
+    /**
+     * @return the signal made of only the given term, or zero if it is -1.
+     */
+    private static Polynomial[] unit(int m, int term) {
+        Polynomial[] form = new Polynomial[m + 1];
+        Arrays.fill(form, Polynomial.ZERO);
+        if (term >= 0) {
+            form[term] = Polynomial.ONE;
+        }
+        return form;
+    }
+}
@@ -1,8 +1,10 @@
 package be.isach.filterlib.filters;
 
-import be.uliege.montefiore.oop.audio.Filter;
+import be.isach.filterlib.util.BlockKernels;
 import be.uliege.montefiore.oop.audio.FilterException;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.util.LinkedList;
 import java.util.Queue;
 
@@ -13,7 +15,8 @@ import java.util.Queue;
  * given inputs.
  * </p>
  */
-public class AdditionFilter implements Filter {
+public class AdditionFilter implements BlockFilter, CopyableFilter,
+        StatefulFilter {
 
     /**
      * An addition filter requires 2 inputs, to sum them.
@@ -60,6 +63,66 @@ public class AdditionFilter implements Filter {
         return new double[]{output};
     }
 
+    /**
+     * Computes one step of the filtering, without allocating any array.
+     *
+     * @param input  contains the two samples to sum.
+     * @param output receives the sum of the two input samples.
+     * @throws FilterException if the arrays are null or of wrong length.
+     */
+    @Override
+    public void computeOneStep(double[] input, double[] output)
+            throws FilterException {
+        BlockFilter.checkStep(this, input, output);
+
+        output[0] = input[0] + input[1];
+    }
+
+    /**
+     * Computes several steps of the filtering at once.
+     * Simply sums the two input buffers frame by frame.
+     *
+     * @param input  contains the two buffers to sum.
+     * @param output contains the single output buffer.
+     * @param frames the amount of frames to process.
+     * @throws FilterException if the buffers are null or of wrong amount.
+     */
+    @Override
+    public void computeBlock(double[][] input, double[][] output, int frames)
+            throws FilterException {
+        BlockFilter.checkBuffers(this, input, output);
+
+        BlockKernels.get().add(input[0], input[1], output[0], frames);
+    }
+
+    /**
+     * Creates a new addition filter.
+     *
+     * @return the copy of the filter.
+     */
+    @Override
+    public AdditionFilter copy() {
+        return new AdditionFilter();
+    }
+
+    /**
+     * An addition filter holds no state: nothing is written.
+     *
+     * @param out The destination of the state.
+     */
+    @Override
+    public void saveState(DataOutput out) {
+    }
+
+    /**
+     * An addition filter holds no state: nothing is read.
+     *
+     * @param in The source of the state.
+     */
+    @Override
+    public void restoreState(DataInput in) {
+    }
+
     /**
      * Resets the filter.
      * No specific action is required for this filter.
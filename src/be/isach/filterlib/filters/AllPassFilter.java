@@ -2,6 +2,13 @@ package be.isach.filterlib.filters;
 
 import be.uliege.montefiore.oop.audio.Filter;
 
+/**
+ * Implements an All-Pass Filter, as suggested on the project page.
+ * <p>
+ * Once compiled, its graph runs as a single
+ * {@link be.isach.filterlib.engine.AllPassKernel}.
+ * </p>
+ */
 public class AllPassFilter extends CompositeFilter {
 
     /**
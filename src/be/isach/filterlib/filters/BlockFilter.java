@@ -0,0 +1,146 @@
+package be.isach.filterlib.filters;
+
+import be.uliege.montefiore.oop.audio.Filter;
+import be.uliege.montefiore.oop.audio.FilterException;
+
+/**
+ * Extension of a filter able to process several frames at a time.
+ * <p>
+ * Buffers are planar and owned by the caller: {@code input[i][n]} is the
+ * nth frame of the ith input, and {@code output[o][n]} receives the nth frame
+ * of the oth output. Processing a block of frames gives the same result as
+ * computing each frame one step at a time. Output arrays must not be the
+ * same arrays as the input ones.
+ * </p>
+ * <p>
+ * A single step can also be computed into a caller-owned output array, so
+ * that processing samples one by one does not allocate anything.
+ * </p>
+ */
+public interface BlockFilter extends Filter {
+
+    /**
+     * Computes several steps of the filtering at once.
+     *
+     * @param input  The input buffers, one per input of the filter.
+     * @param output The output buffers, one per output of the filter.
+     * @param frames The amount of frames to process, from the start of each
+     *               buffer.
+     * @throws FilterException if the buffers are null or of wrong amount.
+     */
+    void computeBlock(double[][] input, double[][] output, int frames)
+            throws FilterException;
+
+    /**
+     * Computes one step of the filtering, without allocating any array.
+     *
+     * @param input  contains one sample per input of the filter.
+     * @param output receives one sample per output of the filter.
+     * @throws FilterException if the arrays are null or of wrong length.
+     */
+    void computeOneStep(double[] input, double[] output)
+            throws FilterException;
+
+    /**
+     * Computes several steps of any filter, natively if it is a block
+     * filter, or one step at a time otherwise.
+     *
+     * @param filter The filter to apply.
+     * @param input  The input buffers, one per input of the filter.
+     * @param output The output buffers, one per output of the filter.
+     * @param frames The amount of frames to process.
+     * @throws FilterException if the filter fails.
+     */
+    static void computeBlock(Filter filter, double[][] input,
+                             double[][] output, int frames)
+            throws FilterException {
+        if (filter instanceof BlockFilter) {
+            ((BlockFilter) filter).computeBlock(input, output, frames);
+            return;
+        }
+
+        checkBuffers(filter, input, output);
+
+        double[] step = new double[input.length];
+        for (int n = 0; n < frames; n++) {
+            for (int i = 0; i < step.length; i++) {
+                step[i] = input[i][n];
+            }
+
+            double[] result = filter.computeOneStep(step);
+            for (int o = 0; o < output.length; o++) {
+                output[o][n] = result[o];
+            }
+        }
+    }
+
+    /**
+     * Computes one step of any filter into the given output array, without
+     * allocating if it is a block filter.
+     *
+     * @param filter The filter to apply.
+     * @param input  contains one sample per input of the filter.
+     * @param output receives one sample per output of the filter.
+     * @throws FilterException if the filter fails.
+     */
+    static void computeOneStep(Filter filter, double[] input, double[] output)
+            throws FilterException {
+        if (filter instanceof BlockFilter) {
+            ((BlockFilter) filter).computeOneStep(input, output);
+            return;
+        }
+
+        double[] result = filter.computeOneStep(input);
+        System.arraycopy(result, 0, output, 0, filter.nbOutputs());
+    }
+
+    /**
+     * Checks that the given arrays match the inputs and outputs of a filter.
+     *
+     * @param filter The filter the arrays are given to.
+     * @param input  The input samples.
+     * @param output The output samples.
+     * @throws FilterException if the arrays are null or of wrong length.
+     */
+    static void checkStep(Filter filter, double[] input, double[] output)
+            throws FilterException {
+        if (input == null || output == null) {
+            throw new FilterException("Specified array points to null.");
+        }
+
+        if (input.length != filter.nbInputs()) {
+            throw new FilterException("Invalid number of inputs. Expected: "
+                    + filter.nbInputs() + ", Got: " + input.length);
+        }
+
+        if (output.length != filter.nbOutputs()) {
+            throw new FilterException("Invalid number of outputs. Expected: "
+                    + filter.nbOutputs() + ", Got: " + output.length);
+        }
+    }
+
+    /**
+     * Checks that the given buffers match the inputs and outputs of a filter.
+     *
+     * @param filter The filter the buffers are given to.
+     * @param input  The input buffers.
+     * @param output The output buffers.
+     * @throws FilterException if the buffers are null or of wrong amount.
+     */
+    static void checkBuffers(Filter filter, double[][] input,
+                             double[][] output) throws FilterException {
+        if (input == null || output == null) {
+            throw new FilterException("Specified buffers point to null.");
+        }
+
+        if (input.length != filter.nbInputs()) {
+            throw new FilterException("Invalid number of inputs. Expected: "
+                    + filter.nbInputs() + ", Got: " + input.length);
+        }
+
+        if (output.length != filter.nbOutputs()) {
+            throw new FilterException("Invalid number of outputs. Expected: "
+                    + filter.nbOutputs() + ", Got: " + output.length);
+        }
+    }
+}
@@ -1,15 +1,25 @@
 package be.isach.filterlib.filters;
 
+import be.isach.filterlib.engine.ExecutionPlan;
+import be.isach.filterlib.engine.FilterProfile;
 import be.uliege.montefiore.oop.audio.Filter;
 import be.uliege.montefiore.oop.audio.FilterException;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.*;
 
 /**
  * Represents a composite filter, which allows to combine filters as chains and
  * loops to create more complex effects, such as an echo filter.
+ * <p>
+ * Blocks of frames are processed as long as the loops of the graph allow,
+ * that is to say at most as many frames as its shortest looping delay.
+ * </p>
  */
-public class CompositeFilter implements Filter {
+public class CompositeFilter implements BlockFilter, CopyableFilter,
+        StatefulFilter {
 
     /**
      * Stores the amount of inputs of the whole composite filter.
@@ -30,9 +40,15 @@ public class CompositeFilter implements Filter {
     private final FilterBlock selfBlock;
 
     /**
-     * Stores the current output being built recursively.
+     * Stores the compiled schedule of the filter, null if the graph changed
+     * since the last compilation.
      */
-    private Double[] output;
+    private ExecutionPlan plan;
+
+    /**
+     * Stores the profile being gathered, null if the filter is not profiled.
+     */
+    private FilterProfile profile;
 
     /**
      * Stores validity of the composite filter.
@@ -50,7 +66,7 @@ public class CompositeFilter implements Filter {
         this.inputsAmount = inputsAmount;
         this.outputsAmount = outputsAmount;
 
-        this.blocks = new HashMap<>();
+        this.blocks = new LinkedHashMap<>();
 
         this.selfBlock = new FilterBlock(this, this);
     }
@@ -66,6 +82,7 @@ public class CompositeFilter implements Filter {
 
         FilterBlock blockData = new FilterBlock(filter, this);
         blocks.put(filter, blockData);
+        plan = null;
     }
 
     /**
@@ -86,7 +103,10 @@ public class CompositeFilter implements Filter {
         FilterBlock data2 = blocks.get(f2);
         data1.setFilterAsOutput(data2, i2);
         data2.setFilterAsInput(data1, o1);
+        data1.markOutputConnected(o1);
+        data2.markInputConnected(i2);
 
+        plan = null;
         checkIfValid();
     }
 
@@ -106,7 +126,10 @@ public class CompositeFilter implements Filter {
         FilterBlock data = blocks.get(f1);
         data.setFilterAsOutput(selfBlock, o2);
         selfBlock.setFilterAsOutput(data, o1);
+        data.markOutputConnected(o1);
+        selfBlock.markOutputConnected(o2);
 
+        plan = null;
         checkIfValid();
     }
 
@@ -126,12 +149,15 @@ public class CompositeFilter implements Filter {
         FilterBlock data = blocks.get(f2);
         data.setFilterAsInput(selfBlock, i1);
         selfBlock.setFilterAsInput(data, i2);
+        data.markInputConnected(i2);
+        selfBlock.markInputConnected(i1);
 
+        plan = null;
         checkIfValid();
     }
 
     /**
-     * Computes an output and passes it subsequently to all the subfilters.
+     * Computes an output by running the compiled schedule of the subfilters.
      *
      * @param input The input to process
      * @return The output, processed from all the filters.
@@ -149,74 +175,120 @@ public class CompositeFilter implements Filter {
                     + nbInputs() + ", Got: " + input.length);
         }
 
+        double[] output = new double[nbOutputs()];
+        getPlan().execute(input, output);
+        return output;
+    }
+
+    /**
+     * Computes an output into the given array, without allocating anything.
+     *
+     * @param input  The input to process.
+     * @param output Receives the output, processed from all the filters.
+     * @throws FilterException if the arrays are wrong, or if the composite
+     *                         filter is incomplete.
+     */
+    @Override
+    public void computeOneStep(double[] input, double[] output)
+            throws FilterException {
+        BlockFilter.checkStep(this, input, output);
+
+        getPlan().execute(input, output);
+    }
+
+    /**
+     * Computes several outputs at once, by running the compiled schedule of
+     * the subfilters on blocks of frames.
+     *
+     * @param input  The input buffers to process.
+     * @param output The output buffers to fill.
+     * @param frames The amount of frames to process.
+     * @throws FilterException if the buffers are wrong, or if the composite
+     *                         filter is incomplete.
+     */
+    @Override
+    public void computeBlock(double[][] input, double[][] output, int frames)
+            throws FilterException {
+        BlockFilter.checkBuffers(this, input, output);
+
+        getPlan().executeBlock(input, output, frames);
+    }
+
+    /**
+     * Compiles the graph once, after the last connection was made.
+     *
+     * @return the execution plan of the composite filter.
+     * @throws FilterException if the composite filter is incomplete.
+     */
+    private ExecutionPlan getPlan() throws FilterException {
         if (isInvalid()) {
             throw new FilterException("Filter is not valid, missing " +
                     "connections.");
         }
 
-        // Check if the output array already exists or not.
-        if (this.output == null) {
-            this.output = new Double[nbOutputs()];
-        } else {
-            Arrays.fill(this.output, null);
-        }
-
-        // First, pop delay filters to resolve loops.
-        for(FilterBlock block : blocks.values()) {
-            if(block.getFilter() instanceof DelayFilter) {
-                block.compute();
-            }
+        if (plan == null) {
+            plan = profile == null ? ExecutionPlan.compile(this)
+                    : ExecutionPlan.compileProfiled(this, profile);
         }
+        return plan;
+    }
 
-        // Call next filters, after giving them the input.
-        for (FilterBlock block : selfBlock.getInputBlocks().keySet()) {
-            if (block == selfBlock) { // Special case when there's no other subfilter
-                int index = selfBlock.getInputBlocks().get(block);
-                output[index] = input[0];
-            } else {
-                int compositeInputIndex = block.getInputBlocks().get(selfBlock);
-                block.addToBuffer(input[compositeInputIndex],
-                        selfBlock.getInputBlocks().get(block));
-                block.compute();
-            }
-        }
-
-        for (FilterBlock block : blocks.values())
-            block.setVisited(false);
-
-        // Convert the array of references to one of primitives.
-        double[] finalOutput = new double[output.length];
-        for (int i = 0; i < finalOutput.length; i++) {
-            if (output[i] == null) {
-                throw new FilterException("Filter is not valid, " +
-                        "possibly mising a delay filter in a loop.");
-            }
+    /**
+     * Makes the filter run a plan compiled beforehand from an identical
+     * graph, such as one read from a plan cache, instead of compiling its
+     * graph on first use. The plan is dropped as soon as the graph changes,
+     * and copies of the filter compile their own.
+     *
+     * @param plan The plan to run, owned by this filter from now on.
+     */
+    public void setPlan(ExecutionPlan plan) {
+        this.plan = plan;
+    }
 
-            finalOutput[i] = output[i];
-        }
+    /**
+     * Starts measuring the invocations and the time of each block, nested
+     * composite filters included. The filter then runs its blocks as they
+     * were added, without optimizing its graph, until profiling is stopped.
+     * <p>
+     * Profiling should be started or stopped before filtering, or right
+     * after a reset, since the filter is compiled again.
+     * </p>
+     *
+     * @return the profile, updated as the filter runs.
+     */
+    public FilterProfile startProfiling() {
+        profile = new FilterProfile(this);
+        plan = null;
+        return profile;
+    }
 
-        return finalOutput;
+    /**
+     * Stops profiling the filter, which runs its optimized graph again.
+     *
+     * @return the profile gathered so far, null if the filter was not
+     *         profiled.
+     */
+    public FilterProfile stopProfiling() {
+        FilterProfile gathered = profile;
+        profile = null;
+        plan = null;
+        return gathered;
     }
 
     /**
-     * End of chain: give the output to the owning composite filter.
+     * @return the profile being gathered, null if the filter is not
+     *         profiled.
      */
-    protected void insertOutput(int index, double value) {
-        this.output[index] = value;
+    public FilterProfile getProfile() {
+        return profile;
     }
 
     /**
      * Checks if the composite filter is valid, and updates the flag.
      */
     private void checkIfValid() {
-        // Check if each input of the composite is connected.
-        if (selfBlock.getInputBlocks().size() < nbInputs()) {
-            valid = false;
-            return;
-        }
-
-        // Check if each output of the composite is connected.
-        if (selfBlock.getOutputBlocks().size() < nbOutputs()) {
+        // Check if each input and output of the composite is connected.
+        if (!selfBlock.isFullyConnected()) {
             valid = false;
             return;
         }
@@ -225,9 +297,7 @@ public class CompositeFilter implements Filter {
         for (FilterBlock block : selfBlock.getInputBlocks().keySet()) {
             Filter f = block.getFilter();
             if (f != this) {
-                FilterBlock data = blocks.get(f);
-                if (data.getInputBlocks().size() < f.nbInputs()
-                        || data.getOutputBlocks().size() < f.nbOutputs()) {
+                if (!blocks.get(f).isFullyConnected()) {
                     valid = false;
                     return;
                 }
@@ -261,8 +331,85 @@ public class CompositeFilter implements Filter {
     }
 
     /**
-     * Resets the filter by resetting the subfilters, the output and the visited
-     * filters list.
+     * Creates a composite filter made of copies of the subfilters, connected
+     * the same way. Nested composite filters are copied recursively. The copy
+     * is a plain composite filter, even if this one is of a subclass.
+     *
+     * @return the copy of the filter, in its initial state.
+     * @throws FilterException if a subfilter cannot be copied.
+     */
+    @Override
+    public CompositeFilter copy() throws FilterException {
+        CompositeFilter copy = new CompositeFilter(inputsAmount,
+                outputsAmount);
+
+        Map<FilterBlock, Filter> copies = new IdentityHashMap<>();
+        for (FilterBlock block : blocks.values()) {
+            Filter filter = CopyableFilter.copy(block.getFilter());
+            copies.put(block, filter);
+            copy.addBlock(filter);
+        }
+
+        for (FilterBlock block : blocks.values()) {
+            for (Map.Entry<FilterBlock, Integer> entry
+                    : block.getInputBlocks().entrySet()) {
+                FilterBlock source = entry.getKey();
+                if (source == selfBlock) {
+                    copy.connectInputToBlock(entry.getValue(),
+                            copies.get(block),
+                            selfBlock.getInputBlocks().get(block));
+                } else {
+                    copy.connectBlockToBlock(copies.get(source),
+                            entry.getValue(), copies.get(block),
+                            source.getOutputBlocks().get(block));
+                }
+            }
+        }
+
+        for (Map.Entry<FilterBlock, Integer> entry
+                : selfBlock.getOutputBlocks().entrySet()) {
+            FilterBlock block = entry.getKey();
+            copy.connectBlockToOutput(copies.get(block), entry.getValue(),
+                    block.getOutputBlocks().get(selfBlock));
+        }
+
+        return copy;
+    }
+
+    /**
+     * Writes the state of the compiled graph, that is to say of the filters
+     * actually run once the graph is optimized. It can be restored into this
+     * filter or a copy of it, profiled or not like this one.
+     *
+     * @param out The destination of the state.
+     * @throws FilterException if the composite filter is incomplete, or if
+     *                         a subfilter has no state to save.
+     * @throws IOException     if the state cannot be written.
+     */
+    @Override
+    public void saveState(DataOutput out)
+            throws FilterException, IOException {
+        getPlan().saveState(out);
+    }
+
+    /**
+     * Reads back the state of the compiled graph.
+     *
+     * @param in The source of the state.
+     * @throws FilterException if the composite filter is incomplete, or if
+     *                         a subfilter has no state to restore.
+     * @throws IOException     if the state cannot be read, or does not match
+     *                         the graph.
+     */
+    @Override
+    public void restoreState(DataInput in)
+            throws FilterException, IOException {
+        getPlan().restoreState(in);
+    }
+
+    /**
+     * Resets the filter by resetting the subfilters, as well as the filters
+     * of the compiled schedule.
      */
     @Override
     public void reset() {
@@ -270,13 +417,25 @@ public class CompositeFilter implements Filter {
             if (block != selfBlock) {
                 block.getFilter().reset();
             }
-            block.setVisited(false);
         }
 
-        output = new Double[nbOutputs()];
+        if (plan != null) {
+            plan.reset();
+        }
     }
 
+    /**
+     * @return the block representing the composite filter itself, through
+     *         which its inputs and outputs are connected.
+     */
     public FilterBlock getSelfBlock() {
         return selfBlock;
     }
+
+    /**
+     * @return the blocks of the composite filter, in insertion order.
+     */
+    public Collection<FilterBlock> getBlocks() {
+        return Collections.unmodifiableCollection(blocks.values());
+    }
 }
@@ -0,0 +1,40 @@
+package be.isach.filterlib.filters;
+
+import be.uliege.montefiore.oop.audio.Filter;
+import be.uliege.montefiore.oop.audio.FilterException;
+
+/**
+ * Extension of a filter able to create independent copies of itself.
+ * <p>
+ * A copy has the same structure and parameters as the original filter, but
+ * shares none of its state: both can be run at the same time, for instance
+ * on different channels or threads. Copies start in the initial state of
+ * the filter, as if they had just been reset.
+ * </p>
+ */
+public interface CopyableFilter extends Filter {
+
+    /**
+     * Creates an independent copy of the filter, in its initial state.
+     *
+     * @return the copy of the filter.
+     * @throws FilterException if part of the filter cannot be copied.
+     */
+    CopyableFilter copy() throws FilterException;
+
+    /**
+     * Creates an independent copy of any filter.
+     *
+     * @param filter The filter to copy.
+     * @return the copy of the filter, in its initial state.
+     * @throws FilterException if the filter cannot be copied.
+     */
+    static Filter copy(Filter filter) throws FilterException {
+        if (filter instanceof CopyableFilter) {
+            return ((CopyableFilter) filter).copy();
+        }
+
+        throw new FilterException("Filter cannot be copied: "
+                + filter.getClass().getName());
+    }
+}
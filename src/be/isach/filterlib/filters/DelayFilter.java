@@ -1,8 +1,12 @@
 package be.isach.filterlib.filters;
 
-import be.uliege.montefiore.oop.audio.Filter;
 import be.uliege.montefiore.oop.audio.FilterException;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
 /**
  * Implements a delay filter.
  * <p>
@@ -10,8 +14,14 @@ import be.uliege.montefiore.oop.audio.FilterException;
  * This means that the nth output is 0 if n <= k, or the (n-k)th input
  * otherwise.
  * </p>
+ * <p>
+ * Values are held in a ring buffer whose capacity is the smallest power of
+ * two holding delay values, so that positions wrap with a mask. The ring
+ * buffer can be moved into a larger array shared with other delay lines.
+ * </p>
  */
-public class DelayFilter implements Filter {
+public class DelayFilter implements BlockFilter, CopyableFilter,
+        StatefulFilter {
 
     /**
      * The amount of samples by which new input samples are delayed until
@@ -21,10 +31,25 @@ public class DelayFilter implements Filter {
 
     /**
      * Stores the delay delayed values, as a queue, considering how values
-     * need to be read and added.
+     * need to be read and added. The queue is the region of this array
+     * starting at offset.
      */
     private double[] queue;
 
+    /**
+     * Index of the ring buffer in the queue array.
+     */
+    private int offset;
+
+    /**
+     * Capacity of the ring buffer minus one, a power of two minus one.
+     */
+    private final int mask;
+
+    /**
+     * Position of the next enqueued value in the ring buffer. The next
+     * popped value is delay positions before.
+     */
     private int counter;
 
     private boolean needsUpdate;
@@ -34,11 +59,17 @@ public class DelayFilter implements Filter {
      *
      * @param delay The *number of samples* by which new samples are delayed
      *              before being output. (NOT IN MILLISECONDS)
+     * @throws IllegalArgumentException if the delay is not positive.
      */
     public DelayFilter(int delay) {
+        if (delay < 1) {
+            throw new IllegalArgumentException("Delays must be positive.");
+        }
         this.delay = delay;
-        this.queue = new double[delay];
-        this.counter = 0;
+        this.queue = new double[capacityOf(delay)];
+        this.offset = 0;
+        this.mask = queue.length - 1;
+        this.counter = delay & mask;
 
         this.needsUpdate = false;
 
@@ -46,6 +77,59 @@ public class DelayFilter implements Filter {
         reset();
     }
 
+    /**
+     * Creates a delay filter equivalent to two cascaded delay filters,
+     * including the values they currently hold.
+     *
+     * @param first  The delay filter processing the samples first.
+     * @param second The delay filter fed by the first one.
+     * @return a delay filter delaying by the sum of both delays.
+     */
+    public static DelayFilter chain(DelayFilter first, DelayFilter second) {
+        DelayFilter chained = new DelayFilter(first.delay + second.delay);
+
+        // The values held by the second filter are output first, from the
+        // start of the ring buffer.
+        second.read(chained.queue, 0, second.delay);
+        first.read(chained.queue, second.delay, first.delay);
+
+        return chained;
+    }
+
+    /**
+     * @param delay The delay of a delay line.
+     * @return the capacity of its ring buffer, the smallest power of two
+     *         holding delay values.
+     */
+    public static int capacityOf(int delay) {
+        return delay <= 1 ? 1 : Integer.highestOneBit(delay - 1) << 1;
+    }
+
+    /**
+     * @return the values currently held by the filter, in the order they
+     *         will be output.
+     */
+    public double[] getPendingValues() {
+        double[] values = new double[delay];
+        read(values, 0, delay);
+        return values;
+    }
+
+    /**
+     * Moves the ring buffer of the filter to a region of a larger array,
+     * keeping the values it holds. Execution plans use it to place all the
+     * delay lines they run next to each other.
+     *
+     * @param arena  The array holding the region.
+     * @param offset The index of the region, which must hold
+     *               {@link #getCapacity()} values.
+     */
+    public void moveTo(double[] arena, int offset) {
+        System.arraycopy(queue, this.offset, arena, offset, mask + 1);
+        this.queue = arena;
+        this.offset = offset;
+    }
+
     /**
      * A delay filter requires only 1 input.
      *
@@ -72,7 +156,7 @@ public class DelayFilter implements Filter {
      * @return the popped double.
      */
     public double pop() {
-        double d = queue[counter];
+        double d = queue[offset + ((counter - delay) & mask)];
         this.needsUpdate = true;
         return d;
     }
@@ -83,15 +167,62 @@ public class DelayFilter implements Filter {
      * @param sample the value to add to the queue.
      */
     public void enqueue(double[] sample) {
-        queue[counter] = sample[0];
+        enqueue(sample[0]);
+    }
+
+    /**
+     * Adds a value to the queue.
+     *
+     * @param sample the value to add to the queue.
+     */
+    public void enqueue(double sample) {
+        queue[offset + counter] = sample;
 
         this.needsUpdate = false;
+        counter = (counter + 1) & mask;
+    }
 
-        if (counter == delay - 1) {
-            counter = 0;
-        } else {
-            counter++;
-        }
+    /**
+     * Reads the next values of the queue, without consuming them.
+     * At most delay values can be read before enqueuing new ones.
+     *
+     * @param output the buffer to write the values to.
+     * @param frames the amount of values to read.
+     */
+    public void pop(double[] output, int frames) {
+        read(output, 0, frames);
+        this.needsUpdate = true;
+    }
+
+    /**
+     * Adds several values to the queue, after they were popped.
+     *
+     * @param input  the buffer to read the values from.
+     * @param frames the amount of values to add, at most delay.
+     */
+    public void enqueue(double[] input, int frames) {
+        write(input, 0, frames);
+        this.needsUpdate = false;
+    }
+
+    /**
+     * Copies the next values of the queue, at most delay of them.
+     */
+    private void read(double[] output, int from, int frames) {
+        int start = (counter - delay) & mask;
+        int first = Math.min(frames, mask + 1 - start);
+        System.arraycopy(queue, offset + start, output, from, first);
+        System.arraycopy(queue, offset, output, from + first, frames - first);
+    }
+
+    /**
+     * Adds values to the queue, at most delay of them.
+     */
+    private void write(double[] input, int from, int frames) {
+        int first = Math.min(frames, mask + 1 - counter);
+        System.arraycopy(input, from, queue, offset + counter, first);
+        System.arraycopy(input, from + first, queue, offset, frames - first);
+        counter = (counter + frames) & mask;
     }
 
     /**
@@ -124,17 +255,99 @@ public class DelayFilter implements Filter {
         return new double[]{output};
     }
 
+    /**
+     * Computes one step of the filtering, without allocating any array.
+     *
+     * @param input  contains the input sample.
+     * @param output receives the input delayed by delay values.
+     * @throws FilterException if the arrays are null or of wrong length.
+     */
+    @Override
+    public void computeOneStep(double[] input, double[] output)
+            throws FilterException {
+        BlockFilter.checkStep(this, input, output);
+
+        output[0] = pop();
+        enqueue(input[0]);
+    }
+
+    /**
+     * Computes several steps of the filtering at once.
+     * The block is processed in segments of at most delay frames: each
+     * segment is first read from the queue, then the corresponding inputs
+     * are enqueued. Blocks longer than the delay are thus supported.
+     *
+     * @param input  contains the single input buffer.
+     * @param output contains the single output buffer.
+     * @param frames the amount of frames to process.
+     * @throws FilterException if the buffers are null or of wrong amount.
+     */
+    @Override
+    public void computeBlock(double[][] input, double[][] output, int frames)
+            throws FilterException {
+        BlockFilter.checkBuffers(this, input, output);
+
+        double[] in = input[0];
+        double[] out = output[0];
+        int n = 0;
+        while (n < frames) {
+            int length = Math.min(frames - n, delay);
+            read(out, n, length);
+            write(in, n, length);
+            n += length;
+        }
+        this.needsUpdate = false;
+    }
+
+    /**
+     * Creates a delay filter with the same delay, holding only 0 values.
+     *
+     * @return the copy of the filter.
+     */
+    @Override
+    public DelayFilter copy() {
+        return new DelayFilter(delay);
+    }
+
+    /**
+     * Writes the values held by the filter, and whether one of them was
+     * popped without being replaced yet.
+     *
+     * @param out The destination of the state.
+     * @throws IOException if the state cannot be written.
+     */
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        StatefulFilter.writeValues(out, getPendingValues());
+        out.writeBoolean(needsUpdate);
+    }
+
+    /**
+     * Reads back the values held by the filter.
+     *
+     * @param in The source of the state.
+     * @throws IOException if the state cannot be read, or was saved from a
+     *                     filter with another delay.
+     */
+    @Override
+    public void restoreState(DataInput in) throws IOException {
+        double[] values = StatefulFilter.readValues(in, delay);
+        needsUpdate = in.readBoolean();
+
+        // The next value is read from the start of the ring buffer.
+        counter = delay & mask;
+        System.arraycopy(values, 0, queue, offset, delay);
+    }
+
     /**
      * Resets the filter.
-     * Clears the current delay queue, and re-initialize it with
-     * delay times the 0 value.
+     * Clears the current delay queue, filling it with the 0 value, without
+     * allocating it again.
      */
     @Override
     public void reset() {
-        queue = new double[delay];
-
-        for (int i = 0; i < delay; i++)
-            queue[i] = 0;
+        Arrays.fill(queue, offset, offset + mask + 1, 0);
+        counter = delay & mask;
     }
 
     /**
@@ -144,6 +357,13 @@ public class DelayFilter implements Filter {
         return delay;
     }
 
+    /**
+     * @return the capacity of the ring buffer of the filter.
+     */
+    public int getCapacity() {
+        return mask + 1;
+    }
+
     /**
      * @return {@code true} if the filter needs to be updated,
      * {@code false} otherwise.
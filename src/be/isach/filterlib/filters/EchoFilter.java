@@ -4,6 +4,10 @@ import be.uliege.montefiore.oop.audio.Filter;
 
 /**
  * Implements an Echo Filter, as detailed in the project statement.
+ * <p>
+ * Once compiled, its graph runs as a single
+ * {@link be.isach.filterlib.engine.CombKernel}.
+ * </p>
  */
 public class EchoFilter extends CompositeFilter {
 
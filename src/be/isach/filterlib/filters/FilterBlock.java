@@ -1,14 +1,13 @@
 package be.isach.filterlib.filters;
 
 import be.uliege.montefiore.oop.audio.Filter;
-import be.uliege.montefiore.oop.audio.FilterException;
 
-import java.util.Arrays;
 import java.util.HashMap;
 
 /**
  * Stores data for an internal filter in a composite filter.
- * Stores connections to adjacent filters, and a buffer input.
+ * Stores connections to adjacent filters, which are compiled into an
+ * execution plan by the owning composite filter.
  */
 public class FilterBlock {
 
@@ -17,14 +16,6 @@ public class FilterBlock {
      */
     private final Filter filter;
 
-    /**
-     * null = empty (unavailable).
-     * Contains available inputs.
-     * As filters are not all accessed at same time, a buffer stores
-     * inputs to ensure it memorizes previous calls.
-     */
-    private final Double[] inputBuffer;
-
     /**
      * Filters it takes its inputs from.
      * key: the filter.
@@ -40,14 +31,19 @@ public class FilterBlock {
     private final HashMap<FilterBlock, Integer> outputBlocks;
 
     /**
-     * owning composite filter
+     * Bitmask of the inputs of the filter that are connected.
      */
-    private final CompositeFilter compositeFilter;
+    private long connectedInputs;
 
     /**
-     * Flag for visited or not.
+     * Bitmask of the outputs of the filter that are connected.
      */
-    private boolean visited;
+    private long connectedOutputs;
+
+    /**
+     * owning composite filter
+     */
+    private final CompositeFilter compositeFilter;
 
     /**
      * Initializes a block data for a given filter.
@@ -56,135 +52,60 @@ public class FilterBlock {
      */
     public FilterBlock(Filter filter, CompositeFilter compositeFilter) {
         this.filter = filter;
-        this.inputBuffer = new Double[filter.nbInputs()];
-
-        // By default, the inputs are unavailable.
-        Arrays.fill(inputBuffer, null);
-
         this.inputBlocks = new HashMap<>();
         this.outputBlocks = new HashMap<>();
 
         this.compositeFilter = compositeFilter;
-        this.visited = false;
     }
 
     /**
-     * Returns the input buffer and clears it.
-     *
-     * @return input to use
-     */
-    public double[] consumeBuffer() {
-        double[] input = new double[inputBuffer.length];
-        for (int i = 0; i < inputBuffer.length; i++)
-            input[i] = inputBuffer[i];
-        Arrays.fill(inputBuffer, null);
-        return input;
+     * Adds a filter this filter takes its inputs from.
+     * @param subBlock the pointing filter.
+     * @param slot the pointing filter's output slot to this filter.
+     */
+    public void setFilterAsInput(FilterBlock subBlock, int slot) {
+        this.inputBlocks.putIfAbsent(subBlock, slot);
     }
 
     /**
-     * @return {@code true} if all inputs are available,
-     *         {@code false} otherwise.
+     * Adds a filter this filter streams its outputs to.
+     * @param subBlock the pointed filter.
+     * @param slot the pointed filter's slot.
      */
-    public boolean allInputsAvailable() {
-        if (filter instanceof DelayFilter
-                && !((DelayFilter) filter).needsUpdating())
-            return true;
-
-        for (Double d : inputBuffer)
-            if (d == null) return false;
-        return true;
+    public void setFilterAsOutput(FilterBlock subBlock, int slot) {
+        this.outputBlocks.putIfAbsent(subBlock, slot);
     }
 
-    public void compute() throws FilterException {
-        if(isVisited()) return;
-
-        // This means the called block is still waiting for another
-        // input to come from another call. Cancel this call.
-        if (!allInputsAvailable()) {
-            return;
-        }
-
-        // If true, we're on the first phase of the computing
-        // where we pop all delay filters that have technically ready
-        // inputs (previous ones) all the time.
-        // Enqueuing them happens later.
-        boolean poppingADelayFilter = filter instanceof DelayFilter
-                && !((DelayFilter) filter).needsUpdating();
-
-        double[] output;
-
-        // If we're not on the first phase
-        if (!poppingADelayFilter) {
-            double[] input = consumeBuffer();
-
-            // Read the output.
-            // If the filter is a delay filter that needs updating (because it's
-            // in a loop and was already popped), then just enqueue a new value.
-            // Otherwise, just process it normally.
-            if (filter instanceof DelayFilter
-                    && ((DelayFilter) filter).needsUpdating()) {
-                ((DelayFilter) filter).enqueue(input);
-                return;
-            } else {
-                output = filter.computeOneStep(input);
-            }
-
-            // Mark the filter as visited in the current cycle.
-            setVisited(true);
-        } else { // just pop the delay filter otherwise.
-            output = new double[]{((DelayFilter) filter).pop()};
-        }
-
-        // Call the next filters.
-        for (FilterBlock nextBlock : getOutputBlocks().keySet()) {
-            Filter next = nextBlock.getFilter();
-            if (next != compositeFilter) {
-
-                // Insert our output as an input in the next filter's
-                // input buffer
-                int outputIndex = nextBlock.getInputBlocks().get(this);
-                nextBlock.addToBuffer(output[outputIndex],
-                        getOutputBlocks().get(nextBlock));
-
-                nextBlock.compute();
-            } else {
-                Integer outputIndex = compositeFilter.getSelfBlock()
-                        .getOutputBlocks().get(this);
-
-                compositeFilter.insertOutput(outputBlocks.get(nextBlock),
-                        output[outputIndex]);
-                // end of sub-cycle, reached the final output for this
-                // chain.
-            }
-        }
+    /**
+     * Marks an input of the filter as connected.
+     * @param slot the connected input.
+     */
+    public void markInputConnected(int slot) {
+        this.connectedInputs |= 1L << slot;
     }
 
     /**
-     * Adds an input to the input buffer, to mark it available and store it
-     * for later usage.
-     * @param sample The newly available input.
-     * @param slot The input slot it takes place in.
+     * Marks an output of the filter as connected.
+     * @param slot the connected output.
      */
-    public void addToBuffer(double sample, int slot) {
-        inputBuffer[slot] = sample;
+    public void markOutputConnected(int slot) {
+        this.connectedOutputs |= 1L << slot;
     }
 
     /**
-     * Adds a filter this filter takes its inputs from.
-     * @param subBlock the pointing filter.
-     * @param slot the pointing filter's output slot to this filter.
+     * @return {@code true} if all the inputs and outputs of the filter are
+     *         connected, {@code false} otherwise.
      */
-    public void setFilterAsInput(FilterBlock subBlock, int slot) {
-        this.inputBlocks.putIfAbsent(subBlock, slot);
+    public boolean isFullyConnected() {
+        return connectedInputs == allSlots(filter.nbInputs())
+                && connectedOutputs == allSlots(filter.nbOutputs());
     }
 
     /**
-     * Adds a filter this filter streams its outputs to.
-     * @param subBlock the pointed filter.
-     * @param slot the pointed filter's slot.
+     * @return the bitmask with the given amount of slots set.
      */
-    public void setFilterAsOutput(FilterBlock subBlock, int slot) {
-        this.outputBlocks.putIfAbsent(subBlock, slot);
+    private static long allSlots(int amount) {
+        return amount >= Long.SIZE ? -1L : (1L << amount) - 1;
     }
 
     /**
@@ -207,12 +128,4 @@ public class FilterBlock {
     public HashMap<FilterBlock, Integer> getOutputBlocks() {
         return outputBlocks;
     }
-
-    public boolean isVisited() {
-        return visited;
-    }
-
-    public void setVisited(boolean visited) {
-        this.visited = visited;
-    }
 }
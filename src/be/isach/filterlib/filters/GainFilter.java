@@ -1,8 +1,10 @@
 package be.isach.filterlib.filters;
 
-import be.uliege.montefiore.oop.audio.Filter;
+import be.isach.filterlib.util.BlockKernels;
 import be.uliege.montefiore.oop.audio.FilterException;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.util.LinkedList;
 import java.util.Queue;
 
@@ -12,7 +14,8 @@ import java.util.Queue;
  * When applied, multiplies the input samples by a value called gain.
  * </p>
  */
-public class GainFilter implements Filter {
+public class GainFilter implements BlockFilter, CopyableFilter,
+        StatefulFilter {
 
     /**
      * The value by which each input is multiplied before being output.
@@ -75,6 +78,66 @@ public class GainFilter implements Filter {
         return new double[]{output};
     }
 
+    /**
+     * Computes one step of the filtering, without allocating any array.
+     *
+     * @param input  contains the input sample.
+     * @param output receives the input multiplied by the gain.
+     * @throws FilterException if the arrays are null or of wrong length.
+     */
+    @Override
+    public void computeOneStep(double[] input, double[] output)
+            throws FilterException {
+        BlockFilter.checkStep(this, input, output);
+
+        output[0] = gain * input[0];
+    }
+
+    /**
+     * Computes several steps of the filtering at once.
+     * Simply multiplies every input frame by the gain.
+     *
+     * @param input  contains the single input buffer.
+     * @param output contains the single output buffer.
+     * @param frames the amount of frames to process.
+     * @throws FilterException if the buffers are null or of wrong amount.
+     */
+    @Override
+    public void computeBlock(double[][] input, double[][] output, int frames)
+            throws FilterException {
+        BlockFilter.checkBuffers(this, input, output);
+
+        BlockKernels.get().scale(input[0], gain, output[0], frames);
+    }
+
+    /**
+     * Creates a gain filter with the same gain.
+     *
+     * @return the copy of the filter.
+     */
+    @Override
+    public GainFilter copy() {
+        return new GainFilter(gain);
+    }
+
+    /**
+     * A gain filter holds no state: nothing is written.
+     *
+     * @param out The destination of the state.
+     */
+    @Override
+    public void saveState(DataOutput out) {
+    }
+
+    /**
+     * A gain filter holds no state: nothing is read.
+     *
+     * @param in The source of the state.
+     */
+    @Override
+    public void restoreState(DataInput in) {
+    }
+
     /**
      * Resets the filter.
      * No specific action is required for this filter.
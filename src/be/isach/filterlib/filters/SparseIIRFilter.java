@@ -0,0 +1,291 @@
+package be.isach.filterlib.filters;
+
+import be.uliege.montefiore.oop.audio.FilterException;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Implements a recursive filter in direct form, keeping only its non-zero
+ * taps.
+ * <p>
+ * The nth output is the sum of b_k times the (n - k)th input, minus the sum
+ * of a_k times the (n - k)th output, k ranging over the delays of the taps.
+ * Past inputs and outputs are held in two ring buffers, whose capacity is
+ * the smallest power of two above the longest delay.
+ * </p>
+ */
+public class SparseIIRFilter implements BlockFilter, CopyableFilter,
+        StatefulFilter {
+
+    private final int[] feedforwardDelays;
+
+    private final double[] feedforward;
+
+    private final int[] feedbackDelays;
+
+    private final double[] feedback;
+
+    /**
+     * Last inputs, as a ring.
+     */
+    private final double[] inputs;
+
+    /**
+     * Last outputs, as a ring.
+     */
+    private final double[] outputs;
+
+    /**
+     * Capacity of the rings minus one, a power of two minus one.
+     */
+    private final int mask;
+
+    /**
+     * Position of the next input and output in the rings.
+     */
+    private int position;
+
+    /**
+     * Initializes a sparse recursive filter from its transfer function,
+     * whose numerator and denominator are given as terms c z^-k.
+     *
+     * @param numeratorDelays   The delay k of each term of the numerator.
+     * @param numerator         The coefficient c of each term of the
+     *                          numerator.
+     * @param denominatorDelays The delay k of each term of the denominator,
+     *                          one of them being 0.
+     * @param denominator       The coefficient c of each term of the
+     *                          denominator, the one of delay 0 not being 0.
+     * @throws FilterException if the terms are not valid.
+     */
+    public SparseIIRFilter(int[] numeratorDelays, double[] numerator,
+                           int[] denominatorDelays, double[] denominator)
+            throws FilterException {
+        if (numeratorDelays.length != numerator.length
+                || denominatorDelays.length != denominator.length) {
+            throw new FilterException("Each term needs one delay and one " +
+                    "coefficient.");
+        }
+
+        double leading = 0;
+        int longest = 0;
+        int feedbackTaps = 0;
+        for (int k = 0; k < denominatorDelays.length; k++) {
+            if (denominatorDelays[k] < 0) {
+                throw new FilterException("Delays must be positive.");
+            }
+            if (denominatorDelays[k] == 0) {
+                leading += denominator[k];
+            } else {
+                feedbackTaps++;
+            }
+            longest = Math.max(longest, denominatorDelays[k]);
+        }
+        for (int delay : numeratorDelays) {
+            if (delay < 0) {
+                throw new FilterException("Delays must be positive.");
+            }
+            longest = Math.max(longest, delay);
+        }
+        if (leading == 0) {
+            throw new FilterException("The denominator needs a non-zero " +
+                    "term of delay 0.");
+        }
+
+        // The taps are normalized so that the output has a weight of 1.
+        this.feedforwardDelays = numeratorDelays.clone();
+        this.feedforward = new double[numerator.length];
+        for (int k = 0; k < numerator.length; k++) {
+            feedforward[k] = numerator[k] / leading;
+        }
+        this.feedbackDelays = new int[feedbackTaps];
+        this.feedback = new double[feedbackTaps];
+        for (int k = 0, tap = 0; k < denominatorDelays.length; k++) {
+            if (denominatorDelays[k] != 0) {
+                feedbackDelays[tap] = denominatorDelays[k];
+                feedback[tap++] = denominator[k] / leading;
+            }
+        }
+
+        this.inputs = new double[DelayFilter.capacityOf(longest + 1)];
+        this.outputs = new double[inputs.length];
+        this.mask = inputs.length - 1;
+        this.position = 0;
+    }
+
+    /**
+     * A sparse recursive filter requires only 1 input.
+     *
+     * @return the number of inputs of the filter.
+     */
+    @Override
+    public int nbInputs() {
+        return 1;
+    }
+
+    /**
+     * A sparse recursive filter produces only 1 output.
+     *
+     * @return the number of outputs of the filter.
+     */
+    @Override
+    public int nbOutputs() {
+        return 1;
+    }
+
+    /**
+     * Computes one step of the filtering.
+     *
+     * @param input contains the input sample.
+     * @return an array containing one output.
+     * @throws FilterException if the input array is null or of wrong length.
+     */
+    @Override
+    public double[] computeOneStep(double[] input) throws FilterException {
+        double[] output = new double[1];
+        computeOneStep(input, output);
+        return output;
+    }
+
+    /**
+     * Computes one step of the filtering, without allocating any array.
+     *
+     * @param input  contains the input sample.
+     * @param output receives the output sample.
+     * @throws FilterException if the arrays are null or of wrong length.
+     */
+    @Override
+    public void computeOneStep(double[] input, double[] output)
+            throws FilterException {
+        BlockFilter.checkStep(this, input, output);
+
+        output[0] = step(input[0]);
+    }
+
+    /**
+     * Computes several steps of the filtering at once. Outputs depend on
+     * the previous ones, so they are still computed one after the other.
+     *
+     * @param input  contains the single input buffer.
+     * @param output contains the single output buffer.
+     * @param frames the amount of frames to process.
+     * @throws FilterException if the buffers are null or of wrong amount.
+     */
+    @Override
+    public void computeBlock(double[][] input, double[][] output, int frames)
+            throws FilterException {
+        BlockFilter.checkBuffers(this, input, output);
+
+        double[] in = input[0];
+        double[] out = output[0];
+        for (int n = 0; n < frames; n++) {
+            out[n] = step(in[n]);
+        }
+    }
+
+    /**
+     * Adds an input to the ring, and computes the matching output.
+     */
+    private double step(double sample) {
+        inputs[position] = sample;
+
+        double output = 0;
+        for (int k = 0; k < feedforward.length; k++) {
+            output += feedforward[k]
+                    * inputs[(position - feedforwardDelays[k]) & mask];
+        }
+        for (int k = 0; k < feedback.length; k++) {
+            output -= feedback[k]
+                    * outputs[(position - feedbackDelays[k]) & mask];
+        }
+
+        outputs[position] = output;
+        position = (position + 1) & mask;
+        return output;
+    }
+
+    /**
+     * Creates a sparse recursive filter with the same taps, in its initial
+     * state.
+     *
+     * @return the copy of the filter.
+     * @throws FilterException never, the taps being valid.
+     */
+    @Override
+    public SparseIIRFilter copy() throws FilterException {
+        int[] denominatorDelays = Arrays.copyOf(feedbackDelays,
+                feedbackDelays.length + 1);
+        double[] denominator = Arrays.copyOf(feedback, feedback.length + 1);
+        denominator[feedback.length] = 1;
+        return new SparseIIRFilter(feedforwardDelays, feedforward,
+                denominatorDelays, denominator);
+    }
+
+    /**
+     * Writes the last inputs and outputs of the filter.
+     *
+     * @param out The destination of the state.
+     * @throws IOException if the state cannot be written.
+     */
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        out.writeInt(position);
+        StatefulFilter.writeValues(out, inputs);
+        StatefulFilter.writeValues(out, outputs);
+    }
+
+    /**
+     * Reads back the last inputs and outputs of the filter.
+     *
+     * @param in The source of the state.
+     * @throws IOException if the state cannot be read, or was saved from a
+     *                     filter with other delays.
+     */
+    @Override
+    public void restoreState(DataInput in) throws IOException {
+        int restored = in.readInt();
+        if (restored < 0 || restored > mask) {
+            throw new IOException("Snapshot does not match the filter.");
+        }
+
+        position = restored;
+        System.arraycopy(StatefulFilter.readValues(in, inputs.length), 0,
+                inputs, 0, inputs.length);
+        System.arraycopy(StatefulFilter.readValues(in, outputs.length), 0,
+                outputs, 0, outputs.length);
+    }
+
+    /**
+     * Resets the filter, as if it had only been fed zeros.
+     */
+    @Override
+    public void reset() {
+        Arrays.fill(inputs, 0);
+        Arrays.fill(outputs, 0);
+        position = 0;
+    }
+
+    /**
+     * @return the amount of non-zero taps of the filter.
+     */
+    public int getTaps() {
+        return feedforward.length + feedback.length;
+    }
+
+    /**
+     * @return the longest delay of a tap of the filter.
+     */
+    public int getOrder() {
+        int order = 0;
+        for (int delay : feedforwardDelays) {
+            order = Math.max(order, delay);
+        }
+        for (int delay : feedbackDelays) {
+            order = Math.max(order, delay);
+        }
+        return order;
+    }
+}
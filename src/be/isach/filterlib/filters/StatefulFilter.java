@@ -0,0 +1,166 @@
+package be.isach.filterlib.filters;
+
+import be.uliege.montefiore.oop.audio.Filter;
+import be.uliege.montefiore.oop.audio.FilterException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Extension of a filter able to save its internal state, and to restore it
+ * later.
+ * <p>
+ * A state restored into a filter of the same structure and parameters, the
+ * same one or a copy, makes it produce exactly the outputs the saved filter
+ * would have produced. This allows long renders to be resumed, or started
+ * from the middle of a file.
+ * </p>
+ */
+public interface StatefulFilter extends Filter {
+
+    /**
+     * Value starting every snapshot.
+     */
+    int SNAPSHOT_MAGIC = 0x46534E50;
+
+    /**
+     * Writes the internal state of the filter.
+     *
+     * @param out The destination of the state.
+     * @throws FilterException if part of the filter has no state to save.
+     * @throws IOException     if the state cannot be written.
+     */
+    void saveState(DataOutput out) throws FilterException, IOException;
+
+    /**
+     * Reads back a state written by {@link #saveState(DataOutput)}.
+     *
+     * @param in The source of the state.
+     * @throws FilterException if part of the filter has no state to restore.
+     * @throws IOException     if the state cannot be read, or does not match
+     *                         the filter.
+     */
+    void restoreState(DataInput in) throws FilterException, IOException;
+
+    /**
+     * Writes the internal state of any filter.
+     *
+     * @param filter The filter to save.
+     * @param out    The destination of the state.
+     * @throws FilterException if the filter has no state to save.
+     * @throws IOException     if the state cannot be written.
+     */
+    static void save(Filter filter, DataOutput out)
+            throws FilterException, IOException {
+        if (!(filter instanceof StatefulFilter)) {
+            throw new FilterException("Filter state cannot be saved: "
+                    + filter.getClass().getName());
+        }
+
+        ((StatefulFilter) filter).saveState(out);
+    }
+
+    /**
+     * Reads back the internal state of any filter.
+     *
+     * @param filter The filter to restore.
+     * @param in     The source of the state.
+     * @throws FilterException if the filter has no state to restore.
+     * @throws IOException     if the state cannot be read, or does not match
+     *                         the filter.
+     */
+    static void restore(Filter filter, DataInput in)
+            throws FilterException, IOException {
+        if (!(filter instanceof StatefulFilter)) {
+            throw new FilterException("Filter state cannot be restored: "
+                    + filter.getClass().getName());
+        }
+
+        ((StatefulFilter) filter).restoreState(in);
+    }
+
+    /**
+     * Writes values held by a filter, preceded by their amount.
+     *
+     * @param out    The destination of the values.
+     * @param values The values to write.
+     * @throws IOException if the values cannot be written.
+     */
+    static void writeValues(DataOutput out, double[] values)
+            throws IOException {
+        out.writeInt(values.length);
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+    }
+
+    /**
+     * Reads values written by {@link #writeValues(DataOutput, double[])}.
+     *
+     * @param in     The source of the values.
+     * @param amount The amount of values the filter holds.
+     * @return the values read.
+     * @throws IOException if the values cannot be read, or if their amount
+     *                     is not the expected one.
+     */
+    static double[] readValues(DataInput in, int amount) throws IOException {
+        if (in.readInt() != amount) {
+            throw new IOException("Snapshot does not match the filter.");
+        }
+
+        double[] values = new double[amount];
+        for (int i = 0; i < amount; i++) {
+            values[i] = in.readDouble();
+        }
+        return values;
+    }
+
+    /**
+     * Takes a snapshot of the state of a filter, tagged with its class.
+     *
+     * @param filter The filter to save.
+     * @return the snapshot.
+     * @throws FilterException if the filter has no state to save.
+     */
+    static byte[] snapshot(Filter filter) throws FilterException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeUTF(filter.getClass().getName());
+            save(filter, out);
+        } catch (IOException e) {
+            throw new FilterException("Filter state cannot be saved: "
+                    + e.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Restores a snapshot taken by {@link #snapshot(Filter)}.
+     *
+     * @param filter   The filter to restore, of the class of the saved one.
+     * @param snapshot The snapshot.
+     * @throws FilterException if the snapshot is not valid, or does not
+     *                         match the filter.
+     */
+    static void restore(Filter filter, byte[] snapshot)
+            throws FilterException {
+        try (DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(snapshot))) {
+            if (in.readInt() != SNAPSHOT_MAGIC
+                    || !in.readUTF().equals(filter.getClass().getName())) {
+                throw new FilterException("Snapshot was not taken from a " +
+                        "filter of this class.");
+            }
+            restore(filter, in);
+        } catch (IOException e) {
+            throw new FilterException("Filter state cannot be restored: "
+                    + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package be.isach.filterlib.filters;
+
+import be.isach.filterlib.util.BlockKernels;
+import be.uliege.montefiore.oop.audio.FilterException;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+
+/**
+ * Implements a weighted addition filter.
+ * <p>
+ * When applied, produces a single output which is the sum of the two given
+ * inputs, each multiplied by its own weight. This is equivalent to an
+ * addition filter whose inputs go through gain filters, in a single step.
+ * </p>
+ */
+public class WeightedAdditionFilter implements BlockFilter, CopyableFilter,
+        StatefulFilter {
+
+    /**
+     * The value by which the first input is multiplied.
+     */
+    private final double firstWeight;
+
+    /**
+     * The value by which the second input is multiplied.
+     */
+    private final double secondWeight;
+
+    /**
+     * Initializes a new Weighted Addition Filter with the specified weights.
+     *
+     * @param firstWeight  The value by which the first input is multiplied.
+     * @param secondWeight The value by which the second input is multiplied.
+     */
+    public WeightedAdditionFilter(double firstWeight, double secondWeight) {
+        this.firstWeight = firstWeight;
+        this.secondWeight = secondWeight;
+    }
+
+    /**
+     * A weighted addition filter requires 2 inputs, to sum them.
+     *
+     * @return the number of inputs of the filter.
+     */
+    @Override
+    public int nbInputs() {
+        return 2;
+    }
+
+    /**
+     * A weighted addition filter produces only 1 output.
+     *
+     * @return the number of outputs of the filter.
+     */
+    @Override
+    public int nbOutputs() {
+        return 1;
+    }
+
+    /**
+     * Computes one step of the filtering.
+     * Sums the two given inputs, multiplied by their weights.
+     *
+     * @param input contains the two samples to sum.
+     * @return an array containing one output, which is the weighted sum of
+     *         the two input samples.
+     * @throws FilterException if the input array is null or of wrong length.
+     */
+    @Override
+    public double[] computeOneStep(double[] input) throws FilterException {
+        double[] output = new double[1];
+        computeOneStep(input, output);
+        return output;
+    }
+
+    /**
+     * Computes one step of the filtering, without allocating any array.
+     *
+     * @param input  contains the two samples to sum.
+     * @param output receives the weighted sum of the two input samples.
+     * @throws FilterException if the arrays are null or of wrong length.
+     */
+    @Override
+    public void computeOneStep(double[] input, double[] output)
+            throws FilterException {
+        BlockFilter.checkStep(this, input, output);
+
+        output[0] = firstWeight * input[0] + secondWeight * input[1];
+    }
+
+    /**
+     * Computes several steps of the filtering at once.
+     * Sums the two input buffers frame by frame, multiplied by their weights.
+     *
+     * @param input  contains the two buffers to sum.
+     * @param output contains the single output buffer.
+     * @param frames the amount of frames to process.
+     * @throws FilterException if the buffers are null or of wrong amount.
+     */
+    @Override
+    public void computeBlock(double[][] input, double[][] output, int frames)
+            throws FilterException {
+        BlockFilter.checkBuffers(this, input, output);
+
+        BlockKernels.get().addWeighted(input[0], firstWeight, input[1],
+                secondWeight, output[0], frames);
+    }
+
+    /**
+     * Creates a weighted addition filter with the same weights.
+     *
+     * @return the copy of the filter.
+     */
+    @Override
+    public WeightedAdditionFilter copy() {
+        return new WeightedAdditionFilter(firstWeight, secondWeight);
+    }
+
+    /**
+     * A weighted addition filter holds no state: nothing is written.
+     *
+     * @param out The destination of the state.
+     */
+    @Override
+    public void saveState(DataOutput out) {
+    }
+
+    /**
+     * A weighted addition filter holds no state: nothing is read.
+     *
+     * @param in The source of the state.
+     */
+    @Override
+    public void restoreState(DataInput in) {
+    }
+
+    /**
+     * Resets the filter.
+     * No specific action is required for this filter.
+     */
+    @Override
+    public void reset() {
+    }
+
+    /**
+     * @return the weight of the first input.
+     */
+    public double getFirstWeight() {
+        return firstWeight;
+    }
+
+    /**
+     * @return the weight of the second input.
+     */
+    public double getSecondWeight() {
+        return secondWeight;
+    }
+}
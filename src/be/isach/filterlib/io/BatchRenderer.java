@@ -0,0 +1,487 @@
+package be.isach.filterlib.io;
+
+import be.isach.filterlib.engine.MultiLaneFilter;
+import be.isach.filterlib.filters.BlockFilter;
+import be.isach.filterlib.filters.CopyableFilter;
+import be.uliege.montefiore.oop.audio.AudioSequenceException;
+import be.uliege.montefiore.oop.audio.Filter;
+import be.uliege.montefiore.oop.audio.FilterException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Renders many WAV files with the same filter, concurrently, in one JVM.
+ * <p>
+ * Each file is handled by its own lightweight task, on a virtual thread
+ * when the running JVM supports them, which waits for enough memory to be
+ * available, and then reads and writes the file chunk by chunk, handing the
+ * filtering of each chunk over to a bounded pool of platform threads. The
+ * platform threads thus never block on files. Every channel of every file
+ * is filtered by its own copy of the filter, so that the memory of a file
+ * only depends on the chunk size.
+ * </p>
+ */
+public class BatchRenderer {
+
+    /**
+     * Size of the memory permits, in bytes.
+     */
+    private static final int PERMIT_SIZE = 1024;
+
+    /**
+     * Filter copied for each file.
+     */
+    private final Filter prototype;
+
+    /**
+     * Amount of chunks filtered at the same time.
+     */
+    private final int threads;
+
+    /**
+     * Amount of frames processed at a time in each file.
+     */
+    private final int chunkSize;
+
+    /**
+     * Permits of the memory available to files being filtered, one per
+     * {@link #PERMIT_SIZE} bytes.
+     */
+    private final Semaphore memory;
+
+    /**
+     * Total amount of memory permits.
+     */
+    private final int totalPermits;
+
+    /**
+     * Initializes a renderer.
+     *
+     * @param prototype    The filter to apply, copied for each channel of
+     *                     each file, with one input and one output, or a
+     *                     {@link MultiLaneFilter} with one input and one
+     *                     output per lane, copied for each file.
+     * @param threads      The amount of chunks filtered at the same time.
+     * @param memoryBudget The memory the buffers of the files being filtered
+     *                     may use together, in bytes.
+     * @param chunkSize    The amount of frames processed at a time in each
+     *                     file.
+     * @throws FilterException if the filter cannot be copied, if it does
+     *                         not have one input and one output per lane,
+     *                         or if an amount is not positive.
+     */
+    public BatchRenderer(Filter prototype, int threads, long memoryBudget,
+                         int chunkSize) throws FilterException {
+        if (!(prototype instanceof CopyableFilter)) {
+            throw new FilterException("Filter cannot be copied: "
+                    + prototype.getClass().getName());
+        }
+        if (prototype instanceof MultiLaneFilter) {
+            int lanes = ((MultiLaneFilter) prototype).nbLanes();
+            if (prototype.nbInputs() != lanes
+                    || prototype.nbOutputs() != lanes) {
+                throw new FilterException("Only filters with one input and " +
+                        "one output per lane can be applied to audio files.");
+            }
+        } else if (prototype.nbInputs() != 1 || prototype.nbOutputs() != 1) {
+            throw new FilterException("Only filters with one input and one " +
+                    "output can be applied to audio files.");
+        }
+        if (threads <= 0 || memoryBudget <= 0 || chunkSize <= 0) {
+            throw new FilterException("Threads, memory budget and chunk " +
+                    "size must be positive.");
+        }
+
+        this.prototype = prototype;
+        this.threads = threads;
+        this.chunkSize = chunkSize;
+        this.totalPermits = (int) Math.min(Integer.MAX_VALUE,
+                Math.max(1, memoryBudget / PERMIT_SIZE));
+        this.memory = new Semaphore(totalPermits);
+    }
+
+    /**
+     * Lists the files to render: the WAV files of a directory, or the files
+     * listed in a manifest, one path per line, relative to the manifest.
+     * Blank lines and lines starting with # are ignored in a manifest.
+     *
+     * @param inputs The directory or manifest.
+     * @return the paths of the files, sorted for a directory.
+     * @throws AudioSequenceException if the directory or manifest cannot be
+     *                                read.
+     */
+    public static List<Path> listInputs(Path inputs)
+            throws AudioSequenceException {
+        try {
+            if (Files.isDirectory(inputs)) {
+                try (Stream<Path> files = Files.list(inputs)) {
+                    return files.filter(file -> file.getFileName().toString()
+                                    .toLowerCase().endsWith(".wav"))
+                            .sorted()
+                            .collect(Collectors.toList());
+                }
+            }
+
+            Path base = inputs.toAbsolutePath().getParent();
+            List<Path> files = new ArrayList<>();
+            for (String line : Files.readAllLines(inputs)) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    files.add(base.resolve(line));
+                }
+            }
+            return files;
+        } catch (IOException e) {
+            throw new AudioSequenceException("An I/O error occurred while " +
+                    "listing the input files: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Renders files into a directory, under their own names, to which the
+     * .wav extension is added if missing. Files that fail are reported in
+     * their result, and do not stop the others; a file whose output would
+     * be that of a previous input fails before anything is rendered.
+     *
+     * @param inputs          The files to render.
+     * @param outputDirectory The directory receiving the filtered files.
+     * @return the result of each file, in the order of the inputs.
+     * @throws AudioSequenceException if the output directory cannot be
+     *                                created.
+     */
+    public List<Result> render(List<Path> inputs, Path outputDirectory)
+            throws AudioSequenceException {
+        try {
+            Files.createDirectories(outputDirectory);
+        } catch (IOException e) {
+            throw new AudioSequenceException("An I/O error occurred while " +
+                    "creating the output directory: " + e.getMessage());
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        ExecutorService tasks = newTaskExecutor();
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            Map<Path, Path> outputs = new HashMap<>();
+            for (Path input : inputs) {
+                Path output = outputOf(input, outputDirectory);
+                Path previous = outputs.putIfAbsent(
+                        output.toAbsolutePath().normalize(), input);
+                if (previous != null) {
+                    futures.add(CompletableFuture.completedFuture(
+                            new Result(input, 0, 0, 0, "The output file " +
+                                    "would replace that of " + previous
+                                    + ".")));
+                } else {
+                    futures.add(tasks.submit(() ->
+                            renderFile(input, output, workers)));
+                }
+            }
+
+            List<Result> results = new ArrayList<>();
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    results.add(new Result(inputs.get(i), 0, 0, 0,
+                            String.valueOf(e.getCause())));
+                }
+            }
+            return Collections.unmodifiableList(results);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AudioSequenceException("Rendering was interrupted.");
+        } finally {
+            tasks.shutdownNow();
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the path of the output file of an input.
+     */
+    private static Path outputOf(Path input, Path outputDirectory) {
+        String name = input.getFileName().toString();
+        if (!name.endsWith(".wav") && !name.endsWith(".WAV")) {
+            name += ".wav";
+        }
+        return outputDirectory.resolve(name);
+    }
+
+    /**
+     * Renders one file: waits for its memory, then reads and writes it chunk
+     * by chunk on the calling thread, each chunk being filtered by a worker.
+     */
+    private Result renderFile(Path input, Path output,
+                              ExecutorService workers)
+            throws InterruptedException {
+        try {
+            if (Files.exists(output) && Files.isSameFile(input, output)) {
+                return new Result(input, 0, 0, 0, "The output file would " +
+                        "replace the input file.");
+            }
+        } catch (IOException e) {
+            return new Result(input, 0, 0, 0, e.getMessage());
+        }
+
+        WavReader reader;
+        try {
+            reader = new WavReader(input.toString(), false);
+        } catch (AudioSequenceException e) {
+            return new Result(input, 0, 0, 0, e.getMessage());
+        }
+
+        long frames = reader.getFrameLength();
+        int sampleRate = reader.getSampleRate();
+        // Planar input and output samples, plus the bytes read and written.
+        long bytes = (long) chunkSize * reader.nbChannels()
+                * (2 * Double.BYTES + 2 * WavFormat.BYTES_PER_SAMPLE);
+        // A file larger than the whole budget runs alone.
+        int permits = (int) Math.max(1, Math.min(totalPermits,
+                bytes / PERMIT_SIZE));
+
+        try {
+            memory.acquire(permits);
+            try (WavWriter writer = new WavWriter(output.toString(),
+                    reader.nbChannels(), sampleRate)) {
+                long nanos = prototype instanceof MultiLaneFilter
+                        ? filterLanes(reader, writer, workers)
+                        : filterChannels(reader, writer, workers);
+                return new Result(input, frames, sampleRate, nanos, null);
+            } finally {
+                memory.release(permits);
+            }
+        } catch (AudioSequenceException | FilterException | IOException e) {
+            return new Result(input, frames, sampleRate, 0, e.getMessage());
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Filters every channel of a file at once, each by its own copy of the
+     * filter, the chunks being read and written as planar samples.
+     *
+     * @return the time spent filtering, in nanoseconds.
+     */
+    private long filterChannels(WavReader reader, WavWriter writer,
+                                ExecutorService workers)
+            throws FilterException, AudioSequenceException,
+            InterruptedException {
+        int nbChannels = reader.nbChannels();
+        Filter[] filters = new Filter[nbChannels];
+        double[][] frames = new double[nbChannels][chunkSize];
+        double[][] output = new double[nbChannels][chunkSize];
+        double[][][] inputs = new double[nbChannels][][];
+        double[][][] outputs = new double[nbChannels][][];
+        for (int c = 0; c < nbChannels; c++) {
+            filters[c] = CopyableFilter.copy(prototype);
+            inputs[c] = new double[][]{frames[c]};
+            outputs[c] = new double[][]{output[c]};
+        }
+
+        long nanos = 0;
+        long frame = 0;
+        int read;
+        while ((read = reader.read(frame, frames, chunkSize)) > 0) {
+            int length = read;
+            nanos += compute(workers, () -> {
+                for (int c = 0; c < nbChannels; c++) {
+                    BlockFilter.computeBlock(filters[c], inputs[c],
+                            outputs[c], length);
+                }
+            });
+            writer.write(frame, output, read);
+            frame += read;
+        }
+        return nanos;
+    }
+
+    /**
+     * Filters every channel of a file at once, one lane of the filter per
+     * channel, the chunks being read and written as interleaved samples.
+     *
+     * @return the time spent filtering, in nanoseconds.
+     */
+    private long filterLanes(WavReader reader, WavWriter writer,
+                             ExecutorService workers)
+            throws FilterException, AudioSequenceException,
+            InterruptedException {
+        MultiLaneFilter filter =
+                (MultiLaneFilter) CopyableFilter.copy(prototype);
+        if (filter.nbLanes() != reader.nbChannels()) {
+            throw new FilterException("Invalid number of lanes. Expected: "
+                    + reader.nbChannels() + ", Got: " + filter.nbLanes());
+        }
+
+        short[] frames = new short[reader.nbChannels() * chunkSize];
+        short[] output = new short[frames.length];
+
+        long nanos = 0;
+        long frame = 0;
+        int read;
+        while ((read = reader.read(frame, frames, chunkSize)) > 0) {
+            int length = read;
+            nanos += compute(workers,
+                    () -> filter.computeLanes(frames, output, length));
+            writer.write(frame, output, read);
+            frame += read;
+        }
+        return nanos;
+    }
+
+    /**
+     * Runs the filtering of a chunk on a worker, and waits for it.
+     *
+     * @return the time the worker spent filtering, in nanoseconds.
+     */
+    private static long compute(ExecutorService workers, Chunk chunk)
+            throws FilterException, InterruptedException {
+        Future<Long> work = workers.submit(() -> {
+            long start = System.nanoTime();
+            chunk.filter();
+            return System.nanoTime() - start;
+        });
+
+        try {
+            return work.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof FilterException) {
+                throw (FilterException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new FilterException("Filtering failed: " + cause);
+        }
+    }
+
+    /**
+     * Creates the executor of the tasks waiting for files, using virtual
+     * threads when the running JVM provides them, since these tasks mostly
+     * wait.
+     */
+    private static ExecutorService newTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Filtering of the chunk currently held in the buffers of a file.
+     */
+    private interface Chunk {
+
+        /**
+         * Filters the chunk.
+         *
+         * @throws FilterException if the filter fails.
+         */
+        void filter() throws FilterException;
+    }
+
+    /**
+     * Result of the rendering of one file.
+     */
+    public static class Result {
+
+        private final Path input;
+
+        private final long frames;
+
+        private final int sampleRate;
+
+        /**
+         * Time spent filtering the file, in nanoseconds.
+         */
+        private final long nanos;
+
+        /**
+         * Error that stopped the rendering, null if it succeeded.
+         */
+        private final String error;
+
+        private Result(Path input, long frames, int sampleRate, long nanos,
+                       String error) {
+            this.input = input;
+            this.frames = frames;
+            this.sampleRate = sampleRate;
+            this.nanos = nanos;
+            this.error = error;
+        }
+
+        /**
+         * @return the rendered file.
+         */
+        public Path getInput() {
+            return input;
+        }
+
+        /**
+         * @return the amount of frames of the file.
+         */
+        public long getFrames() {
+            return frames;
+        }
+
+        /**
+         * @return the time spent filtering the file, in nanoseconds, not
+         *         counting the time it waited for a thread.
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * @return the amount of frames filtered per second.
+         */
+        public double getFramesPerSecond() {
+            return nanos == 0 ? 0 : frames * 1e9 / nanos;
+        }
+
+        /**
+         * @return how many times faster than real time the file was filtered.
+         */
+        public double getRealTimeFactor() {
+            return sampleRate == 0 ? 0 : getFramesPerSecond() / sampleRate;
+        }
+
+        /**
+         * @return the error that stopped the rendering, null if it succeeded.
+         */
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * @return {@code true} if the file was rendered, {@code false}
+         *         otherwise.
+         */
+        public boolean isSuccess() {
+            return error == null;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package be.isach.filterlib.io;
+
+import be.uliege.montefiore.oop.audio.AudioSequenceException;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * File of filter snapshots taken at regular frames of a render, so that it
+ * can be resumed after a failure, or started again from the middle of the
+ * input.
+ * <p>
+ * Checkpoints are appended as they are taken, each with a checksum: a
+ * checkpoint cut short by a crash is simply ignored when the index is read.
+ * </p>
+ */
+public class CheckpointIndex implements Closeable {
+
+    /**
+     * Value starting every index file.
+     */
+    private static final int MAGIC = 0x46434B50;
+
+    /**
+     * Size of a checkpoint besides its snapshot: channel, frame, length and
+     * checksum.
+     */
+    private static final int RECORD_OVERHEAD = 2 * Integer.BYTES + Long.BYTES
+            + Integer.BYTES;
+
+    /**
+     * Stream the checkpoints are appended to.
+     */
+    private final DataOutputStream out;
+
+    /**
+     * Opens an index to add checkpoints to it.
+     *
+     * @param file   The path of the index.
+     * @param append Whether the checkpoints already in the index are kept.
+     *               A last checkpoint that was not completely written is
+     *               then removed.
+     * @throws AudioSequenceException if the index cannot be opened, or is
+     *                                not a checkpoint index.
+     */
+    public CheckpointIndex(String file, boolean append)
+            throws AudioSequenceException {
+        long length = append ? scan(file, new ArrayList<>()) : 0;
+        try {
+            if (append && Files.exists(Paths.get(file))) {
+                try (FileChannel channel = FileChannel.open(Paths.get(file),
+                        StandardOpenOption.WRITE)) {
+                    channel.truncate(length);
+                }
+            }
+
+            this.out = new DataOutputStream(
+                    new FileOutputStream(file, append));
+            if (length == 0) {
+                out.writeInt(MAGIC);
+                out.flush();
+            }
+        } catch (IOException e) {
+            throw new AudioSequenceException("An I/O error occurred while " +
+                    "opening the checkpoint index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Appends a checkpoint to the index. The output it refers to must
+     * already be written.
+     *
+     * @param channel  The channel being filtered.
+     * @param frame    The amount of frames of the channel already filtered.
+     * @param snapshot The snapshot of the filter at that frame.
+     * @throws AudioSequenceException if the index cannot be written.
+     */
+    public void write(int channel, long frame, byte[] snapshot)
+            throws AudioSequenceException {
+        CRC32 checksum = new CRC32();
+        checksum.update(snapshot);
+
+        try {
+            out.writeInt(channel);
+            out.writeLong(frame);
+            out.writeInt(snapshot.length);
+            out.write(snapshot);
+            out.writeInt((int) checksum.getValue());
+            out.flush();
+        } catch (IOException e) {
+            throw new AudioSequenceException("An I/O error occurred while " +
+                    "writing the checkpoint index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the checkpoints of an index, ignoring a last one that was not
+     * completely written.
+     *
+     * @param file The path of the index.
+     * @return the checkpoints, in the order they were taken, empty if the
+     *         index does not exist.
+     * @throws AudioSequenceException if the index cannot be read, or is not
+     *                                a checkpoint index.
+     */
+    public static List<Checkpoint> read(String file)
+            throws AudioSequenceException {
+        List<Checkpoint> checkpoints = new ArrayList<>();
+        scan(file, checkpoints);
+        return Collections.unmodifiableList(checkpoints);
+    }
+
+    /**
+     * Reads the complete checkpoints of an index.
+     *
+     * @return the length of the index up to the end of the last complete
+     *         checkpoint, 0 if the index does not exist or is empty.
+     */
+    private static long scan(String file, List<Checkpoint> checkpoints)
+            throws AudioSequenceException {
+        long length = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(Paths.get(file))))) {
+            long remaining = Files.size(Paths.get(file));
+            if (remaining == 0) {
+                return 0;
+            }
+            if (in.readInt() != MAGIC) {
+                throw new AudioSequenceException("This file is not a " +
+                        "checkpoint index.");
+            }
+            remaining -= Integer.BYTES;
+            length = Integer.BYTES;
+
+            while (remaining >= RECORD_OVERHEAD) {
+                int channel = in.readInt();
+                long frame = in.readLong();
+                int size = in.readInt();
+                remaining -= RECORD_OVERHEAD;
+                if (size < 0 || size > remaining) {
+                    break;
+                }
+
+                byte[] snapshot = new byte[size];
+                in.readFully(snapshot);
+                int expected = in.readInt();
+                remaining -= size;
+
+                CRC32 checksum = new CRC32();
+                checksum.update(snapshot);
+                if ((int) checksum.getValue() != expected) {
+                    break;
+                }
+                checkpoints.add(new Checkpoint(channel, frame, snapshot));
+                length += RECORD_OVERHEAD + size;
+            }
+        } catch (NoSuchFileException | EOFException ignored) {
+            // A missing index has no checkpoint, a truncated one ends here.
+        } catch (IOException e) {
+            throw new AudioSequenceException("An I/O error occurred while " +
+                    "reading the checkpoint index: " + e.getMessage());
+        }
+        return length;
+    }
+
+    /**
+     * Finds the last checkpoint of a channel at or before a frame.
+     *
+     * @param checkpoints The checkpoints of an index.
+     * @param channel     The channel to look for.
+     * @param frame       The latest frame the checkpoint may be at.
+     * @return the checkpoint, null if there is none.
+     */
+    public static Checkpoint find(List<Checkpoint> checkpoints, int channel,
+                                  long frame) {
+        Checkpoint found = null;
+        for (Checkpoint checkpoint : checkpoints) {
+            if (checkpoint.channel == channel && checkpoint.frame <= frame
+                    && (found == null || checkpoint.frame >= found.frame)) {
+                found = checkpoint;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Closes the index.
+     *
+     * @throws IOException if the index cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Snapshot of a filter at a frame of a channel.
+     */
+    public static class Checkpoint {
+
+        private final int channel;
+
+        private final long frame;
+
+        private final byte[] snapshot;
+
+        private Checkpoint(int channel, long frame, byte[] snapshot) {
+            this.channel = channel;
+            this.frame = frame;
+            this.snapshot = snapshot;
+        }
+
+        /**
+         * @return the channel being filtered.
+         */
+        public int getChannel() {
+            return channel;
+        }
+
+        /**
+         * @return the amount of frames of the channel already filtered.
+         */
+        public long getFrame() {
+            return frame;
+        }
+
+        /**
+         * @return the snapshot of the filter at that frame.
+         */
+        public byte[] getSnapshot() {
+            return snapshot.clone();
+        }
+    }
+}
@@ -0,0 +1,588 @@
+package be.isach.filterlib.io;
+
+import be.isach.filterlib.engine.PlanCache;
+import be.isach.filterlib.filters.AdditionFilter;
+import be.isach.filterlib.filters.AllPassFilter;
+import be.isach.filterlib.filters.CompositeFilter;
+import be.isach.filterlib.filters.DelayFilter;
+import be.isach.filterlib.filters.EchoFilter;
+import be.isach.filterlib.filters.GainFilter;
+import be.isach.filterlib.filters.WeightedAdditionFilter;
+import be.isach.filterlib.reverberator.LowPassFilter;
+import be.isach.filterlib.reverberator.ReverberatorFilter;
+import be.uliege.montefiore.oop.audio.AudioSequenceException;
+import be.uliege.montefiore.oop.audio.Filter;
+import be.uliege.montefiore.oop.audio.FilterException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Textual description of a composite filter, loaded without writing any
+ * Java code.
+ * <p>
+ * A description is made of graphs, each from a {@code graph} line to an
+ * {@code end} line, the last one being the described filter. Blank lines
+ * and anything following a {@code #} are ignored:
+ * </p>
+ * <pre>
+ * graph repetition 1 1    # name, inputs and outputs
+ *   sum = add             # a block, named, with its type and parameters
+ *   line = delay 10000
+ *   feedback = gain 0.6
+ *   in.0 -&gt; sum.0        # an output of a block, or an input of the graph,
+ *   feedback -&gt; sum.1     # to an input of a block, or an output of the
+ *   sum -&gt; line           # graph; the index is 0 when omitted
+ *   line -&gt; feedback
+ *   sum -&gt; out.0
+ * end
+ * </pre>
+ * <p>
+ * Block types are {@code gain g}, {@code delay d}, {@code add},
+ * {@code weighted-add w1 w2}, {@code echo g d}, {@code allpass g d},
+ * {@code lowpass g d}, {@code reverb}, and the name of any graph defined
+ * above, each use being a new instance of it; graphs cannot be named after
+ * a type.
+ * </p>
+ * <p>
+ * The structural hash of a description only depends on its graphs, blocks,
+ * parameters and connections, not on names, spacing or comments. It keys
+ * the compiled plans of a {@link PlanCache}, so that a description loaded
+ * again is not analyzed again.
+ * </p>
+ */
+public final class GraphDescription {
+
+    /**
+     * Graphs of the description, the last one being the described filter.
+     */
+    private final List<Graph> graphs;
+
+    private final String structuralHash;
+
+    private GraphDescription(List<Graph> graphs) throws FilterException {
+        this.graphs = graphs;
+        this.structuralHash = hashOf(graphs);
+    }
+
+    /**
+     * Reads the description of a file.
+     *
+     * @param file The path of the description.
+     * @return the description.
+     * @throws FilterException        if the description is not valid.
+     * @throws AudioSequenceException if the file cannot be read.
+     */
+    public static GraphDescription read(String file)
+            throws FilterException, AudioSequenceException {
+        String text;
+        try {
+            text = new String(Files.readAllBytes(Paths.get(file)),
+                    StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new AudioSequenceException("An I/O error occurred while " +
+                    "reading the graph description: " + e.getMessage());
+        }
+        return parse(text);
+    }
+
+    /**
+     * Parses a description.
+     *
+     * @param text The text of the description.
+     * @return the description.
+     * @throws FilterException if the description is not valid, the message
+     *                         giving the faulty line.
+     */
+    public static GraphDescription parse(String text) throws FilterException {
+        List<Graph> graphs = new ArrayList<>();
+        Map<String, Integer> graphIndices = new HashMap<>();
+        Graph graph = null;
+
+        String[] lines = text.split("\r?\n", -1);
+        for (int l = 0; l < lines.length; l++) {
+            String line = lines[l];
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+
+            String[] tokens = line.split("\\s+");
+            try {
+                if (graph != null && tokens.length >= 3
+                        && tokens[1].equals("=")) {
+                    graph.addBlock(tokens, graphs, graphIndices);
+                } else if (graph != null && tokens.length == 3
+                        && tokens[1].equals("->")) {
+                    graph.connect(tokens[0], tokens[2]);
+                } else if (tokens[0].equals("graph")) {
+                    if (graph != null) {
+                        throw error("missing end of graph " + graph.name);
+                    }
+                    expect(tokens, 4);
+                    if (graphIndices.containsKey(tokens[1])
+                            || Type.of(tokens[1]) != null) {
+                        throw error("duplicate graph name " + tokens[1]);
+                    }
+                    graph = new Graph(tokens[1], count(tokens[2]),
+                            count(tokens[3]));
+                } else if (graph == null) {
+                    throw error("expected a graph");
+                } else if (tokens[0].equals("end")) {
+                    expect(tokens, 1);
+                    graphIndices.put(graph.name, graphs.size());
+                    graphs.add(graph);
+                    graph = null;
+                } else {
+                    throw error("expected a block or a connection");
+                }
+            } catch (FilterException e) {
+                throw new FilterException("Line " + (l + 1) + ": "
+                        + e.getMessage());
+            }
+        }
+
+        if (graph != null) {
+            throw new FilterException("Missing end of graph " + graph.name
+                    + ".");
+        }
+        if (graphs.isEmpty()) {
+            throw new FilterException("The description has no graph.");
+        }
+        return new GraphDescription(graphs);
+    }
+
+    /**
+     * Builds the described composite filter.
+     *
+     * @return a new composite filter, compiled on first use.
+     * @throws FilterException if a graph of the description is missing
+     *                         connections.
+     */
+    public CompositeFilter build() throws FilterException {
+        return build(graphs.size() - 1);
+    }
+
+    /**
+     * Builds the described composite filter, whose plan is read from the
+     * given cache instead of being compiled, or compiled and added to the
+     * cache the first time.
+     *
+     * @param cache The cache of compiled plans.
+     * @return a new composite filter, ready to run.
+     * @throws FilterException if a graph of the description is missing
+     *                         connections, or if an output can never be
+     *                         computed.
+     */
+    public CompositeFilter build(PlanCache cache) throws FilterException {
+        CompositeFilter composite = build();
+        composite.setPlan(cache.compile(composite, structuralHash));
+        return composite;
+    }
+
+    /**
+     * @return the structural hash of the description, in hexadecimal.
+     */
+    public String getStructuralHash() {
+        return structuralHash;
+    }
+
+    /**
+     * @return a new composite filter for the graph of the given index.
+     */
+    private CompositeFilter build(int index) throws FilterException {
+        Graph graph = graphs.get(index);
+        CompositeFilter composite = new CompositeFilter(graph.nbInputs,
+                graph.nbOutputs);
+
+        Filter[] filters = new Filter[graph.blocks.size()];
+        for (int b = 0; b < filters.length; b++) {
+            Block block = graph.blocks.get(b);
+            filters[b] = block.type == null ? build(block.graph)
+                    : block.type.create(block.parameters);
+            composite.addBlock(filters[b]);
+        }
+
+        for (Connection connection : graph.connections) {
+            if (connection.source < 0) {
+                composite.connectInputToBlock(connection.sourcePort,
+                        filters[connection.target], connection.targetPort);
+            } else if (connection.target < 0) {
+                composite.connectBlockToOutput(filters[connection.source],
+                        connection.sourcePort, connection.targetPort);
+            } else {
+                composite.connectBlockToBlock(filters[connection.source],
+                        connection.sourcePort, filters[connection.target],
+                        connection.targetPort);
+            }
+        }
+
+        if (composite.isInvalid()) {
+            throw new FilterException("Graph " + graph.name + " is missing "
+                    + "connections.");
+        }
+        return composite;
+    }
+
+    /**
+     * @return the structural hash of the given graphs.
+     */
+    private static String hashOf(List<Graph> graphs) throws FilterException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(graphs.size());
+            for (Graph graph : graphs) {
+                out.writeInt(graph.nbInputs);
+                out.writeInt(graph.nbOutputs);
+                out.writeInt(graph.blocks.size());
+                for (Block block : graph.blocks) {
+                    out.writeInt(block.type == null ? -1
+                            : block.type.ordinal());
+                    out.writeInt(block.graph);
+                    out.writeInt(block.parameters.length);
+                    for (double parameter : block.parameters) {
+                        out.writeDouble(parameter);
+                    }
+                }
+                out.writeInt(graph.connections.size());
+                for (Connection connection : graph.connections) {
+                    out.writeInt(connection.source);
+                    out.writeInt(connection.sourcePort);
+                    out.writeInt(connection.target);
+                    out.writeInt(connection.targetPort);
+                }
+            }
+        } catch (IOException e) {
+            throw new FilterException("Cannot hash the description: "
+                    + e.getMessage());
+        }
+
+        // Two 64 bits FNV-1a like hashes with different primes, mixed at
+        // the end: 128 bits are plenty for a cache key, and unlike message
+        // digests they need no security provider to be loaded at startup.
+        long first = 0xCBF29CE484222325L;
+        long second = 0x84222325CBF29CE4L;
+        for (byte b : bytes.toByteArray()) {
+            first = (first ^ (b & 0xFF)) * 0x100000001B3L;
+            second = (second ^ (b & 0xFF)) * 0x9E3779B97F4A7C15L;
+        }
+
+        StringBuilder hash = new StringBuilder();
+        for (long value : new long[]{mix(first), mix(second)}) {
+            for (int shift = 60; shift >= 0; shift -= 4) {
+                hash.append(Character.forDigit(
+                        (int) (value >>> shift) & 0xF, 16));
+            }
+        }
+        return hash.toString();
+    }
+
+    /**
+     * @return the given value with its bits mixed, as by SplitMix64.
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+
+    /**
+     * @return an exception describing an error of the current line.
+     */
+    private static FilterException error(String message) {
+        return new FilterException("Invalid description, " + message + ".");
+    }
+
+    /**
+     * Checks the amount of tokens of a line.
+     */
+    private static void expect(String[] tokens, int length)
+            throws FilterException {
+        if (tokens.length != length) {
+            throw error("expected " + length + " words");
+        }
+    }
+
+    /**
+     * @return the amount given by a token, which must not be negative.
+     */
+    private static int count(String token) throws FilterException {
+        try {
+            int count = Integer.parseInt(token);
+            if (count >= 0) {
+                return count;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        throw error("invalid amount " + token);
+    }
+
+    /**
+     * Types of the blocks of the library, with their amount of parameters.
+     */
+    private enum Type {
+        GAIN("gain", 1, 1),
+        DELAY("delay", 1, 1),
+        ADD("add", 0, 2),
+        WEIGHTED_ADD("weighted-add", 2, 2),
+        ECHO("echo", 2, 1),
+        ALL_PASS("allpass", 2, 1),
+        LOW_PASS("lowpass", 2, 1),
+        REVERB("reverb", 0, 1);
+
+        private final String keyword;
+
+        private final int nbParameters;
+
+        private final int nbInputs;
+
+        Type(String keyword, int nbParameters, int nbInputs) {
+            this.keyword = keyword;
+            this.nbParameters = nbParameters;
+            this.nbInputs = nbInputs;
+        }
+
+        /**
+         * @return the type of the given keyword, null if none.
+         */
+        private static Type of(String keyword) {
+            for (Type type : values()) {
+                if (type.keyword.equals(keyword)) {
+                    return type;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return whether the given parameter is a delay, which must be a
+         *         positive integer.
+         */
+        private boolean isDelay(int parameter) {
+            return this == DELAY ? parameter == 0
+                    : nbParameters == 2 && this != WEIGHTED_ADD
+                    && parameter == 1;
+        }
+
+        /**
+         * @return a new filter of this type.
+         */
+        private Filter create(double[] parameters) {
+            switch (this) {
+                case GAIN:
+                    return new GainFilter(parameters[0]);
+                case DELAY:
+                    return new DelayFilter((int) parameters[0]);
+                case ADD:
+                    return new AdditionFilter();
+                case WEIGHTED_ADD:
+                    return new WeightedAdditionFilter(parameters[0],
+                            parameters[1]);
+                case ECHO:
+                    return new EchoFilter(parameters[0], (int) parameters[1]);
+                case ALL_PASS:
+                    return new AllPassFilter(parameters[0],
+                            (int) parameters[1]);
+                case LOW_PASS:
+                    return new LowPassFilter(parameters[0],
+                            (int) parameters[1]);
+                default:
+                    return new ReverberatorFilter();
+            }
+        }
+    }
+
+    /**
+     * Graph of the description.
+     */
+    private static final class Graph {
+
+        private final String name;
+
+        private final int nbInputs;
+
+        private final int nbOutputs;
+
+        private final List<Block> blocks = new ArrayList<>();
+
+        private final Map<String, Integer> blockIndices = new HashMap<>();
+
+        private final List<Connection> connections = new ArrayList<>();
+
+        private Graph(String name, int nbInputs, int nbOutputs) {
+            this.name = name;
+            this.nbInputs = nbInputs;
+            this.nbOutputs = nbOutputs;
+        }
+
+        /**
+         * Adds the block declared by a line, of a type of the library or of
+         * a graph defined above.
+         */
+        private void addBlock(String[] tokens, List<Graph> graphs,
+                              Map<String, Integer> graphIndices)
+                throws FilterException {
+            String name = tokens[0];
+            if (name.equals("in") || name.equals("out")
+                    || blockIndices.containsKey(name)) {
+                throw error("duplicate block name " + name);
+            }
+
+            Type type = Type.of(tokens[2]);
+            int graph = -1;
+            int nbParameters = 0;
+            if (type != null) {
+                nbParameters = type.nbParameters;
+            } else if (graphIndices.containsKey(tokens[2])) {
+                graph = graphIndices.get(tokens[2]);
+            } else {
+                throw error("unknown block type " + tokens[2]);
+            }
+            expect(tokens, 3 + nbParameters);
+
+            double[] parameters = new double[nbParameters];
+            for (int p = 0; p < nbParameters; p++) {
+                String token = tokens[3 + p];
+                if (type.isDelay(p)) {
+                    parameters[p] = count(token);
+                    if (parameters[p] == 0) {
+                        throw error("delays must be positive");
+                    }
+                } else {
+                    try {
+                        parameters[p] = Double.parseDouble(token);
+                    } catch (NumberFormatException e) {
+                        throw error("invalid number " + token);
+                    }
+                }
+            }
+
+            int nbInputs = type != null ? type.nbInputs
+                    : graphs.get(graph).nbInputs;
+            int nbOutputs = type != null ? 1 : graphs.get(graph).nbOutputs;
+            blockIndices.put(name, blocks.size());
+            blocks.add(new Block(type, graph, parameters, nbInputs,
+                    nbOutputs));
+        }
+
+        /**
+         * Adds the connection of a source port to a target port.
+         */
+        private void connect(String source, String target)
+                throws FilterException {
+            int[] from = portOf(source, "in", nbInputs, false);
+            int[] to = portOf(target, "out", nbOutputs, true);
+            if (from[0] < 0 && to[0] < 0) {
+                throw error("an input cannot be connected to an output");
+            }
+            for (Connection connection : connections) {
+                // Composite filters keep one link between two blocks.
+                if (connection.source == from[0]
+                        && connection.target == to[0]) {
+                    throw error("a block cannot feed the same block twice");
+                }
+            }
+            connections.add(new Connection(from[0], from[1], to[0], to[1]));
+        }
+
+        /**
+         * @return the block, -1 for the graph itself, and the index of a
+         *         port written as {@code name} or {@code name.index}.
+         */
+        private int[] portOf(String port, String self, int selfPorts,
+                             boolean input) throws FilterException {
+            int dot = port.lastIndexOf('.');
+            String name = dot < 0 ? port : port.substring(0, dot);
+            int index = dot < 0 ? 0 : count(port.substring(dot + 1));
+
+            int block;
+            int ports;
+            if (name.equals(self)) {
+                block = -1;
+                ports = selfPorts;
+            } else if (blockIndices.containsKey(name)) {
+                block = blockIndices.get(name);
+                ports = input ? blocks.get(block).nbInputs
+                        : blocks.get(block).nbOutputs;
+            } else {
+                throw error("unknown port " + port);
+            }
+
+            if (index >= ports) {
+                throw error("invalid port " + port);
+            }
+            return new int[]{block, index};
+        }
+    }
+
+    /**
+     * Block of a graph of the description.
+     */
+    private static final class Block {
+
+        /**
+         * The type of the block, null if it is a graph of the description.
+         */
+        private final Type type;
+
+        /**
+         * The index of the graph of the block, -1 if it has a type.
+         */
+        private final int graph;
+
+        private final double[] parameters;
+
+        private final int nbInputs;
+
+        private final int nbOutputs;
+
+        private Block(Type type, int graph, double[] parameters, int nbInputs,
+                      int nbOutputs) {
+            this.type = type;
+            this.graph = graph;
+            this.parameters = parameters;
+            this.nbInputs = nbInputs;
+            this.nbOutputs = nbOutputs;
+        }
+    }
+
+    /**
+     * Connection of a graph of the description.
+     */
+    private static final class Connection {
+
+        /**
+         * The block read, -1 for an input of the graph.
+         */
+        private final int source;
+
+        private final int sourcePort;
+
+        /**
+         * The block fed, -1 for an output of the graph.
+         */
+        private final int target;
+
+        private final int targetPort;
+
+        private Connection(int source, int sourcePort, int target,
+                           int targetPort) {
+            this.source = source;
+            this.sourcePort = sourcePort;
+            this.target = target;
+            this.targetPort = targetPort;
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package be.isach.filterlib.io;
+
+import be.isach.filterlib.filters.BlockFilter;
+import be.isach.filterlib.filters.CopyableFilter;
+import be.isach.filterlib.util.BlockKernels;
+import be.uliege.montefiore.oop.audio.AudioSequenceException;
+import be.uliege.montefiore.oop.audio.Filter;
+import be.uliege.montefiore.oop.audio.FilterException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Random;
+
+/**
+ * Filters live audio, such as a pipe or the standard input, period by
+ * period, within the time each period lasts.
+ * <p>
+ * The audio is raw 16 bits little endian PCM, its channels interleaved, as
+ * written by most capture tools. Periods of a fixed amount of frames are
+ * read, filtered, and written as soon as they are complete, each channel by
+ * its own copy of the filter. Every buffer is allocated once, so that
+ * filtering a period allocates nothing as long as the filter does not.
+ * </p>
+ * <p>
+ * The time spent on each period, from the moment it is read to the moment
+ * it is written, is compared to its duration, its budget: a period taking
+ * longer misses its deadline. Times are counted in a histogram of fixed
+ * size, whatever the length of the stream, from which percentiles and
+ * jitter are taken. Before streaming, the filter is run on noise for a few
+ * periods, and the render is rejected if it does not fit the budget: a
+ * larger period then gives each period more time, at the cost of latency.
+ * </p>
+ */
+public class RealTimeStreamer {
+
+    /**
+     * Default amount of frames of a period.
+     */
+    public static final int DEFAULT_PERIOD_SIZE = 256;
+
+    /**
+     * Amount of periods run before streaming, the first half of them
+     * warming the filter up.
+     */
+    private static final int CALIBRATION_PERIODS = 2048;
+
+    /**
+     * Fraction of the calibration periods that must fit the budget.
+     */
+    private static final double CALIBRATION_PERCENTILE = 0.99;
+
+    /**
+     * Amount of histogram buckets per budget.
+     */
+    private static final int BUCKETS_PER_BUDGET = 100;
+
+    /**
+     * Amount of budgets covered by the histogram. Longer times are only
+     * counted in the last bucket.
+     */
+    private static final int HISTOGRAM_BUDGETS = 10;
+
+    /**
+     * Filter of each channel.
+     */
+    private final Filter[] filters;
+
+    private final int nbChannels;
+
+    private final int sampleRate;
+
+    /**
+     * Amount of frames of a period.
+     */
+    private final int periodSize;
+
+    /**
+     * Duration of a period, in nanoseconds.
+     */
+    private final long budget;
+
+    /**
+     * Bytes of a period, read and then written in place.
+     */
+    private final byte[] bytes;
+
+    /**
+     * View of the bytes as 16 bits samples.
+     */
+    private final ShortBuffer shorts;
+
+    /**
+     * Interleaved 16 bits samples of a period.
+     */
+    private final short[] samples;
+
+    /**
+     * Frames of a period, as the single input buffer of each channel.
+     */
+    private final double[][][] input;
+
+    /**
+     * Filtered frames of a period, as the single output buffer of each
+     * channel.
+     */
+    private final double[][][] output;
+
+    /**
+     * Initializes a streamer.
+     *
+     * @param filter     The filter to apply, with one input and one output.
+     *                   It is used for the first channel, and copied for the
+     *                   others.
+     * @param nbChannels The amount of interleaved channels of the audio.
+     * @param sampleRate The amount of frames per second of the audio.
+     * @param periodSize The amount of frames of a period.
+     * @throws FilterException if the filter cannot be copied, or if an
+     *                         amount is not positive.
+     */
+    public RealTimeStreamer(Filter filter, int nbChannels, int sampleRate,
+                            int periodSize) throws FilterException {
+        if (filter.nbInputs() != 1 || filter.nbOutputs() != 1) {
+            throw new FilterException("Only filters with one input and one " +
+                    "output can be applied to audio streams.");
+        }
+        if (nbChannels <= 0 || sampleRate <= 0 || periodSize <= 0) {
+            throw new FilterException("Channels, sample rate and period " +
+                    "size must be positive.");
+        }
+
+        this.filters = new Filter[nbChannels];
+        this.filters[0] = filter;
+        for (int c = 1; c < nbChannels; c++) {
+            filters[c] = CopyableFilter.copy(filter);
+        }
+        this.nbChannels = nbChannels;
+        this.sampleRate = sampleRate;
+        this.periodSize = periodSize;
+        this.budget = Math.max(1, periodSize * 1_000_000_000L / sampleRate);
+
+        int size = periodSize * nbChannels;
+        this.bytes = new byte[size * WavFormat.BYTES_PER_SAMPLE];
+        this.shorts = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN)
+                .asShortBuffer();
+        this.samples = new short[size];
+        this.input = new double[nbChannels][1][periodSize];
+        this.output = new double[nbChannels][1][periodSize];
+    }
+
+    /**
+     * Runs the filters on noise for a few periods, then resets them.
+     *
+     * @return the times of the periods run once the filters warmed up.
+     * @throws FilterException if the filters fail, or cannot filter a period
+     *                         within its budget.
+     */
+    public Report calibrate() throws FilterException {
+        Random random = new Random(42);
+        for (double[][] channel : input) {
+            for (int n = 0; n < periodSize; n++) {
+                channel[0][n] = (random.nextDouble() * 2 - 1)
+                        * Short.MAX_VALUE;
+            }
+        }
+
+        Timings timings = new Timings(budget);
+        for (int p = 0; p < CALIBRATION_PERIODS; p++) {
+            long start = System.nanoTime();
+            for (int c = 0; c < nbChannels; c++) {
+                filter(c, periodSize);
+            }
+            if (p >= CALIBRATION_PERIODS / 2) {
+                timings.add(System.nanoTime() - start, periodSize);
+            }
+        }
+        for (Filter filter : filters) {
+            filter.reset();
+        }
+
+        Report report = new Report(timings, sampleRate);
+        long time = report.getPercentile(CALIBRATION_PERCENTILE);
+        if (time > budget) {
+            throw new FilterException("The filter cannot meet the period " +
+                    "budget: " + time + " ns per period of " + periodSize
+                    + " frames, for " + budget + " ns available.");
+        }
+        return report;
+    }
+
+    /**
+     * Filters a stream until it ends, after checking that the filters fit
+     * the budget. A last incomplete period is filtered too, and an
+     * incomplete frame is dropped.
+     *
+     * @param in  The raw audio to filter.
+     * @param out Receives the filtered audio, flushed after each period.
+     * @return the times of the periods of the stream.
+     * @throws FilterException        if the filters fail, or cannot filter
+     *                                a period within its budget.
+     * @throws AudioSequenceException if the stream cannot be read or
+     *                                written.
+     */
+    public Report run(InputStream in, OutputStream out)
+            throws FilterException, AudioSequenceException {
+        calibrate();
+
+        Timings timings = new Timings(budget);
+        try {
+            int frames;
+            while ((frames = readPeriod(in)) > 0) {
+                long start = System.nanoTime();
+                int size = frames * nbChannels;
+                shorts.clear();
+                shorts.get(samples, 0, size);
+                for (int c = 0; c < nbChannels; c++) {
+                    BlockKernels.get().toDoubles(samples, c, nbChannels,
+                            input[c][0], 0, frames);
+                    filter(c, frames);
+                    BlockKernels.get().toShorts(output[c][0], 0, samples, c,
+                            nbChannels, frames);
+                }
+                shorts.clear();
+                shorts.put(samples, 0, size);
+                out.write(bytes, 0, size * WavFormat.BYTES_PER_SAMPLE);
+                out.flush();
+                timings.add(System.nanoTime() - start, frames);
+            }
+        } catch (IOException e) {
+            throw new AudioSequenceException("An I/O error occurred while " +
+                    "streaming: " + e.getMessage());
+        }
+        return new Report(timings, sampleRate);
+    }
+
+    /**
+     * Filters the frames of a period of one channel.
+     */
+    private void filter(int channel, int frames) throws FilterException {
+        BlockFilter.computeBlock(filters[channel], input[channel],
+                output[channel], frames);
+    }
+
+    /**
+     * Reads the bytes of a period, waiting for the stream until the period
+     * is complete or the stream ends.
+     *
+     * @return the amount of complete frames read.
+     */
+    private int readPeriod(InputStream in) throws IOException {
+        int done = 0;
+        while (done < bytes.length) {
+            int read = in.read(bytes, done, bytes.length - done);
+            if (read < 0) break;
+            done += read;
+        }
+        return done / (nbChannels * WavFormat.BYTES_PER_SAMPLE);
+    }
+
+    /**
+     * @return the amount of frames of a period.
+     */
+    public int getPeriodSize() {
+        return periodSize;
+    }
+
+    /**
+     * @return the duration of a period, in nanoseconds.
+     */
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Histogram of the times spent on periods, in buckets of a hundredth of
+     * the budget.
+     */
+    private static class Timings {
+
+        private final long budget;
+
+        /**
+         * Amount of periods per bucket, the last one counting every time
+         * beyond the range of the histogram.
+         */
+        private final long[] buckets;
+
+        private long periods;
+
+        private long frames;
+
+        private long misses;
+
+        private long total;
+
+        private long max;
+
+        private Timings(long budget) {
+            this.budget = budget;
+            this.buckets = new long[BUCKETS_PER_BUDGET * HISTOGRAM_BUDGETS
+                    + 1];
+        }
+
+        /**
+         * Counts the time spent on a period.
+         */
+        private void add(long nanos, int periodFrames) {
+            int bucket = (int) Math.min(buckets.length - 1,
+                    nanos * BUCKETS_PER_BUDGET / budget);
+            buckets[bucket]++;
+            periods++;
+            frames += periodFrames;
+            total += nanos;
+            max = Math.max(max, nanos);
+            if (nanos > budget) {
+                misses++;
+            }
+        }
+    }
+
+    /**
+     * Times spent on the periods of a stream.
+     */
+    public static class Report {
+
+        private final Timings timings;
+
+        private final int sampleRate;
+
+        private Report(Timings timings, int sampleRate) {
+            this.timings = timings;
+            this.sampleRate = sampleRate;
+        }
+
+        /**
+         * @return the amount of periods filtered.
+         */
+        public long getPeriods() {
+            return timings.periods;
+        }
+
+        /**
+         * @return the amount of frames filtered.
+         */
+        public long getFrames() {
+            return timings.frames;
+        }
+
+        /**
+         * @return the amount of periods that took longer than the budget.
+         */
+        public long getDeadlineMisses() {
+            return timings.misses;
+        }
+
+        /**
+         * @return the duration of a period, in nanoseconds.
+         */
+        public long getBudget() {
+            return timings.budget;
+        }
+
+        /**
+         * @return the average time spent on a period, in nanoseconds.
+         */
+        public long getMeanTime() {
+            return timings.periods == 0 ? 0
+                    : timings.total / timings.periods;
+        }
+
+        /**
+         * @return the longest time spent on a period, in nanoseconds.
+         */
+        public long getMaxTime() {
+            return timings.max;
+        }
+
+        /**
+         * @param fraction The fraction of periods, between 0 and 1.
+         * @return the time within which that fraction of the periods were
+         *         filtered, in nanoseconds, rounded up to a hundredth of the
+         *         budget.
+         */
+        public long getPercentile(double fraction) {
+            long rank = (long) Math.ceil(fraction * timings.periods);
+            long counted = 0;
+            long[] buckets = timings.buckets;
+            for (int b = 0; b < buckets.length - 1; b++) {
+                counted += buckets[b];
+                if (counted >= Math.max(1, rank)) {
+                    return Math.min(timings.max,
+                            (b + 1) * timings.budget / BUCKETS_PER_BUDGET);
+                }
+            }
+            return timings.max;
+        }
+
+        /**
+         * @param fraction The fraction of periods, between 0 and 1.
+         * @return how much longer than the median period that fraction of the
+         *         periods took at most, in nanoseconds.
+         */
+        public long getJitter(double fraction) {
+            return Math.max(0, getPercentile(fraction) - getPercentile(0.5));
+        }
+
+        /**
+         * @return the average fraction of the budget spent filtering.
+         */
+        public double getLoad() {
+            return timings.frames == 0 ? 0
+                    : timings.total * (double) sampleRate / 1e9
+                    / timings.frames;
+        }
+
+        /**
+         * @return a summary of the report, in microseconds.
+         */
+        @Override
+        public String toString() {
+            return String.format("%d periods, %d frames, %d deadline misses"
+                            + " (budget %.1f us, load %.1f%%)%n"
+                            + "time: mean %.1f us, p50 %.1f us, p99 %.1f us,"
+                            + " p99.9 %.1f us, max %.1f us%n"
+                            + "jitter: p99 %.1f us, p99.9 %.1f us",
+                    getPeriods(), getFrames(), getDeadlineMisses(),
+                    getBudget() / 1e3, getLoad() * 100,
+                    getMeanTime() / 1e3, getPercentile(0.5) / 1e3,
+                    getPercentile(0.99) / 1e3, getPercentile(0.999) / 1e3,
+                    getMaxTime() / 1e3, getJitter(0.99) / 1e3,
+                    getJitter(0.999) / 1e3);
+        }
+    }
+}
@@ -0,0 +1,625 @@
+package be.isach.filterlib.io;
+
+import be.isach.filterlib.engine.FloatFilter;
+import be.isach.filterlib.engine.MultiLaneFilter;
+import be.isach.filterlib.filters.BlockFilter;
+import be.isach.filterlib.filters.CopyableFilter;
+import be.isach.filterlib.filters.StatefulFilter;
+import be.isach.filterlib.io.CheckpointIndex.Checkpoint;
+import be.uliege.montefiore.oop.audio.AudioSequenceException;
+import be.uliege.montefiore.oop.audio.Filter;
+import be.uliege.montefiore.oop.audio.FilterException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Applies filters to WAV files chunk by chunk, as a replacement of
+ * {@code TestAudioFilter.applyFilter} whose memory does not depend on the
+ * length of the files.
+ * <p>
+ * Like the audio library, each channel is filtered on its own, from the
+ * first frame to the last, and the filter is reset after each channel. The
+ * input file is thus read once per channel, and results are written as soon
+ * as they are computed, so that only one chunk of audio is held in memory.
+ * The written files are identical to the ones of the audio library.
+ * </p>
+ * <p>
+ * Filters computed in single precision, see {@link FloatFilter}, read and
+ * write 16 bits samples directly, without going through doubles. A
+ * {@link MultiLaneFilter} with one lane per channel filters every channel in
+ * a single pass over the interleaved frames, reading the input only once.
+ * </p>
+ * <p>
+ * Channels can also be filtered at the same time, each on its own thread
+ * with its own copy of the filter. The input is then read only once, and the
+ * written file is the same.
+ * </p>
+ * <p>
+ * Filters whose state can be saved can also be applied with checkpoints:
+ * snapshots of the filter taken at regular intervals of the audio, from
+ * which the render can be resumed after a failure, or started again from
+ * the middle of the file.
+ * </p>
+ */
+public class StreamingAudioFilter {
+
+    /**
+     * Default amount of frames processed at a time.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 8192;
+
+    /**
+     * Applies a filter to a WAV file, reading it through its file channel.
+     *
+     * @param filter     The filter to apply, with one input and one output.
+     * @param inputFile  The path of the input file.
+     * @param outputFile The path of the output file, to which the .wav
+     *                   extension is added if missing.
+     * @throws FilterException        if the filter fails.
+     * @throws AudioSequenceException if a file cannot be read or written.
+     */
+    public static void applyFilter(Filter filter, String inputFile,
+                                   String outputFile)
+            throws FilterException, AudioSequenceException {
+        applyFilter(filter, inputFile, outputFile, false, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Applies a filter to a WAV file.
+     *
+     * @param filter       The filter to apply, with one input and one output,
+     *                     or a {@link MultiLaneFilter} with one input and one
+     *                     output per lane and one lane per channel.
+     * @param inputFile    The path of the input file.
+     * @param outputFile   The path of the output file, to which the .wav
+     *                     extension is added if missing.
+     * @param memoryMapped Whether the input file should be memory mapped.
+     * @param chunkSize    The amount of frames processed at a time.
+     * @throws FilterException        if the filter fails, if it does not
+     *                                have one lane per channel, or if the
+     *                                chunk size is not positive.
+     * @throws AudioSequenceException if a file cannot be read or written.
+     */
+    public static void applyFilter(Filter filter, String inputFile,
+                                   String outputFile, boolean memoryMapped,
+                                   int chunkSize)
+            throws FilterException, AudioSequenceException {
+        if (filter instanceof MultiLaneFilter) {
+            int lanes = ((MultiLaneFilter) filter).nbLanes();
+            if (filter.nbInputs() != lanes || filter.nbOutputs() != lanes) {
+                throw new FilterException("Only filters with one input and " +
+                        "one output per lane can be applied to audio files.");
+            }
+        } else if (filter.nbInputs() != 1 || filter.nbOutputs() != 1) {
+            throw new FilterException("Only filters with one input and one " +
+                    "output can be applied to audio files.");
+        }
+        if (chunkSize <= 0) {
+            throw new FilterException("Chunk size must be positive.");
+        }
+
+        if (!outputFile.endsWith(".wav") && !outputFile.endsWith(".WAV")) {
+            outputFile += ".wav";
+        }
+
+        WavReader reader = new WavReader(inputFile, memoryMapped);
+        try {
+            WavWriter writer = new WavWriter(outputFile, reader.nbChannels(),
+                    reader.getSampleRate());
+            try {
+                filterChannels(filter, reader, writer, chunkSize);
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            throw new AudioSequenceException("An I/O error occurred while " +
+                    "writing the output file: " + e.getMessage());
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Applies a filter to a WAV file, filtering each channel on its own
+     * thread, and reading the input through its file channel.
+     *
+     * @param filter     The filter to apply, with one input and one output.
+     *                   It is copied for each channel, and left untouched.
+     * @param inputFile  The path of the input file.
+     * @param outputFile The path of the output file, to which the .wav
+     *                   extension is added if missing.
+     * @throws FilterException        if the filter cannot be copied, or
+     *                                fails.
+     * @throws AudioSequenceException if a file cannot be read or written.
+     */
+    public static void applyFilterInParallel(Filter filter, String inputFile,
+                                             String outputFile)
+            throws FilterException, AudioSequenceException {
+        applyFilterInParallel(filter, inputFile, outputFile, false,
+                DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Applies a filter to a WAV file, filtering each channel on its own
+     * thread.
+     *
+     * @param filter       The filter to apply, with one input and one output.
+     *                     It is copied for each channel, and left untouched.
+     * @param inputFile    The path of the input file.
+     * @param outputFile   The path of the output file, to which the .wav
+     *                     extension is added if missing.
+     * @param memoryMapped Whether the input file should be memory mapped.
+     * @param chunkSize    The amount of frames processed at a time.
+     * @throws FilterException        if the filter cannot be copied, or
+     *                                fails, or if the chunk size is not
+     *                                positive.
+     * @throws AudioSequenceException if a file cannot be read or written.
+     */
+    public static void applyFilterInParallel(Filter filter, String inputFile,
+                                             String outputFile,
+                                             boolean memoryMapped,
+                                             int chunkSize)
+            throws FilterException, AudioSequenceException {
+        if (filter.nbInputs() != 1 || filter.nbOutputs() != 1) {
+            throw new FilterException("Only filters with one input and one " +
+                    "output can be applied to audio files.");
+        }
+        if (chunkSize <= 0) {
+            throw new FilterException("Chunk size must be positive.");
+        }
+
+        if (!outputFile.endsWith(".wav") && !outputFile.endsWith(".WAV")) {
+            outputFile += ".wav";
+        }
+
+        WavReader reader = new WavReader(inputFile, memoryMapped);
+        try {
+            Filter[] copies = new Filter[reader.nbChannels()];
+            for (int c = 0; c < copies.length; c++) {
+                copies[c] = CopyableFilter.copy(filter);
+            }
+
+            WavWriter writer = new WavWriter(outputFile, reader.nbChannels(),
+                    reader.getSampleRate());
+            try {
+                new ParallelRender(copies, reader, writer, chunkSize).run();
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            throw new AudioSequenceException("An I/O error occurred while " +
+                    "writing the output file: " + e.getMessage());
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Applies a filter to a WAV file, taking snapshots of the filter at
+     * regular intervals of the audio into a checkpoint index, which is
+     * replaced if it exists.
+     *
+     * @param filter     The filter to apply, with one input and one output,
+     *                   whose state can be saved.
+     * @param inputFile  The path of the input file.
+     * @param outputFile The path of the output file, to which the .wav
+     *                   extension is added if missing.
+     * @param indexFile  The path of the checkpoint index.
+     * @param interval   The duration of audio between two checkpoints, in
+     *                   seconds.
+     * @throws FilterException        if the filter fails, or if its state
+     *                                cannot be saved.
+     * @throws AudioSequenceException if a file cannot be read or written.
+     */
+    public static void applyFilterWithCheckpoints(Filter filter,
+                                                  String inputFile,
+                                                  String outputFile,
+                                                  String indexFile,
+                                                  double interval)
+            throws FilterException, AudioSequenceException {
+        applyFilterWithCheckpoints(filter, inputFile, outputFile, indexFile,
+                interval, false, 0);
+    }
+
+    /**
+     * Resumes a render made by
+     * {@link #applyFilterWithCheckpoints(Filter, String, String, String,
+     * double)}. Each channel is filtered again from its last checkpoint at
+     * or before the given time, keeping the frames of the output file
+     * before it. New checkpoints are added to the index.
+     *
+     * @param filter     The filter to apply, with the structure and
+     *                   parameters of the one that took the checkpoints.
+     * @param inputFile  The path of the input file.
+     * @param outputFile The path of the output file, to which the .wav
+     *                   extension is added if missing.
+     * @param indexFile  The path of the checkpoint index.
+     * @param from       The time to filter again from, in seconds, or
+     *                   {@link Double#POSITIVE_INFINITY} to resume where
+     *                   the render stopped.
+     * @param interval   The duration of audio between two checkpoints, in
+     *                   seconds.
+     * @throws FilterException        if the filter fails, or if a snapshot
+     *                                does not match it.
+     * @throws AudioSequenceException if a file cannot be read or written.
+     */
+    public static void resumeFilter(Filter filter, String inputFile,
+                                    String outputFile, String indexFile,
+                                    double from, double interval)
+            throws FilterException, AudioSequenceException {
+        applyFilterWithCheckpoints(filter, inputFile, outputFile, indexFile,
+                interval, true, from);
+    }
+
+    /**
+     * Applies a filter to a WAV file with checkpoints, from the start or
+     * from the checkpoints of an index.
+     */
+    private static void applyFilterWithCheckpoints(Filter filter,
+                                                   String inputFile,
+                                                   String outputFile,
+                                                   String indexFile,
+                                                   double interval,
+                                                   boolean resume,
+                                                   double from)
+            throws FilterException, AudioSequenceException {
+        if (filter.nbInputs() != 1 || filter.nbOutputs() != 1) {
+            throw new FilterException("Only filters with one input and one " +
+                    "output can be applied to audio files.");
+        }
+        if (!(filter instanceof StatefulFilter)) {
+            throw new FilterException("Filter state cannot be saved: "
+                    + filter.getClass().getName());
+        }
+        if (!(interval > 0)) {
+            throw new FilterException("Checkpoint interval must be " +
+                    "positive.");
+        }
+
+        if (!outputFile.endsWith(".wav") && !outputFile.endsWith(".WAV")) {
+            outputFile += ".wav";
+        }
+
+        List<Checkpoint> checkpoints = resume
+                ? CheckpointIndex.read(indexFile) : Collections.emptyList();
+
+        WavReader reader = new WavReader(inputFile, false);
+        try {
+            int sampleRate = reader.getSampleRate();
+            long intervalFrames = Math.max(1,
+                    Math.round(interval * sampleRate));
+            long target = from == Double.POSITIVE_INFINITY ? Long.MAX_VALUE
+                    : Math.max(0, (long) Math.floor(from * sampleRate));
+
+            WavWriter writer = new WavWriter(outputFile, reader.nbChannels(),
+                    sampleRate, resume);
+            try (CheckpointIndex index = new CheckpointIndex(indexFile,
+                    resume)) {
+                filterChannels(filter, reader, writer, DEFAULT_CHUNK_SIZE,
+                        index, intervalFrames, checkpoints, target);
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            throw new AudioSequenceException("An I/O error occurred while " +
+                    "writing the output file: " + e.getMessage());
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Filters each channel of the reader into the writer, one after the
+     * other, starting each channel from its last checkpoint at or before
+     * the target frame, and adding a checkpoint every interval frames and
+     * at the end of each channel.
+     */
+    private static void filterChannels(Filter filter, WavReader reader,
+                                       WavWriter writer, int chunkSize,
+                                       CheckpointIndex index, long interval,
+                                       List<Checkpoint> checkpoints,
+                                       long target)
+            throws FilterException, AudioSequenceException {
+        double[][] frames = new double[reader.nbChannels()][chunkSize];
+        double[][] output = {new double[chunkSize]};
+
+        for (int c = 0; c < reader.nbChannels(); c++) {
+            double[][] input = {frames[c]};
+            long frame = 0;
+            long saved = -1;
+            Checkpoint start = CheckpointIndex.find(checkpoints, c, target);
+            if (start != null) {
+                StatefulFilter.restore(filter, start.getSnapshot());
+                frame = start.getFrame();
+                saved = frame;
+            }
+
+            // Chunks end on checkpoints, so that they are taken at exact
+            // multiples of the interval.
+            long next = (frame / interval + 1) * interval;
+            int read;
+            while ((read = reader.read(frame, frames,
+                    (int) Math.min(chunkSize, next - frame))) > 0) {
+                BlockFilter.computeBlock(filter, input, output, read);
+                writer.writeChannel(c, frame, output[0], read);
+                frame += read;
+
+                if (frame == next) {
+                    index.write(c, frame, StatefulFilter.snapshot(filter));
+                    saved = frame;
+                    next += interval;
+                }
+            }
+
+            // The last checkpoint of a channel marks it as done.
+            if (saved != frame) {
+                index.write(c, frame, StatefulFilter.snapshot(filter));
+            }
+            filter.reset();
+        }
+    }
+
+    /**
+     * Filters each channel of the reader into the writer, one after the
+     * other.
+     */
+    private static void filterChannels(Filter filter, WavReader reader,
+                                       WavWriter writer, int chunkSize)
+            throws FilterException, AudioSequenceException {
+        if (filter instanceof FloatFilter) {
+            filterChannels((FloatFilter) filter, reader, writer, chunkSize);
+            return;
+        }
+        if (filter instanceof MultiLaneFilter) {
+            filterLanes((MultiLaneFilter) filter, reader, writer, chunkSize);
+            return;
+        }
+
+        double[][] frames = new double[reader.nbChannels()][chunkSize];
+        double[][] output = {new double[chunkSize]};
+
+        for (int c = 0; c < reader.nbChannels(); c++) {
+            double[][] input = {frames[c]};
+            long frame = 0;
+            int read;
+            while ((read = reader.read(frame, frames, chunkSize)) > 0) {
+                BlockFilter.computeBlock(filter, input, output, read);
+                writer.writeChannel(c, frame, output[0], read);
+                frame += read;
+            }
+            filter.reset();
+        }
+    }
+
+    /**
+     * Filters each channel of the reader into the writer, one after the
+     * other, as 16 bits samples that are never converted to doubles.
+     */
+    private static void filterChannels(FloatFilter filter, WavReader reader,
+                                       WavWriter writer, int chunkSize)
+            throws FilterException, AudioSequenceException {
+        int nbChannels = reader.nbChannels();
+        short[] frames = new short[nbChannels * chunkSize];
+        short[] output = new short[chunkSize];
+
+        for (int c = 0; c < nbChannels; c++) {
+            long frame = 0;
+            int read;
+            while ((read = reader.read(frame, frames, chunkSize)) > 0) {
+                filter.computeBlock(frames, c, nbChannels, output, 0, 1,
+                        read);
+                writer.writeChannel(c, frame, output, read);
+                frame += read;
+            }
+            filter.reset();
+        }
+    }
+
+    /**
+     * Filters every channel of the reader into the writer at once, one lane
+     * per channel, as interleaved 16 bits samples.
+     */
+    private static void filterLanes(MultiLaneFilter filter, WavReader reader,
+                                    WavWriter writer, int chunkSize)
+            throws FilterException, AudioSequenceException {
+        if (filter.nbLanes() != reader.nbChannels()) {
+            throw new FilterException("Invalid number of lanes. Expected: "
+                    + reader.nbChannels() + ", Got: " + filter.nbLanes());
+        }
+
+        short[] frames = new short[reader.nbChannels() * chunkSize];
+        short[] output = new short[frames.length];
+
+        long frame = 0;
+        int read;
+        while ((read = reader.read(frame, frames, chunkSize)) > 0) {
+            filter.computeLanes(frames, output, read);
+            writer.write(frame, output, read);
+            frame += read;
+        }
+        filter.reset();
+    }
+
+    /**
+     * Filters every channel at the same time, one thread per channel.
+     * <p>
+     * Threads meet after each chunk: the last one to arrive writes the
+     * chunk just filtered and reads the next one, so that all file accesses
+     * happen on one thread at a time.
+     * </p>
+     */
+    private static class ParallelRender {
+
+        /**
+         * Filter of each channel.
+         */
+        private final Filter[] filters;
+
+        private final WavReader reader;
+
+        private final WavWriter writer;
+
+        /**
+         * Frames of the current chunk, one buffer per channel.
+         */
+        private final double[][] input;
+
+        /**
+         * Filtered frames of the current chunk, one buffer per channel.
+         */
+        private final double[][] output;
+
+        /**
+         * Barrier the threads meet at after each chunk.
+         */
+        private final CyclicBarrier barrier;
+
+        /**
+         * Index of the first frame of the current chunk.
+         */
+        private long frame;
+
+        /**
+         * Amount of frames of the current chunk, 0 once the audio ended.
+         */
+        private int read;
+
+        /**
+         * Error raised while reading or writing, if any.
+         */
+        private AudioSequenceException failure;
+
+        /**
+         * Whether a channel failed, so that every thread stops at the next
+         * chunk.
+         */
+        private volatile boolean stopped;
+
+        private ParallelRender(Filter[] filters, WavReader reader,
+                               WavWriter writer, int chunkSize) {
+            this.filters = filters;
+            this.reader = reader;
+            this.writer = writer;
+            this.input = new double[filters.length][chunkSize];
+            this.output = new double[filters.length][chunkSize];
+            this.barrier = new CyclicBarrier(filters.length, this::advance);
+        }
+
+        /**
+         * Writes the chunk just filtered, then reads the next one.
+         */
+        private void advance() {
+            if (stopped) {
+                read = 0;
+                return;
+            }
+
+            try {
+                if (read > 0) {
+                    writer.write(frame, output, read);
+                    frame += read;
+                }
+                read = reader.read(frame, input, input[0].length);
+            } catch (AudioSequenceException e) {
+                failure = e;
+                read = 0;
+            }
+        }
+
+        /**
+         * Filters every channel, and waits for all of them to end.
+         */
+        private void run() throws FilterException, AudioSequenceException {
+            advance();
+
+            ExecutorService executor =
+                    Executors.newFixedThreadPool(filters.length);
+            try {
+                List<Future<Void>> channels = new ArrayList<>();
+                for (int c = 0; c < filters.length; c++) {
+                    int channel = c;
+                    channels.add(executor.submit(() -> {
+                        filterChannel(channel);
+                        return null;
+                    }));
+                }
+
+                for (Future<Void> channel : channels) {
+                    channel.get();
+                }
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                if (e.getCause() instanceof FilterException) {
+                    throw (FilterException) e.getCause();
+                }
+                throw new FilterException("Filtering failed: "
+                        + e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new FilterException("Filtering was interrupted.");
+            } finally {
+                executor.shutdownNow();
+            }
+
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        /**
+         * Filters the chunks of one channel, until the audio ends. A channel
+         * that fails keeps meeting the other threads, so that all of them
+         * stop at the next chunk, even when the filter throws an error.
+         */
+        private void filterChannel(int channel) throws FilterException,
+                InterruptedException, BrokenBarrierException {
+            double[][] channelInput = {input[channel]};
+            double[][] channelOutput = {output[channel]};
+
+            Throwable error = null;
+            while (read > 0) {
+                if (error == null) {
+                    try {
+                        BlockFilter.computeBlock(filters[channel],
+                                channelInput, channelOutput, read);
+                    } catch (FilterException | Error e) {
+                        error = e;
+                        stopped = true;
+                    } catch (RuntimeException e) {
+                        error = new FilterException("Filtering failed: "
+                                + e);
+                        stopped = true;
+                    }
+                }
+                barrier.await();
+            }
+
+            if (error instanceof Error) {
+                throw (Error) error;
+            }
+            if (error != null) {
+                throw (FilterException) error;
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package be.isach.filterlib.io;
+
+/**
+ * Constants of the 16 bits PCM WAV files read and written by this package.
+ */
+final class WavFormat {
+
+    /**
+     * Identifier of the RIFF header, read as a little endian integer.
+     */
+    static final int RIFF = 0x46464952;
+
+    /**
+     * Identifier of the WAVE form type.
+     */
+    static final int WAVE = 0x45564157;
+
+    /**
+     * Identifier of the format chunk.
+     */
+    static final int FMT = 0x20746D66;
+
+    /**
+     * Identifier of the data chunk.
+     */
+    static final int DATA = 0x61746164;
+
+    /**
+     * Format tag of plain PCM audio.
+     */
+    static final int PCM = 1;
+
+    /**
+     * Format tag of extensible audio, which may hold PCM samples.
+     */
+    static final int EXTENSIBLE = 0xFFFE;
+
+    /**
+     * Size of a sample, in bits.
+     */
+    static final int BITS_PER_SAMPLE = 16;
+
+    /**
+     * Size of a sample, in bytes.
+     */
+    static final int BYTES_PER_SAMPLE = BITS_PER_SAMPLE / 8;
+
+    /**
+     * Size of the header written before the audio data, in bytes.
+     */
+    static final int HEADER_SIZE = 44;
+
+    /**
+     * Message of the error thrown for files that cannot be read.
+     */
+    static final String UNSUPPORTED =
+            "This type of audio file is not supported.";
+
+    private WavFormat() {
+    }
+}
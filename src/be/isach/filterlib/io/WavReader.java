@@ -0,0 +1,342 @@
+package be.isach.filterlib.io;
+
+import be.isach.filterlib.util.BlockKernels;
+import be.uliege.montefiore.oop.audio.AudioSequenceException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reader of 16 bits PCM WAV files, reading frames on demand instead of
+ * loading the whole file.
+ * <p>
+ * Frames are read at any position, into planar buffers of doubles, so that
+ * the same file can be read several times without keeping it in memory. The
+ * samples can either be read through the file channel, or from a memory
+ * mapping of the file, which lets the operating system page the file in.
+ * </p>
+ */
+public class WavReader implements Closeable {
+
+    /**
+     * Size of the memory mapped windows of the file, in bytes, before being
+     * rounded down to whole frames.
+     */
+    private static final long MAPPED_WINDOW_SIZE = 1L << 30;
+
+    /**
+     * Channel of the file.
+     */
+    private final FileChannel channel;
+
+    /**
+     * Amount of channels of the audio.
+     */
+    private final int nbChannels;
+
+    /**
+     * Sample rate of the audio, in frames per second.
+     */
+    private final int sampleRate;
+
+    /**
+     * Amount of frames of the audio.
+     */
+    private final long frameLength;
+
+    /**
+     * Position of the first frame in the file.
+     */
+    private final long dataOffset;
+
+    /**
+     * Memory mapped windows of the audio data, null if not memory mapped.
+     */
+    private final MappedByteBuffer[] windows;
+
+    /**
+     * Size of each memory mapped window, in bytes.
+     */
+    private final long windowSize;
+
+    /**
+     * Buffer the frames are read into, when not memory mapped.
+     */
+    private ByteBuffer buffer;
+
+    /**
+     * Interleaved samples of the frames being read.
+     */
+    private short[] samples;
+
+    /**
+     * Opens a WAV file.
+     *
+     * @param file         The path of the file.
+     * @param memoryMapped Whether the file should be memory mapped.
+     * @throws AudioSequenceException if the file cannot be read, or is not
+     *                                a 16 bits PCM WAV file.
+     */
+    public WavReader(String file, boolean memoryMapped)
+            throws AudioSequenceException {
+        try {
+            this.channel = FileChannel.open(Paths.get(file),
+                    StandardOpenOption.READ);
+        } catch (IOException e) {
+            throw new AudioSequenceException("An I/O error occurred while " +
+                    "reading the input file: " + e.getMessage());
+        }
+
+        try {
+            ByteBuffer header = ByteBuffer.allocate(12)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            readFully(header, 0);
+            if (header.getInt(0) != WavFormat.RIFF
+                    || header.getInt(8) != WavFormat.WAVE) {
+                throw new AudioSequenceException(WavFormat.UNSUPPORTED);
+            }
+
+            // Walk the chunks until the audio data, reading its format.
+            int channels = 0;
+            int rate = 0;
+            long dataSize;
+            long position = 12;
+            ByteBuffer chunk = ByteBuffer.allocate(8)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            while (true) {
+                chunk.clear();
+                if (!readFully(chunk, position)) {
+                    throw new AudioSequenceException(WavFormat.UNSUPPORTED);
+                }
+                int id = chunk.getInt(0);
+                long size = Integer.toUnsignedLong(chunk.getInt(4));
+                position += 8;
+
+                if (id == WavFormat.FMT) {
+                    ByteBuffer format = ByteBuffer.allocate(16)
+                            .order(ByteOrder.LITTLE_ENDIAN);
+                    if (size < 16 || !readFully(format, position)) {
+                        throw new AudioSequenceException(
+                                WavFormat.UNSUPPORTED);
+                    }
+                    int tag = format.getShort(0) & 0xFFFF;
+                    channels = format.getShort(2) & 0xFFFF;
+                    rate = format.getInt(4);
+                    int bits = format.getShort(14) & 0xFFFF;
+                    if ((tag != WavFormat.PCM && tag != WavFormat.EXTENSIBLE)
+                            || bits != WavFormat.BITS_PER_SAMPLE
+                            || channels == 0) {
+                        throw new AudioSequenceException(
+                                WavFormat.UNSUPPORTED);
+                    }
+                } else if (id == WavFormat.DATA) {
+                    if (channels == 0) {
+                        throw new AudioSequenceException(
+                                WavFormat.UNSUPPORTED);
+                    }
+                    // Trust the file over a data size that overruns it.
+                    dataSize = Math.min(size, channel.size() - position);
+                    break;
+                }
+                position += size + (size & 1);
+            }
+
+            this.nbChannels = channels;
+            this.sampleRate = rate;
+            this.dataOffset = position;
+            int frameSize = channels * WavFormat.BYTES_PER_SAMPLE;
+            this.frameLength = dataSize / frameSize;
+
+            if (memoryMapped) {
+                this.windowSize = MAPPED_WINDOW_SIZE / frameSize * frameSize;
+                long mappedSize = frameLength * frameSize;
+                this.windows = new MappedByteBuffer[
+                        (int) ((mappedSize + windowSize - 1) / windowSize)];
+                for (int i = 0; i < windows.length; i++) {
+                    long start = i * windowSize;
+                    windows[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                            dataOffset + start,
+                            Math.min(windowSize, mappedSize - start));
+                    windows[i].order(ByteOrder.LITTLE_ENDIAN);
+                }
+            } else {
+                this.windowSize = 0;
+                this.windows = null;
+            }
+        } catch (IOException e) {
+            closeQuietly();
+            throw new AudioSequenceException("An I/O error occurred while " +
+                    "reading the input file: " + e.getMessage());
+        } catch (AudioSequenceException e) {
+            closeQuietly();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads frames of the audio into planar buffers, as sample values.
+     *
+     * @param frame  The index of the first frame to read.
+     * @param output The buffers receiving the frames, one per channel.
+     * @param frames The amount of frames to read.
+     * @return the amount of frames read, less than requested at the end of
+     *         the audio.
+     * @throws AudioSequenceException if the file cannot be read.
+     */
+    public int read(long frame, double[][] output, int frames)
+            throws AudioSequenceException {
+        frames = (int) Math.max(0, Math.min(frames, frameLength - frame));
+
+        int done = 0;
+        while (done < frames) {
+            ShortBuffer source = samplesAt(frame + done, frames - done);
+            int size = source.remaining();
+            int count = size / nbChannels;
+            if (samples == null || samples.length < size) {
+                samples = new short[size];
+            }
+            source.get(samples, 0, size);
+            for (int c = 0; c < nbChannels; c++) {
+                BlockKernels.get().toDoubles(samples, c, nbChannels,
+                        output[c], done, count);
+            }
+            done += count;
+        }
+
+        return frames;
+    }
+
+    /**
+     * Reads frames of the audio as 16 bits samples, the channels of each
+     * frame being interleaved.
+     *
+     * @param frame  The index of the first frame to read.
+     * @param output The array receiving the samples.
+     * @param frames The amount of frames to read.
+     * @return the amount of frames read, less than requested at the end of
+     *         the audio.
+     * @throws AudioSequenceException if the file cannot be read.
+     */
+    public int read(long frame, short[] output, int frames)
+            throws AudioSequenceException {
+        frames = (int) Math.max(0, Math.min(frames, frameLength - frame));
+
+        int done = 0;
+        while (done < frames) {
+            ShortBuffer source = samplesAt(frame + done, frames - done);
+            int size = source.remaining();
+            source.get(output, done * nbChannels, size);
+            done += size / nbChannels;
+        }
+
+        return frames;
+    }
+
+    /**
+     * Reads frames of the audio, as many as possible at once: all of them
+     * through the file channel, or up to the end of the window holding the
+     * first one when memory mapped.
+     *
+     * @param frame  The index of the first frame to read.
+     * @param frames The amount of frames to read, within the audio.
+     * @return the samples of the frames read.
+     * @throws AudioSequenceException if the file cannot be read.
+     */
+    private ShortBuffer samplesAt(long frame, int frames)
+            throws AudioSequenceException {
+        int frameSize = nbChannels * WavFormat.BYTES_PER_SAMPLE;
+        long position = frame * frameSize;
+
+        ByteBuffer source;
+        int index;
+        int count;
+        if (windows != null) {
+            source = windows[(int) (position / windowSize)];
+            index = (int) (position % windowSize);
+            count = Math.min(frames, (source.limit() - index) / frameSize);
+        } else {
+            count = frames;
+            if (buffer == null || buffer.capacity() < count * frameSize) {
+                buffer = ByteBuffer.allocateDirect(count * frameSize)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+            }
+            buffer.clear().limit(count * frameSize);
+            try {
+                readFully(buffer, dataOffset + position);
+            } catch (IOException e) {
+                throw new AudioSequenceException("An I/O error occurred " +
+                        "while reading the input file: " + e.getMessage());
+            }
+            source = buffer;
+            index = 0;
+        }
+
+        return source.duplicate().position(index)
+                .limit(index + count * frameSize)
+                .order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+    }
+
+    /**
+     * Reads bytes of the file until the buffer is full or the file ends.
+     *
+     * @return {@code true} if the buffer was filled, {@code false} if the
+     *         file ended before.
+     */
+    private boolean readFully(ByteBuffer target, long position)
+            throws IOException {
+        while (target.hasRemaining()) {
+            int read = channel.read(target, position);
+            if (read < 0) return false;
+            position += read;
+        }
+        return true;
+    }
+
+    /**
+     * Closes the file, ignoring errors.
+     */
+    private void closeQuietly() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * @return the amount of channels of the audio.
+     */
+    public int nbChannels() {
+        return nbChannels;
+    }
+
+    /**
+     * @return the sample rate of the audio, in frames per second.
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * @return the amount of frames of the audio.
+     */
+    public long getFrameLength() {
+        return frameLength;
+    }
+
+    /**
+     * Closes the file.
+     *
+     * @throws IOException if the file cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
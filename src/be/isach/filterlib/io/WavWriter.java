@@ -0,0 +1,320 @@
+package be.isach.filterlib.io;
+
+import be.isach.filterlib.util.BlockKernels;
+import be.uliege.montefiore.oop.audio.AudioSequenceException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writer of 16 bits PCM WAV files, writing frames as they are computed.
+ * <p>
+ * Channels can be written one at a time: writing a channel keeps the
+ * samples of the other channels already written at the same frames. The
+ * header is completed with the final length of the audio when the writer is
+ * closed.
+ * </p>
+ * <p>
+ * Sample values are converted as by the audio library, truncated towards
+ * zero and kept on their 16 lowest bits.
+ * </p>
+ */
+public class WavWriter implements Closeable {
+
+    /**
+     * Channel of the file.
+     */
+    private final FileChannel channel;
+
+    /**
+     * Amount of channels of the audio.
+     */
+    private final int nbChannels;
+
+    /**
+     * Sample rate of the audio, in frames per second.
+     */
+    private final int sampleRate;
+
+    /**
+     * Amount of frames written so far.
+     */
+    private long frameLength;
+
+    /**
+     * Buffer the frames are written from.
+     */
+    private ByteBuffer buffer;
+
+    /**
+     * Interleaved samples of the frames being written.
+     */
+    private short[] samples;
+
+    /**
+     * Creates a WAV file, replacing any existing one.
+     *
+     * @param file       The path of the file.
+     * @param nbChannels The amount of channels of the audio.
+     * @param sampleRate The sample rate of the audio, in frames per second.
+     * @throws AudioSequenceException if the file cannot be created.
+     */
+    public WavWriter(String file, int nbChannels, int sampleRate)
+            throws AudioSequenceException {
+        this(file, nbChannels, sampleRate, false);
+    }
+
+    /**
+     * Opens a WAV file, either replacing it, or keeping the frames it
+     * already holds so that a render can be resumed. A kept file must have
+     * been written by a writer with the same amount of channels; its header
+     * may be incomplete.
+     *
+     * @param file       The path of the file.
+     * @param nbChannels The amount of channels of the audio.
+     * @param sampleRate The sample rate of the audio, in frames per second.
+     * @param keep       Whether the frames of an existing file are kept.
+     * @throws AudioSequenceException if the file cannot be opened.
+     */
+    public WavWriter(String file, int nbChannels, int sampleRate,
+                     boolean keep) throws AudioSequenceException {
+        this.nbChannels = nbChannels;
+        this.sampleRate = sampleRate;
+
+        try {
+            if (keep) {
+                this.channel = FileChannel.open(Paths.get(file),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.READ);
+                long frameSize = (long) nbChannels
+                        * WavFormat.BYTES_PER_SAMPLE;
+                this.frameLength = Math.max(0, (channel.size()
+                        - WavFormat.HEADER_SIZE) / frameSize);
+            } else {
+                this.channel = FileChannel.open(Paths.get(file),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.READ,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+            }
+            writeHeader();
+        } catch (IOException e) {
+            throw new AudioSequenceException("An I/O error occurred while " +
+                    "writing the output file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes frames of every channel from planar buffers of sample values.
+     *
+     * @param frame  The index of the first frame to write.
+     * @param input  The buffers holding the frames, one per channel.
+     * @param frames The amount of frames to write.
+     * @throws AudioSequenceException if the file cannot be written.
+     */
+    public void write(long frame, double[][] input, int frames)
+            throws AudioSequenceException {
+        int size = frames * nbChannels;
+        if (samples == null || samples.length < size) {
+            samples = new short[size];
+        }
+        for (int c = 0; c < nbChannels; c++) {
+            BlockKernels.get().toShorts(input[c], 0, samples, c, nbChannels,
+                    frames);
+        }
+
+        ByteBuffer bytes = allocate(frames);
+        bytes.asShortBuffer().put(samples, 0, size);
+        flush(bytes, frame, frames);
+    }
+
+    /**
+     * Writes frames of every channel from interleaved 16 bits samples.
+     *
+     * @param frame  The index of the first frame to write.
+     * @param input  The samples of the frames, channel after channel.
+     * @param frames The amount of frames to write.
+     * @throws AudioSequenceException if the file cannot be written.
+     */
+    public void write(long frame, short[] input, int frames)
+            throws AudioSequenceException {
+        ByteBuffer bytes = allocate(frames);
+        bytes.asShortBuffer().put(input, 0, frames * nbChannels);
+        flush(bytes, frame, frames);
+    }
+
+    /**
+     * Writes frames of a single channel, keeping the samples of the other
+     * channels at the same frames.
+     *
+     * @param channelIndex The channel to write.
+     * @param frame        The index of the first frame to write.
+     * @param input        The buffer holding the samples of the channel.
+     * @param frames       The amount of frames to write.
+     * @throws AudioSequenceException if the file cannot be written.
+     */
+    public void writeChannel(int channelIndex, long frame, double[] input,
+                             int frames) throws AudioSequenceException {
+        ByteBuffer bytes = readFrames(frame, frames);
+        int frameSize = nbChannels * WavFormat.BYTES_PER_SAMPLE;
+
+        int index = channelIndex * WavFormat.BYTES_PER_SAMPLE;
+        for (int n = 0; n < frames; n++) {
+            bytes.putShort(index, (short) (int) input[n]);
+            index += frameSize;
+        }
+
+        flush(bytes.clear().limit(frames * frameSize), frame, frames);
+    }
+
+    /**
+     * Writes frames of a single channel from 16 bits samples, keeping the
+     * samples of the other channels at the same frames.
+     *
+     * @param channelIndex The channel to write.
+     * @param frame        The index of the first frame to write.
+     * @param input        The samples of the channel.
+     * @param frames       The amount of frames to write.
+     * @throws AudioSequenceException if the file cannot be written.
+     */
+    public void writeChannel(int channelIndex, long frame, short[] input,
+                             int frames) throws AudioSequenceException {
+        ByteBuffer bytes = readFrames(frame, frames);
+        int frameSize = nbChannels * WavFormat.BYTES_PER_SAMPLE;
+
+        int index = channelIndex * WavFormat.BYTES_PER_SAMPLE;
+        for (int n = 0; n < frames; n++) {
+            bytes.putShort(index, input[n]);
+            index += frameSize;
+        }
+
+        flush(bytes.clear().limit(frames * frameSize), frame, frames);
+    }
+
+    /**
+     * @return the buffer holding the given frames of the file, frames
+     *         beyond its end being read as silence.
+     */
+    private ByteBuffer readFrames(long frame, int frames)
+            throws AudioSequenceException {
+        ByteBuffer bytes = prepare(frames);
+        int frameSize = nbChannels * WavFormat.BYTES_PER_SAMPLE;
+        try {
+            long position = WavFormat.HEADER_SIZE + frame * frameSize;
+            while (bytes.hasRemaining()) {
+                if (channel.read(bytes, position + bytes.position()) < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            throw new AudioSequenceException("An I/O error occurred while " +
+                    "writing the output file: " + e.getMessage());
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the buffer for the given amount of frames, limited to these
+     *         frames.
+     */
+    private ByteBuffer allocate(int frames) {
+        int size = frames * nbChannels * WavFormat.BYTES_PER_SAMPLE;
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocateDirect(size)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return buffer.clear().limit(size);
+    }
+
+    /**
+     * @return the buffer for the given amount of frames, cleared to silence
+     *         and limited to these frames.
+     */
+    private ByteBuffer prepare(int frames) {
+        int size = allocate(frames).limit();
+        while (buffer.remaining() >= Long.BYTES) {
+            buffer.putLong(0);
+        }
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) 0);
+        }
+        return buffer.clear().limit(size);
+    }
+
+    /**
+     * Writes the buffer at the position of the given frame.
+     */
+    private void flush(ByteBuffer bytes, long frame, int frames)
+            throws AudioSequenceException {
+        long position = WavFormat.HEADER_SIZE
+                + frame * nbChannels * WavFormat.BYTES_PER_SAMPLE;
+        try {
+            while (bytes.hasRemaining()) {
+                position += channel.write(bytes, position);
+            }
+        } catch (IOException e) {
+            throw new AudioSequenceException("An I/O error occurred while " +
+                    "writing the output file: " + e.getMessage());
+        }
+
+        frameLength = Math.max(frameLength, frame + frames);
+    }
+
+    /**
+     * Writes the header of the file, for the frames written so far.
+     */
+    private void writeHeader() throws IOException {
+        int blockAlign = nbChannels * WavFormat.BYTES_PER_SAMPLE;
+        long dataSize = frameLength * blockAlign;
+        if (dataSize + WavFormat.HEADER_SIZE - 8 > 0xFFFFFFFFL) {
+            throw new IOException("the audio is too large for a WAV file.");
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(WavFormat.HEADER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(WavFormat.RIFF)
+                .putInt((int) (dataSize + WavFormat.HEADER_SIZE - 8))
+                .putInt(WavFormat.WAVE)
+                .putInt(WavFormat.FMT)
+                .putInt(16)
+                .putShort((short) WavFormat.PCM)
+                .putShort((short) nbChannels)
+                .putInt(sampleRate)
+                .putInt(sampleRate * blockAlign)
+                .putShort((short) blockAlign)
+                .putShort((short) WavFormat.BITS_PER_SAMPLE)
+                .putInt(WavFormat.DATA)
+                .putInt((int) dataSize)
+                .flip();
+
+        long position = 0;
+        while (header.hasRemaining()) {
+            position += channel.write(header, position);
+        }
+    }
+
+    /**
+     * @return the amount of frames written so far.
+     */
+    public long getFrameLength() {
+        return frameLength;
+    }
+
+    /**
+     * Completes the header of the file, then closes it.
+     *
+     * @throws IOException if the file cannot be written or closed.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            writeHeader();
+        } finally {
+            channel.close();
+        }
+    }
+}
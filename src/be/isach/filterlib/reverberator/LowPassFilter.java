@@ -8,6 +8,10 @@ import be.uliege.montefiore.oop.audio.Filter;
 
 /**
  * Implements a low-pass filters, which attenuates higher frequencies.
+ * <p>
+ * Once compiled, its graph runs as a single
+ * {@link be.isach.filterlib.engine.CombKernel}.
+ * </p>
  */
 public class LowPassFilter extends CompositeFilter {
 
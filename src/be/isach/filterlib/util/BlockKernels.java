@@ -0,0 +1,121 @@
+package be.isach.filterlib.util;
+
+/**
+ * Inner loops of the block filters and of the WAV reader and writer, over
+ * buffers of samples.
+ * <p>
+ * The kernels used by the library are chosen once, at startup: those built
+ * on the incubating Vector API of the JDK when it is enabled, with
+ * {@code --add-modules jdk.incubator.vector}, and plain loops otherwise.
+ * Both give exactly the same results. The plain loops can be forced by
+ * setting the {@value #PROPERTY} system property to {@code scalar}.
+ * </p>
+ */
+public interface BlockKernels {
+
+    /**
+     * System property forcing the scalar kernels, when set to
+     * {@code scalar}.
+     */
+    String PROPERTY = "filterlib.kernels";
+
+    /**
+     * Multiplies samples by a gain.
+     *
+     * @param input  The samples.
+     * @param gain   The gain.
+     * @param output Receives the products, may be the input.
+     * @param frames The amount of samples, from the start of the buffers.
+     */
+    void scale(double[] input, double gain, double[] output, int frames);
+
+    /**
+     * Sums two buffers of samples.
+     *
+     * @param first  The first samples.
+     * @param second The second samples.
+     * @param output Receives the sums, may be one of the inputs.
+     * @param frames The amount of samples, from the start of the buffers.
+     */
+    void add(double[] first, double[] second, double[] output, int frames);
+
+    /**
+     * Sums two buffers of samples, each multiplied by a weight.
+     *
+     * @param first        The first samples.
+     * @param firstWeight  The weight of the first samples.
+     * @param second       The second samples.
+     * @param secondWeight The weight of the second samples.
+     * @param output       Receives the sums, may be one of the inputs.
+     * @param frames       The amount of samples, from the start of the
+     *                     buffers.
+     */
+    void addWeighted(double[] first, double firstWeight, double[] second,
+                     double secondWeight, double[] output, int frames);
+
+    /**
+     * Converts 16 bits samples, possibly interleaved with other channels.
+     *
+     * @param input  The 16 bits samples.
+     * @param offset The index of the first sample to convert.
+     * @param stride The distance between two samples to convert, the
+     *               amount of interleaved channels.
+     * @param output Receives the values of the samples.
+     * @param from   The index of the first value in the output.
+     * @param frames The amount of samples to convert.
+     */
+    void toDoubles(short[] input, int offset, int stride, double[] output,
+                   int from, int frames);
+
+    /**
+     * Converts sample values to 16 bits, as the audio library does, possibly
+     * interleaving them with other channels.
+     *
+     * @param input  The values of the samples.
+     * @param from   The index of the first value to convert.
+     * @param output Receives the 16 bits samples.
+     * @param offset The index of the first sample in the output.
+     * @param stride The distance between two converted samples in the
+     *               output, the amount of interleaved channels.
+     * @param frames The amount of samples to convert.
+     */
+    void toShorts(double[] input, int from, short[] output, int offset,
+                  int stride, int frames);
+
+    /**
+     * @return the name of the kernels, scalar or vector.
+     */
+    String getName();
+
+    /**
+     * @return the kernels used by the library, chosen at startup.
+     */
+    static BlockKernels get() {
+        return ScalarKernels.SELECTED;
+    }
+
+    /**
+     * @return the kernels written as plain loops.
+     */
+    static BlockKernels scalar() {
+        return ScalarKernels.INSTANCE;
+    }
+
+    /**
+     * @return the kernels built on the Vector API, or null if it is not
+     *         enabled, or if they were not compiled.
+     */
+    static BlockKernels vector() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return null;
+        }
+
+        try {
+            return (BlockKernels) Class.forName(
+                    "be.isach.filterlib.util.VectorKernels")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+}
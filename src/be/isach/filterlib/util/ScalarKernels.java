@@ -0,0 +1,98 @@
+package be.isach.filterlib.util;
+
+/**
+ * Kernels written as plain loops, which the JIT compiler may still
+ * vectorize on its own.
+ */
+final class ScalarKernels implements BlockKernels {
+
+    /**
+     * The scalar kernels.
+     */
+    static final BlockKernels INSTANCE = new ScalarKernels();
+
+    /**
+     * The kernels used by the library.
+     */
+    static final BlockKernels SELECTED = select();
+
+    private ScalarKernels() {
+    }
+
+    /**
+     * @return the vector kernels if they are available and not disabled by
+     *         the system property, the scalar ones otherwise.
+     */
+    private static BlockKernels select() {
+        if ("scalar".equals(System.getProperty(PROPERTY))) {
+            return INSTANCE;
+        }
+
+        BlockKernels vector = BlockKernels.vector();
+        return vector != null ? vector : INSTANCE;
+    }
+
+    /**
+     * Multiplies samples by a gain, one at a time.
+     */
+    @Override
+    public void scale(double[] input, double gain, double[] output,
+                      int frames) {
+        for (int n = 0; n < frames; n++) {
+            output[n] = gain * input[n];
+        }
+    }
+
+    /**
+     * Sums two buffers of samples, one sample at a time.
+     */
+    @Override
+    public void add(double[] first, double[] second, double[] output,
+                    int frames) {
+        for (int n = 0; n < frames; n++) {
+            output[n] = first[n] + second[n];
+        }
+    }
+
+    /**
+     * Sums two weighted buffers of samples, one sample at a time.
+     */
+    @Override
+    public void addWeighted(double[] first, double firstWeight,
+                            double[] second, double secondWeight,
+                            double[] output, int frames) {
+        for (int n = 0; n < frames; n++) {
+            output[n] = firstWeight * first[n] + secondWeight * second[n];
+        }
+    }
+
+    /**
+     * Converts 16 bits samples, one at a time.
+     */
+    @Override
+    public void toDoubles(short[] input, int offset, int stride,
+                          double[] output, int from, int frames) {
+        for (int n = 0; n < frames; n++) {
+            output[from + n] = input[offset + n * stride];
+        }
+    }
+
+    /**
+     * Converts sample values to 16 bits, one at a time.
+     */
+    @Override
+    public void toShorts(double[] input, int from, short[] output,
+                         int offset, int stride, int frames) {
+        for (int n = 0; n < frames; n++) {
+            output[offset + n * stride] = (short) (int) input[from + n];
+        }
+    }
+
+    /**
+     * @return scalar.
+     */
+    @Override
+    public String getName() {
+        return "scalar";
+    }
+}
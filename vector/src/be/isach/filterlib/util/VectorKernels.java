@@ -0,0 +1,149 @@
+package be.isach.filterlib.util;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Kernels built on the incubating Vector API of the JDK, processing as many
+ * samples at once as the widest vectors of the processor hold: 8 doubles
+ * with AVX-512.
+ * <p>
+ * Each lane computes exactly what the scalar kernels compute, without fused
+ * operations, so that both give the same results. Interleaved samples, and
+ * conversions for which the processor has no vector shape of 16 bits
+ * samples, are left to the scalar kernels, as are all conversions to 16
+ * bits.
+ * </p>
+ * <p>
+ * This class is compiled separately, with
+ * {@code --add-modules jdk.incubator.vector}, and only loaded by
+ * {@link BlockKernels#vector()} once the module is known to be enabled.
+ * </p>
+ */
+final class VectorKernels implements BlockKernels {
+
+    private static final VectorSpecies<Double> DOUBLES =
+            DoubleVector.SPECIES_PREFERRED;
+
+    /**
+     * Species of 16 bits samples with as many lanes as the doubles, null if
+     * there is none.
+     */
+    private static final VectorSpecies<Short> SHORTS = shortSpecies();
+
+    private static final BlockKernels SCALAR = BlockKernels.scalar();
+
+    /**
+     * @return the species of 16 bits samples matching the doubles, null if
+     *         the processor has no such vector shape.
+     */
+    private static VectorSpecies<Short> shortSpecies() {
+        try {
+            return VectorSpecies.of(short.class, VectorShape.forBitSize(
+                    DOUBLES.length() * Short.SIZE));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Multiplies samples by a gain, a vector at a time.
+     */
+    @Override
+    public void scale(double[] input, double gain, double[] output,
+                      int frames) {
+        int n = 0;
+        for (int bound = DOUBLES.loopBound(frames); n < bound;
+             n += DOUBLES.length()) {
+            DoubleVector.fromArray(DOUBLES, input, n).mul(gain)
+                    .intoArray(output, n);
+        }
+        for (; n < frames; n++) {
+            output[n] = gain * input[n];
+        }
+    }
+
+    /**
+     * Sums two buffers of samples, a vector at a time.
+     */
+    @Override
+    public void add(double[] first, double[] second, double[] output,
+                    int frames) {
+        int n = 0;
+        for (int bound = DOUBLES.loopBound(frames); n < bound;
+             n += DOUBLES.length()) {
+            DoubleVector.fromArray(DOUBLES, first, n)
+                    .add(DoubleVector.fromArray(DOUBLES, second, n))
+                    .intoArray(output, n);
+        }
+        for (; n < frames; n++) {
+            output[n] = first[n] + second[n];
+        }
+    }
+
+    /**
+     * Sums two weighted buffers of samples, a vector at a time.
+     */
+    @Override
+    public void addWeighted(double[] first, double firstWeight,
+                            double[] second, double secondWeight,
+                            double[] output, int frames) {
+        int n = 0;
+        for (int bound = DOUBLES.loopBound(frames); n < bound;
+             n += DOUBLES.length()) {
+            DoubleVector.fromArray(DOUBLES, first, n).mul(firstWeight)
+                    .add(DoubleVector.fromArray(DOUBLES, second, n)
+                            .mul(secondWeight))
+                    .intoArray(output, n);
+        }
+        for (; n < frames; n++) {
+            output[n] = firstWeight * first[n] + secondWeight * second[n];
+        }
+    }
+
+    /**
+     * Converts contiguous 16 bits samples a vector at a time, interleaved
+     * ones with the scalar kernel.
+     */
+    @Override
+    public void toDoubles(short[] input, int offset, int stride,
+                          double[] output, int from, int frames) {
+        if (stride != 1 || SHORTS == null) {
+            SCALAR.toDoubles(input, offset, stride, output, from, frames);
+            return;
+        }
+
+        int n = 0;
+        for (int bound = DOUBLES.loopBound(frames); n < bound;
+             n += DOUBLES.length()) {
+            ((DoubleVector) ShortVector.fromArray(SHORTS, input, offset + n)
+                    .convertShape(VectorOperators.S2D, DOUBLES, 0))
+                    .intoArray(output, from + n);
+        }
+        for (; n < frames; n++) {
+            output[from + n] = input[offset + n];
+        }
+    }
+
+    /**
+     * Converts sample values to 16 bits with the scalar kernel: the vector
+     * casts of doubles to integers are not compiled to vector instructions
+     * by the JDK 17, and run several times slower than the plain loop.
+     */
+    @Override
+    public void toShorts(double[] input, int from, short[] output,
+                         int offset, int stride, int frames) {
+        SCALAR.toShorts(input, from, output, offset, stride, frames);
+    }
+
+    /**
+     * @return vector.
+     */
+    @Override
+    public String getName() {
+        return "vector";
+    }
+}